@@ -0,0 +1,140 @@
+package com.semaphore.resource.updater.benchmark;
+
+import com.semaphore.resource.updater.cache.CacheAccessor;
+import com.semaphore.resource.updater.core.UpdateContext;
+import com.semaphore.resource.updater.db.DbAccessor;
+import com.zaxxer.hikari.HikariDataSource;
+import org.redisson.Redisson;
+import org.redisson.api.RedissonClient;
+import org.redisson.config.Config;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import redis.embedded.RedisServer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * 性能测试环境
+ * 默认启动嵌入式redis以及MySQL模式的H2内存库，不依赖外部服务
+ * 通过 -Dbenchmark.redis=redis://host:port 使用已有的redis
+ *
+ * @date 2022/3/30 3:10 PM
+ */
+public class BenchmarkEnvironment implements AutoCloseable {
+    public static final String TABLE_NAME = "t_resource_benchmark";
+    public static final String TABLE_RESOURCE_COLUMN_NAME = "name";
+    public static final String TABLE_RESOURCE_AVAILABLE_COLUMN_NAME = "available_num";
+    public static final String TABLE_RESOURCE_PRE_LOCK_COLUMN_NAME = "pre_lock_num";
+    /**
+     * 资源个数
+     */
+    public static final int RESOURCE_COUNT = 1000;
+    /**
+     * 每个资源的初始可用数量 足够整个测试扣减
+     */
+    public static final int INITIAL_AVAILABLE = 1_000_000_000;
+
+    private static final int EMBEDDED_REDIS_PORT = 16379;
+    private static final String JDBC_URL = "jdbc:h2:mem:resource_benchmark;MODE=MySQL;DB_CLOSE_DELAY=-1";
+
+    private final RedisServer redisServer;
+    private final RedissonClient redissonClient;
+    private final HikariDataSource dataSource;
+    private final DbAccessor dbAccessor;
+
+    public BenchmarkEnvironment() throws Exception {
+        String redisAddress = System.getProperty("benchmark.redis");
+        if(Objects.isNull(redisAddress) || redisAddress.isEmpty()){
+            redisServer = new RedisServer(EMBEDDED_REDIS_PORT);
+            redisServer.start();
+            redisAddress = "redis://127.0.0.1:" + EMBEDDED_REDIS_PORT;
+        }else {
+            redisServer = null;
+        }
+        try {
+            Config config = new Config();
+            config.useSingleServer()
+                    .setAddress(redisAddress)
+                    .setConnectionPoolSize(64)
+                    .setConnectionMinimumIdleSize(16);
+            redissonClient = Redisson.create(config);
+            redissonClient.getKeys().flushdb();
+            CacheAccessor.redissonClient = redissonClient;
+
+            dataSource = new HikariDataSource();
+            dataSource.setJdbcUrl(JDBC_URL);
+            dataSource.setMaximumPoolSize(32);
+            createTable();
+
+            TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+            dbAccessor = new DbAccessor(dataSource, transactionTemplate, TABLE_NAME,
+                    TABLE_RESOURCE_COLUMN_NAME, TABLE_RESOURCE_AVAILABLE_COLUMN_NAME, TABLE_RESOURCE_PRE_LOCK_COLUMN_NAME);
+        }catch (Exception | Error e){
+            //初始化失败时 trial 不会执行 tearDown，这里主动停掉内嵌 redis，避免端口被下一个 fork 占用
+            if(Objects.nonNull(redisServer)){
+                redisServer.stop();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 初始化全部资源的缓存信号量
+     * @throws Exception
+     */
+    public void initSemaphores() throws Exception {
+        UpdateContext context = UpdateContext.acquire();
+        try {
+            CacheAccessor.initAvailableSemaphorePermit(context, resourceIdList(), dbAccessor);
+            CacheAccessor.initPreLockedSemaphorePermit(context, resourceIdList(), dbAccessor);
+        }finally {
+            context.release();
+        }
+    }
+
+    public static String resourceId(int index){
+        return "benchmark_resource_" + index;
+    }
+
+    public static List<String> resourceIdList(){
+        List<String> resourceIdList = new ArrayList<>(RESOURCE_COUNT);
+        for (int i = 0; i < RESOURCE_COUNT; i++) {
+            resourceIdList.add(resourceId(i));
+        }
+        return resourceIdList;
+    }
+
+    public RedissonClient getRedissonClient(){
+        return redissonClient;
+    }
+
+    public DbAccessor getDbAccessor(){
+        return dbAccessor;
+    }
+
+    @Override
+    public void close(){
+        redissonClient.shutdown();
+        dataSource.close();
+        if(Objects.nonNull(redisServer)){
+            redisServer.stop();
+        }
+    }
+
+    private void createTable(){
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("DROP TABLE IF EXISTS " + TABLE_NAME);
+        jdbcTemplate.execute("CREATE TABLE " + TABLE_NAME + " ("
+                + TABLE_RESOURCE_COLUMN_NAME + " VARCHAR(64) PRIMARY KEY, "
+                + TABLE_RESOURCE_AVAILABLE_COLUMN_NAME + " INT NOT NULL, "
+                + TABLE_RESOURCE_PRE_LOCK_COLUMN_NAME + " INT NOT NULL)");
+        List<Object[]> rowList = new ArrayList<>(RESOURCE_COUNT);
+        for(String resourceId : resourceIdList()){
+            rowList.add(new Object[]{resourceId, INITIAL_AVAILABLE, 0});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO " + TABLE_NAME + " VALUES (?, ?, ?)", rowList);
+    }
+}
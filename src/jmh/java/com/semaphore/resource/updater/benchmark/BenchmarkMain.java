@@ -0,0 +1,36 @@
+package com.semaphore.resource.updater.benchmark;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 性能测试入口
+ * 输出吞吐量（Throughput）、延迟分位数 p50/p99（SampleTime）以及每次操作的分配量（gc.alloc.rate.norm）
+ *
+ * mvn -Pbenchmark test-compile exec:exec [-Dbenchmark.include=CacheAccessorBenchmark]
+ *
+ * @date 2022/3/30 4:20 PM
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(System.getProperty("benchmark.include", BenchmarkMain.class.getPackage().getName() + ".*"))
+                .mode(Mode.Throughput)
+                .mode(Mode.SampleTime)
+                .timeUnit(TimeUnit.MICROSECONDS)
+                .addProfiler(GCProfiler.class)
+                .warmupIterations(3)
+                .warmupTime(TimeValue.seconds(5))
+                .measurementIterations(5)
+                .measurementTime(TimeValue.seconds(5))
+                .forks(1)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,50 @@
+package com.semaphore.resource.updater.benchmark;
+
+import com.semaphore.resource.updater.cache.CacheAccessor;
+import com.semaphore.resource.updater.core.UpdateContext;
+import com.semaphore.resource.updater.core.UpdateResourceParam;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+
+/**
+ * CacheAccessor 批量获取（减掉）并释放（归还）可用资源信号量
+ *
+ * @date 2022/3/30 3:40 PM
+ */
+@State(Scope.Benchmark)
+@Threads(8)
+public class CacheAccessorBenchmark {
+    @Param({"1", "5", "20"})
+    public int cartSize;
+
+    @Param({KeySampler.UNIFORM, KeySampler.ZIPF})
+    public String keySkew;
+
+    private BenchmarkEnvironment environment;
+    private KeySampler keySampler;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        environment = new BenchmarkEnvironment();
+        environment.initSemaphores();
+        keySampler = new KeySampler(keySkew, BenchmarkEnvironment.RESOURCE_COUNT);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        environment.close();
+    }
+
+    @Benchmark
+    public void acquireAndRelease() throws Exception {
+        List<UpdateResourceParam> cart = keySampler.nextCart(cartSize, 1);
+        UpdateContext context = UpdateContext.acquire();
+        try {
+            CacheAccessor.tryAcquireAvailableSemaphore(context, cart, environment.getDbAccessor());
+            CacheAccessor.leaseAcquiredAvailableSemaphore(context);
+        }finally {
+            context.release();
+        }
+    }
+}
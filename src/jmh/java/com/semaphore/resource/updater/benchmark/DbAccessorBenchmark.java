@@ -0,0 +1,53 @@
+package com.semaphore.resource.updater.benchmark;
+
+import com.semaphore.resource.updater.core.UpdateResourceParam;
+import com.semaphore.resource.updater.db.DbUpdateStrategy;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+
+/**
+ * DbAccessor 批量更新
+ * 分别按 BATCH / MULTI_ROW 两种更新策略测试
+ *
+ * @date 2022/3/30 4:10 PM
+ */
+@State(Scope.Benchmark)
+@Threads(8)
+public class DbAccessorBenchmark {
+    @Param({"1", "5", "20"})
+    public int cartSize;
+
+    @Param({KeySampler.UNIFORM, KeySampler.ZIPF})
+    public String keySkew;
+
+    @Param({"BATCH", "MULTI_ROW"})
+    public DbUpdateStrategy updateStrategy;
+
+    private BenchmarkEnvironment environment;
+    private KeySampler keySampler;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        environment = new BenchmarkEnvironment();
+        environment.getDbAccessor().setUpdateStrategy(updateStrategy);
+        keySampler = new KeySampler(keySkew, BenchmarkEnvironment.RESOURCE_COUNT);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        environment.close();
+    }
+
+    @Benchmark
+    public void subtractAvailable(){
+        List<UpdateResourceParam> cart = keySampler.nextCart(cartSize, 1);
+        environment.getDbAccessor().subtractAvailableResource(cart);
+    }
+
+    @Benchmark
+    public void subtractAvailableAddPreLock(){
+        List<UpdateResourceParam> cart = keySampler.nextCart(cartSize, 1);
+        environment.getDbAccessor().subtractAvailableAndAddPreLockResource(cart);
+    }
+}
@@ -0,0 +1,77 @@
+package com.semaphore.resource.updater.benchmark;
+
+import com.semaphore.resource.updater.core.UpdateResourceParam;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 购物车（一次请求涉及的资源）采样
+ * uniform：均匀分布；zipf：少数热点资源占大部分请求
+ *
+ * @date 2022/3/30 3:25 PM
+ */
+public class KeySampler {
+    public static final String UNIFORM = "uniform";
+    public static final String ZIPF = "zipf";
+
+    private static final double ZIPF_EXPONENT = 1.1;
+
+    private final int keyCount;
+    /**
+     * zipf分布的累积概率 uniform时为null
+     */
+    private final double[] cumulative;
+
+    public KeySampler(String keySkew, int keyCount){
+        this.keyCount = keyCount;
+        if(ZIPF.equals(keySkew)){
+            cumulative = new double[keyCount];
+            double sum = 0;
+            for (int i = 0; i < keyCount; i++) {
+                sum += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+                cumulative[i] = sum;
+            }
+            for (int i = 0; i < keyCount; i++) {
+                cumulative[i] /= sum;
+            }
+        }else if(UNIFORM.equals(keySkew)){
+            cumulative = null;
+        }else {
+            throw new IllegalArgumentException("不支持的keySkew:" + keySkew);
+        }
+    }
+
+    public int nextIndex(){
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if(cumulative == null){
+            return random.nextInt(keyCount);
+        }
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(index >= 0 ? index : -index - 1, keyCount - 1);
+    }
+
+    /**
+     * 采样cartSize个不同的资源 按resourceId排序（与组件加锁顺序一致）
+     * @param cartSize
+     * @param num 每个资源的数量
+     * @return
+     */
+    public List<UpdateResourceParam> nextCart(int cartSize, int num){
+        List<UpdateResourceParam> cart = new ArrayList<>(cartSize);
+        boolean[] picked = new boolean[keyCount];
+        while (cart.size() < cartSize){
+            int index = nextIndex();
+            if(picked[index]){
+                continue;
+            }
+            picked[index] = true;
+            cart.add(UpdateResourceParam.builder().resourceId(BenchmarkEnvironment.resourceId(index)).num(num).build());
+        }
+        cart.sort(Comparator.comparing(UpdateResourceParam::getResourceId));
+        return cart;
+    }
+}
@@ -0,0 +1,43 @@
+package com.semaphore.resource.updater.benchmark;
+
+import com.semaphore.resource.updater.cache.CacheAccessor;
+import com.semaphore.resource.updater.cache.KeyLayout;
+import com.semaphore.resource.updater.cache.MySemaphore;
+import org.openjdk.jmh.annotations.*;
+import org.redisson.Redisson;
+import org.redisson.command.CommandAsyncExecutor;
+
+/**
+ * MySemaphore 强制设置信号量数量（初始化路径）
+ *
+ * @date 2022/3/30 4:00 PM
+ */
+@State(Scope.Benchmark)
+@Threads(8)
+public class MySemaphoreBenchmark {
+    @Param({KeySampler.UNIFORM, KeySampler.ZIPF})
+    public String keySkew;
+
+    private BenchmarkEnvironment environment;
+    private KeySampler keySampler;
+    private CommandAsyncExecutor commandExecutor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        environment = new BenchmarkEnvironment();
+        keySampler = new KeySampler(keySkew, BenchmarkEnvironment.RESOURCE_COUNT);
+        commandExecutor = ((Redisson) environment.getRedissonClient()).getConnectionManager().getCommandExecutor();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        environment.close();
+    }
+
+    @Benchmark
+    public boolean trySetPermitsForce(){
+        String resourceId = BenchmarkEnvironment.resourceId(keySampler.nextIndex());
+        MySemaphore mySemaphore = new MySemaphore(commandExecutor, KeyLayout.key(CacheAccessor.RESOURCE_AVAILABLE_KEY_PREFIX, resourceId));
+        return mySemaphore.trySetPermitsForce(BenchmarkEnvironment.INITIAL_AVAILABLE);
+    }
+}
@@ -0,0 +1,52 @@
+package com.semaphore.resource.updater.benchmark;
+
+import com.semaphore.resource.updater.core.ReadWriteLock;
+import com.semaphore.resource.updater.core.UpdateContext;
+import com.semaphore.resource.updater.core.UpdateResourceParam;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ReadWriteLock 批量加可用资源写锁并释放（初始化路径）
+ *
+ * @date 2022/3/30 3:50 PM
+ */
+@State(Scope.Benchmark)
+@Threads(8)
+public class ReadWriteLockBenchmark {
+    @Param({"1", "5", "20"})
+    public int cartSize;
+
+    @Param({KeySampler.UNIFORM, KeySampler.ZIPF})
+    public String keySkew;
+
+    private BenchmarkEnvironment environment;
+    private KeySampler keySampler;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        environment = new BenchmarkEnvironment();
+        keySampler = new KeySampler(keySkew, BenchmarkEnvironment.RESOURCE_COUNT);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        environment.close();
+    }
+
+    @Benchmark
+    public void writeLockAndUnlock() throws Exception {
+        List<UpdateResourceParam> cart = keySampler.nextCart(cartSize, 1);
+        List<String> resourceIdList = new ArrayList<>(cart.size());
+        cart.forEach(updateResourceParam -> resourceIdList.add(updateResourceParam.getResourceId()));
+        UpdateContext context = UpdateContext.acquire();
+        try {
+            ReadWriteLock.availableTryLockWrite(context, resourceIdList);
+            ReadWriteLock.leaseHoldAvailableWriteLock(context);
+        }finally {
+            context.release();
+        }
+    }
+}
@@ -2,20 +2,36 @@ package com.semaphore.resource.updater.cache;
 
 import com.semaphore.resource.updater.core.*;
 import com.semaphore.resource.updater.db.DbAccessor;
+import com.semaphore.resource.updater.db.WriteBehindFlusher;
 import com.semaphore.resource.updater.exceptions.LockWaitException;
 import com.semaphore.resource.updater.exceptions.ResourceRunException;
 import com.semaphore.resource.updater.exceptions.ResourceWaitException;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.Redisson;
-import org.redisson.api.RKeys;
+import org.redisson.api.RBatch;
+import org.redisson.api.RMap;
+import org.redisson.api.RScript;
+import org.redisson.api.RSet;
 import org.redisson.api.RedissonClient;
-import org.redisson.connection.ConnectionManager;
+import org.redisson.client.codec.StringCodec;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Random;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
 
 /**
  *
@@ -30,38 +46,222 @@ public class CacheAccessor {
      * 设置为 0-10 之间的整数 设置为0 表示永远不调节；设置为1 表示有10%的概率调节；设置为10 表示一定调节
      * 默认值 3
      */
-    private static final String AUTO_ADJUST_RATE = "resource_auto_adjust_rate";
+    public static final String AUTO_ADJUST_RATE = "autoAdjustRate";
     private static final int DEFAULT_AUTO_ADJUST_RATE = 3;
+    /**
+     * 旧版本保存调节概率的key 启动时迁移到运行时配置
+     */
+    private static final String LEGACY_AUTO_ADJUST_RATE = "resource_auto_adjust_rate";
+    /**
+     * 写锁等待超时时间 毫秒 默认值为Const.semaphoreWriteLockWaitTimeMilliSecond
+     */
+    public static final String WRITE_LOCK_WAIT_TIME = "writeLockWaitTimeMilliSecond";
+    /**
+     * 锁默认释放时间 毫秒 默认值为Const.semaphoreLockLeaseTimeMilliSecond
+     */
+    public static final String LOCK_LEASE_TIME = "lockLeaseTimeMilliSecond";
     private static final Random random = new Random();
 
+    public static final String RESOURCE_RUNTIME_CONFIG = "resource_runtime_config";
+    public static final String RESOURCE_RUNTIME_CONFIG_CHANNEL = "resource_runtime_config_channel";
+
     public static final String RESOURCE_AVAILABLE_KEY_PREFIX = "resource_available_key_prefix:";
-    public static final String RESOURCE_AVAILABLE_NOT_CONSISTENCE_KEY_PREFIX = "resource_available_not_consistence_key_prefix:";
+    /**
+     * 不一致标记 redis set，成员为resourceId；开启hash tag时每个slot一个set（见KeyLayout#slotKey）
+     */
+    public static final String RESOURCE_AVAILABLE_NOT_CONSISTENCE_SET = "resource_available_not_consistence";
+    public static final String RESOURCE_AVAILABLE_STRIPE_KEY_PREFIX = "resource_available_stripe_key_prefix:";
+    public static final String RESOURCE_AVAILABLE_STRIPE_CONFIG = "resource_available_stripe_config";
 
     public static final String RESOURCE_PRE_LOCK_KEY_PREFIX = "resource_pre_lock_key_prefix:";
-    public static final String RESOURCE_PRE_LOCK_NOT_CONSISTENCE_KEY_PREFIX = "resource_pre_lock_not_consistence_key_prefix:";
+    public static final String RESOURCE_PRE_LOCK_NOT_CONSISTENCE_SET = "resource_pre_lock_not_consistence";
+    /**
+     * 旧版本每个资源一个的不一致标记key 启动时迁移到不一致标记set
+     */
+    private static final String LEGACY_AVAILABLE_NOT_CONSISTENCE_KEY_PREFIX = "resource_available_not_consistence_key_prefix:";
+    private static final String LEGACY_PRE_LOCK_NOT_CONSISTENCE_KEY_PREFIX = "resource_pre_lock_not_consistence_key_prefix:";
+    private static final String NOT_CONSISTENCE_MIGRATED = "resource_not_consistence_migrated";
+
+    /**
+     * 等待后台修复的资源（redis set） 标记不一致时同时加入
+     */
+    public static final String RESOURCE_AVAILABLE_RECONCILE_QUEUE = "resource_available_reconcile_queue";
+    public static final String RESOURCE_PRE_LOCK_RECONCILE_QUEUE = "resource_pre_lock_reconcile_queue";
+    /**
+     * 预留的资源（hash resourceId -> 编码后的资源列表）、到期时间（sorted set）
+     * 以及清理中的预留（sorted set 分值为清理租期的到期时间） 三个key在同一个slot
+     */
+    public static final String RESOURCE_RESERVATION_ITEMS = "{resource_reservation}:items";
+    public static final String RESOURCE_RESERVATION_DEADLINE = "{resource_reservation}:deadline";
+    public static final String RESOURCE_RESERVATION_IN_FLIGHT = "{resource_reservation}:in_flight";
     public static RedissonClient redissonClient;
+    private static final int LOOP_LIMIT = 10;
+    /**
+     * 重新初始化等待提交栅栏清空时的轮询间隔 毫秒
+     */
+    private static final long COMMIT_FENCE_POLL_MILLI_SECOND = 5;
+
+    /**
+     * 可用/预占资源数量的本地近端缓存
+     * 为null时表示未开启
+     */
+    private static volatile NearCache availableNearCache;
+    private static volatile NearCache preLockedNearCache;
+
     /**
-     * 持有(减掉)的可用资源信号量
-     * 如果整体失败 需要添加回去
+     * 可用资源信号量的本地租借
+     * 为null时表示未开启
      */
-    private static final ThreadLocal<List<SemaphoreAndPermit>> HOLD_AVAILABLE_SEMAPHORE = new ThreadLocal<>();
+    private static volatile PermitLeaser permitLeaser;
+    private static Thread permitLeaserShutdownHook;
+
     /**
-     * 持有（减掉）的预占资源信号量
-     * 如果整体失败 需要添加回去
+     * 可用资源信号量的条带化配置
      */
-    private static final ThreadLocal<List<SemaphoreAndPermit>> HOLD_PRE_LOCK_SEMAPHORE = new ThreadLocal<>();
+    private static final SemaphoreStripes availableStripes = new SemaphoreStripes(RESOURCE_AVAILABLE_STRIPE_CONFIG, RESOURCE_AVAILABLE_STRIPE_KEY_PREFIX);
     /**
-     * 增加的可用资源信号量
-     * 如果整体失败 需要减掉
+     * 本节点缓存的信号量对象（按resourceId） 避免每次操作拼接key、创建对象
      */
-    private static final ThreadLocal<List<SemaphoreAndPermit>> LEASED_AVAILABLE_SEMAPHORE = new ThreadLocal<>();
+    private static final int SEMAPHORE_HANDLE_MAXIMUM_SIZE = 100000;
+    private static final SemaphoreHandles availableHandles = new SemaphoreHandles(RESOURCE_AVAILABLE_KEY_PREFIX, SEMAPHORE_HANDLE_MAXIMUM_SIZE);
+    private static final SemaphoreHandles preLockedHandles = new SemaphoreHandles(RESOURCE_PRE_LOCK_KEY_PREFIX, SEMAPHORE_HANDLE_MAXIMUM_SIZE);
     /**
-     * 增加的预占资源信号量
-     * 如果整体失败 需要减掉
+     * 本节点内合并同一资源的并发初始化
      */
-    private static final ThreadLocal<List<SemaphoreAndPermit>> LEASED_PRE_LOCK_SEMAPHORE = new ThreadLocal<>();
+    private static final SingleFlight availableInitFlight = new SingleFlight();
+    private static final SingleFlight preLockedInitFlight = new SingleFlight();
 
-    private static final int LOOP_LIMIT = 10;
+    /**
+     * 运行时配置 本节点缓存，变更时通过pub/sub通知
+     */
+    private static final RuntimeConfig runtimeConfig = new RuntimeConfig(RESOURCE_RUNTIME_CONFIG, RESOURCE_RUNTIME_CONFIG_CHANNEL);
+
+    /**
+     * 是否由后台修复不一致的资源
+     * 开启后请求不再同步重新初始化被标记为不一致的资源，也不因为不一致标记而失败，继续使用现有的信号量（数据库更新时校验数量）
+     */
+    private static volatile boolean backgroundReconcile;
+
+    /**
+     * 可用与预占之间的转移是否通过一个脚本原子地完成
+     */
+    private static volatile boolean atomicTransfer;
+
+    /**
+     * 批量检查
+     * ARGV[i]为空字符串时检查KEYS[i]是否存在，否则检查ARGV[i]是否为set KEYS[i]的成员
+     * 返回与KEYS顺序一致的 0/1 列表
+     */
+    private static final RedisScript CHECK_SCRIPT = new RedisScript(
+            "local result = {}; " +
+                    "for i = 1, #KEYS do " +
+                    "if (ARGV[i] == '') then " +
+                    "result[i] = redis.call('exists', KEYS[i]); " +
+                    "else " +
+                    "result[i] = redis.call('sismember', KEYS[i], ARGV[i]); " +
+                    "end; " +
+                    "end; " +
+                    "return result;");
+
+    /**
+     * 保存预留（清理中的预留放回时同时移出清理中）
+     * KEYS[1] 预留资源hash KEYS[2] 到期时间sorted set KEYS[3] 清理中sorted set
+     * ARGV[1] 预留id ARGV[2] 编码后的资源列表 ARGV[3] 到期时间
+     */
+    private static final RedisScript SAVE_RESERVATION_SCRIPT = new RedisScript(
+            "redis.call('hset', KEYS[1], ARGV[1], ARGV[2]); " +
+                    "redis.call('zadd', KEYS[2], ARGV[3], ARGV[1]); " +
+                    "redis.call('zrem', KEYS[3], ARGV[1]); " +
+                    "return redis.status_reply('OK');", StringCodec.INSTANCE);
+
+    /**
+     * 取出并删除预留 正在被清理的预留不能取出
+     * 返回 {资源列表, 到期时间}，不存在时返回空列表
+     */
+    private static final RedisScript CLAIM_RESERVATION_SCRIPT = new RedisScript(
+            "local items = redis.call('hget', KEYS[1], ARGV[1]); " +
+                    "if (items == false or redis.call('zscore', KEYS[3], ARGV[1]) ~= false) then " +
+                    "return {}; " +
+                    "end; " +
+                    "local deadline = redis.call('zscore', KEYS[2], ARGV[1]) or '0'; " +
+                    "redis.call('hdel', KEYS[1], ARGV[1]); " +
+                    "redis.call('zrem', KEYS[2], ARGV[1]); " +
+                    "return {items, deadline};", StringCodec.INSTANCE);
+
+    /**
+     * 以租期取出到期的预留：先把租期已到期（清理节点宕机或者超时）的清理中预留放回，
+     * 再把到期的预留移到清理中（分值为租期到期时间），资源列表保留到释放提交之后再删除
+     * ARGV[1] 当前时间 ARGV[2] 最多取出的个数 ARGV[3] 租期到期时间
+     * 返回 {预留id, 资源列表, 到期时间, ...}
+     */
+    private static final RedisScript CLAIM_EXPIRED_RESERVATION_SCRIPT = new RedisScript(
+            "local timeout = redis.call('zrangebyscore', KEYS[3], '-inf', ARGV[1], 'WITHSCORES', 'LIMIT', 0, tonumber(ARGV[2])); " +
+                    "for i = 1, #timeout, 2 do " +
+                    "redis.call('zrem', KEYS[3], timeout[i]); " +
+                    "redis.call('zadd', KEYS[2], timeout[i + 1], timeout[i]); " +
+                    "end; " +
+                    "local expired = redis.call('zrangebyscore', KEYS[2], '-inf', ARGV[1], 'WITHSCORES', 'LIMIT', 0, tonumber(ARGV[2])); " +
+                    "local result = {}; " +
+                    "for i = 1, #expired, 2 do " +
+                    "local items = redis.call('hget', KEYS[1], expired[i]); " +
+                    "redis.call('zrem', KEYS[2], expired[i]); " +
+                    "if (items ~= false) then " +
+                    "redis.call('zadd', KEYS[3], ARGV[3], expired[i]); " +
+                    "table.insert(result, expired[i]); " +
+                    "table.insert(result, items); " +
+                    "table.insert(result, expired[i + 1]); " +
+                    "end; " +
+                    "end; " +
+                    "return result;", StringCodec.INSTANCE);
+
+    /**
+     * 释放提交之后删除清理中的预留 租期已被其它节点接管时不删除
+     * ARGV[1] 预留id ARGV[2] 租期到期时间
+     */
+    private static final RedisScript FINISH_RESERVATION_SCRIPT = new RedisScript(
+            "local leaseDeadline = redis.call('zscore', KEYS[2], ARGV[1]); " +
+                    "if (leaseDeadline == false or tonumber(leaseDeadline) ~= tonumber(ARGV[2])) then " +
+                    "return 0; " +
+                    "end; " +
+                    "redis.call('zrem', KEYS[2], ARGV[1]); " +
+                    "redis.call('hdel', KEYS[1], ARGV[1]); " +
+                    "return 1;");
+
+    /**
+     * 释放失败时把清理中的预留按原到期时间放回 租期已被其它节点接管时不放回
+     * KEYS[1] 到期时间sorted set KEYS[2] 清理中sorted set
+     * ARGV[1] 预留id ARGV[2] 租期到期时间 ARGV[3] 原到期时间
+     */
+    private static final RedisScript RETURN_RESERVATION_SCRIPT = new RedisScript(
+            "local leaseDeadline = redis.call('zscore', KEYS[2], ARGV[1]); " +
+                    "if (leaseDeadline == false or tonumber(leaseDeadline) ~= tonumber(ARGV[2])) then " +
+                    "return 0; " +
+                    "end; " +
+                    "redis.call('zrem', KEYS[2], ARGV[1]); " +
+                    "redis.call('zadd', KEYS[1], ARGV[3], ARGV[1]); " +
+                    "return 1;");
+
+    /**
+     * 预热信号量 只设置不存在并且没有未完成提交（提交栅栏不存在）的信号量，设置时代数加一
+     * ARGV[1] 每个资源的信号量个数m（1只有可用资源 2同时有预占资源） 之后依次为每个信号量的数量 最后为代数变化的通知channel
+     * KEYS 每个资源依次为 可用信号量、代数key、提交栅栏（m为2时再加上 预占信号量、代数key、提交栅栏）
+     * 返回 {设置的可用信号量个数, 设置的预占信号量个数}
+     */
+    private static final RedisScript PRELOAD_SCRIPT = new RedisScript(
+            "local m = tonumber(ARGV[1]); " +
+                    "local loaded = {0, 0}; " +
+                    "for i = 0, #KEYS / (3 * m) - 1 do " +
+                    "for j = 1, m do " +
+                    "local key = i * 3 * m + (j - 1) * 3 + 1; " +
+                    "if (redis.call('exists', KEYS[key]) == 0 and redis.call('exists', KEYS[key + 2]) == 0) then " +
+                    "redis.call('set', KEYS[key], ARGV[i * m + j + 1]); " +
+                    "local epoch = redis.call('incr', KEYS[key + 1]); " +
+                    "redis.call('publish', ARGV[#ARGV], epoch .. ',' .. KEYS[key]); " +
+                    "loaded[j] = loaded[j] + 1; " +
+                    "end; " +
+                    "end; " +
+                    "end; " +
+                    "return loaded;");
 
     /**
      * 从缓存中读取资源
@@ -69,34 +269,127 @@ public class CacheAccessor {
      * @return
      */
     public static ResourcePermit readResource(String resourceId){
-        MySemaphore availableSemaphore = getResourceAvailableSemaphore(resourceId);
         MySemaphore preLockSemaphore = getResourcePreLockSemaphore(resourceId);
         return ResourcePermit
                 .builder()
                 .resourceId(resourceId)
-                .availableCount(availableSemaphore.availablePermits())
+                .availableCount(availablePermits(resourceId))
                 .preLockCount(preLockSemaphore.availablePermits())
                 .build();
     }
 
 
-    //===============================================以下是对于调节概率的操作===============================================
+    //===============================================以下是对于后台修复的操作===============================================
+
+    /**
+     * 设置是否由后台修复不一致的资源
+     * @param enabled
+     */
+    public static void setBackgroundReconcile(boolean enabled){
+        backgroundReconcile = enabled;
+    }
+
+    public static boolean isBackgroundReconcile(){
+        return backgroundReconcile;
+    }
+
+    /**
+     * 从修复队列中随机取出（移除）最多count个资源
+     * 一次往返中执行count个SPOP（不使用SPOP count，兼容3.2以下的redis）
+     * @param reconcileQueue RESOURCE_AVAILABLE_RECONCILE_QUEUE或者RESOURCE_PRE_LOCK_RECONCILE_QUEUE
+     * @param count
+     * @return
+     */
+    public static List<String> pollReconcileQueue(String reconcileQueue, int count){
+        RBatch batch = redissonClient.createBatch();
+        for(int i = 0; i < count; i++){
+            batch.<String>getSet(reconcileQueue, StringCodec.INSTANCE).removeRandomAsync();
+        }
+        List<String> resourceIdList = new ArrayList<>(count);
+        for(Object resourceId : batch.execute().getResponses()){
+            if(Objects.nonNull(resourceId)){
+                resourceIdList.add((String) resourceId);
+            }
+        }
+        return resourceIdList;
+    }
+
+    /**
+     * 放回修复队列 用于修复失败后重试
+     * @param reconcileQueue
+     * @param resourceIdList
+     */
+    public static void offerReconcileQueue(String reconcileQueue, Collection<String> resourceIdList){
+        redissonClient.<String>getSet(reconcileQueue, StringCodec.INSTANCE).addAll(resourceIdList);
+    }
 
+    /**
+     * 修复队列中的资源数
+     * @param reconcileQueue
+     * @return
+     */
+    public static int getReconcileQueueSize(String reconcileQueue){
+        return redissonClient.getSet(reconcileQueue, StringCodec.INSTANCE).size();
+    }
+
+    //===============================================以上是对于后台修复的操作===============================================
+
+    //===============================================以下是对于运行时配置的操作===============================================
+
+    /**
+     * 启动运行时配置（订阅变更通知并加载）
+     * 旧版本设置过调节概率并且运行时配置中没有时，迁移到运行时配置
+     */
+    public static void startRuntimeConfig(){
+        runtimeConfig.start(redissonClient);
+        if(runtimeConfig.get(AUTO_ADJUST_RATE, null, -1) >= 0){
+            return;
+        }
+        try {
+            Object legacyRate = redissonClient.getBucket(LEGACY_AUTO_ADJUST_RATE).get();
+            if(Objects.nonNull(legacyRate)){
+                runtimeConfig.set(AUTO_ADJUST_RATE, null, ((Number) legacyRate).longValue());
+            }
+        }catch (Exception e){
+            log.warn("迁移调节概率失败:{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 设置全局调节概率 所有节点生效
+     * @param rate
+     */
     public static void setAutoAdjustRate(int rate){
-        redissonClient.getBucket(AUTO_ADJUST_RATE).set(rate);
+        setAutoAdjustRate(null, rate);
     }
 
-    public static int getAutoAdjustRate(){
-        Object val = redissonClient.getBucket(AUTO_ADJUST_RATE).get();
-        if(Objects.isNull(val)){
-            return DEFAULT_AUTO_ADJUST_RATE;
-        }else {
-            return (int) val;
+    /**
+     * 设置资源的调节概率 覆盖全局配置
+     * @param resourceId 为null时设置全局调节概率
+     * @param rate
+     */
+    public static void setAutoAdjustRate(String resourceId, int rate){
+        if(rate < 0 || rate > 10){
+            throw new ResourceRunException("调节概率必须在0-10之间");
         }
+        runtimeConfig.set(AUTO_ADJUST_RATE, resourceId, rate);
+    }
+
+    public static int getAutoAdjustRate(){
+        return getAutoAdjustRate(null);
     }
 
-    public static boolean shouldAdjust(){
-        int rate = getAutoAdjustRate();
+    /**
+     * 资源的调节概率 读取本节点缓存，不访问redis
+     * @param resourceId
+     * @return
+     */
+    public static int getAutoAdjustRate(String resourceId){
+        return (int) runtimeConfig.get(AUTO_ADJUST_RATE, resourceId, DEFAULT_AUTO_ADJUST_RATE);
+    }
+
+    public static boolean shouldAdjust(String resourceId){
+        int rate = getAutoAdjustRate(resourceId);
         int tempRandom = random.nextInt(10);
         if(tempRandom < rate){
             return true;
@@ -105,7 +398,422 @@ public class CacheAccessor {
         }
     }
 
-    //===============================================以上是对于调节概率的操作===============================================
+    /**
+     * 设置运行时配置 所有节点生效
+     * @param name WRITE_LOCK_WAIT_TIME、LOCK_LEASE_TIME等
+     * @param resourceId 为null时设置全局配置
+     * @param value
+     */
+    public static void setRuntimeConfig(String name, String resourceId, long value){
+        if(value < 0){
+            throw new ResourceRunException("运行时配置:" + name + "不能小于0");
+        }
+        runtimeConfig.set(name, resourceId, value);
+    }
+
+    /**
+     * 删除资源的全部覆盖配置 之后使用全局配置
+     * @param resourceId
+     */
+    public static void removeRuntimeConfig(String resourceId){
+        if(Objects.isNull(resourceId)){
+            throw new ResourceRunException("resourceId不能为空");
+        }
+        runtimeConfig.remove(Arrays.asList(AUTO_ADJUST_RATE, WRITE_LOCK_WAIT_TIME, LOCK_LEASE_TIME), resourceId);
+    }
+
+    /**
+     * 写锁等待超时时间 读取本节点缓存，不访问redis
+     * @param resourceId
+     * @return
+     */
+    public static long getWriteLockWaitTimeMilliSecond(String resourceId){
+        return runtimeConfig.get(WRITE_LOCK_WAIT_TIME, resourceId, Const.semaphoreWriteLockWaitTimeMilliSecond);
+    }
+
+    /**
+     * 锁默认释放时间 读取本节点缓存，不访问redis
+     * @param resourceId
+     * @return
+     */
+    public static long getLockLeaseTimeMilliSecond(String resourceId){
+        return runtimeConfig.get(LOCK_LEASE_TIME, resourceId, Const.semaphoreLockLeaseTimeMilliSecond);
+    }
+
+    /**
+     * 等待本节点其它线程初始化资源的最长时间
+     * leader最多等待写锁的时间，之后在锁的释放时间内完成初始化
+     * @param resourceId
+     * @return
+     */
+    private static long getInitWaitTimeMilliSecond(String resourceId){
+        return getWriteLockWaitTimeMilliSecond(resourceId) + getLockLeaseTimeMilliSecond(resourceId);
+    }
+
+    //===============================================以上是对于运行时配置的操作===============================================
+
+    /**
+     * 预检
+     * 一次往返查出给定资源中 信号量不存在 以及 标记为不一致 的resourceId
+     * @param updateResourceParamList
+     * @param checkAvailable 是否检查可用资源
+     * @param checkPreLocked 是否检查预占资源
+     * @return
+     */
+    public static PreflightResult preflight(List<UpdateResourceParam> updateResourceParamList, boolean checkAvailable, boolean checkPreLocked){
+        if(Objects.isNull(updateResourceParamList) || updateResourceParamList.isEmpty() || (!checkAvailable && !checkPreLocked)){
+            return PreflightResult.builder().build();
+        }
+        List<String> keys = new ArrayList<>();
+        List<String> members = new ArrayList<>();
+        buildPreflightKeys(updateResourceParamList, checkAvailable, checkPreLocked, keys, members);
+        List<Long> existList = check(keys, members);
+        return toPreflightResult(updateResourceParamList, checkAvailable, checkPreLocked, existList);
+    }
+
+    /**
+     * 异步预检
+     * @see CacheAccessor#preflight
+     * @param updateResourceParamList
+     * @param checkAvailable 是否检查可用资源
+     * @param checkPreLocked 是否检查预占资源
+     * @return
+     */
+    public static CompletionStage<PreflightResult> preflightAsync(List<UpdateResourceParam> updateResourceParamList, boolean checkAvailable, boolean checkPreLocked){
+        if(Objects.isNull(updateResourceParamList) || updateResourceParamList.isEmpty() || (!checkAvailable && !checkPreLocked)){
+            return CompletableFuture.completedFuture(PreflightResult.builder().build());
+        }
+        List<String> keys = new ArrayList<>();
+        List<String> members = new ArrayList<>();
+        buildPreflightKeys(updateResourceParamList, checkAvailable, checkPreLocked, keys, members);
+        return checkAsync(keys, members)
+                .thenApply(existList -> toPreflightResult(updateResourceParamList, checkAvailable, checkPreLocked, existList));
+    }
+
+    //===============================================以下是对于预留的操作===============================================
+
+    /**
+     * 保存预留
+     * @param reservation
+     */
+    public static void saveReservation(Reservation reservation){
+        SAVE_RESERVATION_SCRIPT.eval(redissonClient, RScript.Mode.READ_WRITE, RScript.ReturnType.STATUS,
+                Arrays.<Object>asList(RESOURCE_RESERVATION_ITEMS, RESOURCE_RESERVATION_DEADLINE, RESOURCE_RESERVATION_IN_FLIGHT),
+                reservation.getReservationId(), encodeReservationItems(reservation.getUpdateResourceParamList()),
+                String.valueOf(reservation.getDeadlineMilliSecond()));
+    }
+
+    /**
+     * 取出并删除预留 只有一个调用方可以取到
+     * @param reservationId
+     * @return 不存在（已被确认、取消或者到期释放）或者正在被清理时返回null
+     */
+    public static Reservation claimReservation(String reservationId){
+        List<String> resultList = CLAIM_RESERVATION_SCRIPT.eval(redissonClient, RScript.Mode.READ_WRITE, RScript.ReturnType.MULTI,
+                Arrays.<Object>asList(RESOURCE_RESERVATION_ITEMS, RESOURCE_RESERVATION_DEADLINE, RESOURCE_RESERVATION_IN_FLIGHT), reservationId);
+        if(resultList.isEmpty()){
+            return null;
+        }
+        return decodeReservation(reservationId, resultList.get(0), resultList.get(1));
+    }
+
+    /**
+     * 以租期取出到期的预留 租期内每个预留只会被一个节点取到
+     * 取出的预留仍然保存在redis中（清理中），释放提交之后调用finishReservation删除；
+     * 租期到期仍未删除（节点宕机、释放超时）的预留下次取出时放回，由其它节点重新释放
+     * @param nowMilliSecond
+     * @param count 最多取出的个数
+     * @param leaseMilliSecond 租期 毫秒
+     * @return
+     */
+    public static List<Reservation> claimExpiredReservations(long nowMilliSecond, int count, long leaseMilliSecond){
+        long leaseDeadline = nowMilliSecond + leaseMilliSecond;
+        List<String> resultList = CLAIM_EXPIRED_RESERVATION_SCRIPT.eval(redissonClient, RScript.Mode.READ_WRITE, RScript.ReturnType.MULTI,
+                Arrays.<Object>asList(RESOURCE_RESERVATION_ITEMS, RESOURCE_RESERVATION_DEADLINE, RESOURCE_RESERVATION_IN_FLIGHT),
+                String.valueOf(nowMilliSecond), String.valueOf(count), String.valueOf(leaseDeadline));
+        List<Reservation> reservationList = new ArrayList<>(resultList.size() / 3);
+        for (int i = 0; i + 2 < resultList.size(); i += 3) {
+            Reservation reservation = decodeReservation(resultList.get(i), resultList.get(i + 1), resultList.get(i + 2));
+            reservation.setLeaseDeadlineMilliSecond(leaseDeadline);
+            reservationList.add(reservation);
+        }
+        return reservationList;
+    }
+
+    /**
+     * 释放提交之后删除清理中的预留
+     * @param reservation claimExpiredReservations取出的预留
+     * @return 租期已被其它节点接管时返回false
+     */
+    public static boolean finishReservation(Reservation reservation){
+        Long finished = FINISH_RESERVATION_SCRIPT.eval(redissonClient, RScript.Mode.READ_WRITE, RScript.ReturnType.INTEGER,
+                Arrays.<Object>asList(RESOURCE_RESERVATION_ITEMS, RESOURCE_RESERVATION_IN_FLIGHT),
+                reservation.getReservationId(), reservation.getLeaseDeadlineMilliSecond());
+        return finished == 1;
+    }
+
+    /**
+     * 释放失败时把清理中的预留按原到期时间放回
+     * @param reservation claimExpiredReservations取出的预留
+     * @return 租期已被其它节点接管时返回false
+     */
+    public static boolean returnReservation(Reservation reservation){
+        Long returned = RETURN_RESERVATION_SCRIPT.eval(redissonClient, RScript.Mode.READ_WRITE, RScript.ReturnType.INTEGER,
+                Arrays.<Object>asList(RESOURCE_RESERVATION_DEADLINE, RESOURCE_RESERVATION_IN_FLIGHT),
+                reservation.getReservationId(), reservation.getLeaseDeadlineMilliSecond(), reservation.getDeadlineMilliSecond());
+        return returned == 1;
+    }
+
+    /**
+     * 已到期未释放的预留数（包括租期已到期的清理中预留）
+     * @param nowMilliSecond
+     * @return
+     */
+    public static int getExpiredReservationCount(long nowMilliSecond){
+        return redissonClient.<String>getScoredSortedSet(RESOURCE_RESERVATION_DEADLINE, StringCodec.INSTANCE)
+                .count(Double.NEGATIVE_INFINITY, true, nowMilliSecond, true)
+                + redissonClient.<String>getScoredSortedSet(RESOURCE_RESERVATION_IN_FLIGHT, StringCodec.INSTANCE)
+                .count(Double.NEGATIVE_INFINITY, true, nowMilliSecond, true);
+    }
+
+    /**
+     * 资源列表编码为 每行一个 数量:resourceId
+     */
+    private static String encodeReservationItems(List<UpdateResourceParam> updateResourceParamList){
+        StringBuilder sb = new StringBuilder();
+        for(UpdateResourceParam updateResourceParam : updateResourceParamList){
+            if(sb.length() > 0){
+                sb.append('\n');
+            }
+            sb.append(updateResourceParam.getNum()).append(':').append(updateResourceParam.getResourceId());
+        }
+        return sb.toString();
+    }
+
+    private static Reservation decodeReservation(String reservationId, String items, String deadline){
+        List<UpdateResourceParam> updateResourceParamList = new ArrayList<>();
+        for(String item : items.split("\n")){
+            int colon = item.indexOf(':');
+            updateResourceParamList.add(UpdateResourceParam.builder()
+                    .num(Integer.parseInt(item.substring(0, colon)))
+                    .resourceId(item.substring(colon + 1))
+                    .build());
+        }
+        return Reservation.builder()
+                .reservationId(reservationId)
+                .updateResourceParamList(updateResourceParamList)
+                .deadlineMilliSecond((long) Double.parseDouble(deadline))
+                .build();
+    }
+
+    //===============================================以上是对于预留的操作===============================================
+
+    //===============================================以下是对于预热的操作===============================================
+
+    /**
+     * 按数据库数量预热信号量
+     * 只设置不存在的信号量（同时代数加一，与初始化一致），已经存在的保持不变，不需要加写锁，可以在有流量时执行
+     * 有未完成提交（提交栅栏存在）的信号量不设置，由第一次请求等待栅栏清空之后初始化
+     * 有过异步落库扣减（未落库量hash中有记录）的资源不设置，由第一次请求减掉未落库量初始化
+     * 按slot分组，每个slot一个脚本并行执行
+     * 条带化的资源不在此处理（见getAvailableStripedResourceIds），由第一次请求初始化
+     * @param resourcePermitList
+     * @param preLocked 是否同时预热预占资源信号量
+     * @return 两个元素 设置的可用资源信号量个数、预占资源信号量个数
+     */
+    public static int[] preloadSemaphorePermit(List<ResourcePermit> resourcePermitList, boolean preLocked){
+        //有过异步落库扣减的资源（数据库数量可能还没有包含）不预热
+        List<String> resourceIdList = new ArrayList<>(resourcePermitList.size());
+        resourcePermitList.forEach(resourcePermit -> resourceIdList.add(resourcePermit.getResourceId()));
+        Map<String, Integer> writeBehindPendingMap = readWriteBehindPending(resourceIdList);
+        if(!writeBehindPendingMap.isEmpty()){
+            List<ResourcePermit> loadList = new ArrayList<>(resourcePermitList.size());
+            for(ResourcePermit resourcePermit : resourcePermitList){
+                if(!writeBehindPendingMap.containsKey(resourcePermit.getResourceId())){
+                    loadList.add(resourcePermit);
+                }
+            }
+            resourcePermitList = loadList;
+        }
+        int stride = preLocked ? 2 : 1;
+        List<String> semaphoreNameList = new ArrayList<>(resourcePermitList.size());
+        for(ResourcePermit resourcePermit : resourcePermitList){
+            semaphoreNameList.add(KeyLayout.key(RESOURCE_AVAILABLE_KEY_PREFIX, resourcePermit.getResourceId()));
+        }
+        Map<Integer, List<Integer>> slotIndexMap = KeyLayout.groupBySlot(redissonClient, semaphoreNameList);
+        List<CompletableFuture<List<Long>>> futureList = new ArrayList<>(slotIndexMap.size());
+        for(List<Integer> indexList : slotIndexMap.values()){
+            List<Object> keys = new ArrayList<>(indexList.size() * stride * 3);
+            Object[] args = new Object[indexList.size() * stride + 2];
+            args[0] = stride;
+            args[args.length - 1] = MySemaphore.EPOCH_CHANNEL;
+            int argIndex = 1;
+            for(int index : indexList){
+                ResourcePermit resourcePermit = resourcePermitList.get(index);
+                String semaphoreName = semaphoreNameList.get(index);
+                keys.add(semaphoreName);
+                keys.add(MySemaphore.getEpochName(semaphoreName));
+                keys.add(MySemaphore.getCommitFenceName(semaphoreName));
+                args[argIndex++] = resourcePermit.getAvailableCount();
+                if(preLocked){
+                    String preLockSemaphoreName = KeyLayout.key(RESOURCE_PRE_LOCK_KEY_PREFIX, resourcePermit.getResourceId());
+                    keys.add(preLockSemaphoreName);
+                    keys.add(MySemaphore.getEpochName(preLockSemaphoreName));
+                    keys.add(MySemaphore.getCommitFenceName(preLockSemaphoreName));
+                    args[argIndex++] = resourcePermit.getPreLockCount();
+                }
+            }
+            futureList.add(PRELOAD_SCRIPT.<List<Long>>evalAsync(redissonClient, RScript.Mode.READ_WRITE, RScript.ReturnType.MULTI, keys, args).toCompletableFuture());
+        }
+        int[] loaded = new int[2];
+        try {
+            for(CompletableFuture<List<Long>> future : futureList){
+                List<Long> groupLoaded = future.join();
+                loaded[0] += groupLoaded.get(0);
+                loaded[1] += groupLoaded.get(1);
+            }
+        }catch (CompletionException e){
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+        return loaded;
+    }
+
+    /**
+     * 配置过条带数的可用资源（从redis读取）
+     * @return
+     */
+    public static Set<String> getAvailableStripedResourceIds(){
+        return availableStripes.readConfiguredResourceIds(redissonClient);
+    }
+
+    //===============================================以上是对于预热的操作===============================================
+
+    //===============================================以下是对于条带化的操作===============================================
+
+    /**
+     * 设置可用资源信号量的条带数
+     * 同时标记不一致，下一次请求时在写锁下按新的条带数从数据库重新初始化
+     * @param resourceId
+     * @param stripeCount 1表示取消条带化
+     */
+    public static void setAvailableStripeCount(String resourceId, int stripeCount){
+        if(stripeCount < 1 || stripeCount > SemaphoreStripes.MAX_STRIPES){
+            throw new ResourceRunException("条带数必须在1-" + SemaphoreStripes.MAX_STRIPES + "之间");
+        }
+        availableStripes.setStripeCount(redissonClient, resourceId, stripeCount);
+        setAvailableResourceNotConsistence(resourceId);
+    }
+
+    /**
+     * 本节点已知的可用资源信号量条带数
+     * @param resourceId
+     * @return 未条带化时返回1
+     */
+    public static int getAvailableStripeCount(String resourceId){
+        return availableStripes.getStripeCount(resourceId);
+    }
+
+    //===============================================以上是对于条带化的操作===============================================
+
+    //===============================================以下是对于近端缓存的操作===============================================
+
+    /**
+     * 开启本地近端缓存
+     * @param maximumSize 每类资源最多缓存的资源个数
+     */
+    public static synchronized void enableNearCache(int maximumSize){
+        if(maximumSize <= 0){
+            throw new ResourceRunException("近端缓存容量必须大于0");
+        }
+        disableNearCache();
+        NearCache available = new NearCache(RESOURCE_AVAILABLE_KEY_PREFIX, RESOURCE_AVAILABLE_STRIPE_KEY_PREFIX, maximumSize);
+        available.subscribe(redissonClient);
+        NearCache preLocked = new NearCache(RESOURCE_PRE_LOCK_KEY_PREFIX, maximumSize);
+        preLocked.subscribe(redissonClient);
+        availableNearCache = available;
+        preLockedNearCache = preLocked;
+        MySemaphore.setChangeNotifyEnabled(true);
+    }
+
+    /**
+     * 关闭本地近端缓存
+     */
+    public static synchronized void disableNearCache(){
+        MySemaphore.setChangeNotifyEnabled(false);
+        if(Objects.nonNull(availableNearCache)){
+            availableNearCache.close();
+            availableNearCache = null;
+        }
+        if(Objects.nonNull(preLockedNearCache)){
+            preLockedNearCache.close();
+            preLockedNearCache = null;
+        }
+    }
+
+    /**
+     * 从近端缓存查询可用资源数量
+     * 未开启、不存在或者超过maxStaleMilliSecond时返回null
+     * @param queryResourceParam
+     * @param maxStaleMilliSecond
+     * @return
+     */
+    public static QueryResourceResult queryAvailableFromNearCache(QueryResourceParam queryResourceParam, long maxStaleMilliSecond){
+        return queryFromNearCache(availableNearCache, queryResourceParam, maxStaleMilliSecond);
+    }
+
+    /**
+     * 从近端缓存查询预占资源数量
+     * 未开启、不存在或者超过maxStaleMilliSecond时返回null
+     * @param queryResourceParam
+     * @param maxStaleMilliSecond
+     * @return
+     */
+    public static QueryResourceResult queryPreLockedFromNearCache(QueryResourceParam queryResourceParam, long maxStaleMilliSecond){
+        return queryFromNearCache(preLockedNearCache, queryResourceParam, maxStaleMilliSecond);
+    }
+
+    //===============================================以上是对于近端缓存的操作===============================================
+
+    //===============================================以下是对于本地租借的操作===============================================
+
+    /**
+     * 开启可用资源信号量的本地租借
+     * 开启后单个扣减可用资源时优先从本地租借中扣减
+     * @param minChunkSize 每次最少借出的数量
+     * @param maxChunkSize 每次最多借出的数量
+     * @param idleReturnMilliSecond 超过该时长没有请求，归还本地剩余的permit
+     */
+    public static synchronized void enablePermitLeasing(int minChunkSize, int maxChunkSize, long idleReturnMilliSecond){
+        PermitLeaser leaser = new PermitLeaser(minChunkSize, maxChunkSize, idleReturnMilliSecond);
+        disablePermitLeasing();
+        leaser.subscribe(redissonClient);
+        permitLeaser = leaser;
+        //关闭时归还
+        permitLeaserShutdownHook = new Thread(CacheAccessor::disablePermitLeasing, "resource-permit-leaser-shutdown");
+        Runtime.getRuntime().addShutdownHook(permitLeaserShutdownHook);
+    }
+
+    /**
+     * 关闭本地租借 归还本地剩余的permit
+     */
+    public static synchronized void disablePermitLeasing(){
+        if(Objects.isNull(permitLeaser)){
+            return;
+        }
+        PermitLeaser leaser = permitLeaser;
+        permitLeaser = null;
+        leaser.shutdown();
+        if(Objects.nonNull(permitLeaserShutdownHook) && Thread.currentThread() != permitLeaserShutdownHook){
+            try {
+                Runtime.getRuntime().removeShutdownHook(permitLeaserShutdownHook);
+            }catch (IllegalStateException e){
+                //正在关闭
+            }
+        }
+        permitLeaserShutdownHook = null;
+    }
+
+    //===============================================以上是对于本地租借的操作===============================================
 
     //===============================================以下是对于可用资源的操作===============================================
 
@@ -117,11 +825,12 @@ public class CacheAccessor {
     public static QueryResourceResult queryAvailable(QueryResourceParam queryResourceParam){
         String resourceId = queryResourceParam.getResourceId();
         int acquire = queryResourceParam.getAcquire();
-        MySemaphore mySemaphore = getResourceAvailableSemaphore(resourceId);
-        if(!mySemaphore.isExists()){
+        long nearCacheVersion = nearCacheVersion(availableNearCache, resourceId);
+        if(!keyExist(getAvailableExistsKey(resourceId))){
             return null;
         }
-        int availablePermit =  mySemaphore.availablePermits();
+        int availablePermit = availablePermits(resourceId);
+        putNearCache(availableNearCache, resourceId, availablePermit, nearCacheVersion);
         boolean fill = availablePermit >= acquire;
         if(availablePermit == 0 || !fill){
             adjustAvailableResource(resourceId);
@@ -135,74 +844,166 @@ public class CacheAccessor {
      * @param dbAccessor 数据库访问器 用于当缓存中资源不存在时，初始化缓存中的资源
      * @throws ResourceWaitException
      */
-    public static void tryAcquireAvailableSemaphore(UpdateResourceParam updateResourceParam, DbAccessor dbAccessor)
+    public static void tryAcquireAvailableSemaphore(UpdateContext context, UpdateResourceParam updateResourceParam, DbAccessor dbAccessor)
             throws ResourceWaitException, LockWaitException, InterruptedException {
         try {
-            String notExistResourceId = doTryAcquireAvailable(updateResourceParam);
+            String notExistResourceId = doTryAcquireAvailable(context, updateResourceParam);
             if(Objects.nonNull(notExistResourceId)){
-                initAvailableSemaphorePermit(notExistResourceId,dbAccessor);
+                initAvailableSemaphorePermit(context, notExistResourceId,dbAccessor);
                 throw new ResourceWaitException("获取:" + notExistResourceId + "可用资源信号量失败，等待初始化");
             }
         }catch (Exception e){
-            leaseAcquiredAvailableSemaphore();
+            leaseAcquiredAvailableSemaphore(context);
             throw e;
         }
     }
 
     /**
      * 尝试批量获取可用资源permit数量的信号量
+     * 一次往返原子地获取全部信号量，资源不足时立即失败，不再等待
      * @param resourcePermitList
      * @param dbAccessor 数据库访问器 用于当缓存中资源不存在时，初始化缓存中的资源
      * @throws
      */
-    public static void tryAcquireAvailableSemaphore(List<UpdateResourceParam> resourcePermitList,DbAccessor dbAccessor)
+    public static void tryAcquireAvailableSemaphore(UpdateContext context, List<UpdateResourceParam> resourcePermitList,DbAccessor dbAccessor)
             throws ResourceWaitException, LockWaitException, InterruptedException {
         try {
-            List<String> notExistResourceIdList = doTryAcquireAvailable(resourcePermitList);
+            List<String> notExistResourceIdList = doTryAcquireAvailable(context, resourcePermitList);
             if(Objects.nonNull(notExistResourceIdList) && notExistResourceIdList.size() > 0){
-                initAvailableSemaphorePermit(notExistResourceIdList,dbAccessor);
+                initAvailableSemaphorePermit(context, notExistResourceIdList,dbAccessor);
                 throw new ResourceWaitException("批量获取可用资源信号量失败，等待初始化");
             }
         }catch (Exception e){
-            leaseAcquiredAvailableSemaphore();
+            leaseAcquiredAvailableSemaphore(context);
             throw e;
         }
     }
 
+    /**
+     * 逐个获取（减掉）可用资源信号量 用于合并执行的多个请求，每个请求单独成功或者失败
+     * 未条带化的资源一次往返完成，同一资源的多个请求按顺序扣减；获取成功的记录在上下文中
+     * 不存在或者不一致的资源进行初始化（这些请求失败，重试时使用初始化之后的信号量），资源不足的按概率自动调节
+     * 不使用本地租借
+     * @param context
+     * @param updateResourceParamList 可以包含相同的资源
+     * @param dbAccessor
+     * @return 与入参顺序一致的状态码 见MySemaphore.BATCH_ACQUIRE_*
+     */
+    public static long[] tryAcquireAvailableEach(UpdateContext context, List<UpdateResourceParam> updateResourceParamList, DbAccessor dbAccessor)
+            throws LockWaitException, InterruptedException {
+        int size = updateResourceParamList.size();
+        long[] statusArr = new long[size];
+        List<Integer> plainIndexList = new ArrayList<>(size);
+        List<String> semaphoreNameList = new ArrayList<>(size);
+        List<String> notConsistenceKeyList = new ArrayList<>(size);
+        List<String> resourceIdList = new ArrayList<>(size);
+        List<Integer> permitList = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            UpdateResourceParam updateResourceParam = updateResourceParamList.get(i);
+            String resourceId = updateResourceParam.getResourceId();
+            if(updateResourceParam.getNum() < 0){
+                throw new ResourceRunException("请求可用资源数量不能小于0");
+            }
+            int stripeCount = availableStripes.getStripeCount(resourceId);
+            if(stripeCount > 1){
+                statusArr[i] = tryAcquireAvailableStripedEach(context, resourceId, updateResourceParam.getNum(), stripeCount);
+                continue;
+            }
+            plainIndexList.add(i);
+            semaphoreNameList.add(getResourceAvailableSemaphore(resourceId).getName());
+            notConsistenceKeyList.add(KeyLayout.slotKey(RESOURCE_AVAILABLE_NOT_CONSISTENCE_SET, resourceId));
+            resourceIdList.add(resourceId);
+            permitList.add(updateResourceParam.getNum());
+        }
+        if(plainIndexList.size() > 0){
+            context.addRedisRoundTrips(1);
+            List<Long> resultList = MySemaphore.tryAcquireEach(redissonClient, semaphoreNameList, backgroundReconcile ? null : notConsistenceKeyList, resourceIdList, permitList);
+            int plainSize = plainIndexList.size();
+            for (int j = 0; j < plainSize; j++) {
+                long status = resultList.get(j);
+                statusArr[plainIndexList.get(j)] = status;
+                if(status == MySemaphore.BATCH_ACQUIRE_SUCCESS){
+                    MySemaphore rSemaphore = getResourceAvailableSemaphore(resourceIdList.get(j));
+                    recordHoldAvailableSemaphore(context, rSemaphore, permitList.get(j), resultList.get(plainSize + j));
+                    invalidateNearCache(availableNearCache, resourceIdList.get(j));
+                }
+            }
+        }
+        Set<String> needInitResourceIdSet = new LinkedHashSet<>();
+        Set<String> notEnoughResourceIdSet = new LinkedHashSet<>();
+        for (int i = 0; i < size; i++) {
+            String resourceId = updateResourceParamList.get(i).getResourceId();
+            if(statusArr[i] == MySemaphore.BATCH_ACQUIRE_NOT_EXIST || statusArr[i] == MySemaphore.BATCH_ACQUIRE_NOT_CONSISTENCE){
+                needInitResourceIdSet.add(resourceId);
+            }else if(statusArr[i] == MySemaphore.BATCH_ACQUIRE_NOT_ENOUGH && availableStripes.getStripeCount(resourceId) <= 1){
+                notEnoughResourceIdSet.add(resourceId);
+            }
+        }
+        notEnoughResourceIdSet.forEach(resourceId -> adjustAvailableResource(context, resourceId));
+        if(needInitResourceIdSet.size() > 0){
+            initAvailableSemaphorePermit(context, new ArrayList<>(needInitResourceIdSet), dbAccessor);
+        }
+        return statusArr;
+    }
+
     /**
      * 释放持有的可用资源信号量
      */
-    public static void leaseAcquiredAvailableSemaphore(){
-        doLeaseAcquiredSemaphore(HOLD_AVAILABLE_SEMAPHORE);
+    public static void leaseAcquiredAvailableSemaphore(UpdateContext context){
+        doLeaseAcquiredSemaphore(context, context.getHoldAvailableSemaphore());
     }
 
     /**
      * 批量初始化可用资源信号量缓存
+     * 本节点内正在被其它线程初始化的资源不再加锁，等待其结果
      * @param resourceIdList
      */
-    public static void initAvailableSemaphorePermit(List<String> resourceIdList,DbAccessor dbAccessor) throws LockWaitException, InterruptedException {
-        //先释放掉持有的读锁
-        ReadWriteLock.leaseHoldAvailableReadLock();
+    public static void initAvailableSemaphorePermit(UpdateContext context, List<String> resourceIdList,DbAccessor dbAccessor) throws LockWaitException, InterruptedException {
+        availableInitFlight.execute(resourceIdList,
+                leadList -> doInitAvailableSemaphorePermit(context, leadList, dbAccessor), CacheAccessor::getInitWaitTimeMilliSecond);
+    }
+
+    private static void doInitAvailableSemaphorePermit(UpdateContext context, List<String> resourceIdList,DbAccessor dbAccessor) throws LockWaitException, InterruptedException {
         //加锁
-        ReadWriteLock.availableTryLockWrite(resourceIdList);
+        ReadWriteLock.availableTryLockWrite(context, resourceIdList);
         try {
-            //批量db查询
-            List<ResourcePermit> resourcePermitList = dbAccessor.queryResource(resourceIdList);
+            //先找出需要设置的资源并等待其提交栅栏清空，之后再读取数据库
+            List<String> initResourceIdList = new ArrayList<>(resourceIdList.size());
+            Map<String, Integer> configuredStripeCountMap = new HashMap<>();
+            Map<String, List<MySemaphore>> semaphoreListMap = new HashMap<>();
+            Map<String, long[]> fenceSeqMap = new HashMap<>();
+            for(String resourceId : resourceIdList){
+                Integer configuredStripeCount = availableStripes.refresh(redissonClient, resourceId);
+                if(keyExist(getAvailableExistsKey(resourceId)) && !isNotConsistence(RESOURCE_AVAILABLE_NOT_CONSISTENCE_SET, resourceId)){
+                    continue;
+                }
+                List<MySemaphore> semaphoreList = getAvailableSetSemaphores(resourceId);
+                initResourceIdList.add(resourceId);
+                configuredStripeCountMap.put(resourceId, configuredStripeCount);
+                semaphoreListMap.put(resourceId, semaphoreList);
+                fenceSeqMap.put(resourceId, awaitCommitFence(resourceId, semaphoreList));
+            }
+            if(initResourceIdList.isEmpty()){
+                return;
+            }
+            //先读未落库的扣减量 再批量db查询
+            Map<String, Integer> writeBehindPendingMap = readWriteBehindPending(initResourceIdList);
+            List<ResourcePermit> resourcePermitList = dbAccessor.queryResource(initResourceIdList);
             //逐个更新缓存信号量
-            resourcePermitList.forEach(resourcePermit -> {
+            for(ResourcePermit resourcePermit : resourcePermitList){
                 String resourceId = resourcePermit.getResourceId();
-                MySemaphore rSemaphore = getResourceAvailableSemaphore(resourceId);
-                if(rSemaphore.isExists() && !keyExist(RESOURCE_AVAILABLE_NOT_CONSISTENCE_KEY_PREFIX + resourceId)){
-                    return;
-                }
-                trySetPermitsLoop(rSemaphore,resourcePermit.getAvailableCount());
+                int availableCount = availableCountOf(resourcePermit.getAvailableCount(), writeBehindPendingMap.get(resourceId));
+                setAvailableSemaphorePermit(resourceId, configuredStripeCountMap.get(resourceId), semaphoreListMap.get(resourceId),
+                        fenceSeqMap.get(resourceId), availableCount, dbAccessor);
+                context.addReinitialized(1);
+                discardLease(resourceId);
                 //删除标记缓存与数据库不一致的redisKey
                 deleteAvailableResourceNotConsistence(resourceId);
-            });
+            }
         }catch (Exception e){
             throw e;
         }finally {
-            ReadWriteLock.leaseHoldAvailableWriteLock();
+            ReadWriteLock.leaseHoldAvailableWriteLock(context);
         }
     }
 
@@ -222,92 +1023,388 @@ public class CacheAccessor {
     /**
      * 删除可用资源信号量cache
      */
-    public static void deleteAvailableResourceSemaphore(String resourceId) throws LockWaitException, InterruptedException {
-        ReadWriteLock.leaseHoldAvailableReadLock();
-        ReadWriteLock.availableTryLockWrite(resourceId);
+    public static void deleteAvailableResourceSemaphore(UpdateContext context, String resourceId) throws LockWaitException, InterruptedException {
+        ReadWriteLock.availableTryLockWrite(context, resourceId);
         MySemaphore mySemaphore = getResourceAvailableSemaphore(resourceId);
         if(mySemaphore.isExists()){
             mySemaphore.delete();
         }
-        //不一致标记也一起删除
-        deleteAvailableResourceNotConsistence(resourceId);
-        ReadWriteLock.leaseHoldAvailableWriteLock();
+        int stripeCount = availableStripes.getStripeCount(resourceId);
+        if(stripeCount > 1){
+            deleteAvailableStripes(resourceId, 0, stripeCount);
+        }
+        discardLease(resourceId);
+        //不一致标记也一起删除
+        deleteAvailableResourceNotConsistence(resourceId);
+        ReadWriteLock.leaseHoldAvailableWriteLock(context);
+    }
+
+    /**
+     * 检查缓存与数据库不一致地可用资源key
+     * @param updateResourceParamList
+     * @return
+     */
+    public static List<String> checkAvailableResourceConsistence(List<UpdateResourceParam> updateResourceParamList) {
+        return checkConsistence(updateResourceParamList, RESOURCE_AVAILABLE_NOT_CONSISTENCE_SET);
+    }
+
+    /**
+     * 标记给定的可用资源key数据库和缓存不一致
+     * @param resourceId
+     */
+    public static void setAvailableResourceNotConsistence(String resourceId){
+        markNotConsistence(RESOURCE_AVAILABLE_NOT_CONSISTENCE_SET, resourceId);
+    }
+
+    /**
+     * 批量释放（增加）可用资源信号量
+     * @param updateResourceParamList
+     * @param dbAccessor
+     */
+    public static void tryLeaseAvailableSemaphore(UpdateContext context, List<UpdateResourceParam> updateResourceParamList, DbAccessor dbAccessor)
+            throws ResourceWaitException, LockWaitException, InterruptedException {
+        try {
+            List<String> notExistResourceIdList = doTryLeaseAvailable(context, updateResourceParamList);
+            if(Objects.nonNull(notExistResourceIdList) && notExistResourceIdList.size() > 0){
+                //初始化
+                initAvailableSemaphorePermit(context, notExistResourceIdList,dbAccessor);
+                throw new ResourceWaitException("批量增加可用资源信号量失败，等待初始化");
+            }
+        }catch (Exception e){
+            //减掉增加的可用资源
+            acquireLeasedAvailableSemaphore(context);
+            throw e;
+        }
+    }
+
+    /**
+     * 减掉之前增加（记录在上下文中）的可用资源信号量
+     */
+    public static void acquireLeasedAvailableSemaphore(UpdateContext context) {
+        doAcquireLeasedSemaphore(context, context.getLeasedAvailableSemaphore(), RESOURCE_AVAILABLE_NOT_CONSISTENCE_SET);
+    }
+
+    /**
+     * 检查可用资源信号量是否已经初始化过 否则进行初始化
+     * @param updateResourceParamList
+     * @param dbAccessor
+     */
+    public static void checkAvailableSemaphoreInitializedOrInit(UpdateContext context, List<UpdateResourceParam> updateResourceParamList,DbAccessor dbAccessor)
+            throws LockWaitException, InterruptedException {
+        List<String> keyList = new ArrayList<>(updateResourceParamList.size());
+        for(UpdateResourceParam updateResourceParam : updateResourceParamList){
+            keyList.add(getAvailableExistsKey(updateResourceParam.getResourceId()));
+        }
+        List<Long> existList = exists(keyList);
+        List<String> notExistResourceIdList = new ArrayList<>();
+        for (int i = 0; i < updateResourceParamList.size(); i++) {
+            if(existList.get(i) == 0){
+                notExistResourceIdList.add(updateResourceParamList.get(i).getResourceId());
+            }
+        }
+        if(notExistResourceIdList.size() > 0){
+            //尝试初始化
+            initAvailableSemaphorePermit(context, notExistResourceIdList,dbAccessor);
+        }
+    }
+
+    /**
+     * 异步查询可用资源数量
+     * 信号量不存在时结果为null
+     * @param queryResourceParam
+     * @return
+     */
+    public static CompletionStage<QueryResourceResult> queryAvailableAsync(QueryResourceParam queryResourceParam){
+        String resourceId = queryResourceParam.getResourceId();
+        int acquire = queryResourceParam.getAcquire();
+        int stripeCount = availableStripes.getStripeCount(resourceId);
+        MySemaphore mySemaphore = stripeCount > 1 ? getResourceAvailableStripeSemaphore(resourceId, 0) : getResourceAvailableSemaphore(resourceId);
+        long nearCacheVersion = nearCacheVersion(availableNearCache, resourceId);
+        return mySemaphore.isExistsAsync().thenCompose(exists -> {
+            if(!exists){
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletionStage<Integer> availablePermitStage = stripeCount > 1
+                    ? sumAvailableStripesAsync(resourceId, stripeCount)
+                    : mySemaphore.availablePermitsAsync();
+            return availablePermitStage.thenApply(availablePermit -> {
+                putNearCache(availableNearCache, resourceId, availablePermit, nearCacheVersion);
+                boolean fill = availablePermit >= acquire;
+                if(availablePermit == 0 || !fill){
+                    adjustResourceAsync(RESOURCE_AVAILABLE_NOT_CONSISTENCE_SET, resourceId);
+                }
+                return QueryResourceResult.builder().resourceId(resourceId).acquire(acquire).num(availablePermit).fill(fill).build();
+            });
+        });
+    }
+
+    /**
+     * 异步批量获取（减掉）可用资源信号量
+     * 要么全部扣减，要么全部不扣减：未条带化的资源一次往返原子地获取，条带化的资源之后逐个获取，失败时归还已获取的部分
+     * 信号量不存在、不一致或者数量不足时以ResourceWaitException失败，不一致的资源由下一次请求的预检进行初始化
+     * 不记录在上下文中，返回持有的信号量及扣减时的代数，成功之后的归还由调用方负责
+     * @param updateResourceParamList
+     * @return
+     */
+    public static CompletionStage<List<SemaphoreAndPermit>> tryAcquireAvailableSemaphoreAsync(List<UpdateResourceParam> updateResourceParamList){
+        if(Objects.isNull(updateResourceParamList)){
+            throw new ResourceRunException("请求可用资源resourcePermitList不能为空");
+        }
+        List<UpdateResourceParam> plainList = new ArrayList<>(updateResourceParamList.size());
+        List<UpdateResourceParam> stripedList = new ArrayList<>();
+        splitByStriping(updateResourceParamList, plainList, stripedList);
+        CompletionStage<List<SemaphoreAndPermit>> plainStage = plainList.isEmpty()
+                ? CompletableFuture.completedFuture(new ArrayList<>())
+                : tryAcquireAvailableBatchAsync(plainList);
+        if(stripedList.isEmpty()){
+            return plainStage;
+        }
+        return plainStage.thenCompose(holdList -> {
+            CompletableFuture<List<SemaphoreAndPermit>> result = new CompletableFuture<>();
+            tryAcquireStripedListAsync(stripedList, 0, holdList).whenComplete((acquired, e) -> {
+                if(Objects.isNull(e)){
+                    result.complete(holdList);
+                    return;
+                }
+                //归还已获取的未条带化的信号量
+                releaseHoldSemaphoreAsync(holdList).whenComplete((released, releaseException) -> result.completeExceptionally(e));
+            });
+            return result;
+        });
+    }
+
+    /**
+     * 一次往返原子地获取（减掉）未条带化的可用资源信号量
+     * @param updateResourceParamList
+     * @return 持有的信号量
+     */
+    private static CompletionStage<List<SemaphoreAndPermit>> tryAcquireAvailableBatchAsync(List<UpdateResourceParam> updateResourceParamList){
+        int size = updateResourceParamList.size();
+        List<String> semaphoreNameList = new ArrayList<>(size);
+        List<String> notConsistenceKeyList = new ArrayList<>(size);
+        List<String> resourceIdList = new ArrayList<>(size);
+        List<Integer> permitList = new ArrayList<>(size);
+        for(UpdateResourceParam updateResourceParam : updateResourceParamList){
+            String resourceId = updateResourceParam.getResourceId();
+            semaphoreNameList.add(getResourceAvailableSemaphore(resourceId).getName());
+            notConsistenceKeyList.add(KeyLayout.slotKey(RESOURCE_AVAILABLE_NOT_CONSISTENCE_SET, resourceId));
+            resourceIdList.add(resourceId);
+            permitList.add(updateResourceParam.getNum());
+        }
+        return MySemaphore.tryAcquireBatchAsync(redissonClient, semaphoreNameList, backgroundReconcile ? null : notConsistenceKeyList, resourceIdList, permitList).thenApply(statusList -> {
+            List<String> needInitResourceIdList = new ArrayList<>();
+            List<String> notEnoughResourceIdList = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                long status = statusList.get(i);
+                String resourceId = updateResourceParamList.get(i).getResourceId();
+                if(status == MySemaphore.BATCH_ACQUIRE_NOT_EXIST || status == MySemaphore.BATCH_ACQUIRE_NOT_CONSISTENCE){
+                    needInitResourceIdList.add(resourceId);
+                }else if(status == MySemaphore.BATCH_ACQUIRE_NOT_ENOUGH){
+                    notEnoughResourceIdList.add(resourceId);
+                }
+            }
+            if(needInitResourceIdList.size() > 0){
+                throw new CompletionException(new ResourceWaitException("获取:" + String.join(",", needInitResourceIdList) + "可用资源信号量失败，等待初始化"));
+            }
+            if(notEnoughResourceIdList.size() > 0){
+                notEnoughResourceIdList.forEach(resourceId -> adjustResourceAsync(RESOURCE_AVAILABLE_NOT_CONSISTENCE_SET, resourceId));
+                throw new CompletionException(new ResourceWaitException("获取:" + String.join(",", notEnoughResourceIdList) + "可用资源信号量失败,资源不足"));
+            }
+            List<SemaphoreAndPermit> holdList = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                holdList.add(SemaphoreAndPermit.builder()
+                        .rSemaphore(getResourceAvailableSemaphore(updateResourceParamList.get(i).getResourceId()))
+                        .permit(permitList.get(i))
+                        .epoch(statusList.get(size + i))
+                        .build());
+                invalidateNearCache(availableNearCache, updateResourceParamList.get(i).getResourceId());
+            }
+            return holdList;
+        });
+    }
+
+    /**
+     * 异步归还持有（减掉）的信号量
+     * 用于异步扣减失败后归还已获取的信号量，只在代数未变化时归还
+     * @param holdList
+     * @return
+     */
+    public static CompletionStage<Void> releaseHoldSemaphoreAsync(List<SemaphoreAndPermit> holdList){
+        CompletableFuture<?>[] futures = holdList
+                .stream()
+                .map(semaphoreAndPermit -> semaphoreAndPermit.getRSemaphore()
+                        .addIfEpochAsync(semaphoreAndPermit.getPermit(), semaphoreAndPermit.getEpoch(), semaphoreAndPermit.getFence())
+                        .toCompletableFuture())
+                .toArray(CompletableFuture[]::new);
+        return CompletableFuture.allOf(futures);
+    }
+
+    /**
+     * 事务提交之前 把上下文中记录的信号量登记到各自的提交栅栏（并行一次往返）
+     * 重新初始化等到栅栏清空之后才读取数据库，提交之后的补扣、回滚时的归还同时注销登记
+     * 登记失败时抛出异常，事务回滚
+     * @param context
+     */
+    public static void enterCommitFence(UpdateContext context){
+        List<SemaphoreAndPermit> semaphoreAndPermitList = new ArrayList<>(context.getHoldAvailableSemaphore());
+        semaphoreAndPermitList.addAll(context.getLeasedAvailableSemaphore());
+        semaphoreAndPermitList.addAll(context.getHoldPreLockSemaphore());
+        semaphoreAndPermitList.addAll(context.getLeasedPreLockSemaphore());
+        if(semaphoreAndPermitList.isEmpty()){
+            return;
+        }
+        context.addRedisRoundTrips(1);
+        try {
+            enterCommitFenceAsync(semaphoreAndPermitList).toCompletableFuture().join();
+        }catch (CompletionException e){
+            throw new ResourceRunException("登记提交栅栏失败:" + e.getCause().getMessage());
+        }
     }
 
     /**
-     * 检查缓存与数据库不一致地可用资源key
-     * @param updateResourceParamList
+     * 异步登记到提交栅栏 登记序号记录在SemaphoreAndPermit中
+     * 按slot分组，每个slot一个脚本并行执行；某个slot失败时其它slot的登记序号仍然记录，回滚时注销
+     * @see CacheAccessor#enterCommitFence(UpdateContext)
+     * @param semaphoreAndPermitList
      * @return
      */
-    public static List<String> checkAvailableResourceConsistence(List<UpdateResourceParam> updateResourceParamList) {
-        return checkConsistence(updateResourceParamList, RESOURCE_AVAILABLE_NOT_CONSISTENCE_KEY_PREFIX);
+    public static CompletionStage<Void> enterCommitFenceAsync(List<SemaphoreAndPermit> semaphoreAndPermitList){
+        long fenceMilliSecond = Const.commitFenceMilliSecond;
+        long expireAt = System.currentTimeMillis() + fenceMilliSecond;
+        List<String> semaphoreNameList = semaphoreNames(semaphoreAndPermitList);
+        Map<Integer, List<Integer>> slotIndexMap = KeyLayout.groupBySlot(redissonClient, semaphoreNameList);
+        CompletableFuture<?>[] futures = new CompletableFuture[slotIndexMap.size()];
+        int g = 0;
+        for(List<Integer> indexList : slotIndexMap.values()){
+            futures[g++] = MySemaphore.enterCommitFenceBatchAsync(redissonClient, MySemaphore.pick(semaphoreNameList, indexList), expireAt, fenceMilliSecond)
+                    .thenAccept(seqList -> {
+                        for (int j = 0; j < indexList.size(); j++) {
+                            semaphoreAndPermitList.get(indexList.get(j)).setFence(seqList.get(j));
+                        }
+                    })
+                    .toCompletableFuture();
+        }
+        return CompletableFuture.allOf(futures);
     }
 
     /**
-     * 标记给定的可用资源key数据库和缓存不一致
-     * @param resourceId
+     * 注销上下文中记录的提交栅栏登记 不等待
+     * 用于事务状态未知时，既不补扣也不归还，由数据库重新初始化
+     * 每个slot一个脚本
+     * @param context
      */
-    public static void setAvailableResourceNotConsistence(String resourceId){
-        redissonClient.getBucket(RESOURCE_AVAILABLE_NOT_CONSISTENCE_KEY_PREFIX + resourceId).set("Not_Consistence");
+    public static void exitCommitFence(UpdateContext context){
+        List<SemaphoreAndPermit> semaphoreAndPermitList = new ArrayList<>();
+        List<Integer> deltaList = new ArrayList<>();
+        List<String> notConsistenceSetList = new ArrayList<>();
+        collectFenced(context.getHoldAvailableSemaphore(), semaphoreAndPermitList, deltaList, notConsistenceSetList);
+        collectFenced(context.getLeasedAvailableSemaphore(), semaphoreAndPermitList, deltaList, notConsistenceSetList);
+        collectFenced(context.getHoldPreLockSemaphore(), semaphoreAndPermitList, deltaList, notConsistenceSetList);
+        collectFenced(context.getLeasedPreLockSemaphore(), semaphoreAndPermitList, deltaList, notConsistenceSetList);
+        finishCommitFence(semaphoreAndPermitList, deltaList, notConsistenceSetList, false);
     }
 
-    /**
-     * 批量释放（增加）可用资源信号量
-     * @param updateResourceParamList
-     * @param dbAccessor
-     */
-    public static void tryLeaseAvailableSemaphore(List<UpdateResourceParam> updateResourceParamList, DbAccessor dbAccessor)
-            throws ResourceWaitException, LockWaitException, InterruptedException {
-        try {
-            List<String> notExistResourceIdList = doTryLeaseAvailable(updateResourceParamList);
-            if(Objects.nonNull(notExistResourceIdList) && notExistResourceIdList.size() > 0){
-                //初始化
-                initAvailableSemaphorePermit(notExistResourceIdList,dbAccessor);
-                throw new ResourceWaitException("批量增加可用资源信号量失败，等待初始化");
+    private static void collectFenced(List<SemaphoreAndPermit> fromList, List<SemaphoreAndPermit> semaphoreAndPermitList,
+                                      List<Integer> deltaList, List<String> notConsistenceSetList){
+        for(SemaphoreAndPermit semaphoreAndPermit : fromList){
+            if(semaphoreAndPermit.getFence() > 0){
+                semaphoreAndPermitList.add(semaphoreAndPermit);
+                deltaList.add(0);
+                notConsistenceSetList.add(null);
             }
-        }catch (Exception e){
-            //减掉增加的可用资源
-            acquireLeasedAvailableSemaphore();
-            throw e;
         }
     }
 
     /**
-     * 减掉之前增加（记录在上下文中）的可用资源信号量
+     * 事务提交之后 把在旧一代信号量上做的增减补到重新初始化之后的信号量上
+     * 重新初始化读取数据库时本次操作可能还没有提交，新一代的数量中不包含本次的增减；减的时候不足则标记不一致
+     * 补扣与注销提交栅栏在同一个脚本中执行：提交之后开始的重新初始化会等到注销之后才读取数据库，读到的数量已经包含本次的增减，
+     * 此时代数还未变化，不会补扣；反之补扣之前完成的重新初始化读取数据库时本次还没有提交
+     * 代数未变化时只注销；上下文中的全部信号量按slot分组，每个slot一个脚本；异步执行，不阻塞调用线程
+     * @param context
      */
-    public static void acquireLeasedAvailableSemaphore() {
-        doAcquireLeasedSemaphore(LEASED_AVAILABLE_SEMAPHORE);
+    public static void reapplyIfEpochChanged(UpdateContext context){
+        List<SemaphoreAndPermit> semaphoreAndPermitList = new ArrayList<>();
+        List<Integer> deltaList = new ArrayList<>();
+        List<String> notConsistenceSetList = new ArrayList<>();
+        collectReapply(context.getHoldAvailableSemaphore(), true, RESOURCE_AVAILABLE_NOT_CONSISTENCE_SET, semaphoreAndPermitList, deltaList, notConsistenceSetList);
+        collectReapply(context.getLeasedAvailableSemaphore(), false, RESOURCE_AVAILABLE_NOT_CONSISTENCE_SET, semaphoreAndPermitList, deltaList, notConsistenceSetList);
+        collectReapply(context.getHoldPreLockSemaphore(), true, RESOURCE_PRE_LOCK_NOT_CONSISTENCE_SET, semaphoreAndPermitList, deltaList, notConsistenceSetList);
+        collectReapply(context.getLeasedPreLockSemaphore(), false, RESOURCE_PRE_LOCK_NOT_CONSISTENCE_SET, semaphoreAndPermitList, deltaList, notConsistenceSetList);
+        finishCommitFence(semaphoreAndPermitList, deltaList, notConsistenceSetList, true);
     }
 
     /**
-     * 检查可用资源信号量是否已经初始化过 否则进行初始化
-     * @param updateResourceParamList
-     * @param dbAccessor
+     * 事务提交之后 把在旧一代信号量上做的增减补到重新初始化之后的信号量上
+     * @see CacheAccessor#reapplyIfEpochChanged(UpdateContext)
+     * @param semaphoreAndPermitList
+     * @param hold true表示持有（减掉）的信号量 false表示释放（增加）的信号量
+     * @param notConsistenceSet 不一致标记set
      */
-    public static void checkAvailableSemaphoreInitializedOrInit(List<UpdateResourceParam> updateResourceParamList,DbAccessor dbAccessor)
-            throws LockWaitException, InterruptedException {
-        RKeys rKeys = redissonClient.getKeys();
-        String[] resourceIdArr = new String[updateResourceParamList.size()];
-        for (int i = 0; i < updateResourceParamList.size(); i++) {
-            resourceIdArr[i] = RESOURCE_AVAILABLE_KEY_PREFIX + updateResourceParamList.get(i).getResourceId();
+    public static void reapplyIfEpochChanged(List<SemaphoreAndPermit> semaphoreAndPermitList, boolean hold, String notConsistenceSet){
+        List<SemaphoreAndPermit> reapplyList = new ArrayList<>(semaphoreAndPermitList.size());
+        List<Integer> deltaList = new ArrayList<>(semaphoreAndPermitList.size());
+        List<String> notConsistenceSetList = new ArrayList<>(semaphoreAndPermitList.size());
+        collectReapply(semaphoreAndPermitList, hold, notConsistenceSet, reapplyList, deltaList, notConsistenceSetList);
+        finishCommitFence(reapplyList, deltaList, notConsistenceSetList, true);
+    }
+
+    private static void collectReapply(List<SemaphoreAndPermit> fromList, boolean hold, String notConsistenceSet,
+                                       List<SemaphoreAndPermit> semaphoreAndPermitList, List<Integer> deltaList, List<String> notConsistenceSetList){
+        for(SemaphoreAndPermit semaphoreAndPermit : fromList){
+            semaphoreAndPermitList.add(semaphoreAndPermit);
+            deltaList.add(hold ? -semaphoreAndPermit.getPermit() : semaphoreAndPermit.getPermit());
+            notConsistenceSetList.add(notConsistenceSet);
         }
-        long existCount = rKeys.countExists(resourceIdArr);
-        if (existCount == updateResourceParamList.size()) {
+    }
+
+    /**
+     * 注销提交栅栏的登记 reapply为true时同时补上代数已变化的增减
+     * 按slot分组，每个slot一个脚本，不等待
+     * @param semaphoreAndPermitList
+     * @param deltaList 增减的数量
+     * @param notConsistenceSetList 补扣不足时标记的不一致set
+     * @param reapply
+     */
+    private static void finishCommitFence(List<SemaphoreAndPermit> semaphoreAndPermitList, List<Integer> deltaList,
+                                          List<String> notConsistenceSetList, boolean reapply){
+        if(semaphoreAndPermitList.isEmpty()){
             return;
         }
-        List<String> notExistResourceIdList = new ArrayList<>();
-        for(UpdateResourceParam updateResourceParam : updateResourceParamList){
-            String resourceId = updateResourceParam.getResourceId();
-            MySemaphore rSemaphore = getResourceAvailableSemaphore(resourceId);
-            boolean semaphoreKeyExists = rSemaphore.isExists();
-            if(!semaphoreKeyExists){
-                notExistResourceIdList.add(resourceId);
-            }
+        List<String> semaphoreNameList = semaphoreNames(semaphoreAndPermitList);
+        List<Long> epochList = new ArrayList<>(semaphoreAndPermitList.size());
+        List<Long> fenceSeqList = new ArrayList<>(semaphoreAndPermitList.size());
+        for(SemaphoreAndPermit semaphoreAndPermit : semaphoreAndPermitList){
+            epochList.add(semaphoreAndPermit.getEpoch());
+            fenceSeqList.add(semaphoreAndPermit.getFence());
+        }
+        Map<Integer, List<Integer>> slotIndexMap = KeyLayout.groupBySlot(redissonClient, semaphoreNameList);
+        for(List<Integer> indexList : slotIndexMap.values()){
+            MySemaphore.exitCommitFenceBatchAsync(redissonClient, MySemaphore.pick(semaphoreNameList, indexList), MySemaphore.pick(deltaList, indexList),
+                    MySemaphore.pick(epochList, indexList), MySemaphore.pick(fenceSeqList, indexList), reapply).whenComplete((shortageList, e) -> {
+                if(Objects.nonNull(e)){
+                    log.warn("资源:{}提交之后注销提交栅栏失败:{}", MySemaphore.pick(semaphoreNameList, indexList), e.getMessage());
+                    return;
+                }
+                for (int j = 0; j < indexList.size(); j++) {
+                    long shortage = shortageList.get(j);
+                    if(shortage > 0){
+                        int index = indexList.get(j);
+                        String resourceId = semaphoreAndPermitList.get(index).getRSemaphore().getResourceId();
+                        log.warn("资源:{}重新初始化之后补扣不足，缺少:{}，标记为不一致", resourceId, shortage);
+                        markNotConsistenceAsync(notConsistenceSetList.get(index), resourceId);
+                    }
+                }
+            });
         }
-        if(notExistResourceIdList.size() > 0){
-            //尝试初始化
-            initAvailableSemaphorePermit(notExistResourceIdList,dbAccessor);
+    }
+
+    private static List<String> semaphoreNames(List<SemaphoreAndPermit> semaphoreAndPermitList){
+        List<String> semaphoreNameList = new ArrayList<>(semaphoreAndPermitList.size());
+        for(SemaphoreAndPermit semaphoreAndPermit : semaphoreAndPermitList){
+            semaphoreNameList.add(semaphoreAndPermit.getRSemaphore().getName());
         }
+        return semaphoreNameList;
     }
 
     //===============================================以上是对于可用资源的操作===============================================
@@ -323,10 +1420,12 @@ public class CacheAccessor {
         String resourceId = queryResourceParam.getResourceId();
         int acquire = queryResourceParam.getAcquire();
         MySemaphore mySemaphore = getResourcePreLockSemaphore(resourceId);
+        long nearCacheVersion = nearCacheVersion(preLockedNearCache, resourceId);
         if(!mySemaphore.isExists()){
             return null;
         }
         int preLockedPermit = mySemaphore.availablePermits();
+        putNearCache(preLockedNearCache, resourceId, preLockedPermit, nearCacheVersion);
         boolean fill = preLockedPermit >= acquire;
         if(preLockedPermit == 0 || !fill){
             adjustPreLockedResource(resourceId);
@@ -339,17 +1438,17 @@ public class CacheAccessor {
      * @param updateResourceParam
      * @throws
      */
-    public static void tryAcquirePreLockedSemaphore(UpdateResourceParam updateResourceParam,DbAccessor dbAccessor)
+    public static void tryAcquirePreLockedSemaphore(UpdateContext context, UpdateResourceParam updateResourceParam,DbAccessor dbAccessor)
             throws ResourceWaitException, LockWaitException, InterruptedException {
         try {
-            String notExistResourceId = doTryAcquirePreLocked(updateResourceParam);
+            String notExistResourceId = doTryAcquirePreLocked(context, updateResourceParam);
             if(Objects.nonNull(notExistResourceId)){
                 //初始化
-                initPreLockedSemaphorePermit(notExistResourceId,dbAccessor);
+                initPreLockedSemaphorePermit(context, notExistResourceId,dbAccessor);
                 throw new ResourceWaitException("获取:" + notExistResourceId + "预占资源数量信号量失败,等待初始化");
             }
         }catch (Exception e){
-            leaseAcquiredPreLockedSemaphore();
+            leaseAcquiredPreLockedSemaphore(context);
             throw e;
         }
     }
@@ -359,17 +1458,17 @@ public class CacheAccessor {
      * @param resourcePermitList
      * @throws
      */
-    public static void tryAcquirePreLockedSemaphore(List<UpdateResourceParam> resourcePermitList,DbAccessor dbAccessor)
+    public static void tryAcquirePreLockedSemaphore(UpdateContext context, List<UpdateResourceParam> resourcePermitList,DbAccessor dbAccessor)
             throws ResourceWaitException, LockWaitException, InterruptedException {
         try {
-            List<String> notExistResourceIdList = doTryAcquirePreLocked(resourcePermitList);
+            List<String> notExistResourceIdList = doTryAcquirePreLocked(context, resourcePermitList);
             if(Objects.nonNull(notExistResourceIdList) && notExistResourceIdList.size() > 0){
                 //初始化
-                initPreLockedSemaphorePermit(notExistResourceIdList,dbAccessor);
+                initPreLockedSemaphorePermit(context, notExistResourceIdList,dbAccessor);
                 throw new ResourceWaitException("批量获取预占资源信号量失败，等待初始化");
             }
         }catch (Exception e){
-            leaseAcquiredPreLockedSemaphore();
+            leaseAcquiredPreLockedSemaphore(context);
             throw e;
         }
     }
@@ -379,18 +1478,18 @@ public class CacheAccessor {
      * @param updateResourceParamList
      * @param dbAccessor
      */
-    public static void tryLeasePreLockedSemaphore(List<UpdateResourceParam> updateResourceParamList,DbAccessor dbAccessor)
+    public static void tryLeasePreLockedSemaphore(UpdateContext context, List<UpdateResourceParam> updateResourceParamList,DbAccessor dbAccessor)
             throws LockWaitException, InterruptedException, ResourceWaitException {
         try {
-            List<String> notExistResourceIdList = doTryLeasePreLocked(updateResourceParamList);
+            List<String> notExistResourceIdList = doTryLeasePreLocked(context, updateResourceParamList);
             if(Objects.nonNull(notExistResourceIdList) && notExistResourceIdList.size() > 0){
                 //初始化
-                initPreLockedSemaphorePermit(notExistResourceIdList,dbAccessor);
+                initPreLockedSemaphorePermit(context, notExistResourceIdList,dbAccessor);
                 throw new ResourceWaitException("批量增加预占资源信号量失败，等待初始化");
             }
         }catch (Exception e){
             //减掉增加的预占资源
-            acquireLeasedPreLockedSemaphore();
+            acquireLeasedPreLockedSemaphore(context);
             throw e;
         }
     }
@@ -398,15 +1497,15 @@ public class CacheAccessor {
     /**
      * 增加之前扣减（记录在上下文中）的预占资源信号量
      */
-    public static void leaseAcquiredPreLockedSemaphore(){
-        doLeaseAcquiredSemaphore(HOLD_PRE_LOCK_SEMAPHORE);
+    public static void leaseAcquiredPreLockedSemaphore(UpdateContext context){
+        doLeaseAcquiredSemaphore(context, context.getHoldPreLockSemaphore());
     }
 
     /**
      * 减掉之前增加（记录在上下文中）的预占资源信号量
      */
-    public static void acquireLeasedPreLockedSemaphore() {
-        doAcquireLeasedSemaphore(LEASED_PRE_LOCK_SEMAPHORE);
+    public static void acquireLeasedPreLockedSemaphore(UpdateContext context) {
+        doAcquireLeasedSemaphore(context, context.getLeasedPreLockSemaphore(), RESOURCE_PRE_LOCK_NOT_CONSISTENCE_SET);
     }
 
     /**
@@ -415,35 +1514,51 @@ public class CacheAccessor {
      * @return
      */
     public static List<String> checkPreLockedResourceConsistence(List<UpdateResourceParam> updateResourceParamList) {
-        return checkConsistence(updateResourceParamList, RESOURCE_PRE_LOCK_NOT_CONSISTENCE_KEY_PREFIX);
+        return checkConsistence(updateResourceParamList, RESOURCE_PRE_LOCK_NOT_CONSISTENCE_SET);
     }
 
     /**
      * 批量初始化预占资源信号量缓存
+     * 本节点内正在被其它线程初始化的资源不再加锁，等待其结果
      * @param resourceIdList
      */
-    public static void initPreLockedSemaphorePermit(List<String> resourceIdList,DbAccessor dbAccessor) throws LockWaitException, InterruptedException {
-        //先释放掉持有的读锁
-        ReadWriteLock.leaseHoldPreLockedReadLock();
+    public static void initPreLockedSemaphorePermit(UpdateContext context, List<String> resourceIdList,DbAccessor dbAccessor) throws LockWaitException, InterruptedException {
+        preLockedInitFlight.execute(resourceIdList,
+                leadList -> doInitPreLockedSemaphorePermit(context, leadList, dbAccessor), CacheAccessor::getInitWaitTimeMilliSecond);
+    }
+
+    private static void doInitPreLockedSemaphorePermit(UpdateContext context, List<String> resourceIdList,DbAccessor dbAccessor) throws LockWaitException, InterruptedException {
         //加锁
-        ReadWriteLock.preLockedTryLockWrite(resourceIdList);
+        ReadWriteLock.preLockedTryLockWrite(context, resourceIdList);
         try {
+            //先找出需要设置的资源并等待其提交栅栏清空，之后再读取数据库
+            List<String> initResourceIdList = new ArrayList<>(resourceIdList.size());
+            Map<String, long[]> fenceSeqMap = new HashMap<>();
+            for(String resourceId : resourceIdList){
+                MySemaphore rSemaphore = getResourcePreLockSemaphore(resourceId);
+                if(rSemaphore.isExists() && !isNotConsistence(RESOURCE_PRE_LOCK_NOT_CONSISTENCE_SET, resourceId)){
+                    continue;
+                }
+                initResourceIdList.add(resourceId);
+                fenceSeqMap.put(resourceId, awaitCommitFence(resourceId, Collections.singletonList(rSemaphore)));
+            }
+            if(initResourceIdList.isEmpty()){
+                return;
+            }
             //批量db查询
-            List<ResourcePermit> resourcePermitList = dbAccessor.queryResource(resourceIdList);
+            List<ResourcePermit> resourcePermitList = dbAccessor.queryResource(initResourceIdList);
             //逐个更新缓存信号量
-            resourcePermitList.forEach(resourcePermit -> {
+            for(ResourcePermit resourcePermit : resourcePermitList){
                 String resourceId = resourcePermit.getResourceId();
-                MySemaphore rSemaphore = getResourcePreLockSemaphore(resourceId);
-                if(rSemaphore.isExists() && !keyExist(RESOURCE_PRE_LOCK_NOT_CONSISTENCE_KEY_PREFIX + resourceId)){
-                    return;
-                }
-                trySetPermitsLoop(rSemaphore,resourcePermit.getPreLockCount());
+                trySetPermitsFenced(resourceId, Collections.singletonList(getResourcePreLockSemaphore(resourceId)), fenceSeqMap.get(resourceId),
+                        resourcePermit.getPreLockCount(), id -> dbAccessor.queryOneResource(id).getPreLockCount());
+                context.addReinitialized(1);
                 deletePreLockedResourceNotConsistence(resourceId);
-            });
+            }
         }catch (Exception e){
             throw e;
         }finally {
-            ReadWriteLock.leaseHoldPreLockedWriteLock();
+            ReadWriteLock.leaseHoldPreLockedWriteLock(context);
         }
     }
 
@@ -464,18 +1579,16 @@ public class CacheAccessor {
      * 删除预占资源信号量cache
      * @param resourceId
      */
-    public static void deletePreLockedResourceSemaphore(String resourceId) throws LockWaitException, InterruptedException {
-        //释放持有的读锁
-        ReadWriteLock.leaseHoldPreLockedReadLock();
+    public static void deletePreLockedResourceSemaphore(UpdateContext context, String resourceId) throws LockWaitException, InterruptedException {
         //加锁
-        ReadWriteLock.preLockedTryLockWrite(resourceId);
+        ReadWriteLock.preLockedTryLockWrite(context, resourceId);
         MySemaphore mySemaphore = getResourcePreLockSemaphore(resourceId);
         if(mySemaphore.isExists()){
             mySemaphore.delete();
         }
         //不一致标记也一起删除
         deletePreLockedResourceNotConsistence(resourceId);
-        ReadWriteLock.leaseHoldPreLockedWriteLock();
+        ReadWriteLock.leaseHoldPreLockedWriteLock(context);
     }
 
     /**
@@ -483,7 +1596,7 @@ public class CacheAccessor {
      * @param resourceId
      */
     public static void setPreLockedResourceNotConsistence(String resourceId) {
-        redissonClient.getBucket(RESOURCE_PRE_LOCK_NOT_CONSISTENCE_KEY_PREFIX + resourceId).set("Not_Consistence");
+        markNotConsistence(RESOURCE_PRE_LOCK_NOT_CONSISTENCE_SET, resourceId);
     }
 
     /**
@@ -491,44 +1604,164 @@ public class CacheAccessor {
      * @param updateResourceParamList
      * @param dbAccessor
      */
-    public static void checkPreLockedSemaphoreInitializedOrInit(List<UpdateResourceParam> updateResourceParamList, DbAccessor dbAccessor)
+    public static void checkPreLockedSemaphoreInitializedOrInit(UpdateContext context, List<UpdateResourceParam> updateResourceParamList, DbAccessor dbAccessor)
             throws LockWaitException, InterruptedException {
-        RKeys rKeys = redissonClient.getKeys();
-        String[] resourceIdArr = new String[updateResourceParamList.size()];
-        for (int i = 0; i < updateResourceParamList.size(); i++) {
-            resourceIdArr[i] = RESOURCE_PRE_LOCK_KEY_PREFIX + updateResourceParamList.get(i).getResourceId();
-        }
-        long existCount = rKeys.countExists(resourceIdArr);
-        if (existCount == updateResourceParamList.size()) {
-            return;
+        List<String> keyList = new ArrayList<>(updateResourceParamList.size());
+        for(UpdateResourceParam updateResourceParam : updateResourceParamList){
+            keyList.add(KeyLayout.key(RESOURCE_PRE_LOCK_KEY_PREFIX, updateResourceParam.getResourceId()));
         }
+        List<Long> existList = exists(keyList);
         List<String> notExistResourceIdList = new ArrayList<>();
-        for(UpdateResourceParam updateResourceParam : updateResourceParamList){
-            String resourceId = updateResourceParam.getResourceId();
-            MySemaphore rSemaphore = getResourcePreLockSemaphore(resourceId);
-            boolean semaphoreKeyExists = rSemaphore.isExists();
-            if(!semaphoreKeyExists){
-                notExistResourceIdList.add(resourceId);
+        for (int i = 0; i < updateResourceParamList.size(); i++) {
+            if(existList.get(i) == 0){
+                notExistResourceIdList.add(updateResourceParamList.get(i).getResourceId());
             }
         }
         if(notExistResourceIdList.size() > 0){
             //尝试初始化
-            initPreLockedSemaphorePermit(notExistResourceIdList,dbAccessor);
+            initPreLockedSemaphorePermit(context, notExistResourceIdList,dbAccessor);
         }
     }
 
+    /**
+     * 异步查询预占资源数量
+     * 信号量不存在时结果为null
+     * @param queryResourceParam
+     * @return
+     */
+    public static CompletionStage<QueryResourceResult> queryPreLockedAsync(QueryResourceParam queryResourceParam){
+        String resourceId = queryResourceParam.getResourceId();
+        int acquire = queryResourceParam.getAcquire();
+        MySemaphore mySemaphore = getResourcePreLockSemaphore(resourceId);
+        long nearCacheVersion = nearCacheVersion(preLockedNearCache, resourceId);
+        return mySemaphore.isExistsAsync().thenCompose(exists -> {
+            if(!exists){
+                return CompletableFuture.completedFuture(null);
+            }
+            return mySemaphore.availablePermitsAsync().thenApply(preLockedPermit -> {
+                putNearCache(preLockedNearCache, resourceId, preLockedPermit, nearCacheVersion);
+                boolean fill = preLockedPermit >= acquire;
+                if(preLockedPermit == 0 || !fill){
+                    adjustResourceAsync(RESOURCE_PRE_LOCK_NOT_CONSISTENCE_SET, resourceId);
+                }
+                return QueryResourceResult.builder().resourceId(resourceId).acquire(acquire).num(preLockedPermit).fill(fill).build();
+            });
+        });
+    }
+
+    /**
+     * 异步批量释放（增加）预占资源信号量
+     * 信号量的存在性由调用方预检保证，不存在（期间被删除）时不增加并以ResourceWaitException失败
+     * @param updateResourceParamList
+     * @return 增加的信号量及增加时的代数
+     */
+    public static CompletionStage<List<SemaphoreAndPermit>> releasePreLockedSemaphoreAsync(List<UpdateResourceParam> updateResourceParamList){
+        List<CompletableFuture<Long>> futureList = new ArrayList<>(updateResourceParamList.size());
+        for(UpdateResourceParam updateResourceParam : updateResourceParamList){
+            futureList.add(getResourcePreLockSemaphore(updateResourceParam.getResourceId()).releaseWithEpochAsync(updateResourceParam.getNum()).toCompletableFuture());
+        }
+        return CompletableFuture.allOf(futureList.toArray(new CompletableFuture[0])).thenApply(v -> {
+            List<SemaphoreAndPermit> leasedList = new ArrayList<>(updateResourceParamList.size());
+            List<String> notExistResourceIdList = new ArrayList<>();
+            for (int i = 0; i < updateResourceParamList.size(); i++) {
+                UpdateResourceParam updateResourceParam = updateResourceParamList.get(i);
+                long epoch = futureList.get(i).join();
+                if(epoch < 0){
+                    notExistResourceIdList.add(updateResourceParam.getResourceId());
+                    continue;
+                }
+                leasedList.add(SemaphoreAndPermit.builder()
+                        .rSemaphore(getResourcePreLockSemaphore(updateResourceParam.getResourceId()))
+                        .permit(updateResourceParam.getNum())
+                        .epoch(epoch)
+                        .build());
+                invalidateNearCache(preLockedNearCache, updateResourceParam.getResourceId());
+            }
+            if(notExistResourceIdList.size() > 0){
+                throw new CompletionException(new ResourceWaitException("增加:" + String.join(",", notExistResourceIdList) + "预占资源信号量失败，等待初始化"));
+            }
+            return leasedList;
+        });
+    }
+
+    /**
+     * 异步批量减掉之前增加的预占资源信号量（不等待）
+     * 用于异步操作失败后撤销已增加的预占信号量，只在代数未变化时减掉，数量不足时标记不一致
+     * @param leasedList
+     * @return
+     */
+    public static CompletionStage<Void> reducePreLockedSemaphoreAsync(List<SemaphoreAndPermit> leasedList){
+        CompletableFuture<?>[] futures = leasedList
+                .stream()
+                .map(semaphoreAndPermit -> {
+                    MySemaphore rSemaphore = semaphoreAndPermit.getRSemaphore();
+                    return rSemaphore.addIfEpochAsync(-semaphoreAndPermit.getPermit(), semaphoreAndPermit.getEpoch(), semaphoreAndPermit.getFence())
+                            .toCompletableFuture()
+                            .thenCompose(shortage -> {
+                                if(shortage <= 0){
+                                    return CompletableFuture.completedFuture(null);
+                                }
+                                return markNotConsistenceAsync(RESOURCE_PRE_LOCK_NOT_CONSISTENCE_SET, rSemaphore.getResourceId())
+                                        .toCompletableFuture();
+                            });
+                })
+                .toArray(CompletableFuture[]::new);
+        return CompletableFuture.allOf(futures);
+    }
+
     //===============================================以上是对于预占资源的操作===============================================
 
+    //===============================================以下是对于可用与预占之间转移的操作===============================================
+
+    /**
+     * 开启后可用与预占之间的转移通过一个脚本一次往返完成，源信号量减掉与目标信号量增加对其它请求同时可见
+     * 同一资源的可用、预占信号量需要在同一个slot（开启hash tag或者非cluster模式），条带化的资源以及开启本地租借时仍然分两步
+     * @param enabled
+     */
+    public static void setAtomicTransfer(boolean enabled){
+        atomicTransfer = enabled;
+    }
+
+    public static boolean isAtomicTransfer(){
+        return atomicTransfer;
+    }
+
+    /**
+     * 扣减可用资源信号量 增加预占资源信号量
+     * 成功时在上下文中记录扣减的可用、增加的预占，由事务回滚钩子按代数回滚
+     * @param context
+     * @param updateResourceParamList
+     * @param dbAccessor
+     */
+    public static void transferAvailableToPreLocked(UpdateContext context, List<UpdateResourceParam> updateResourceParamList, DbAccessor dbAccessor)
+            throws ResourceWaitException, LockWaitException, InterruptedException {
+        if(!canTransferAtomically(updateResourceParamList)){
+            tryAcquireAvailableSemaphore(context, updateResourceParamList, dbAccessor);
+            tryLeasePreLockedSemaphore(context, updateResourceParamList, dbAccessor);
+            return;
+        }
+        doTransfer(context, updateResourceParamList, dbAccessor, true);
+    }
+
     /**
-     * 清除所有的上下文信息
+     * 扣减预占资源信号量 增加可用资源信号量
+     * @see CacheAccessor#transferAvailableToPreLocked
+     * @param context
+     * @param updateResourceParamList
+     * @param dbAccessor
      */
-    public static void clearThreadLocal() {
-        HOLD_AVAILABLE_SEMAPHORE.remove();
-        LEASED_AVAILABLE_SEMAPHORE.remove();
-        HOLD_PRE_LOCK_SEMAPHORE.remove();
-        LEASED_PRE_LOCK_SEMAPHORE.remove();
+    public static void transferPreLockedToAvailable(UpdateContext context, List<UpdateResourceParam> updateResourceParamList, DbAccessor dbAccessor)
+            throws ResourceWaitException, LockWaitException, InterruptedException {
+        if(!canTransferAtomically(updateResourceParamList)){
+            tryAcquirePreLockedSemaphore(context, updateResourceParamList, dbAccessor);
+            tryLeaseAvailableSemaphore(context, updateResourceParamList, dbAccessor);
+            return;
+        }
+        doTransfer(context, updateResourceParamList, dbAccessor, false);
     }
 
+    //===============================================以上是对于可用与预占之间转移的操作===============================================
+
     //=================
     //===============================================以上私有方法===============================================
     //=================
@@ -538,21 +1771,27 @@ public class CacheAccessor {
      * 通过数据库查询原始值
      * @param resourceId
      */
-    private static void initAvailableSemaphorePermit(String resourceId,DbAccessor dbAccessor) throws LockWaitException, InterruptedException {
-        //先释放掉持有的读锁
-        ReadWriteLock.leaseHoldAvailableReadLock();
+    private static void initAvailableSemaphorePermit(UpdateContext context, String resourceId,DbAccessor dbAccessor) throws LockWaitException, InterruptedException {
+        availableInitFlight.execute(Collections.singletonList(resourceId),
+                leadList -> doInitAvailableSemaphorePermit(context, resourceId, dbAccessor), CacheAccessor::getInitWaitTimeMilliSecond);
+    }
+
+    private static void doInitAvailableSemaphorePermit(UpdateContext context, String resourceId,DbAccessor dbAccessor) throws LockWaitException, InterruptedException {
         //加锁
-        ReadWriteLock.availableTryLockWrite(resourceId);
+        ReadWriteLock.availableTryLockWrite(context, resourceId);
         try {
-            MySemaphore rSemaphore = getResourceAvailableSemaphore(resourceId);
-            if(rSemaphore.isExists() && !keyExist(RESOURCE_AVAILABLE_NOT_CONSISTENCE_KEY_PREFIX + resourceId)){
+            Integer configuredStripeCount = availableStripes.refresh(redissonClient, resourceId);
+            if(keyExist(getAvailableExistsKey(resourceId)) && !isNotConsistence(RESOURCE_AVAILABLE_NOT_CONSISTENCE_SET, resourceId)){
                 return;
             }
-            ResourcePermit resourcePermit = dbAccessor.queryOneResource(resourceId);
-            trySetPermitsLoop(rSemaphore,resourcePermit.getAvailableCount());
+            List<MySemaphore> semaphoreList = getAvailableSetSemaphores(resourceId);
+            long[] fenceSeqs = awaitCommitFence(resourceId, semaphoreList);
+            setAvailableSemaphorePermit(resourceId, configuredStripeCount, semaphoreList, fenceSeqs, loadAvailableCount(resourceId, dbAccessor), dbAccessor);
+            context.addReinitialized(1);
+            discardLease(resourceId);
             deleteAvailableResourceNotConsistence(resourceId);
         }catch (Exception e){
-            ReadWriteLock.leaseHoldAvailableWriteLock();
+            ReadWriteLock.leaseHoldAvailableWriteLock(context);
             throw e;
         }
     }
@@ -562,7 +1801,7 @@ public class CacheAccessor {
      * @param resourceId
      */
     private static void deleteAvailableResourceNotConsistence(String resourceId){
-        redissonClient.getKeys().delete(RESOURCE_AVAILABLE_NOT_CONSISTENCE_KEY_PREFIX + resourceId);
+        getNotConsistenceSet(RESOURCE_AVAILABLE_NOT_CONSISTENCE_SET, resourceId).remove(resourceId);
     }
 
     /**
@@ -579,20 +1818,27 @@ public class CacheAccessor {
      * 通过数据库查询原始值
      * @param resourceId
      */
-    private static void initPreLockedSemaphorePermit(String resourceId,DbAccessor dbAccessor) throws LockWaitException, InterruptedException {
-        //先释放掉持有的读锁
-        ReadWriteLock.leaseHoldPreLockedReadLock();
+    private static void initPreLockedSemaphorePermit(UpdateContext context, String resourceId,DbAccessor dbAccessor) throws LockWaitException, InterruptedException {
+        preLockedInitFlight.execute(Collections.singletonList(resourceId),
+                leadList -> doInitPreLockedSemaphorePermit(context, resourceId, dbAccessor), CacheAccessor::getInitWaitTimeMilliSecond);
+    }
+
+    private static void doInitPreLockedSemaphorePermit(UpdateContext context, String resourceId,DbAccessor dbAccessor) throws LockWaitException, InterruptedException {
         //加锁
-        ReadWriteLock.preLockedTryLockWrite(resourceId);
+        ReadWriteLock.preLockedTryLockWrite(context, resourceId);
         try {
             MySemaphore rSemaphore = getResourcePreLockSemaphore(resourceId);
-            if(rSemaphore.isExists() && !keyExist(RESOURCE_PRE_LOCK_NOT_CONSISTENCE_KEY_PREFIX + resourceId)){
+            if(rSemaphore.isExists() && !isNotConsistence(RESOURCE_PRE_LOCK_NOT_CONSISTENCE_SET, resourceId)){
                 return;
             }
+            List<MySemaphore> semaphoreList = Collections.singletonList(rSemaphore);
+            long[] fenceSeqs = awaitCommitFence(resourceId, semaphoreList);
             ResourcePermit resourcePermit = dbAccessor.queryOneResource(resourceId);
-            trySetPermitsLoop(rSemaphore,resourcePermit.getPreLockCount());
+            trySetPermitsFenced(resourceId, semaphoreList, fenceSeqs, resourcePermit.getPreLockCount(), id -> dbAccessor.queryOneResource(id).getPreLockCount());
+            context.addReinitialized(1);
+            deletePreLockedResourceNotConsistence(resourceId);
         }catch (Exception e){
-            ReadWriteLock.leaseHoldPreLockedWriteLock();
+            ReadWriteLock.leaseHoldPreLockedWriteLock(context);
             throw e;
         }
     }
@@ -602,7 +1848,27 @@ public class CacheAccessor {
      * @param resourceId
      */
     private static void deletePreLockedResourceNotConsistence(String resourceId) {
-        redissonClient.getKeys().delete(RESOURCE_PRE_LOCK_NOT_CONSISTENCE_KEY_PREFIX + resourceId);
+        getNotConsistenceSet(RESOURCE_PRE_LOCK_NOT_CONSISTENCE_SET, resourceId).remove(resourceId);
+    }
+
+    /**
+     * 资源是否标记为不一致
+     * @param notConsistenceSet 不一致标记set
+     * @param resourceId
+     * @return
+     */
+    private static boolean isNotConsistence(String notConsistenceSet, String resourceId){
+        return getNotConsistenceSet(notConsistenceSet, resourceId).contains(resourceId);
+    }
+
+    /**
+     * 资源所在slot的不一致标记set
+     * @param notConsistenceSet
+     * @param resourceId
+     * @return
+     */
+    private static RSet<String> getNotConsistenceSet(String notConsistenceSet, String resourceId){
+        return redissonClient.getSet(KeyLayout.slotKey(notConsistenceSet, resourceId), StringCodec.INSTANCE);
     }
 
     /**
@@ -610,11 +1876,306 @@ public class CacheAccessor {
      * @param resourceId
      * @return
      */
-    private static MySemaphore getResourceAvailableSemaphore(String resourceId){
-        Redisson redisson = (Redisson) redissonClient;
-        ConnectionManager connectionManager = redisson.getConnectionManager();
-        MySemaphore rSemaphore = new MySemaphore(connectionManager.getCommandExecutor(), RESOURCE_AVAILABLE_KEY_PREFIX + resourceId);
-        return rSemaphore;
+    static MySemaphore getResourceAvailableSemaphore(String resourceId){
+        return availableHandles.get(redissonClient, resourceId);
+    }
+
+    /**
+     * 获取可用资源某个条带的信号量对象
+     * @param resourceId
+     * @param stripe
+     * @return
+     */
+    private static MySemaphore getResourceAvailableStripeSemaphore(String resourceId, int stripe){
+        return availableHandles.getStripe(redissonClient, availableStripes, resourceId, stripe);
+    }
+
+    /**
+     * 增加（归还）可用资源时使用的信号量
+     * 条带化时随机选择一个条带，总数不变即可
+     * @param resourceId
+     * @return
+     */
+    private static MySemaphore getAvailableReleaseSemaphore(String resourceId){
+        int stripeCount = availableStripes.getStripeCount(resourceId);
+        if(stripeCount > 1){
+            return getResourceAvailableStripeSemaphore(resourceId, SemaphoreStripes.nextStripe(stripeCount));
+        }
+        return getResourceAvailableSemaphore(resourceId);
+    }
+
+    /**
+     * 判断可用资源信号量是否存在时检查的key
+     * 条带化时各条带同时初始化，检查第一个条带
+     * @param resourceId
+     * @return
+     */
+    private static String getAvailableExistsKey(String resourceId){
+        if(availableStripes.getStripeCount(resourceId) > 1){
+            return availableStripes.getStripeKey(resourceId, 0);
+        }
+        return KeyLayout.key(RESOURCE_AVAILABLE_KEY_PREFIX, resourceId);
+    }
+
+    /**
+     * 可用资源数量 条带化时为各条带之和
+     * @param resourceId
+     * @return
+     */
+    private static int availablePermits(String resourceId){
+        int stripeCount = availableStripes.getStripeCount(resourceId);
+        if(stripeCount > 1){
+            return sumAvailableStripesAsync(resourceId, stripeCount).toCompletableFuture().join();
+        }
+        return getResourceAvailableSemaphore(resourceId).availablePermits();
+    }
+
+    /**
+     * 并行读取各条带数量并求和
+     * @param resourceId
+     * @param stripeCount
+     * @return
+     */
+    private static CompletionStage<Integer> sumAvailableStripesAsync(String resourceId, int stripeCount){
+        List<CompletableFuture<Integer>> futureList = new ArrayList<>(stripeCount);
+        for (int i = 0; i < stripeCount; i++) {
+            futureList.add(getResourceAvailableStripeSemaphore(resourceId, i).availablePermitsAsync().toCompletableFuture());
+        }
+        return CompletableFuture.allOf(futureList.toArray(new CompletableFuture[0])).thenApply(v -> {
+            int sum = 0;
+            for(CompletableFuture<Integer> future : futureList){
+                Integer permits = future.join();
+                if(Objects.nonNull(permits)){
+                    sum += permits;
+                }
+            }
+            return sum;
+        });
+    }
+
+    /**
+     * 异步落库（WriteBehindFlusher）中还没有落库的可用资源扣减量
+     * 需要在读取数据库之前读取：落库提交与减掉未落库量之间读到的扣减量会被减两次（少卖），不会漏减
+     * @param resourceIdList
+     * @return resourceId -> 未落库的扣减量 没有记录的资源不在其中
+     */
+    private static Map<String, Integer> readWriteBehindPending(Collection<String> resourceIdList){
+        RMap<String, String> pendingMap = redissonClient.getMap(WriteBehindFlusher.WRITE_BEHIND_PENDING_KEY, StringCodec.INSTANCE);
+        Map<String, Integer> writeBehindPendingMap = new HashMap<>();
+        pendingMap.getAll(new HashSet<>(resourceIdList)).forEach((resourceId, num) -> writeBehindPendingMap.put(resourceId, Integer.parseInt(num)));
+        return writeBehindPendingMap;
+    }
+
+    /**
+     * 数据库的可用数量减掉未落库的扣减量 最少为0
+     * @param dbAvailableCount
+     * @param writeBehindPending 为null时表示没有未落库的扣减量
+     * @return
+     */
+    private static int availableCountOf(int dbAvailableCount, Integer writeBehindPending){
+        return Objects.isNull(writeBehindPending) ? dbAvailableCount : Math.max(0, dbAvailableCount - writeBehindPending);
+    }
+
+    /**
+     * 先读未落库的扣减量 再读数据库 得到重新初始化的可用数量
+     * @param resourceId
+     * @param dbAccessor
+     * @return
+     */
+    private static int loadAvailableCount(String resourceId, DbAccessor dbAccessor){
+        Integer writeBehindPending = readWriteBehindPending(Collections.singletonList(resourceId)).get(resourceId);
+        return availableCountOf(dbAccessor.queryOneResource(resourceId).getAvailableCount(), writeBehindPending);
+    }
+
+    /**
+     * 需要设置的可用资源信号量 条带化时为各条带，否则为原始信号量
+     * @param resourceId
+     * @return
+     */
+    private static List<MySemaphore> getAvailableSetSemaphores(String resourceId){
+        int stripeCount = availableStripes.getStripeCount(resourceId);
+        if(stripeCount <= 1){
+            return Collections.singletonList(getResourceAvailableSemaphore(resourceId));
+        }
+        List<MySemaphore> semaphoreList = new ArrayList<>(stripeCount);
+        for (int i = 0; i < stripeCount; i++) {
+            semaphoreList.add(getResourceAvailableStripeSemaphore(resourceId, i));
+        }
+        return semaphoreList;
+    }
+
+    /**
+     * 按条带配置设置可用资源信号量
+     * 条带化时数量拆分到各条带，并删除原始信号量以及多余的条带；取消条带化时删除遗留的条带并移除配置
+     * 需要在写锁下调用
+     * @param resourceId
+     * @param configuredStripeCount 配置的条带数 null表示从未条带化过
+     * @param semaphoreList getAvailableSetSemaphores返回的信号量
+     * @param fenceSeqs 读取数据库之前的提交栅栏
+     * @param availableCount 数据库数量减掉未落库的扣减量
+     * @param dbAccessor
+     */
+    private static void setAvailableSemaphorePermit(String resourceId, Integer configuredStripeCount, List<MySemaphore> semaphoreList, long[] fenceSeqs,
+                                                    int availableCount, DbAccessor dbAccessor) throws LockWaitException, InterruptedException {
+        trySetPermitsFenced(resourceId, semaphoreList, fenceSeqs, availableCount, id -> loadAvailableCount(id, dbAccessor));
+        int stripeCount = semaphoreList.size();
+        if(stripeCount > 1){
+            getResourceAvailableSemaphore(resourceId).delete();
+            deleteAvailableStripes(resourceId, stripeCount, SemaphoreStripes.MAX_STRIPES);
+            return;
+        }
+        if(Objects.nonNull(configuredStripeCount)){
+            deleteAvailableStripes(resourceId, 0, SemaphoreStripes.MAX_STRIPES);
+            availableStripes.removeStripeCount(redissonClient, resourceId);
+        }
+    }
+
+    /**
+     * 删除[fromStripe, toStripe)范围内的条带
+     * @param resourceId
+     * @param fromStripe
+     * @param toStripe
+     */
+    private static void deleteAvailableStripes(String resourceId, int fromStripe, int toStripe){
+        if(fromStripe >= toStripe){
+            return;
+        }
+        String[] stripeKeys = new String[toStripe - fromStripe];
+        for (int i = fromStripe; i < toStripe; i++) {
+            stripeKeys[i - fromStripe] = availableStripes.getStripeKey(resourceId, i);
+        }
+        redissonClient.getKeys().delete(stripeKeys);
+    }
+
+    /**
+     * 按是否条带化拆分 同时校验参数
+     * @param updateResourceParamList
+     * @param plainList 未条带化的资源
+     * @param stripedList 条带化的资源
+     */
+    private static void splitByStriping(List<UpdateResourceParam> updateResourceParamList, List<UpdateResourceParam> plainList, List<UpdateResourceParam> stripedList){
+        for(UpdateResourceParam updateResourceParam : updateResourceParamList){
+            if(Objects.isNull(updateResourceParam)){
+                throw new ResourceRunException("请求可用资源updateResourceParam不能为空");
+            }
+            if(updateResourceParam.getNum() < 0){
+                throw new ResourceRunException("请求可用资源数量不能小于0");
+            }
+            if(availableStripes.getStripeCount(updateResourceParam.getResourceId()) > 1){
+                stripedList.add(updateResourceParam);
+            }else {
+                plainList.add(updateResourceParam);
+            }
+        }
+    }
+
+    /**
+     * 从条带中获取（减掉）可用资源信号量
+     * 随机选择起始条带，不足时依次从相邻的条带中获取剩余的数量；每个条带的获取都记录在上下文中，失败时由调用方释放
+     * 返回不存在的resourceId
+     * 返回null时表示获取成功
+     * @param context
+     * @param resourceId
+     * @param requireNum
+     * @param stripeCount
+     * @return
+     * @throws ResourceWaitException
+     */
+    private static String doTryAcquireAvailableStriped(UpdateContext context, String resourceId, int requireNum, int stripeCount) throws ResourceWaitException {
+        int start = SemaphoreStripes.nextStripe(stripeCount);
+        int remain = requireNum;
+        for (int i = 0; i < stripeCount && remain > 0; i++) {
+            MySemaphore stripeSemaphore = getResourceAvailableStripeSemaphore(resourceId, (start + i) % stripeCount);
+            context.addRedisRoundTrips(1);
+            List<Long> result = stripeSemaphore.tryAcquireUpTo(remain);
+            long taken = result.get(0);
+            if(taken < 0){
+                return resourceId;
+            }
+            if(taken > 0){
+                recordHoldAvailableSemaphore(context, stripeSemaphore, (int) taken, result.get(1));
+                remain -= taken;
+            }
+        }
+        if(remain > 0){
+            adjustAvailableResource(context, resourceId);
+            throw new ResourceWaitException("获取:" + resourceId + "可用资源信号量失败,资源不足,requireNum:" + requireNum);
+        }
+        invalidateNearCache(availableNearCache, resourceId);
+        return null;
+    }
+
+    /**
+     * 异步逐个获取条带化的可用资源信号量
+     * 后面的资源失败时归还前面已获取的
+     * @param stripedList
+     * @param index
+     * @param holdList 成功时追加持有的各条带信号量
+     * @return
+     */
+    private static CompletionStage<Void> tryAcquireStripedListAsync(List<UpdateResourceParam> stripedList, int index, List<SemaphoreAndPermit> holdList){
+        if(index == stripedList.size()){
+            return CompletableFuture.completedFuture(null);
+        }
+        UpdateResourceParam updateResourceParam = stripedList.get(index);
+        String resourceId = updateResourceParam.getResourceId();
+        int stripeCount = availableStripes.getStripeCount(resourceId);
+        List<SemaphoreAndPermit> stripeHoldList = new ArrayList<>();
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        tryAcquireStripeAsync(resourceId, stripeCount, SemaphoreStripes.nextStripe(stripeCount), 0, updateResourceParam.getNum(), stripeHoldList)
+                .thenCompose(v -> tryAcquireStripedListAsync(stripedList, index + 1, holdList)
+                        .whenComplete((next, e) -> {
+                            if(Objects.nonNull(e)){
+                                //后面的资源失败 归还本资源
+                                releaseHoldSemaphoreAsync(stripeHoldList);
+                            }
+                        }))
+                .whenComplete((v, e) -> {
+                    if(Objects.isNull(e)){
+                        holdList.addAll(stripeHoldList);
+                        result.complete(null);
+                    }else {
+                        result.completeExceptionally(e);
+                    }
+                });
+        return result;
+    }
+
+    /**
+     * 异步从第step个相邻条带开始获取剩余的数量
+     * 失败时归还本资源已从各条带获取的数量
+     * @param resourceId
+     * @param stripeCount
+     * @param start 起始条带
+     * @param step
+     * @param remain 剩余需要获取的数量
+     * @param stripeHoldList 已从各条带获取的数量及代数
+     * @return
+     */
+    private static CompletionStage<Void> tryAcquireStripeAsync(String resourceId, int stripeCount, int start, int step, int remain, List<SemaphoreAndPermit> stripeHoldList){
+        if(remain <= 0){
+            invalidateNearCache(availableNearCache, resourceId);
+            return CompletableFuture.completedFuture(null);
+        }
+        if(step == stripeCount){
+            adjustResourceAsync(RESOURCE_AVAILABLE_NOT_CONSISTENCE_SET, resourceId);
+            return releaseHoldSemaphoreAsync(stripeHoldList).thenApply(v -> {
+                throw new CompletionException(new ResourceWaitException("获取:" + resourceId + "可用资源信号量失败,资源不足"));
+            });
+        }
+        MySemaphore stripeSemaphore = getResourceAvailableStripeSemaphore(resourceId, (start + step) % stripeCount);
+        return stripeSemaphore.tryAcquireUpToAsync(remain).thenCompose(result -> {
+            long taken = result.get(0);
+            if(taken < 0){
+                return releaseHoldSemaphoreAsync(stripeHoldList).thenApply(v -> {
+                    throw new CompletionException(new ResourceWaitException("获取:" + resourceId + "可用资源信号量失败，等待初始化"));
+                });
+            }
+            if(taken > 0){
+                stripeHoldList.add(SemaphoreAndPermit.builder().rSemaphore(stripeSemaphore).permit((int) taken).epoch(result.get(1)).build());
+            }
+            return tryAcquireStripeAsync(resourceId, stripeCount, start, step + 1, remain - (int) taken, stripeHoldList);
+        });
     }
 
     /**
@@ -623,40 +2184,118 @@ public class CacheAccessor {
      * @return
      */
     private static MySemaphore getResourcePreLockSemaphore(String resourceId){
-        Redisson redisson = (Redisson) redissonClient;
-        ConnectionManager connectionManager = redisson.getConnectionManager();
-        MySemaphore rSemaphore = new MySemaphore(connectionManager.getCommandExecutor(), RESOURCE_PRE_LOCK_KEY_PREFIX + resourceId);
-        return rSemaphore;
+        return preLockedHandles.get(redissonClient, resourceId);
     }
 
     /**
-     * 单个尝试获取（减掉）可用资源信号量
-     * 返回不存在的Semaphore列表
+     * 批量尝试获取（减掉）可用资源信号量
+     * 未条带化的资源通过lua脚本一次往返完成存在性、一致性、数量校验及扣减，要么全部扣减，要么全部不扣减
+     * 条带化的资源之后逐个获取，失败时由调用方释放上下文中记录的持有
+     * 返回不存在或者不一致（需要初始化）的resourceId列表
      * 返回null时表示Semaphore全部存在，并且信号量全部获取成功
      * @param updateResourceParamList
      * @return
      * @throws ResourceWaitException
      */
-    private static List<String> doTryAcquireAvailable(List<UpdateResourceParam> updateResourceParamList) throws ResourceWaitException {
+    private static List<String> doTryAcquireAvailable(UpdateContext context, List<UpdateResourceParam> updateResourceParamList) throws ResourceWaitException {
         if(Objects.isNull(updateResourceParamList)){
             throw new ResourceRunException("请求可用资源resourcePermitList不能为空");
         }
+        List<UpdateResourceParam> plainList = new ArrayList<>(updateResourceParamList.size());
+        List<UpdateResourceParam> stripedList = new ArrayList<>();
+        splitByStriping(updateResourceParamList, plainList, stripedList);
+        if(plainList.size() > 0){
+            List<String> needInitResourceIdList = doTryAcquireAvailableBatch(context, plainList);
+            if(Objects.nonNull(needInitResourceIdList)){
+                return needInitResourceIdList;
+            }
+        }
         List<String> notExistResourceIdList = new ArrayList<>();
-        try {
-            for(UpdateResourceParam updateResourceParam : updateResourceParamList){
-                String notExistResourceId = doTryAcquireAvailable(updateResourceParam);
-                if(Objects.nonNull(notExistResourceId)){
-                    notExistResourceIdList.add(notExistResourceId);
-                }
+        for(UpdateResourceParam updateResourceParam : stripedList){
+            String resourceId = updateResourceParam.getResourceId();
+            String notExistResourceId = doTryAcquireAvailableStriped(context, resourceId, updateResourceParam.getNum(), availableStripes.getStripeCount(resourceId));
+            if(Objects.nonNull(notExistResourceId)){
+                notExistResourceIdList.add(notExistResourceId);
             }
-            if(notExistResourceIdList.size() > 0){
-                return notExistResourceIdList;
-            }else {
-                return null;
+        }
+        return notExistResourceIdList.size() > 0 ? notExistResourceIdList : null;
+    }
+
+    /**
+     * 通过lua脚本批量获取（减掉）未条带化的可用资源信号量
+     * @see CacheAccessor#doTryAcquireAvailable(UpdateContext, List)
+     * @param updateResourceParamList
+     * @return
+     * @throws ResourceWaitException
+     */
+    private static List<String> doTryAcquireAvailableBatch(UpdateContext context, List<UpdateResourceParam> updateResourceParamList) throws ResourceWaitException {
+        return doTryAcquireBatch(context, updateResourceParamList, CacheAccessor::getResourceAvailableSemaphore, RESOURCE_AVAILABLE_NOT_CONSISTENCE_SET,
+                context.getHoldAvailableSemaphore(), availableNearCache, CacheAccessor::adjustAvailableResource, "可用");
+    }
+
+    /**
+     * 通过lua脚本一次往返批量获取（减掉）某类信号量，要么全部扣减，要么全部不扣减
+     * 成功时在上下文中记录持有的信号量以及扣减时的代数
+     * 返回不存在或者不一致（需要初始化）的resourceId列表，返回null时表示全部获取成功
+     * @param context
+     * @param updateResourceParamList
+     * @param semaphoreGetter 获取资源的信号量对象
+     * @param notConsistenceSet 不一致标记set
+     * @param holdSemaphoreList 上下文中记录持有信号量的列表
+     * @param nearCache 扣减成功后失效的近端缓存
+     * @param adjuster 资源不足时的自动调节
+     * @param resourceType 资源类型 用于异常信息
+     * @return
+     * @throws ResourceWaitException
+     */
+    private static List<String> doTryAcquireBatch(UpdateContext context, List<UpdateResourceParam> updateResourceParamList,
+                                                  Function<String, MySemaphore> semaphoreGetter, String notConsistenceSet,
+                                                  List<SemaphoreAndPermit> holdSemaphoreList, NearCache nearCache,
+                                                  BiConsumer<UpdateContext, String> adjuster, String resourceType) throws ResourceWaitException {
+        int size = updateResourceParamList.size();
+        List<MySemaphore> semaphoreList = new ArrayList<>(size);
+        List<String> semaphoreNameList = new ArrayList<>(size);
+        List<String> notConsistenceKeyList = new ArrayList<>(size);
+        List<String> resourceIdList = new ArrayList<>(size);
+        List<Integer> permitList = new ArrayList<>(size);
+        for(UpdateResourceParam updateResourceParam : updateResourceParamList){
+            String resourceId = updateResourceParam.getResourceId();
+            MySemaphore rSemaphore = semaphoreGetter.apply(resourceId);
+            semaphoreList.add(rSemaphore);
+            semaphoreNameList.add(rSemaphore.getName());
+            notConsistenceKeyList.add(KeyLayout.slotKey(notConsistenceSet, resourceId));
+            resourceIdList.add(resourceId);
+            permitList.add(updateResourceParam.getNum());
+        }
+        context.addRedisRoundTrips(1);
+        List<Long> statusList = MySemaphore.tryAcquireBatch(redissonClient, semaphoreNameList, backgroundReconcile ? null : notConsistenceKeyList, resourceIdList, permitList);
+
+        List<String> needInitResourceIdList = new ArrayList<>();
+        List<String> notEnoughResourceIdList = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            long status = statusList.get(i);
+            String resourceId = updateResourceParamList.get(i).getResourceId();
+            if(status == MySemaphore.BATCH_ACQUIRE_NOT_EXIST || status == MySemaphore.BATCH_ACQUIRE_NOT_CONSISTENCE){
+                needInitResourceIdList.add(resourceId);
+            }else if(status == MySemaphore.BATCH_ACQUIRE_NOT_ENOUGH){
+                notEnoughResourceIdList.add(resourceId);
             }
-        }catch (Exception e){
-            throw e;
         }
+        if(needInitResourceIdList.size() > 0){
+            return needInitResourceIdList;
+        }
+        if(notEnoughResourceIdList.size() > 0){
+            for(String resourceId : notEnoughResourceIdList){
+                adjuster.accept(context, resourceId);
+            }
+            throw new ResourceWaitException("获取:" + String.join(",", notEnoughResourceIdList) + resourceType + "资源信号量失败,资源不足");
+        }
+        //全部获取成功 记录持有的信号量
+        for (int i = 0; i < size; i++) {
+            holdSemaphoreList.add(SemaphoreAndPermit.builder().rSemaphore(semaphoreList.get(i)).permit(permitList.get(i)).epoch(statusList.get(size + i)).build());
+            invalidateNearCache(nearCache, updateResourceParamList.get(i).getResourceId());
+        }
+        return null;
     }
 
     /**
@@ -667,7 +2306,7 @@ public class CacheAccessor {
      * @return
      * @throws ResourceWaitException
      */
-    private static String doTryAcquireAvailable(UpdateResourceParam updateResourceParam) throws ResourceWaitException {
+    private static String doTryAcquireAvailable(UpdateContext context, UpdateResourceParam updateResourceParam) throws ResourceWaitException {
         if(Objects.isNull(updateResourceParam)){
             throw new ResourceRunException("请求可用资源updateResourceParam不能为空");
         }
@@ -676,40 +2315,98 @@ public class CacheAccessor {
         if(requireNum < 0){
             throw new ResourceRunException("请求可用资源数量不能小于0");
         }
-        MySemaphore rSemaphore = getResourceAvailableSemaphore(resourceId);
-        boolean semaphoreKeyExists = rSemaphore.isExists();
-        if(!semaphoreKeyExists){
-            return resourceId;
-        }else {
-            //存在，校验数量是否为0
-            int availablePermit = rSemaphore.availablePermits();
-            if(availablePermit == 0){
-                adjustAvailableResource(resourceId);
-                throw new ResourceWaitException("获取:" + resourceId + "可用资源信号量为0");
-            }
+        //条带化的资源不使用本地租借
+        int stripeCount = availableStripes.getStripeCount(resourceId);
+        if(stripeCount > 1){
+            return doTryAcquireAvailableStriped(context, resourceId, requireNum, stripeCount);
+        }
+        PermitLeaser leaser = permitLeaser;
+        if(Objects.nonNull(leaser)){
+            return doTryAcquireAvailableFromLease(context, leaser, getResourceAvailableSemaphore(resourceId), requireNum);
         }
+        //与批量获取相同 一次往返完成存在性、一致性、数量校验及扣减，资源不足时立即失败
+        List<String> needInitResourceIdList = doTryAcquireAvailableBatch(context, Collections.singletonList(updateResourceParam));
+        return Objects.isNull(needInitResourceIdList) ? null : needInitResourceIdList.get(0);
+    }
+
+    /**
+     * 逐个获取时获取条带化的可用资源信号量
+     * 失败时归还本请求已从部分条带获取的数量，上下文中只保留成功的请求
+     * @return 状态码 见MySemaphore.BATCH_ACQUIRE_*
+     */
+    private static long tryAcquireAvailableStripedEach(UpdateContext context, String resourceId, int requireNum, int stripeCount){
+        List<SemaphoreAndPermit> holdList = context.getHoldAvailableSemaphore();
+        int mark = holdList.size();
         try {
-            boolean acquired = rSemaphore.tryAcquire(requireNum, Const.semaphoreWaitTimeMilliSecond, TimeUnit.MILLISECONDS);
-            if(acquired){
-                //记录持有的信号量
-                recordHoldAvailableSemaphore(rSemaphore,requireNum);
-                return null;
+            if(Objects.isNull(doTryAcquireAvailableStriped(context, resourceId, requireNum, stripeCount))){
+                return MySemaphore.BATCH_ACQUIRE_SUCCESS;
             }
-            adjustAvailableResource(resourceId);
-            throw new ResourceWaitException("获取:" + resourceId + "可用资源信号量超时,资源不足,requireNum:" + requireNum + "remainNum:" + rSemaphore.availablePermits());
-        } catch (InterruptedException e) {
-            throw new ResourceRunException("获取:" + resourceId + "可用资源信号量中断");
+            doLeaseAcquiredSemaphore(context, holdList.subList(mark, holdList.size()));
+            return MySemaphore.BATCH_ACQUIRE_NOT_EXIST;
+        }catch (ResourceWaitException e){
+            doLeaseAcquiredSemaphore(context, holdList.subList(mark, holdList.size()));
+            return MySemaphore.BATCH_ACQUIRE_NOT_ENOUGH;
+        }
+    }
+
+    /**
+     * 从本地租借中获取（减掉）可用资源信号量
+     * 返回不存在的resourceId
+     * 返回null时表示获取成功
+     * @param leaser
+     * @param rSemaphore
+     * @param requireNum
+     * @return
+     * @throws ResourceWaitException
+     */
+    private static String doTryAcquireAvailableFromLease(UpdateContext context, PermitLeaser leaser, MySemaphore rSemaphore, int requireNum) throws ResourceWaitException {
+        String resourceId = rSemaphore.getResourceId();
+        long epoch = leaser.tryAcquire(resourceId, requireNum);
+        if(epoch == PermitLeaser.NOT_EXIST){
+            return resourceId;
+        }
+        if(epoch == PermitLeaser.NOT_ENOUGH){
+            adjustAvailableResource(context, resourceId);
+            throw new ResourceWaitException("获取:" + resourceId + "可用资源信号量失败,资源不足,requireNum:" + requireNum);
+        }
+        //回滚时直接归还给redis信号量（租借的代数未变化时）
+        recordHoldAvailableSemaphore(context, rSemaphore, requireNum, epoch);
+        invalidateNearCache(availableNearCache, resourceId);
+        return null;
+    }
+
+    /**
+     * 丢弃本地租借
+     * @param resourceId
+     */
+    private static void discardLease(String resourceId){
+        PermitLeaser leaser = permitLeaser;
+        if(Objects.nonNull(leaser)){
+            leaser.discard(resourceId);
         }
     }
 
     /**
      * 自动调节可用资源数据库与缓存一致
      * @param resourceId
+     * @return 是否标记了不一致
      */
-    private static void adjustAvailableResource(String resourceId) {
-        if(shouldAdjust()){
+    private static boolean adjustAvailableResource(String resourceId) {
+        if(shouldAdjust(resourceId)){
             log.info("可用资源:" + resourceId + "自动调节概率匹配，将自动调节......");
             setAvailableResourceNotConsistence(resourceId);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 自动调节可用资源数据库与缓存一致 标记次数记录在上下文中
+     * @param resourceId
+     */
+    private static void adjustAvailableResource(UpdateContext context, String resourceId) {
+        if(adjustAvailableResource(resourceId)){
+            context.addNotConsistenceRaised(1);
         }
     }
 
@@ -720,13 +2417,13 @@ public class CacheAccessor {
      * @param updateResourceParamList
      * @return
      */
-    private static List<String> doTryLeasePreLocked(List<UpdateResourceParam> updateResourceParamList) {
+    private static List<String> doTryLeasePreLocked(UpdateContext context, List<UpdateResourceParam> updateResourceParamList) {
         if(Objects.isNull(updateResourceParamList)){
             throw new ResourceRunException("请求增加预占资源resourcePermitList不能为空");
         }
         List<String> notExistResourceIdList = new ArrayList<>();
         for(UpdateResourceParam updateResourceParam : updateResourceParamList){
-            String resourceId = doTryLeasePreLocked(updateResourceParam);
+            String resourceId = doTryLeasePreLocked(context, updateResourceParam);
             if(Objects.nonNull(resourceId)){
                 notExistResourceIdList.add(resourceId);
             }
@@ -745,7 +2442,7 @@ public class CacheAccessor {
      * @param updateResourceParam
      * @return
      */
-    private static String doTryLeasePreLocked(UpdateResourceParam updateResourceParam) {
+    private static String doTryLeasePreLocked(UpdateContext context, UpdateResourceParam updateResourceParam) {
         if(Objects.isNull(updateResourceParam)){
             throw new ResourceRunException("请求增加预占资源updateResourceParam不能为空");
         }
@@ -756,219 +2453,343 @@ public class CacheAccessor {
         }
         //因为是增加 不需要验证数量
         MySemaphore rSemaphore = getResourcePreLockSemaphore(resourceId);
-        if(!rSemaphore.isExists()){
+        context.addRedisRoundTrips(1);
+        long epoch = rSemaphore.releaseWithEpoch(requireNum);
+        if(epoch < 0){
             return resourceId;
         }
-        rSemaphore.release(requireNum);
         //增加成功 上下文中记录此次的增加
-        recordLeasedPreLockSemaphore(rSemaphore,requireNum);
+        recordLeasedPreLockSemaphore(context, rSemaphore, requireNum, epoch);
         return null;
     }
 
     /**
-     * 单个尝试获取（减掉）可用资源信号量
+     * 单个尝试获取（减掉）预占资源信号量
      * 返回resourceId表示该id没有初始化
      * 返回null表示获取信号量成功
      * @param updateResourceParam
      * @return
      * @throws ResourceWaitException
      */
-    private static String doTryAcquirePreLocked(UpdateResourceParam updateResourceParam) throws ResourceWaitException {
+    private static String doTryAcquirePreLocked(UpdateContext context, UpdateResourceParam updateResourceParam) throws ResourceWaitException {
         if(Objects.isNull(updateResourceParam)){
             throw new ResourceRunException("请求预占资源updateResourceParam不能为空");
         }
-        String resourceId = updateResourceParam.getResourceId();
-        int requireNum = updateResourceParam.getNum();
-        if(requireNum < 0){
-            throw new ResourceRunException("请求预占资源数量不能小于0");
+        List<String> notExistResourceIdList = doTryAcquirePreLocked(context, Collections.singletonList(updateResourceParam));
+        return Objects.isNull(notExistResourceIdList) ? null : notExistResourceIdList.get(0);
+    }
+
+    /**
+     * 是否可以一个脚本完成转移
+     * @param updateResourceParamList
+     * @return
+     */
+    private static boolean canTransferAtomically(List<UpdateResourceParam> updateResourceParamList){
+        if(!atomicTransfer || Objects.nonNull(permitLeaser)){
+            return false;
         }
-        MySemaphore rSemaphore = getResourcePreLockSemaphore(resourceId);
-        boolean exists = rSemaphore.isExists();
-        if(!exists){
-            return resourceId;
+        for(UpdateResourceParam updateResourceParam : updateResourceParamList){
+            String resourceId = updateResourceParam.getResourceId();
+            if(availableStripes.getStripeCount(resourceId) > 1){
+                return false;
+            }
+            if(KeyLayout.slot(redissonClient, KeyLayout.key(RESOURCE_AVAILABLE_KEY_PREFIX, resourceId))
+                    != KeyLayout.slot(redissonClient, KeyLayout.key(RESOURCE_PRE_LOCK_KEY_PREFIX, resourceId))){
+                return false;
+            }
         }
-        try {
-            boolean acquired = rSemaphore.tryAcquire(requireNum, Const.semaphoreWaitTimeMilliSecond, TimeUnit.MILLISECONDS);
-            if(acquired){
-                //记录持有的信号量
-                recordHoldPreLockSemaphore(rSemaphore,requireNum);
-                return null;
+        return true;
+    }
+
+    /**
+     * 通过lua脚本一次往返在可用与预占之间转移，要么全部转移，要么全部不转移
+     * 源或者目标信号量不存在、不一致时初始化之后抛出ResourceWaitException等待重试
+     * @param context
+     * @param updateResourceParamList
+     * @param dbAccessor
+     * @param availableToPreLocked true表示可用转移到预占 false表示预占转移到可用
+     */
+    private static void doTransfer(UpdateContext context, List<UpdateResourceParam> updateResourceParamList, DbAccessor dbAccessor, boolean availableToPreLocked)
+            throws ResourceWaitException, LockWaitException, InterruptedException {
+        int size = updateResourceParamList.size();
+        List<String> availableNameList = new ArrayList<>(size);
+        List<String> preLockedNameList = new ArrayList<>(size);
+        List<String> availableNotConsistenceKeyList = new ArrayList<>(size);
+        List<String> preLockedNotConsistenceKeyList = new ArrayList<>(size);
+        List<String> resourceIdList = new ArrayList<>(size);
+        List<Integer> permitList = new ArrayList<>(size);
+        for(UpdateResourceParam updateResourceParam : updateResourceParamList){
+            String resourceId = updateResourceParam.getResourceId();
+            if(updateResourceParam.getNum() < 0){
+                throw new ResourceRunException("请求转移资源数量不能小于0");
             }
-            adjustPreLockedResource(resourceId);
-            throw new ResourceWaitException("获取:" + resourceId + "预占资源数量信号量超时,资源不足,requireNum:" + requireNum + "remainNum:" + rSemaphore.availablePermits());
-        } catch (InterruptedException e) {
-            throw new ResourceRunException("获取:" + resourceId + "预占资源信号量中断");
+            availableNameList.add(getResourceAvailableSemaphore(resourceId).getName());
+            preLockedNameList.add(getResourcePreLockSemaphore(resourceId).getName());
+            availableNotConsistenceKeyList.add(KeyLayout.slotKey(RESOURCE_AVAILABLE_NOT_CONSISTENCE_SET, resourceId));
+            preLockedNotConsistenceKeyList.add(KeyLayout.slotKey(RESOURCE_PRE_LOCK_NOT_CONSISTENCE_SET, resourceId));
+            resourceIdList.add(resourceId);
+            permitList.add(updateResourceParam.getNum());
+        }
+        List<String> sourceNameList = availableToPreLocked ? availableNameList : preLockedNameList;
+        List<String> targetNameList = availableToPreLocked ? preLockedNameList : availableNameList;
+        List<String> sourceNotConsistenceKeyList = availableToPreLocked ? availableNotConsistenceKeyList : preLockedNotConsistenceKeyList;
+        List<String> targetNotConsistenceKeyList = availableToPreLocked ? preLockedNotConsistenceKeyList : availableNotConsistenceKeyList;
+        context.addRedisRoundTrips(1);
+        List<Long> statusList = MySemaphore.tryTransferBatch(redissonClient, sourceNameList, targetNameList,
+                backgroundReconcile ? null : sourceNotConsistenceKeyList, backgroundReconcile ? null : targetNotConsistenceKeyList,
+                resourceIdList, permitList);
+
+        List<String> sourceInitList = new ArrayList<>();
+        List<String> targetInitList = new ArrayList<>();
+        List<String> notEnoughResourceIdList = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            long status = statusList.get(i);
+            if(status == MySemaphore.BATCH_ACQUIRE_NOT_EXIST || status == MySemaphore.BATCH_ACQUIRE_NOT_CONSISTENCE){
+                sourceInitList.add(resourceIdList.get(i));
+            }else if(status == MySemaphore.TRANSFER_TARGET_NOT_EXIST || status == MySemaphore.TRANSFER_TARGET_NOT_CONSISTENCE){
+                targetInitList.add(resourceIdList.get(i));
+            }else if(status == MySemaphore.BATCH_ACQUIRE_NOT_ENOUGH){
+                notEnoughResourceIdList.add(resourceIdList.get(i));
+            }
+        }
+        if(sourceInitList.size() > 0 || targetInitList.size() > 0){
+            List<String> availableInitList = availableToPreLocked ? sourceInitList : targetInitList;
+            List<String> preLockedInitList = availableToPreLocked ? targetInitList : sourceInitList;
+            if(availableInitList.size() > 0){
+                initAvailableSemaphorePermit(context, availableInitList, dbAccessor);
+            }
+            if(preLockedInitList.size() > 0){
+                initPreLockedSemaphorePermit(context, preLockedInitList, dbAccessor);
+            }
+            throw new ResourceWaitException("转移资源信号量失败，等待初始化");
+        }
+        if(notEnoughResourceIdList.size() > 0){
+            for(String resourceId : notEnoughResourceIdList){
+                if(availableToPreLocked){
+                    adjustAvailableResource(context, resourceId);
+                }else {
+                    adjustPreLockedResource(context, resourceId);
+                }
+            }
+            throw new ResourceWaitException("转移:" + String.join(",", notEnoughResourceIdList) + (availableToPreLocked ? "可用" : "预占") + "资源信号量失败,资源不足");
+        }
+        //全部转移成功 源记录为持有（减掉） 目标记录为增加
+        for (int i = 0; i < size; i++) {
+            String resourceId = resourceIdList.get(i);
+            MySemaphore source = availableToPreLocked ? getResourceAvailableSemaphore(resourceId) : getResourcePreLockSemaphore(resourceId);
+            MySemaphore target = availableToPreLocked ? getResourcePreLockSemaphore(resourceId) : getResourceAvailableSemaphore(resourceId);
+            int permit = permitList.get(i);
+            long sourceEpoch = statusList.get(size + i);
+            long targetEpoch = statusList.get(2 * size + i);
+            if(availableToPreLocked){
+                recordHoldAvailableSemaphore(context, source, permit, sourceEpoch);
+                recordLeasedPreLockSemaphore(context, target, permit, targetEpoch);
+            }else {
+                recordHoldPreLockSemaphore(context, source, permit, sourceEpoch);
+                recordLeasedAvailableSemaphore(context, target, permit, targetEpoch);
+            }
+            invalidateNearCache(availableNearCache, resourceIdList.get(i));
+            invalidateNearCache(preLockedNearCache, resourceIdList.get(i));
         }
     }
 
     /**
      * 自动调节预占资源数据库与缓存一致
      * @param resourceId
+     * @return 是否标记了不一致
      */
-    private static void adjustPreLockedResource(String resourceId) {
-        if(shouldAdjust()){
+    private static boolean adjustPreLockedResource(String resourceId) {
+        if(shouldAdjust(resourceId)){
             log.info("预占资源:" + resourceId + "自动调节概率匹配，将自动调节......");
             setPreLockedResourceNotConsistence(resourceId);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 自动调节预占资源数据库与缓存一致 标记次数记录在上下文中
+     * @param resourceId
+     */
+    private static void adjustPreLockedResource(UpdateContext context, String resourceId) {
+        if(adjustPreLockedResource(resourceId)){
+            context.addNotConsistenceRaised(1);
         }
     }
 
     /**
      * 批量尝试获取（减掉）预占资源信号量
-     * 返回resourceId表示该id没有初始化
+     * 一次往返原子地获取全部信号量，资源不足时立即失败
+     * 返回resourceId表示该id没有初始化或者不一致
      * 返回null表示获取信号量成功
      * @param resourcePermitList
      * @return
      * @throws ResourceWaitException
      */
-    private static List<String> doTryAcquirePreLocked(List<UpdateResourceParam> resourcePermitList) throws ResourceWaitException {
+    private static List<String> doTryAcquirePreLocked(UpdateContext context, List<UpdateResourceParam> resourcePermitList) throws ResourceWaitException {
         if(Objects.isNull(resourcePermitList)){
             throw new ResourceRunException("请求预占资源resourcePermitList不能为空");
         }
-        List<String> notExistResourceIdList = new ArrayList<>();
-        try {
-            for(UpdateResourceParam updateResourceParam : resourcePermitList){
-                String notExistResourceId = doTryAcquirePreLocked(updateResourceParam);
-                if(Objects.nonNull(notExistResourceId)){
-                    notExistResourceIdList.add(notExistResourceId);
-                }
+        for(UpdateResourceParam updateResourceParam : resourcePermitList){
+            if(Objects.isNull(updateResourceParam)){
+                throw new ResourceRunException("请求预占资源updateResourceParam不能为空");
             }
-            if(notExistResourceIdList.size() > 0){
-                return notExistResourceIdList;
-            }else {
-                return null;
+            if(updateResourceParam.getNum() < 0){
+                throw new ResourceRunException("请求预占资源数量不能小于0");
             }
-        }catch (Exception e){
-            throw e;
         }
+        return doTryAcquireBatch(context, resourcePermitList, CacheAccessor::getResourcePreLockSemaphore, RESOURCE_PRE_LOCK_NOT_CONSISTENCE_SET,
+                context.getHoldPreLockSemaphore(), preLockedNearCache, CacheAccessor::adjustPreLockedResource, "预占");
     }
 
     /**
-     * 初始化某个信号量为指定的数值
-     * @param rSemaphore
-     * @param count
+     * 等待信号量的提交栅栏清空 返回各信号量当前的登记序号
+     * 需要在读取数据库之前调用，最多等待写锁的等待时间
+     * @param resourceId
+     * @param semaphoreList
+     * @return
+     * @throws LockWaitException 等待超时
+     * @throws InterruptedException
+     */
+    private static long[] awaitCommitFence(String resourceId, List<MySemaphore> semaphoreList) throws LockWaitException, InterruptedException {
+        long deadline = System.currentTimeMillis() + getWriteLockWaitTimeMilliSecond(resourceId);
+        long[] fenceSeqs = new long[semaphoreList.size()];
+        for (int i = 0; i < fenceSeqs.length; i++) {
+            while (true){
+                long now = System.currentTimeMillis();
+                long fenceSeq = semaphoreList.get(i).readCommitFence(now);
+                if(fenceSeq >= 0){
+                    fenceSeqs[i] = fenceSeq;
+                    break;
+                }
+                if(now >= deadline){
+                    throw new LockWaitException("资源:" + resourceId + "有未完成的提交，等待提交栅栏超时");
+                }
+                Thread.sleep(COMMIT_FENCE_POLL_MILLI_SECOND);
+            }
+        }
+        return fenceSeqs;
+    }
+
+    /**
+     * 按读取数据库之前的提交栅栏设置信号量 数量按SemaphoreStripes.split拆分到各信号量
+     * 期间有提交登记（栅栏已变化）时重新等待栅栏、读取数据库之后再设置
+     * @param resourceId
+     * @param semaphoreList
+     * @param fenceSeqs awaitCommitFence返回的登记序号
+     * @param count 按数据库得到的数量
+     * @param countLoader 重新读取数据库得到数量
      */
-    private static void trySetPermitsLoop(MySemaphore rSemaphore,int count){
+    private static void trySetPermitsFenced(String resourceId, List<MySemaphore> semaphoreList, long[] fenceSeqs, int count,
+                                            ToIntFunction<String> countLoader) throws LockWaitException, InterruptedException {
+        int n = semaphoreList.size();
         for(int i=0 ; i<LOOP_LIMIT ; i++){
-            boolean setResult = rSemaphore.trySetPermitsForce(count);
-            if(setResult){
+            boolean set = true;
+            for (int j = 0; j < n && set; j++) {
+                set = semaphoreList.get(j).trySetPermitsForce(SemaphoreStripes.split(count, n, j), fenceSeqs[j], System.currentTimeMillis()) == 1;
+            }
+            if(set){
                 return;
             }
+            fenceSeqs = awaitCommitFence(resourceId, semaphoreList);
+            count = countLoader.applyAsInt(resourceId);
         }
-        throw new ResourceRunException("更新资源:" + rSemaphore.getName() + "缓存信号量失败，请稍后重试");
+        throw new ResourceRunException("更新资源:" + resourceId + "缓存信号量失败，请稍后重试");
     }
 
     /**
      * 释放（增加）掉上下文中记录的持有（减掉）的某类信号量
-     * @param threadLocal
+     * 只在代数未变化时归还，信号量已被重新初始化时数据库中的数量已经是回滚之后的
+     * @param context
+     * @param semaphoreAndPermitList
      */
-    private static void doLeaseAcquiredSemaphore(ThreadLocal<List<SemaphoreAndPermit>> threadLocal) {
-        List<SemaphoreAndPermit> semaphoreAndPermitList = threadLocal.get();
-        if(Objects.isNull(semaphoreAndPermitList)){
-            return;
-        }
+    private static void doLeaseAcquiredSemaphore(UpdateContext context, List<SemaphoreAndPermit> semaphoreAndPermitList) {
         semaphoreAndPermitList.forEach(semaphoreAndPermit -> {
-            MySemaphore rSemaphore = semaphoreAndPermit.getRSemaphore();
-            if(!rSemaphore.isExists()){
-                return;
-            }
-            rSemaphore.release(semaphoreAndPermit.getPermit());
+            context.addRedisRoundTrips(1);
+            semaphoreAndPermit.getRSemaphore().addIfEpoch(semaphoreAndPermit.getPermit(), semaphoreAndPermit.getEpoch(), semaphoreAndPermit.getFence());
         });
-        threadLocal.remove();
+        semaphoreAndPermitList.clear();
     }
 
     /**
      * 上下文中记录持有（减掉）的可用资源信号量
      * @param rSemaphore
      * @param permit
+     * @param epoch 扣减时的代数
      */
-    private static void recordHoldAvailableSemaphore(MySemaphore rSemaphore, int permit){
-        List<SemaphoreAndPermit> semaphoreAndPermitList = HOLD_AVAILABLE_SEMAPHORE.get();
-        if(Objects.isNull(semaphoreAndPermitList)){
-            semaphoreAndPermitList = new ArrayList<>();
-            HOLD_AVAILABLE_SEMAPHORE.set(semaphoreAndPermitList);
-        }
-        semaphoreAndPermitList.add(SemaphoreAndPermit.builder().rSemaphore(rSemaphore).permit(permit).build());
+    private static void recordHoldAvailableSemaphore(UpdateContext context, MySemaphore rSemaphore, int permit, long epoch){
+        context.getHoldAvailableSemaphore().add(SemaphoreAndPermit.builder().rSemaphore(rSemaphore).permit(permit).epoch(epoch).build());
     }
 
     /**
      * 上下文中记录持有（减掉）的预占资源信号量
      * @param rSemaphore
      * @param permit
+     * @param epoch 扣减时的代数
      */
-    private static void recordHoldPreLockSemaphore(MySemaphore rSemaphore, int permit){
-        List<SemaphoreAndPermit> semaphoreAndPermitList = HOLD_PRE_LOCK_SEMAPHORE.get();
-        if(Objects.isNull(semaphoreAndPermitList)){
-            semaphoreAndPermitList = new ArrayList<>();
-            HOLD_PRE_LOCK_SEMAPHORE.set(semaphoreAndPermitList);
-        }
-        semaphoreAndPermitList.add(SemaphoreAndPermit.builder().rSemaphore(rSemaphore).permit(permit).build());
+    private static void recordHoldPreLockSemaphore(UpdateContext context, MySemaphore rSemaphore, int permit, long epoch){
+        context.getHoldPreLockSemaphore().add(SemaphoreAndPermit.builder().rSemaphore(rSemaphore).permit(permit).epoch(epoch).build());
     }
 
     /**
      * 上下文中记录释放（增加）的预占资源信号量
      * @param rSemaphore
      * @param permit
+     * @param epoch 增加时的代数
      */
-    private static void recordLeasedPreLockSemaphore(MySemaphore rSemaphore, int permit){
-        List<SemaphoreAndPermit> leasedSemaphoreList = LEASED_PRE_LOCK_SEMAPHORE.get();
-        if(Objects.isNull(leasedSemaphoreList)){
-            leasedSemaphoreList = new ArrayList<>();
-            LEASED_PRE_LOCK_SEMAPHORE.set(leasedSemaphoreList);
-        }
-        leasedSemaphoreList.add(SemaphoreAndPermit.builder().rSemaphore(rSemaphore).permit(permit).build());
+    private static void recordLeasedPreLockSemaphore(UpdateContext context, MySemaphore rSemaphore, int permit, long epoch){
+        context.getLeasedPreLockSemaphore().add(SemaphoreAndPermit.builder().rSemaphore(rSemaphore).permit(permit).epoch(epoch).build());
     }
 
     /**
-     * 检查给定的资源类型前缀和资源key组成的资源 是否缓存和数据库不一致
+     * 检查给定的资源 是否标记为缓存和数据库不一致（一次往返）
      * 如果存在不一致 返回不一致的资源key
      * @param updateResourceParamList
-     * @param resourcePreLockNotConsistenceKeyPrefix
+     * @param notConsistenceSet 不一致标记set
      * @return
      */
-    private static List<String> checkConsistence(List<UpdateResourceParam> updateResourceParamList, String resourcePreLockNotConsistenceKeyPrefix) {
-        RKeys rKeys = redissonClient.getKeys();
-        String[] resourceIdArr = new String[updateResourceParamList.size()];
-        for (int i = 0; i < updateResourceParamList.size(); i++) {
-            resourceIdArr[i] = resourcePreLockNotConsistenceKeyPrefix + updateResourceParamList.get(i).getResourceId();
-        }
-        long existCount = rKeys.countExists(resourceIdArr);
-        if (existCount == 0) {
-            return null;
+    private static List<String> checkConsistence(List<UpdateResourceParam> updateResourceParamList, String notConsistenceSet) {
+        List<String> keyList = new ArrayList<>(updateResourceParamList.size());
+        List<String> memberList = new ArrayList<>(updateResourceParamList.size());
+        for(UpdateResourceParam updateResourceParam : updateResourceParamList){
+            String resourceId = updateResourceParam.getResourceId();
+            keyList.add(KeyLayout.slotKey(notConsistenceSet, resourceId));
+            memberList.add(resourceId);
         }
-        //存在不一致的key,找出不一致的Key
+        List<Long> existList = check(keyList, memberList);
+        //找出不一致的资源
         List<String> notConsistenceList = new ArrayList<>();
-        for (int i = 0; i < resourceIdArr.length; i++) {
-            String key = resourceIdArr[i];
-            if (rKeys.countExists(key) > 0) {
-                notConsistenceList.add(key.replaceFirst(resourcePreLockNotConsistenceKeyPrefix, ""));
+        for (int i = 0; i < existList.size(); i++) {
+            if (existList.get(i) == 1) {
+                notConsistenceList.add(updateResourceParamList.get(i).getResourceId());
             }
         }
-        return notConsistenceList;
+        return notConsistenceList.isEmpty() ? null : notConsistenceList;
     }
 
     /**
      * 减掉之前增加（记录在上下文中）的某种信号量
-     * @param threadLocal
+     * 只在代数未变化时减掉，不等待；数量不足（已经被其它请求获取）时减到0并标记不一致
+     * @param context
+     * @param leasedSemaphoreList
+     * @param notConsistenceSet 不一致标记set
      */
-    private static void doAcquireLeasedSemaphore(ThreadLocal<List<SemaphoreAndPermit>> threadLocal) {
-        List<SemaphoreAndPermit> leasedSemaphoreList = threadLocal.get();
-        if(Objects.isNull(leasedSemaphoreList)){
-            return;
-        }
+    private static void doAcquireLeasedSemaphore(UpdateContext context, List<SemaphoreAndPermit> leasedSemaphoreList, String notConsistenceSet) {
         for (SemaphoreAndPermit semaphoreAndPermit : leasedSemaphoreList) {
             MySemaphore rSemaphore = semaphoreAndPermit.getRSemaphore();
-            if (!rSemaphore.isExists()) {
-                continue;
-            }
+            context.addRedisRoundTrips(1);
             try {
-                rSemaphore.acquire(semaphoreAndPermit.getPermit());
-            } catch (InterruptedException e) {
-                log.warn("正在减掉增加的资源，不能响应中断");
+                long shortage = rSemaphore.addIfEpoch(-semaphoreAndPermit.getPermit(), semaphoreAndPermit.getEpoch(), semaphoreAndPermit.getFence());
+                if(shortage > 0){
+                    log.warn("减掉增加的资源:{}不足，缺少:{}，标记为不一致", rSemaphore.getResourceId(), shortage);
+                    markNotConsistence(notConsistenceSet, rSemaphore.getResourceId());
+                    context.addNotConsistenceRaised(1);
+                }
             } catch (Exception e){
                 log.warn("正在减掉增加的资源，发生异常:{}，资源:{} 处理失败，之后的资源（上下文中）将继续处理",e.getMessage(),rSemaphore.getResourceId());
             }
         }
-        threadLocal.remove();
+        leasedSemaphoreList.clear();
     }
 
     /**
@@ -978,13 +2799,13 @@ public class CacheAccessor {
      * @param updateResourceParamList
      * @return
      */
-    private static List<String> doTryLeaseAvailable(List<UpdateResourceParam> updateResourceParamList) {
+    private static List<String> doTryLeaseAvailable(UpdateContext context, List<UpdateResourceParam> updateResourceParamList) {
         if(Objects.isNull(updateResourceParamList)){
             throw new ResourceRunException("请求增加可用资源resourcePermitList不能为空");
         }
         List<String> notExistResourceIdList = new ArrayList<>();
         for(UpdateResourceParam updateResourceParam : updateResourceParamList){
-            String resourceId = doTryLeaseAvailable(updateResourceParam);
+            String resourceId = doTryLeaseAvailable(context, updateResourceParam);
             if(Objects.nonNull(resourceId)){
                 notExistResourceIdList.add(resourceId);
             }
@@ -1003,7 +2824,7 @@ public class CacheAccessor {
      * @param updateResourceParam
      * @return
      */
-    private static String doTryLeaseAvailable(UpdateResourceParam updateResourceParam) {
+    private static String doTryLeaseAvailable(UpdateContext context, UpdateResourceParam updateResourceParam) {
         if(Objects.isNull(updateResourceParam)){
             throw new ResourceRunException("请求增加可用资源updateResourceParam不能为空");
         }
@@ -1013,13 +2834,14 @@ public class CacheAccessor {
             throw new ResourceRunException("请求增加可用资源数量不能小于0");
         }
         //因为是增加 不需要验证数量
-        MySemaphore rSemaphore = getResourceAvailableSemaphore(resourceId);
-        if(!rSemaphore.isExists()){
+        MySemaphore rSemaphore = getAvailableReleaseSemaphore(resourceId);
+        context.addRedisRoundTrips(1);
+        long epoch = rSemaphore.releaseWithEpoch(requireNum);
+        if(epoch < 0){
             return resourceId;
         }
-        rSemaphore.release(requireNum);
         //增加成功 上下文中记录此次的增加
-        recordLeasedAvailableSemaphore(rSemaphore,requireNum);
+        recordLeasedAvailableSemaphore(context, rSemaphore, requireNum, epoch);
         return null;
     }
 
@@ -1027,13 +2849,263 @@ public class CacheAccessor {
      * 上下文中记录释放（增加）的可用资源信号量
      * @param rSemaphore
      * @param permit
+     * @param epoch 增加时的代数
+     */
+    private static void recordLeasedAvailableSemaphore(UpdateContext context, MySemaphore rSemaphore, int permit, long epoch) {
+        context.getLeasedAvailableSemaphore().add(SemaphoreAndPermit.builder().rSemaphore(rSemaphore).permit(permit).epoch(epoch).build());
+    }
+
+    /**
+     * 从给定的近端缓存查询
+     * @param nearCache
+     * @param queryResourceParam
+     * @param maxStaleMilliSecond
+     * @return
+     */
+    private static QueryResourceResult queryFromNearCache(NearCache nearCache, QueryResourceParam queryResourceParam, long maxStaleMilliSecond){
+        if(Objects.isNull(nearCache)){
+            return null;
+        }
+        String resourceId = queryResourceParam.getResourceId();
+        Integer num = nearCache.get(resourceId, maxStaleMilliSecond);
+        if(Objects.isNull(num)){
+            return null;
+        }
+        int acquire = queryResourceParam.getAcquire();
+        return QueryResourceResult.builder().resourceId(resourceId).acquire(acquire).num(num).fill(num >= acquire).build();
+    }
+
+    private static long nearCacheVersion(NearCache nearCache, String resourceId){
+        return Objects.isNull(nearCache) ? 0 : nearCache.version(resourceId);
+    }
+
+    private static void putNearCache(NearCache nearCache, String resourceId, int count, long version){
+        if(Objects.nonNull(nearCache)){
+            nearCache.put(resourceId, count, version);
+        }
+    }
+
+    private static void invalidateNearCache(NearCache nearCache, String resourceId){
+        if(Objects.nonNull(nearCache)){
+            nearCache.invalidate(resourceId);
+        }
+    }
+
+    /**
+     * 构造预检的key以及set成员（检查key是否存在时为空字符串）
+     * 每个资源依次为 可用信号量、可用不一致标记、预占信号量、预占不一致标记（按需）
+     */
+    private static void buildPreflightKeys(List<UpdateResourceParam> updateResourceParamList, boolean checkAvailable, boolean checkPreLocked,
+                                           List<String> keys, List<String> members){
+        for(UpdateResourceParam updateResourceParam : updateResourceParamList){
+            String resourceId = updateResourceParam.getResourceId();
+            if(checkAvailable){
+                keys.add(getAvailableExistsKey(resourceId));
+                members.add("");
+                keys.add(KeyLayout.slotKey(RESOURCE_AVAILABLE_NOT_CONSISTENCE_SET, resourceId));
+                members.add(resourceId);
+            }
+            if(checkPreLocked){
+                keys.add(KeyLayout.key(RESOURCE_PRE_LOCK_KEY_PREFIX, resourceId));
+                members.add("");
+                keys.add(KeyLayout.slotKey(RESOURCE_PRE_LOCK_NOT_CONSISTENCE_SET, resourceId));
+                members.add(resourceId);
+            }
+        }
+    }
+
+    /**
+     * 批量检查key是否存在
+     * 返回与keyList顺序一致的 0/1 列表
+     * @param keyList
+     * @return
+     */
+    private static List<Long> exists(List<String> keyList){
+        return check(keyList, Collections.nCopies(keyList.size(), ""));
+    }
+
+    /**
+     * 一次往返批量检查key是否存在、成员是否在set中
+     * 返回与keyList顺序一致的 0/1 列表
+     * key分布在多个slot（redis cluster）时每个slot一个脚本并行执行
+     * @param keyList
+     * @param memberList 与keyList一一对应 为空字符串时检查key是否存在
+     * @return
+     */
+    private static List<Long> check(List<String> keyList, List<String> memberList){
+        Map<Integer, List<Integer>> slotIndexMap = KeyLayout.groupBySlot(redissonClient, keyList);
+        if(slotIndexMap.size() <= 1){
+            return CHECK_SCRIPT.eval(redissonClient, RScript.Mode.READ_ONLY, RScript.ReturnType.MULTI, new ArrayList<>(keyList), memberList.toArray());
+        }
+        try {
+            return checkBySlotAsync(keyList, memberList, slotIndexMap).toCompletableFuture().join();
+        }catch (CompletionException e){
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    /**
+     * 异步批量检查
+     * @see CacheAccessor#check
+     * @param keyList
+     * @param memberList
+     * @return
+     */
+    private static CompletionStage<List<Long>> checkAsync(List<String> keyList, List<String> memberList){
+        Map<Integer, List<Integer>> slotIndexMap = KeyLayout.groupBySlot(redissonClient, keyList);
+        if(slotIndexMap.size() <= 1){
+            return CHECK_SCRIPT.evalAsync(redissonClient, RScript.Mode.READ_ONLY, RScript.ReturnType.MULTI, new ArrayList<>(keyList), memberList.toArray());
+        }
+        return checkBySlotAsync(keyList, memberList, slotIndexMap);
+    }
+
+    private static CompletionStage<List<Long>> checkBySlotAsync(List<String> keyList, List<String> memberList, Map<Integer, List<Integer>> slotIndexMap){
+        List<List<Integer>> indexGroupList = new ArrayList<>(slotIndexMap.values());
+        List<CompletableFuture<List<Long>>> futureList = new ArrayList<>(indexGroupList.size());
+        for(List<Integer> indexList : indexGroupList){
+            List<Object> groupKeys = new ArrayList<>(indexList.size());
+            Object[] groupMembers = new Object[indexList.size()];
+            for (int j = 0; j < indexList.size(); j++) {
+                groupKeys.add(keyList.get(indexList.get(j)));
+                groupMembers[j] = memberList.get(indexList.get(j));
+            }
+            futureList.add(CHECK_SCRIPT.<List<Long>>evalAsync(redissonClient, RScript.Mode.READ_ONLY, RScript.ReturnType.MULTI, groupKeys, groupMembers).toCompletableFuture());
+        }
+        return CompletableFuture.allOf(futureList.toArray(new CompletableFuture[0])).thenApply(v -> {
+            Long[] existArr = new Long[keyList.size()];
+            for (int g = 0; g < indexGroupList.size(); g++) {
+                List<Integer> indexList = indexGroupList.get(g);
+                List<Long> existList = futureList.get(g).join();
+                for (int j = 0; j < indexList.size(); j++) {
+                    existArr[indexList.get(j)] = existList.get(j);
+                }
+            }
+            return Arrays.asList(existArr);
+        });
+    }
+
+    private static PreflightResult toPreflightResult(List<UpdateResourceParam> updateResourceParamList, boolean checkAvailable, boolean checkPreLocked, List<Long> existList){
+        PreflightResult preflightResult = PreflightResult.builder().build();
+        int index = 0;
+        for(UpdateResourceParam updateResourceParam : updateResourceParamList){
+            String resourceId = updateResourceParam.getResourceId();
+            if(checkAvailable){
+                if(existList.get(index++) == 0){
+                    preflightResult.getAvailableNotExistList().add(resourceId);
+                }
+                if(existList.get(index++) == 1){
+                    addNotConsistence(preflightResult.getAvailableNotConsistenceList(), RESOURCE_AVAILABLE_RECONCILE_QUEUE, resourceId);
+                }
+            }
+            if(checkPreLocked){
+                if(existList.get(index++) == 0){
+                    preflightResult.getPreLockedNotExistList().add(resourceId);
+                }
+                if(existList.get(index++) == 1){
+                    addNotConsistence(preflightResult.getPreLockedNotConsistenceList(), RESOURCE_PRE_LOCK_RECONCILE_QUEUE, resourceId);
+                }
+            }
+        }
+        return preflightResult;
+    }
+
+    /**
+     * 预检发现的不一致资源
+     * 后台修复时不需要同步重新初始化，只确保在修复队列中（标记早于开启后台修复，或者加入队列失败时）
+     * @param notConsistenceList
+     * @param reconcileQueue
+     * @param resourceId
+     */
+    private static void addNotConsistence(List<String> notConsistenceList, String reconcileQueue, String resourceId){
+        if(!backgroundReconcile){
+            notConsistenceList.add(resourceId);
+            return;
+        }
+        redissonClient.getSet(reconcileQueue, StringCodec.INSTANCE).addAsync(resourceId);
+    }
+
+    /**
+     * 标记不一致 并加入后台修复队列
+     * 两个命令通过pipeline一次往返发送（可以位于不同的slot）
+     * @param notConsistenceSet
+     * @param resourceId
+     */
+    private static void markNotConsistence(String notConsistenceSet, String resourceId){
+        notConsistenceBatch(notConsistenceSet, resourceId).execute();
+    }
+
+    /**
+     * 异步标记不一致 并加入后台修复队列
+     * @see CacheAccessor#markNotConsistence
+     * @param notConsistenceSet
+     * @param resourceId
+     * @return
+     */
+    private static CompletionStage<Void> markNotConsistenceAsync(String notConsistenceSet, String resourceId){
+        return notConsistenceBatch(notConsistenceSet, resourceId).executeAsync().thenApply(result -> null);
+    }
+
+    private static RBatch notConsistenceBatch(String notConsistenceSet, String resourceId){
+        RBatch batch = redissonClient.createBatch();
+        batch.getSet(KeyLayout.slotKey(notConsistenceSet, resourceId), StringCodec.INSTANCE).addAsync(resourceId);
+        String reconcileQueue = RESOURCE_PRE_LOCK_NOT_CONSISTENCE_SET.equals(notConsistenceSet)
+                ? RESOURCE_PRE_LOCK_RECONCILE_QUEUE
+                : RESOURCE_AVAILABLE_RECONCILE_QUEUE;
+        batch.getSet(reconcileQueue, StringCodec.INSTANCE).addAsync(resourceId);
+        return batch;
+    }
+
+    /**
+     * 把旧版本每个资源一个的不一致标记key迁移到不一致标记set 同时加入后台修复队列
+     * 由第一个启动的节点执行一次，失败时由下一个启动的节点重试
      */
-    private static void recordLeasedAvailableSemaphore(MySemaphore rSemaphore, int permit) {
-        List<SemaphoreAndPermit> leasedSemaphoreList = LEASED_AVAILABLE_SEMAPHORE.get();
-        if(Objects.isNull(leasedSemaphoreList)){
-            leasedSemaphoreList = new ArrayList<>();
-            LEASED_AVAILABLE_SEMAPHORE.set(leasedSemaphoreList);
+    public static void migrateLegacyNotConsistence(){
+        if(!redissonClient.getBucket(NOT_CONSISTENCE_MIGRATED, StringCodec.INSTANCE).trySet("1")){
+            return;
+        }
+        try {
+            int migrated = migrateLegacyNotConsistence(LEGACY_AVAILABLE_NOT_CONSISTENCE_KEY_PREFIX, RESOURCE_AVAILABLE_NOT_CONSISTENCE_SET)
+                    + migrateLegacyNotConsistence(LEGACY_PRE_LOCK_NOT_CONSISTENCE_KEY_PREFIX, RESOURCE_PRE_LOCK_NOT_CONSISTENCE_SET);
+            if(migrated > 0){
+                log.info("迁移旧版本不一致标记:{}个", migrated);
+            }
+        }catch (Exception e){
+            log.warn("迁移旧版本不一致标记失败:{}", e.getMessage());
+            redissonClient.getBucket(NOT_CONSISTENCE_MIGRATED).delete();
+        }
+    }
+
+    private static int migrateLegacyNotConsistence(String legacyKeyPrefix, String notConsistenceSet){
+        int migrated = 0;
+        for(String key : redissonClient.getKeys().getKeysByPattern(legacyKeyPrefix + "*", 1000)){
+            String resourceId = key.substring(legacyKeyPrefix.length());
+            if(resourceId.startsWith("{") && resourceId.endsWith("}")){
+                resourceId = resourceId.substring(1, resourceId.length() - 1);
+            }
+            RBatch batch = notConsistenceBatch(notConsistenceSet, resourceId);
+            batch.getKeys().deleteAsync(key);
+            batch.execute();
+            migrated++;
+        }
+        return migrated;
+    }
+
+    /**
+     * 异步的自动调节
+     * 不阻塞调用线程（redisson回调线程），失败只记录日志
+     * @param notConsistenceSet
+     * @param resourceId
+     */
+    private static void adjustResourceAsync(String notConsistenceSet, String resourceId){
+        if(!shouldAdjust(resourceId)){
+            return;
         }
-        leasedSemaphoreList.add(SemaphoreAndPermit.builder().rSemaphore(rSemaphore).permit(permit).build());
+        log.info("资源:" + resourceId + "自动调节概率匹配，将自动调节......");
+        markNotConsistenceAsync(notConsistenceSet, resourceId)
+                .whenComplete((v, e) -> {
+                    if(Objects.nonNull(e)){
+                        log.warn("资源:{}自动调节失败:{}", resourceId, e.getMessage());
+                    }
+                });
     }
 }
@@ -0,0 +1,164 @@
+package com.semaphore.resource.updater.cache;
+
+import com.semaphore.resource.updater.exceptions.ResourceRunException;
+import org.redisson.Redisson;
+import org.redisson.api.RedissonClient;
+import org.redisson.connection.CRC16;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * redis key布局
+ * 开启hash tag后key为 前缀{resourceId}，同一资源的信号量、不一致标记、读写锁落在同一个slot，
+ * 在redis cluster上可以对同一slot的key执行多key脚本；批量操作按slot分组，每个slot一个脚本并行执行
+ * 单机/主从模式下所有key的slot都是0，只有一组，与不分组时一样一次往返
+ *
+ * 开关需要在第一次访问redis之前设置，并且所有节点保持一致，切换后已有的key不会迁移（由预检重新初始化）
+ * redis cluster上多key脚本要求key在同一个slot，cluster模式下强制开启hash tag，不能关闭
+ *
+ * @date 2022/4/8 3:20 PM
+ */
+public final class KeyLayout {
+    private static final String COLON = ":";
+    private static final String HASH_TAG_START = "{";
+    private static final String HASH_TAG_END = "}";
+    private static final int MAX_SLOT = 16384;
+
+    private static volatile boolean hashTagEnabled;
+    private static volatile boolean clusterMode;
+
+    private KeyLayout(){
+    }
+
+    public static void setHashTagEnabled(boolean enabled){
+        if(clusterMode && !enabled){
+            throw new ResourceRunException("redis cluster模式下不能关闭hash tag，否则多key脚本的key不在同一个slot（CROSSSLOT）");
+        }
+        hashTagEnabled = enabled;
+    }
+
+    /**
+     * 设置是否为redis cluster模式 在第一次访问redis之前由ResourceUpdater按redisson配置设置
+     * cluster模式下强制开启hash tag
+     * @param cluster
+     */
+    public static void setClusterMode(boolean cluster){
+        clusterMode = cluster;
+        if(cluster){
+            hashTagEnabled = true;
+        }
+    }
+
+    public static boolean isHashTagEnabled(){
+        return hashTagEnabled;
+    }
+
+    /**
+     * 资源的key
+     * @param prefix
+     * @param resourceId
+     * @return
+     */
+    public static String key(String prefix, String resourceId){
+        if(hashTagEnabled){
+            return prefix + HASH_TAG_START + resourceId + HASH_TAG_END;
+        }
+        return prefix + resourceId;
+    }
+
+    /**
+     * 与资源同一slot的共享key（例如不一致标记set）
+     * 未开启hash tag时所有资源共享一个key（只用于单机/主从）；开启后每个slot一个key，hash tag为落在该slot上的最短字符串
+     * 与资源的key一起传给多key脚本的共享key都需要由这里生成，cluster模式下强制开启hash tag，不会出现CROSSSLOT
+     * @param name
+     * @param resourceId
+     * @return
+     */
+    public static String slotKey(String name, String resourceId){
+        if(hashTagEnabled){
+            return name + COLON + HASH_TAG_START + SlotTags.TAGS[hashSlot(key(name, resourceId))] + HASH_TAG_END;
+        }
+        return name;
+    }
+
+    /**
+     * 从key中解析resourceId
+     * resourceId位于最后一个冒号之后，开启hash tag时去掉花括号
+     * @param key
+     * @return
+     */
+    public static String resourceIdOf(String key){
+        String name = key.substring(key.lastIndexOf(COLON) + 1);
+        if(name.startsWith(HASH_TAG_START) && name.endsWith(HASH_TAG_END)){
+            return name.substring(1, name.length() - 1);
+        }
+        return name;
+    }
+
+    /**
+     * key所在的slot 非cluster模式下都是0
+     * @param redissonClient
+     * @param key
+     * @return
+     */
+    public static int slot(RedissonClient redissonClient, String key){
+        return ((Redisson) redissonClient).getConnectionManager().calcSlot(key);
+    }
+
+    /**
+     * 按redis cluster的规则计算key的slot（与是否cluster模式无关）
+     * key中有非空的hash tag时只计算hash tag
+     * @param key
+     * @return
+     */
+    private static int hashSlot(String key){
+        int start = key.indexOf(HASH_TAG_START);
+        if(start >= 0){
+            int end = key.indexOf(HASH_TAG_END, start + 1);
+            if(end > start + 1){
+                key = key.substring(start + 1, end);
+            }
+        }
+        return CRC16.crc16(key.getBytes(StandardCharsets.UTF_8)) % MAX_SLOT;
+    }
+
+    /**
+     * 按slot对key分组
+     * 返回 slot -> 该slot下key在keyList中的下标，按第一次出现的顺序
+     * @param redissonClient
+     * @param keyList
+     * @return
+     */
+    public static Map<Integer, List<Integer>> groupBySlot(RedissonClient redissonClient, List<String> keyList){
+        Map<Integer, List<Integer>> slotIndexMap = new LinkedHashMap<>();
+        for (int i = 0; i < keyList.size(); i++) {
+            slotIndexMap.computeIfAbsent(slot(redissonClient, keyList.get(i)), slot -> new ArrayList<>()).add(i);
+        }
+        return slotIndexMap;
+    }
+
+    /**
+     * 每个slot对应的hash tag 第一次使用时计算
+     */
+    private static final class SlotTags {
+        private static final String[] TAGS = build();
+
+        private static String[] build(){
+            String[] tags = new String[MAX_SLOT];
+            int found = 0;
+            for (int i = 0; found < MAX_SLOT; i++) {
+                String tag = Integer.toString(i, Character.MAX_RADIX);
+                int slot = hashSlot(tag);
+                if(tags[slot] == null){
+                    tags[slot] = tag;
+                    found++;
+                }
+            }
+            return tags;
+        }
+    }
+}
@@ -1,19 +1,280 @@
 package com.semaphore.resource.updater.cache;
 
+import org.redisson.Redisson;
 import org.redisson.RedissonSemaphore;
 import org.redisson.api.RFuture;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
 import org.redisson.client.codec.LongCodec;
 import org.redisson.client.protocol.RedisCommands;
 import org.redisson.command.CommandAsyncExecutor;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 
 /**
+ * 每个信号量带有一个代数（epoch），保存在与信号量同一slot的key中，不存在时为0，不会被删除
+ * 重新初始化（强制设置）时代数加一；获取、增加时返回当时的代数，回滚只在代数未变化时执行，
+ * 避免把旧一代的数量归还到重新初始化之后的信号量中
+ * 提交栅栏：事务提交之前登记（zset 成员为序号 分数为过期时间），提交之后补扣或回滚时注销；
+ * 重新初始化等到栅栏清空之后再读数据库，并且只在期间没有新登记（序号未变）时设置，
+ * 保证读到的数据库数量与提交之后的补扣不会重复计算
  *
  * @date 2021/10/14 6:44 下午
  */
 public class MySemaphore extends RedissonSemaphore {
-    private static final String COLON = ":";
+    /**
+     * 批量获取（减掉）信号量的状态码
+     */
+    public static final long BATCH_ACQUIRE_SUCCESS = 0;
+    public static final long BATCH_ACQUIRE_NOT_EXIST = 1;
+    public static final long BATCH_ACQUIRE_NOT_CONSISTENCE = 2;
+    public static final long BATCH_ACQUIRE_NOT_ENOUGH = 3;
+    /**
+     * 批量转移时目标信号量不存在、标记为不一致
+     */
+    public static final long TRANSFER_TARGET_NOT_EXIST = 4;
+    public static final long TRANSFER_TARGET_NOT_CONSISTENCE = 5;
+
+    /**
+     * 按代数条件增减时 条件不满足或者信号量不存在
+     */
+    public static final long EPOCH_SKIPPED = -1;
+
+    /**
+     * 强制设置信号量时 栅栏中有未完成的提交或者期间有新的登记
+     */
+    public static final long SET_FENCED = 2;
+
+    private static final String EPOCH_SUFFIX = "epoch";
+    private static final String COMMIT_FENCE_SUFFIX = "commit_fence";
+    private static final String COMMIT_SEQ_SUFFIX = "commit_seq";
+
+    /**
+     * 信号量被重新设置（代数加1）时的通知channel 消息为 新代数,信号量key
+     * 所有信号量共用一个channel，本地租借据此丢弃旧一代的permit
+     */
+    public static final String EPOCH_CHANNEL = "resource_semaphore_epoch_channel";
+
+    /**
+     * 脚本中是否通知数量变化 开启近端缓存时打开
+     */
+    private static volatile boolean changeNotifyEnabled;
+
+    /**
+     * 信号量数量变化时的通知 供其它节点的近端缓存失效
+     * channel与redisson信号量的channel相同（redisson_sc:{信号量key}），消息为变化后的数量；同一个脚本中同一信号量只通知一次
+     * 只在ARGV的最后一个参数为1（开启了近端缓存，见setChangeNotifyEnabled）时通知，否则不读取也不publish
+     * 注意：redis cluster中publish会广播到所有节点，未开启近端缓存时扣减路径上没有这部分开销
+     * 使用该函数的脚本不能依赖#ARGV，调用时在参数最后追加notifyFlag()
+     */
+    private static final String NOTIFY_FUNCTION =
+            "local notifyEnabled = (ARGV[#ARGV] == '1'); " +
+                    "local notified = {}; " +
+                    "local function notify(key) " +
+                    "if ((not notifyEnabled) or notified[key]) then return; end; " +
+                    "notified[key] = true; " +
+                    "local channel; " +
+                    "if (string.find(key, '{', 1, true)) then channel = 'redisson_sc:' .. key; " +
+                    "else channel = 'redisson_sc:{' .. key .. '}'; end; " +
+                    "redis.call('publish', channel, redis.call('get', key) or 0); " +
+                    "end; ";
+
+    /**
+     * 批量获取（减掉）信号量
+     * ARGV[1] 资源个数n ARGV[2..n+1] 需要获取的数量 检查不一致标记时ARGV[n+2..2n+1]为对应的resourceId
+     * KEYS[1..n] 信号量key KEYS[n+1..2n] 对应的代数key 检查不一致标记时KEYS[2n+1..3n]为对应的不一致标记set
+     * 全部校验通过才会扣减，否则一个都不扣减；同一信号量出现多次时按合计数量校验
+     * 返回2n个元素 前n个为每个资源的状态码 后n个为对应信号量的代数
+     */
+    private static final RedisScript BATCH_ACQUIRE_SCRIPT = new RedisScript(NOTIFY_FUNCTION +
+            "local n = tonumber(ARGV[1]); " +
+                    "local check = (#KEYS > 2 * n); " +
+                    "local result = {}; " +
+                    "local success = true; " +
+                    "local need = {}; " +
+                    "for i = 1, n do " +
+                    "need[KEYS[i]] = (need[KEYS[i]] or 0) + tonumber(ARGV[i + 1]); " +
+                    "end; " +
+                    "for i = 1, n do " +
+                    "local value = redis.call('get', KEYS[i]); " +
+                    "if (value == false) then " +
+                    "result[i] = 1; success = false; " +
+                    "elseif (check and redis.call('sismember', KEYS[2 * n + i], ARGV[n + 1 + i]) == 1) then " +
+                    "result[i] = 2; success = false; " +
+                    "elseif (tonumber(value) < need[KEYS[i]]) then " +
+                    "result[i] = 3; success = false; " +
+                    "else " +
+                    "result[i] = 0; " +
+                    "end; " +
+                    "result[n + i] = tonumber(redis.call('get', KEYS[n + i]) or 0); " +
+                    "end; " +
+                    "if (success) then " +
+                    "for i = 1, n do " +
+                    "redis.call('decrby', KEYS[i], ARGV[i + 1]); " +
+                    "end; " +
+                    "for i = 1, n do " +
+                    "notify(KEYS[i]); " +
+                    "end; " +
+                    "end; " +
+                    "return result;");
+
+    /**
+     * 逐个获取（减掉）信号量 参数、返回值与BATCH_ACQUIRE_SCRIPT相同
+     * 按顺序逐个校验并扣减，每个请求单独成功或者失败；同一信号量可以出现多次，后面的请求看到前面扣减之后的数量
+     */
+    private static final RedisScript EACH_ACQUIRE_SCRIPT = new RedisScript(NOTIFY_FUNCTION +
+            "local n = tonumber(ARGV[1]); " +
+                    "local check = (#KEYS > 2 * n); " +
+                    "local result = {}; " +
+                    "for i = 1, n do " +
+                    "local value = redis.call('get', KEYS[i]); " +
+                    "if (value == false) then " +
+                    "result[i] = 1; " +
+                    "elseif (check and redis.call('sismember', KEYS[2 * n + i], ARGV[n + 1 + i]) == 1) then " +
+                    "result[i] = 2; " +
+                    "elseif (tonumber(value) < tonumber(ARGV[i + 1])) then " +
+                    "result[i] = 3; " +
+                    "else " +
+                    "redis.call('decrby', KEYS[i], ARGV[i + 1]); " +
+                    "result[i] = 0; " +
+                    "notify(KEYS[i]); " +
+                    "end; " +
+                    "result[n + i] = tonumber(redis.call('get', KEYS[n + i]) or 0); " +
+                    "end; " +
+                    "return result;");
+
+    /**
+     * 批量转移信号量（源信号量减掉 目标信号量增加）
+     * ARGV[1] 资源个数n ARGV[2..n+1] 转移的数量 检查不一致标记时ARGV[n+2..2n+1]为对应的resourceId
+     * KEYS[1..n] 源信号量key KEYS[n+1..2n] 源代数key KEYS[2n+1..3n] 目标信号量key KEYS[3n+1..4n] 目标代数key
+     * 检查不一致标记时KEYS[4n+1..5n]为源的不一致标记set KEYS[5n+1..6n]为目标的不一致标记set
+     * 全部校验通过才会转移，否则一个都不转移；同一源信号量出现多次时按合计数量校验
+     * 返回3n个元素 前n个为每个资源的状态码 之后依次为源信号量、目标信号量的代数
+     */
+    private static final RedisScript BATCH_TRANSFER_SCRIPT = new RedisScript(NOTIFY_FUNCTION +
+            "local n = tonumber(ARGV[1]); " +
+                    "local check = (#KEYS > 4 * n); " +
+                    "local result = {}; " +
+                    "local success = true; " +
+                    "local need = {}; " +
+                    "for i = 1, n do " +
+                    "need[KEYS[i]] = (need[KEYS[i]] or 0) + tonumber(ARGV[i + 1]); " +
+                    "end; " +
+                    "for i = 1, n do " +
+                    "local value = redis.call('get', KEYS[i]); " +
+                    "if (value == false) then " +
+                    "result[i] = 1; success = false; " +
+                    "elseif (check and redis.call('sismember', KEYS[4 * n + i], ARGV[n + 1 + i]) == 1) then " +
+                    "result[i] = 2; success = false; " +
+                    "elseif (redis.call('exists', KEYS[2 * n + i]) == 0) then " +
+                    "result[i] = 4; success = false; " +
+                    "elseif (check and redis.call('sismember', KEYS[5 * n + i], ARGV[n + 1 + i]) == 1) then " +
+                    "result[i] = 5; success = false; " +
+                    "elseif (tonumber(value) < need[KEYS[i]]) then " +
+                    "result[i] = 3; success = false; " +
+                    "else " +
+                    "result[i] = 0; " +
+                    "end; " +
+                    "result[n + i] = tonumber(redis.call('get', KEYS[n + i]) or 0); " +
+                    "result[2 * n + i] = tonumber(redis.call('get', KEYS[3 * n + i]) or 0); " +
+                    "end; " +
+                    "if (success) then " +
+                    "for i = 1, n do " +
+                    "redis.call('decrby', KEYS[i], ARGV[i + 1]); " +
+                    "redis.call('incrby', KEYS[2 * n + i], ARGV[i + 1]); " +
+                    "end; " +
+                    "for i = 1, n do " +
+                    "notify(KEYS[i]); " +
+                    "notify(KEYS[2 * n + i]); " +
+                    "end; " +
+                    "end; " +
+                    "return result;");
+
+    /**
+     * 按代数条件增减信号量
+     * KEYS[1] 信号量key KEYS[2] 代数key
+     * ARGV[1] 增减的数量（负数为减） ARGV[2] 代数 ARGV[3] 1表示代数相等时执行，0表示代数不相等时执行
+     * 减的时候最多减到0
+     * 返回-1表示没有执行，否则返回没有减掉的数量
+     * 给出KEYS[3]提交栅栏时 无论是否执行都注销ARGV[4]的登记
+     */
+    private static final String ADD_IF_EPOCH_SCRIPT = NOTIFY_FUNCTION +
+            "if (#KEYS > 2) then " +
+                    "redis.call('zrem', KEYS[3], ARGV[4]); " +
+                    "end; " +
+                    "local epoch = tonumber(redis.call('get', KEYS[2]) or 0); " +
+                    "if ((epoch == tonumber(ARGV[2])) ~= (ARGV[3] == '1')) then " +
+                    "return -1; " +
+                    "end; " +
+                    "local value = redis.call('get', KEYS[1]); " +
+                    "if (value == false) then " +
+                    "return -1; " +
+                    "end; " +
+                    "local delta = tonumber(ARGV[1]); " +
+                    "if (delta < 0 and tonumber(value) + delta < 0) then " +
+                    "redis.call('set', KEYS[1], 0); " +
+                    "notify(KEYS[1]); " +
+                    "return -(tonumber(value) + delta); " +
+                    "end; " +
+                    "redis.call('incrby', KEYS[1], delta); " +
+                    "notify(KEYS[1]); " +
+                    "return 0;";
+
+    /**
+     * 批量登记到提交栅栏 同一slot的信号量一个脚本
+     * KEYS 每个信号量依次为 提交栅栏key、登记序号key
+     * ARGV[1] 登记的过期时间（毫秒） ARGV[2] 栅栏key的过期时间
+     * 返回与信号量顺序一致的登记序号
+     */
+    private static final RedisScript BATCH_ENTER_COMMIT_FENCE_SCRIPT = new RedisScript(
+            "local result = {}; " +
+                    "for i = 1, #KEYS, 2 do " +
+                    "local seq = redis.call('incr', KEYS[i + 1]); " +
+                    "redis.call('zadd', KEYS[i], ARGV[1], seq); " +
+                    "redis.call('pexpire', KEYS[i], ARGV[2]); " +
+                    "result[#result + 1] = seq; " +
+                    "end; " +
+                    "return result;");
+
+    /**
+     * 批量注销提交栅栏的登记 同一slot的信号量一个脚本
+     * 补上增减时与ADD_IF_EPOCH_SCRIPT代数不相等时执行的逻辑相同，注销与补上原子执行
+     * KEYS 每个信号量依次为 信号量key、代数key、提交栅栏key
+     * ARGV[1] 1表示代数已变化时补上增减 0表示只注销 之后每个信号量依次为 增减的数量、代数、登记序号（0表示没有登记）
+     * 返回与信号量顺序一致的结果 -1表示没有补上，否则为没有减掉的数量
+     */
+    private static final RedisScript BATCH_EXIT_COMMIT_FENCE_SCRIPT = new RedisScript(NOTIFY_FUNCTION +
+            "local result = {}; " +
+                    "for i = 1, #KEYS / 3 do " +
+                    "local k = 3 * (i - 1); " +
+                    "local a = k + 1; " +
+                    "if (tonumber(ARGV[a + 3]) > 0) then " +
+                    "redis.call('zrem', KEYS[k + 3], ARGV[a + 3]); " +
+                    "end; " +
+                    "result[i] = -1; " +
+                    "local value = redis.call('get', KEYS[k + 1]); " +
+                    "if (ARGV[1] == '1' and value ~= false " +
+                    "and tonumber(redis.call('get', KEYS[k + 2]) or 0) ~= tonumber(ARGV[a + 2])) then " +
+                    "local delta = tonumber(ARGV[a + 1]); " +
+                    "if (delta < 0 and tonumber(value) + delta < 0) then " +
+                    "redis.call('set', KEYS[k + 1], 0); " +
+                    "result[i] = -(tonumber(value) + delta); " +
+                    "else " +
+                    "redis.call('incrby', KEYS[k + 1], delta); " +
+                    "result[i] = 0; " +
+                    "end; " +
+                    "notify(KEYS[k + 1]); " +
+                    "end; " +
+                    "end; " +
+                    "return result;");
+
     final CommandAsyncExecutor commandExecutor;
 
     public MySemaphore(CommandAsyncExecutor commandExecutor, String name){
@@ -31,16 +292,697 @@ public class MySemaphore extends RedissonSemaphore {
                 "local value = redis.call('get', KEYS[1]); " +
                         "if (value == false or tonumber(value) >= 0) then "
                         + "redis.call('set', KEYS[1], ARGV[1]); "
+                        + "local epoch = redis.call('incr', KEYS[3]); "
                         + "redis.call('publish', KEYS[2], ARGV[1]); "
+                        + "redis.call('publish', ARGV[2], epoch .. ',' .. KEYS[1]); "
                         + "return 1;"
                         + "end;"
                         + "return 0;",
-                Arrays.<Object>asList(getName(), channelName), permits);
+                Arrays.<Object>asList(getName(), channelName, getEpochName()), permits, EPOCH_CHANNEL);
+    }
+
+    /**
+     * 提交栅栏未变化时强制设置信号量
+     * 清除过期的登记之后，栅栏为空并且序号仍为读取数据库之前的fenceSeq时才设置
+     * @param permits
+     * @param fenceSeq 读取数据库之前readCommitFence得到的序号
+     * @param now 当前时间（毫秒）
+     * @return 1设置成功 0信号量为负数 SET_FENCED栅栏已变化，需要重新读取数据库
+     */
+    public long trySetPermitsForce(int permits, long fenceSeq, long now){
+        String channelName = getChannelName(getName());
+        return get(commandExecutor.evalWriteAsync(getName(), LongCodec.INSTANCE, RedisCommands.EVAL_LONG,
+                "redis.call('zremrangebyscore', KEYS[4], '-inf', ARGV[4]); " +
+                        "if (redis.call('zcard', KEYS[4]) > 0 or tonumber(redis.call('get', KEYS[5]) or 0) ~= tonumber(ARGV[3])) then "
+                        + "return 2; "
+                        + "end; "
+                        + "local value = redis.call('get', KEYS[1]); "
+                        + "if (value == false or tonumber(value) >= 0) then "
+                        + "redis.call('set', KEYS[1], ARGV[1]); "
+                        + "local epoch = redis.call('incr', KEYS[3]); "
+                        + "redis.call('publish', KEYS[2], ARGV[1]); "
+                        + "redis.call('publish', ARGV[2], epoch .. ',' .. KEYS[1]); "
+                        + "return 1;"
+                        + "end;"
+                        + "return 0;",
+                Arrays.<Object>asList(getName(), channelName, getEpochName(), getCommitFenceName(), getCommitSeqName()),
+                permits, EPOCH_CHANNEL, fenceSeq, now));
+    }
+
+    /**
+     * 事务提交之前登记到提交栅栏
+     * @param expireAt 登记的过期时间（毫秒），进程崩溃没有注销时重新初始化最多等到这个时间
+     * @param ttlMilliSecond 栅栏key的过期时间
+     * @return 登记的序号 注销时使用
+     */
+    public RFuture<Long> enterCommitFenceAsync(long expireAt, long ttlMilliSecond){
+        return commandExecutor.evalWriteAsync(getName(), LongCodec.INSTANCE, RedisCommands.EVAL_LONG,
+                "local seq = redis.call('incr', KEYS[2]); " +
+                        "redis.call('zadd', KEYS[1], ARGV[1], seq); " +
+                        "redis.call('pexpire', KEYS[1], ARGV[2]); " +
+                        "return seq;",
+                Arrays.<Object>asList(getCommitFenceName(), getCommitSeqName()), expireAt, ttlMilliSecond);
+    }
+
+    /**
+     * 注销提交栅栏中的登记
+     * @param seq enterCommitFenceAsync返回的序号
+     * @return
+     */
+    public RFuture<Long> exitCommitFenceAsync(long seq){
+        return commandExecutor.writeAsync(getCommitFenceName(), LongCodec.INSTANCE, RedisCommands.ZREM_LONG, getCommitFenceName(), seq);
+    }
+
+    /**
+     * 批量登记到提交栅栏 一次往返
+     * 信号量必须在同一个slot（由调用方按slot分组）
+     * @param redissonClient
+     * @param semaphoreNameList 信号量key
+     * @param expireAt 登记的过期时间（毫秒）
+     * @param ttlMilliSecond 栅栏key的过期时间
+     * @return 与入参顺序一致的登记序号
+     */
+    public static CompletionStage<List<Long>> enterCommitFenceBatchAsync(RedissonClient redissonClient, List<String> semaphoreNameList,
+                                                                         long expireAt, long ttlMilliSecond){
+        List<Object> keys = new ArrayList<>(semaphoreNameList.size() * 2);
+        for(String semaphoreName : semaphoreNameList){
+            keys.add(getCommitFenceName(semaphoreName));
+            keys.add(getSuffixName(semaphoreName, COMMIT_SEQ_SUFFIX));
+        }
+        return BATCH_ENTER_COMMIT_FENCE_SCRIPT.evalAsync(redissonClient, RScript.Mode.READ_WRITE, RScript.ReturnType.MULTI,
+                keys, expireAt, ttlMilliSecond);
+    }
+
+    /**
+     * 批量注销提交栅栏的登记 一次往返
+     * reapply为true时代数已变化的信号量在同一个脚本中补上增减，见addIfEpochChangedAsync(int, long, long)
+     * 信号量必须在同一个slot（由调用方按slot分组）
+     * @param redissonClient
+     * @param semaphoreNameList 信号量key
+     * @param deltaList 增减的数量 负数为减
+     * @param epochList 获取或增加时的代数
+     * @param fenceSeqList 登记序号 0表示没有登记
+     * @param reapply 是否在代数已变化时补上增减
+     * @return 与入参顺序一致的结果 EPOCH_SKIPPED表示没有补上，否则为没有减掉的数量
+     */
+    public static CompletionStage<List<Long>> exitCommitFenceBatchAsync(RedissonClient redissonClient, List<String> semaphoreNameList,
+                                                                        List<Integer> deltaList, List<Long> epochList,
+                                                                        List<Long> fenceSeqList, boolean reapply){
+        int n = semaphoreNameList.size();
+        List<Object> keys = new ArrayList<>(n * 3);
+        Object[] args = new Object[n * 3 + 2];
+        args[0] = reapply ? 1 : 0;
+        args[args.length - 1] = notifyFlag();
+        for (int i = 0; i < n; i++) {
+            String semaphoreName = semaphoreNameList.get(i);
+            keys.add(semaphoreName);
+            keys.add(getEpochName(semaphoreName));
+            keys.add(getCommitFenceName(semaphoreName));
+            args[3 * i + 1] = deltaList.get(i);
+            args[3 * i + 2] = epochList.get(i);
+            args[3 * i + 3] = fenceSeqList.get(i);
+        }
+        return BATCH_EXIT_COMMIT_FENCE_SCRIPT.evalAsync(redissonClient, RScript.Mode.READ_WRITE, RScript.ReturnType.MULTI, keys, args);
+    }
+
+    /**
+     * 读取提交栅栏
+     * 清除过期的登记，仍有未完成的提交时返回-1，否则返回当前的登记序号
+     * @param now 当前时间（毫秒）
+     * @return
+     */
+    public long readCommitFence(long now){
+        return get(commandExecutor.evalWriteAsync(getName(), LongCodec.INSTANCE, RedisCommands.EVAL_LONG,
+                "redis.call('zremrangebyscore', KEYS[1], '-inf', ARGV[1]); " +
+                        "if (redis.call('zcard', KEYS[1]) > 0) then "
+                        + "return -1; "
+                        + "end; "
+                        + "return tonumber(redis.call('get', KEYS[2]) or 0);",
+                Arrays.<Object>asList(getCommitFenceName(), getCommitSeqName()), now));
+    }
+
+    /**
+     * 提交栅栏key 与信号量在同一个slot
+     * @return
+     */
+    public String getCommitFenceName(){
+        return getCommitFenceName(getName());
+    }
+
+    /**
+     * 信号量的提交栅栏key
+     * @param semaphoreName
+     * @return
+     */
+    static String getCommitFenceName(String semaphoreName){
+        return getSuffixName(semaphoreName, COMMIT_FENCE_SUFFIX);
+    }
+
+    /**
+     * 提交栅栏的登记序号key 与信号量在同一个slot
+     * @return
+     */
+    public String getCommitSeqName(){
+        return getSuffixName(getName(), COMMIT_SEQ_SUFFIX);
+    }
+
+    /**
+     * 代数key 与信号量在同一个slot
+     * @return
+     */
+    public String getEpochName(){
+        return getEpochName(getName());
+    }
+
+    /**
+     * 释放（增加）信号量
+     * 返回增加时的代数，信号量不存在时不增加并返回-1
+     * @param permits
+     * @return
+     */
+    public long releaseWithEpoch(int permits){
+        return get(releaseWithEpochAsync(permits));
+    }
+
+    /**
+     * 异步释放（增加）信号量
+     * @see MySemaphore#releaseWithEpoch
+     * @param permits
+     * @return
+     */
+    public RFuture<Long> releaseWithEpochAsync(int permits){
+        return commandExecutor.evalWriteAsync(getName(), LongCodec.INSTANCE, RedisCommands.EVAL_LONG,
+                NOTIFY_FUNCTION
+                        + "if (redis.call('exists', KEYS[1]) == 0) then "
+                        + "return -1; "
+                        + "end; "
+                        + "redis.call('incrby', KEYS[1], ARGV[1]); "
+                        + "notify(KEYS[1]); "
+                        + "return tonumber(redis.call('get', KEYS[2]) or 0);",
+                Arrays.<Object>asList(getName(), getEpochName()), permits, notifyFlag());
+    }
+
+    /**
+     * 代数未变化时增减信号量 用于回滚
+     * 返回-1表示代数已变化或者信号量不存在，没有执行；否则返回没有减掉的数量（信号量不足）
+     * @param delta 增减的数量 负数为减
+     * @param epoch 获取或增加时的代数
+     * @return
+     */
+    public long addIfEpoch(int delta, long epoch){
+        return get(addIfEpochAsync(delta, epoch));
+    }
+
+    /**
+     * 代数未变化时增减信号量 并注销提交栅栏的登记
+     * @see MySemaphore#addIfEpochAsync(int, long, long)
+     * @param delta
+     * @param epoch
+     * @param fenceSeq
+     * @return
+     */
+    public long addIfEpoch(int delta, long epoch, long fenceSeq){
+        return get(addIfEpochAsync(delta, epoch, fenceSeq));
+    }
+
+    /**
+     * 异步代数未变化时增减信号量
+     * @see MySemaphore#addIfEpoch
+     * @param delta
+     * @param epoch
+     * @return
+     */
+    public RFuture<Long> addIfEpochAsync(int delta, long epoch){
+        return commandExecutor.evalWriteAsync(getName(), LongCodec.INSTANCE, RedisCommands.EVAL_LONG, ADD_IF_EPOCH_SCRIPT,
+                Arrays.<Object>asList(getName(), getEpochName()), delta, epoch, 1, 0, notifyFlag());
+    }
+
+    /**
+     * 异步代数未变化时增减信号量 并在同一个脚本中注销提交栅栏的登记
+     * @see MySemaphore#addIfEpoch
+     * @param delta
+     * @param epoch
+     * @param fenceSeq 提交栅栏的登记序号 0表示没有登记
+     * @return
+     */
+    public RFuture<Long> addIfEpochAsync(int delta, long epoch, long fenceSeq){
+        if(fenceSeq <= 0){
+            return addIfEpochAsync(delta, epoch);
+        }
+        return commandExecutor.evalWriteAsync(getName(), LongCodec.INSTANCE, RedisCommands.EVAL_LONG, ADD_IF_EPOCH_SCRIPT,
+                Arrays.<Object>asList(getName(), getEpochName(), getCommitFenceName()), delta, epoch, 1, fenceSeq, notifyFlag());
+    }
+
+    /**
+     * 异步代数已变化时增减信号量
+     * 事务提交之后，把在旧一代上做的增减补到重新初始化之后的信号量上
+     * @see MySemaphore#addIfEpoch
+     * @param delta
+     * @param epoch
+     * @return
+     */
+    public RFuture<Long> addIfEpochChangedAsync(int delta, long epoch){
+        return addIfEpochChangedAsync(delta, epoch, 0);
+    }
+
+    /**
+     * 异步代数已变化时增减信号量 并在同一个脚本中注销提交栅栏的登记
+     * 补扣与注销原子执行，等待栅栏清空的重新初始化读到的数据库数量已经包含本次提交，不会再被补扣
+     * @see MySemaphore#addIfEpochChangedAsync(int, long)
+     * @param delta
+     * @param epoch
+     * @param fenceSeq 提交栅栏的登记序号 0表示没有登记
+     * @return
+     */
+    public RFuture<Long> addIfEpochChangedAsync(int delta, long epoch, long fenceSeq){
+        if(fenceSeq <= 0){
+            return commandExecutor.evalWriteAsync(getName(), LongCodec.INSTANCE, RedisCommands.EVAL_LONG, ADD_IF_EPOCH_SCRIPT,
+                    Arrays.<Object>asList(getName(), getEpochName()), delta, epoch, 0, 0, notifyFlag());
+        }
+        return commandExecutor.evalWriteAsync(getName(), LongCodec.INSTANCE, RedisCommands.EVAL_LONG, ADD_IF_EPOCH_SCRIPT,
+                Arrays.<Object>asList(getName(), getEpochName(), getCommitFenceName()), delta, epoch, 0, fenceSeq, notifyFlag());
+    }
+
+    /**
+     * 一次往返批量获取（减掉）信号量
+     * 返回2n个元素 前n个为与入参顺序一致的状态码 后n个为对应信号量的代数
+     * 信号量分布在多个slot（redis cluster）时按slot分组并行执行，见tryAcquireBatchAsync
+     * @param redissonClient
+     * @param semaphoreNameList 信号量key
+     * @param notConsistenceKeyList 不一致标记set 与信号量key在同一个slot；为null时不检查不一致标记
+     * @param resourceIdList 检查不一致标记时set中的成员
+     * @param permitList 需要获取的数量
+     * @return
+     */
+    public static List<Long> tryAcquireBatch(RedissonClient redissonClient, List<String> semaphoreNameList, List<String> notConsistenceKeyList,
+                                             List<String> resourceIdList, List<Integer> permitList){
+        Map<Integer, List<Integer>> slotIndexMap = KeyLayout.groupBySlot(redissonClient, semaphoreNameList);
+        if(slotIndexMap.size() <= 1){
+            return BATCH_ACQUIRE_SCRIPT.eval(redissonClient, RScript.Mode.READ_WRITE, RScript.ReturnType.MULTI,
+                    buildBatchKeys(semaphoreNameList, notConsistenceKeyList), buildBatchArgs(permitList, notConsistenceKeyList, resourceIdList));
+        }
+        try {
+            return tryAcquireBatchBySlot(redissonClient, slotIndexMap, semaphoreNameList, notConsistenceKeyList, resourceIdList, permitList).toCompletableFuture().join();
+        }catch (CompletionException e){
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    /**
+     * 一次往返逐个获取（减掉）信号量 用于合并执行的多个请求
+     * 返回2n个元素 前n个为与入参顺序一致的状态码 后n个为对应信号量的代数
+     * 分布在多个slot时按slot分组并行执行，各个请求互不影响
+     * @param redissonClient
+     * @param semaphoreNameList 信号量key 可以重复
+     * @param notConsistenceKeyList 不一致标记set；为null时不检查不一致标记
+     * @param resourceIdList 检查不一致标记时set中的成员
+     * @param permitList 需要获取的数量
+     * @return
+     */
+    public static List<Long> tryAcquireEach(RedissonClient redissonClient, List<String> semaphoreNameList, List<String> notConsistenceKeyList,
+                                            List<String> resourceIdList, List<Integer> permitList){
+        Map<Integer, List<Integer>> slotIndexMap = KeyLayout.groupBySlot(redissonClient, semaphoreNameList);
+        if(slotIndexMap.size() <= 1){
+            return EACH_ACQUIRE_SCRIPT.eval(redissonClient, RScript.Mode.READ_WRITE, RScript.ReturnType.MULTI,
+                    buildBatchKeys(semaphoreNameList, notConsistenceKeyList), buildBatchArgs(permitList, notConsistenceKeyList, resourceIdList));
+        }
+        List<List<Integer>> indexGroupList = new ArrayList<>(slotIndexMap.values());
+        List<CompletableFuture<List<Long>>> futureList = new ArrayList<>(indexGroupList.size());
+        for(List<Integer> indexList : indexGroupList){
+            boolean check = Objects.nonNull(notConsistenceKeyList);
+            List<String> groupNotConsistenceKeyList = check ? pick(notConsistenceKeyList, indexList) : null;
+            futureList.add(EACH_ACQUIRE_SCRIPT.<List<Long>>evalAsync(redissonClient, RScript.Mode.READ_WRITE, RScript.ReturnType.MULTI,
+                    buildBatchKeys(pick(semaphoreNameList, indexList), groupNotConsistenceKeyList),
+                    buildBatchArgs(pick(permitList, indexList), groupNotConsistenceKeyList, check ? pick(resourceIdList, indexList) : null)).toCompletableFuture());
+        }
+        int size = semaphoreNameList.size();
+        Long[] statusArr = new Long[size * 2];
+        RuntimeException cause = null;
+        for (int g = 0; g < indexGroupList.size(); g++) {
+            List<Long> statusList;
+            try {
+                statusList = futureList.get(g).join();
+            }catch (CompletionException e){
+                cause = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+                continue;
+            }
+            List<Integer> indexList = indexGroupList.get(g);
+            for (int j = 0; j < indexList.size(); j++) {
+                statusArr[indexList.get(j)] = statusList.get(j);
+                statusArr[size + indexList.get(j)] = statusList.get(indexList.size() + j);
+            }
+        }
+        if(Objects.isNull(cause)){
+            return Arrays.asList(statusArr);
+        }
+        //有slot失败时归还其它slot已获取的数量 失败时调用方不持有任何信号量
+        CommandAsyncExecutor commandExecutor = ((Redisson) redissonClient).getConnectionManager().getCommandExecutor();
+        List<CompletableFuture<Long>> releaseList = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if(Objects.nonNull(statusArr[i]) && statusArr[i] == BATCH_ACQUIRE_SUCCESS){
+                releaseList.add(new MySemaphore(commandExecutor, semaphoreNameList.get(i))
+                        .addIfEpochAsync(permitList.get(i), statusArr[size + i]).toCompletableFuture());
+            }
+        }
+        CompletableFuture.allOf(releaseList.toArray(new CompletableFuture[0])).handle((v, e) -> v).join();
+        throw cause;
+    }
+
+    /**
+     * 一次往返批量转移信号量 源信号量减掉、目标信号量增加，中间状态对其它请求不可见
+     * 同一资源的源信号量与目标信号量必须在同一个slot（开启hash tag或者非cluster模式）
+     * 返回3n个元素 前n个为与入参顺序一致的状态码 之后依次为源信号量、目标信号量的代数
+     * 分布在多个slot时按slot分组并行执行，有slot失败时在代数未变化时把其它slot已转移的数量转回
+     * @param redissonClient
+     * @param sourceNameList 源信号量key
+     * @param targetNameList 目标信号量key
+     * @param sourceNotConsistenceKeyList 源的不一致标记set；为null时不检查不一致标记
+     * @param targetNotConsistenceKeyList 目标的不一致标记set
+     * @param resourceIdList 检查不一致标记时set中的成员
+     * @param permitList 转移的数量
+     * @return
+     */
+    public static List<Long> tryTransferBatch(RedissonClient redissonClient, List<String> sourceNameList, List<String> targetNameList,
+                                              List<String> sourceNotConsistenceKeyList, List<String> targetNotConsistenceKeyList,
+                                              List<String> resourceIdList, List<Integer> permitList){
+        Map<Integer, List<Integer>> slotIndexMap = KeyLayout.groupBySlot(redissonClient, sourceNameList);
+        if(slotIndexMap.size() <= 1){
+            return BATCH_TRANSFER_SCRIPT.eval(redissonClient, RScript.Mode.READ_WRITE, RScript.ReturnType.MULTI,
+                    buildTransferKeys(sourceNameList, targetNameList, sourceNotConsistenceKeyList, targetNotConsistenceKeyList),
+                    buildBatchArgs(permitList, sourceNotConsistenceKeyList, resourceIdList));
+        }
+        List<List<Integer>> indexGroupList = new ArrayList<>(slotIndexMap.values());
+        List<CompletableFuture<List<Long>>> futureList = new ArrayList<>(indexGroupList.size());
+        for(List<Integer> indexList : indexGroupList){
+            boolean check = Objects.nonNull(sourceNotConsistenceKeyList);
+            List<String> groupSourceList = pick(sourceNameList, indexList);
+            List<String> groupTargetList = pick(targetNameList, indexList);
+            List<String> groupSourceNotConsistenceList = check ? pick(sourceNotConsistenceKeyList, indexList) : null;
+            List<String> groupTargetNotConsistenceList = check ? pick(targetNotConsistenceKeyList, indexList) : null;
+            List<String> groupResourceIdList = check ? pick(resourceIdList, indexList) : null;
+            futureList.add(BATCH_TRANSFER_SCRIPT.<List<Long>>evalAsync(redissonClient, RScript.Mode.READ_WRITE, RScript.ReturnType.MULTI,
+                    buildTransferKeys(groupSourceList, groupTargetList, groupSourceNotConsistenceList, groupTargetNotConsistenceList),
+                    buildBatchArgs(pick(permitList, indexList), groupSourceNotConsistenceList, groupResourceIdList)).toCompletableFuture());
+        }
+        int size = sourceNameList.size();
+        Long[] statusArr = new Long[size * 3];
+        RuntimeException cause = null;
+        boolean success = true;
+        boolean[] groupSuccess = new boolean[indexGroupList.size()];
+        for (int g = 0; g < indexGroupList.size(); g++) {
+            List<Long> statusList;
+            try {
+                statusList = futureList.get(g).join();
+            }catch (CompletionException e){
+                cause = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+                success = false;
+                continue;
+            }
+            List<Integer> indexList = indexGroupList.get(g);
+            groupSuccess[g] = true;
+            for (int j = 0; j < indexList.size(); j++) {
+                int index = indexList.get(j);
+                statusArr[index] = statusList.get(j);
+                statusArr[size + index] = statusList.get(indexList.size() + j);
+                statusArr[2 * size + index] = statusList.get(2 * indexList.size() + j);
+                if(statusList.get(j) != BATCH_ACQUIRE_SUCCESS){
+                    groupSuccess[g] = false;
+                    success = false;
+                }
+            }
+        }
+        if(success){
+            return Arrays.asList(statusArr);
+        }
+        //转回转移成功的slot
+        CommandAsyncExecutor commandExecutor = ((Redisson) redissonClient).getConnectionManager().getCommandExecutor();
+        List<CompletableFuture<Long>> revertList = new ArrayList<>();
+        for (int g = 0; g < indexGroupList.size(); g++) {
+            if(!groupSuccess[g]){
+                continue;
+            }
+            for(int index : indexGroupList.get(g)){
+                int permit = permitList.get(index);
+                revertList.add(new MySemaphore(commandExecutor, sourceNameList.get(index))
+                        .addIfEpochAsync(permit, statusArr[size + index]).toCompletableFuture());
+                revertList.add(new MySemaphore(commandExecutor, targetNameList.get(index))
+                        .addIfEpochAsync(-permit, statusArr[2 * size + index]).toCompletableFuture());
+            }
+        }
+        CompletableFuture.allOf(revertList.toArray(new CompletableFuture[0])).handle((v, e) -> v).join();
+        if(Objects.nonNull(cause)){
+            throw cause;
+        }
+        return Arrays.asList(statusArr);
+    }
+
+    static <T> List<T> pick(List<T> list, List<Integer> indexList){
+        List<T> picked = new ArrayList<>(indexList.size());
+        for(int index : indexList){
+            picked.add(list.get(index));
+        }
+        return picked;
+    }
+
+    /**
+     * 尽量获取（减掉）不超过permits个信号量
+     * 返回两个元素 实际获取的数量（信号量不存在时为-1）以及获取时的代数
+     * @param permits
+     * @return
+     */
+    public List<Long> tryAcquireUpTo(int permits){
+        return get(tryAcquireUpToAsync(permits));
+    }
+
+    /**
+     * 异步尽量获取（减掉）不超过permits个信号量
+     * @see MySemaphore#tryAcquireUpTo
+     * @param permits
+     * @return
+     */
+    public RFuture<List<Long>> tryAcquireUpToAsync(int permits){
+        return commandExecutor.evalWriteAsync(getName(), LongCodec.INSTANCE, RedisCommands.EVAL_LIST,
+                NOTIFY_FUNCTION
+                        + "local value = redis.call('get', KEYS[1]); "
+                        + "if (value == false) then "
+                        + "return {-1, 0}; "
+                        + "end; "
+                        + "local epoch = tonumber(redis.call('get', KEYS[2]) or 0); "
+                        + "local taken = math.min(tonumber(value), tonumber(ARGV[1])); "
+                        + "if (taken > 0) then "
+                        + "redis.call('decrby', KEYS[1], taken); "
+                        + "notify(KEYS[1]); "
+                        + "return {taken, epoch}; "
+                        + "end; "
+                        + "return {0, epoch};",
+                Arrays.<Object>asList(getName(), getEpochName()), permits, notifyFlag());
+    }
+
+    /**
+     * 异步批量获取（减掉）信号量
+     * @see MySemaphore#tryAcquireBatch
+     * @param redissonClient
+     * @param semaphoreNameList
+     * @param notConsistenceKeyList
+     * @param resourceIdList
+     * @param permitList
+     * @return
+     */
+    public static CompletionStage<List<Long>> tryAcquireBatchAsync(RedissonClient redissonClient, List<String> semaphoreNameList, List<String> notConsistenceKeyList,
+                                                                   List<String> resourceIdList, List<Integer> permitList){
+        Map<Integer, List<Integer>> slotIndexMap = KeyLayout.groupBySlot(redissonClient, semaphoreNameList);
+        if(slotIndexMap.size() <= 1){
+            return BATCH_ACQUIRE_SCRIPT.evalAsync(redissonClient, RScript.Mode.READ_WRITE, RScript.ReturnType.MULTI,
+                    buildBatchKeys(semaphoreNameList, notConsistenceKeyList), buildBatchArgs(permitList, notConsistenceKeyList, resourceIdList));
+        }
+        return tryAcquireBatchBySlot(redissonClient, slotIndexMap, semaphoreNameList, notConsistenceKeyList, resourceIdList, permitList);
+    }
+
+    /**
+     * 每个slot一个脚本 并行执行
+     * 每个slot内部要么全部扣减要么全部不扣减；有slot失败时归还其它slot已扣减的数量（代数未变化时），整体仍然是全部或者全不
+     * 归还完成之前其它请求可能短暂地看到被扣减的数量
+     * @param redissonClient
+     * @param slotIndexMap slot -> 下标
+     * @param semaphoreNameList
+     * @param notConsistenceKeyList
+     * @param resourceIdList
+     * @param permitList
+     * @return
+     */
+    private static CompletionStage<List<Long>> tryAcquireBatchBySlot(RedissonClient redissonClient, Map<Integer, List<Integer>> slotIndexMap,
+                                                                     List<String> semaphoreNameList, List<String> notConsistenceKeyList,
+                                                                     List<String> resourceIdList, List<Integer> permitList){
+        List<List<Integer>> indexGroupList = new ArrayList<>(slotIndexMap.values());
+        List<CompletableFuture<List<Long>>> futureList = new ArrayList<>(indexGroupList.size());
+        for(List<Integer> indexList : indexGroupList){
+            List<String> groupSemaphoreNameList = new ArrayList<>(indexList.size());
+            List<String> groupNotConsistenceKeyList = Objects.isNull(notConsistenceKeyList) ? null : new ArrayList<>(indexList.size());
+            List<String> groupResourceIdList = Objects.isNull(notConsistenceKeyList) ? null : new ArrayList<>(indexList.size());
+            List<Integer> groupPermitList = new ArrayList<>(indexList.size());
+            for (int j = 0; j < indexList.size(); j++) {
+                int index = indexList.get(j);
+                groupSemaphoreNameList.add(semaphoreNameList.get(index));
+                if(Objects.nonNull(groupNotConsistenceKeyList)){
+                    groupNotConsistenceKeyList.add(notConsistenceKeyList.get(index));
+                    groupResourceIdList.add(resourceIdList.get(index));
+                }
+                groupPermitList.add(permitList.get(index));
+            }
+            futureList.add(BATCH_ACQUIRE_SCRIPT.<List<Long>>evalAsync(redissonClient, RScript.Mode.READ_WRITE, RScript.ReturnType.MULTI,
+                    buildBatchKeys(groupSemaphoreNameList, groupNotConsistenceKeyList),
+                    buildBatchArgs(groupPermitList, groupNotConsistenceKeyList, groupResourceIdList)).toCompletableFuture());
+        }
+        //等待全部slot执行完成（包括失败的），再决定是否归还
+        List<CompletableFuture<Throwable>> settledList = new ArrayList<>(futureList.size());
+        futureList.forEach(future -> settledList.add(future.handle((statusList, e) -> e)));
+        int size = semaphoreNameList.size();
+        return CompletableFuture.allOf(settledList.toArray(new CompletableFuture[0])).thenCompose(v -> {
+            Long[] statusArr = new Long[size * 2];
+            Throwable cause = null;
+            boolean success = true;
+            boolean[] groupSuccess = new boolean[indexGroupList.size()];
+            for (int g = 0; g < indexGroupList.size(); g++) {
+                Throwable e = settledList.get(g).join();
+                if(Objects.nonNull(e)){
+                    cause = e;
+                    success = false;
+                    continue;
+                }
+                List<Long> statusList = futureList.get(g).join();
+                List<Integer> indexList = indexGroupList.get(g);
+                groupSuccess[g] = true;
+                for (int j = 0; j < indexList.size(); j++) {
+                    long status = statusList.get(j);
+                    statusArr[indexList.get(j)] = status;
+                    statusArr[size + indexList.get(j)] = statusList.get(indexList.size() + j);
+                    if(status != BATCH_ACQUIRE_SUCCESS){
+                        groupSuccess[g] = false;
+                        success = false;
+                    }
+                }
+            }
+            if(success){
+                return CompletableFuture.completedFuture(Arrays.asList(statusArr));
+            }
+            //归还扣减成功的slot
+            CommandAsyncExecutor commandExecutor = ((Redisson) redissonClient).getConnectionManager().getCommandExecutor();
+            List<CompletableFuture<Long>> releaseList = new ArrayList<>();
+            for (int g = 0; g < indexGroupList.size(); g++) {
+                if(!groupSuccess[g]){
+                    continue;
+                }
+                for(int index : indexGroupList.get(g)){
+                    releaseList.add(new MySemaphore(commandExecutor, semaphoreNameList.get(index))
+                            .addIfEpochAsync(permitList.get(index), statusArr[size + index]).toCompletableFuture());
+                }
+            }
+            Throwable failure = cause;
+            return CompletableFuture.allOf(releaseList.toArray(new CompletableFuture[0])).handle((released, releaseException) -> {
+                if(Objects.nonNull(failure)){
+                    throw failure instanceof CompletionException ? (CompletionException) failure : new CompletionException(failure);
+                }
+                return Arrays.asList(statusArr);
+            });
+        });
+    }
+
+    private static List<Object> buildBatchKeys(List<String> semaphoreNameList, List<String> notConsistenceKeyList){
+        List<Object> keys = new ArrayList<>(semaphoreNameList.size() * 3);
+        keys.addAll(semaphoreNameList);
+        for(String semaphoreName : semaphoreNameList){
+            keys.add(getEpochName(semaphoreName));
+        }
+        if(Objects.nonNull(notConsistenceKeyList)){
+            keys.addAll(notConsistenceKeyList);
+        }
+        return keys;
+    }
+
+    private static List<Object> buildTransferKeys(List<String> sourceNameList, List<String> targetNameList,
+                                                  List<String> sourceNotConsistenceKeyList, List<String> targetNotConsistenceKeyList){
+        List<Object> keys = new ArrayList<>(sourceNameList.size() * 6);
+        keys.addAll(sourceNameList);
+        for(String sourceName : sourceNameList){
+            keys.add(getEpochName(sourceName));
+        }
+        keys.addAll(targetNameList);
+        for(String targetName : targetNameList){
+            keys.add(getEpochName(targetName));
+        }
+        if(Objects.nonNull(sourceNotConsistenceKeyList)){
+            keys.addAll(sourceNotConsistenceKeyList);
+            keys.addAll(targetNotConsistenceKeyList);
+        }
+        return keys;
+    }
+
+    private static Object[] buildBatchArgs(List<Integer> permitList, List<String> notConsistenceKeyList, List<String> resourceIdList){
+        int n = permitList.size();
+        Object[] args = new Object[Objects.isNull(notConsistenceKeyList) ? n + 2 : 2 * n + 2];
+        args[0] = n;
+        for (int i = 0; i < n; i++) {
+            args[i + 1] = permitList.get(i);
+        }
+        if(Objects.nonNull(notConsistenceKeyList)){
+            for (int i = 0; i < n; i++) {
+                args[n + 1 + i] = resourceIdList.get(i);
+            }
+        }
+        args[args.length - 1] = notifyFlag();
+        return args;
+    }
+
+    /**
+     * 打开或者关闭脚本中的数量变化通知
+     * 近端缓存依赖其它节点的通知失效，需要在所有节点上一致地开启；未通知的变化由近端缓存的maxStaleMilliSecond限定
+     * @param enabled
+     */
+    static void setChangeNotifyEnabled(boolean enabled){
+        changeNotifyEnabled = enabled;
+    }
+
+    /**
+     * 追加在使用NOTIFY_FUNCTION的脚本参数最后
+     * @return
+     */
+    private static int notifyFlag(){
+        return changeNotifyEnabled ? 1 : 0;
+    }
+
+    /**
+     * 信号量的代数key
+     * 信号量key带有hash tag时直接追加后缀，否则把信号量key作为hash tag
+     * @param semaphoreName
+     * @return
+     */
+    static String getEpochName(String semaphoreName){
+        return getSuffixName(semaphoreName, EPOCH_SUFFIX);
+    }
+
+    /**
+     * 与信号量在同一个slot的附属key
+     * 信号量key带有hash tag时直接追加后缀，否则把信号量key作为hash tag
+     * @param semaphoreName
+     * @param suffix
+     * @return
+     */
+    private static String getSuffixName(String semaphoreName, String suffix){
+        if(semaphoreName.contains("{")){
+            return semaphoreName + ":" + suffix;
+        }
+        return "{" + semaphoreName + "}:" + suffix;
+    }
+
+    /**
+     * 异步获取当前可用的permit数量
+     * @return
+     */
+    public RFuture<Integer> availablePermitsAsync(){
+        return commandExecutor.readAsync(getName(), LongCodec.INSTANCE, RedisCommands.GET_INTEGER, getName());
     }
 
     public String getResourceId(){
-        String semaphoreName = getName();
-        String[] semaphoreNameArr = semaphoreName.split(COLON);
-        return semaphoreNameArr[semaphoreNameArr.length-1];
+        return KeyLayout.resourceIdOf(getName());
     }
 }
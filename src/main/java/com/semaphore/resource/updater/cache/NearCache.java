@@ -0,0 +1,207 @@
+package com.semaphore.resource.updater.cache;
+
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.RedissonObject;
+import org.redisson.api.RPatternTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.LongCodec;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 本地（JVM内）资源数量近端缓存
+ * 容量有界，查询时由调用方给出可接受的最大过期时间
+ * 本JVM的扣减、释放会直接失效；信号量的扣减、释放、转移、强制设置都会publish到信号量channel（条带化时为条带的channel），
+ * 订阅后其它JVM的变化也会立即失效；通知丢失（例如断线重连期间）时最多在maxStaleMilliSecond内读到旧的数量
+ *
+ * 从redis读取到放入缓存之间如果发生了失效，读到的可能是失效之前的旧值，这时不放入缓存：
+ * 读取之前先取版本号，失效时版本号加一，放入时版本号已变化则丢弃
+ *
+ * @date 2022/3/8 4:12 PM
+ */
+@Slf4j
+public class NearCache {
+    /**
+     * redisson信号量的channel前缀
+     */
+    private static final String SEMAPHORE_CHANNEL_PREFIX = "redisson_sc";
+    /**
+     * 失效版本号分段数 按resourceId的hash分段
+     */
+    private static final int VERSION_SEGMENTS = 64;
+
+    private final String semaphoreKeyPrefix;
+    private final String stripeKeyPrefix;
+    private final int maximumSize;
+    private final Map<String, Entry> entryMap;
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_SEGMENTS);
+    private String channelPrefix;
+    private String stripeChannelPrefix;
+    private RPatternTopic patternTopic;
+    private int listenerId;
+    private RPatternTopic stripePatternTopic;
+    private int stripeListenerId;
+
+    public NearCache(String semaphoreKeyPrefix, int maximumSize){
+        this(semaphoreKeyPrefix, null, maximumSize);
+    }
+
+    /**
+     * @param semaphoreKeyPrefix
+     * @param stripeKeyPrefix 条带信号量的key前缀 资源没有条带化时为null
+     * @param maximumSize
+     */
+    public NearCache(String semaphoreKeyPrefix, String stripeKeyPrefix, int maximumSize){
+        this.semaphoreKeyPrefix = semaphoreKeyPrefix;
+        this.stripeKeyPrefix = stripeKeyPrefix;
+        this.maximumSize = maximumSize;
+        this.entryMap = new ConcurrentHashMap<>(Math.min(maximumSize, 1024));
+    }
+
+    /**
+     * 订阅信号量变更通知
+     * @param redissonClient
+     */
+    public void subscribe(RedissonClient redissonClient){
+        //开启hash tag时 channel为 redisson_sc:前缀{resourceId}，否则为 redisson_sc:{前缀resourceId}
+        String pattern = RedissonObject.prefixName(SEMAPHORE_CHANNEL_PREFIX, KeyLayout.key(semaphoreKeyPrefix, "*"));
+        channelPrefix = pattern.substring(0, pattern.indexOf('*'));
+        patternTopic = redissonClient.getPatternTopic(pattern, LongCodec.INSTANCE);
+        listenerId = patternTopic.addListener(Long.class, (matchedPattern, channel, permits) -> invalidate(extractResourceId(channel.toString())));
+        if(Objects.nonNull(stripeKeyPrefix)){
+            //条带key为 前缀条带序号:resourceId，channel为 redisson_sc:{前缀条带序号:resourceId}
+            String stripePattern = RedissonObject.prefixName(SEMAPHORE_CHANNEL_PREFIX, stripeKeyPrefix + "*");
+            stripeChannelPrefix = stripePattern.substring(0, stripePattern.indexOf('*'));
+            stripePatternTopic = redissonClient.getPatternTopic(stripePattern, LongCodec.INSTANCE);
+            stripeListenerId = stripePatternTopic.addListener(Long.class, (matchedPattern, channel, permits) -> invalidate(extractStripeResourceId(channel.toString())));
+        }
+    }
+
+    /**
+     * 取消订阅 并清空
+     */
+    public void close(){
+        if(Objects.nonNull(patternTopic)){
+            patternTopic.removeListener(listenerId);
+            patternTopic = null;
+        }
+        if(Objects.nonNull(stripePatternTopic)){
+            stripePatternTopic.removeListener(stripeListenerId);
+            stripePatternTopic = null;
+        }
+        entryMap.clear();
+    }
+
+    /**
+     * 读取不超过maxStaleMilliSecond的缓存数量
+     * 不存在或者已过期返回null
+     * @param resourceId
+     * @param maxStaleMilliSecond
+     * @return
+     */
+    public Integer get(String resourceId, long maxStaleMilliSecond){
+        Entry entry = entryMap.get(resourceId);
+        if(Objects.isNull(entry)){
+            return null;
+        }
+        if(System.currentTimeMillis() - entry.loadTime > maxStaleMilliSecond){
+            return null;
+        }
+        return entry.count;
+    }
+
+    /**
+     * 当前的失效版本号 从redis读取之前调用，放入时传入
+     * @param resourceId
+     * @return
+     */
+    public long version(String resourceId){
+        return versions.get(segment(resourceId));
+    }
+
+    /**
+     * 放入从redis读取的数量
+     * 读取之后发生过失效（版本号变化）时不放入
+     * @param resourceId
+     * @param count
+     * @param version 读取之前的版本号
+     */
+    public void put(String resourceId, int count, long version){
+        int segment = segment(resourceId);
+        if(versions.get(segment) != version){
+            return;
+        }
+        if(entryMap.size() >= maximumSize && !entryMap.containsKey(resourceId)){
+            evict();
+        }
+        Entry entry = new Entry(count, System.currentTimeMillis());
+        entryMap.put(resourceId, entry);
+        //检查与放入之间发生了失效 失效的remove可能早于放入，这里移除
+        if(versions.get(segment) != version){
+            entryMap.remove(resourceId, entry);
+        }
+    }
+
+    public void invalidate(String resourceId){
+        versions.incrementAndGet(segment(resourceId));
+        entryMap.remove(resourceId);
+    }
+
+    public int size(){
+        return entryMap.size();
+    }
+
+    /**
+     * 超出容量时 淘汰最早加载的一部分
+     */
+    private void evict(){
+        long oldestLoadTime = Long.MAX_VALUE;
+        String oldestResourceId = null;
+        Iterator<Map.Entry<String, Entry>> iterator = entryMap.entrySet().iterator();
+        //只抽样一部分 避免每次淘汰都遍历整个map
+        for (int i = 0; i < 16 && iterator.hasNext(); i++) {
+            Map.Entry<String, Entry> mapEntry = iterator.next();
+            if(mapEntry.getValue().loadTime < oldestLoadTime){
+                oldestLoadTime = mapEntry.getValue().loadTime;
+                oldestResourceId = mapEntry.getKey();
+            }
+        }
+        if(Objects.nonNull(oldestResourceId)){
+            entryMap.remove(oldestResourceId);
+        }
+    }
+
+    private static int segment(String resourceId){
+        return (resourceId.hashCode() & Integer.MAX_VALUE) % VERSION_SEGMENTS;
+    }
+
+    private String extractResourceId(String channel){
+        String name = channel.substring(channelPrefix.length());
+        if(name.endsWith("}")){
+            name = name.substring(0, name.length() - 1);
+        }
+        return name;
+    }
+
+    private String extractStripeResourceId(String channel){
+        String name = channel.substring(stripeChannelPrefix.length());
+        if(name.endsWith("}")){
+            name = name.substring(0, name.length() - 1);
+        }
+        return name.substring(name.indexOf(':') + 1);
+    }
+
+    private static final class Entry {
+        private final int count;
+        private final long loadTime;
+
+        private Entry(int count, long loadTime){
+            this.count = count;
+            this.loadTime = loadTime;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package com.semaphore.resource.updater.cache;
+
+import com.semaphore.resource.updater.exceptions.ResourceRunException;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 可用资源信号量的本地租借
+ * 每个JVM从redis信号量中预先借出一批permit放到本地计数器中，扣减时优先从本地扣减
+ * 本地剩余低于水位时异步补充，一段时间无请求或者关闭时归还给redis
+ * 借出的数量根据本节点的请求速率自适应
+ *
+ * 借出的permit已经从redis中减掉，因此不会出现跨节点超卖
+ * 注意：租借期间redis中的数量会少于实际可售数量
+ *
+ * 租借记录借出时信号量的代数，补充时发现代数变大（其它节点重新初始化过）则丢弃本地剩余的旧一代permit，
+ * 补充借到的是比本地旧一代的permit（补充期间收到了代数变化的通知）则不放入本地，
+ * 归还时代数已变化则不归还（重新初始化的数量中已经包含了借出的部分）
+ * 订阅信号量代数变化的通知，任何节点重新初始化后立即丢弃本地旧一代的permit，不再继续扣减
+ * （通知丢失时仍然要等到下一次补充才能发现）
+ *
+ * @date 2022/3/14 11:20 AM
+ */
+@Slf4j
+public class PermitLeaser {
+    /**
+     * 统计请求速率、调整租借数量、归还空闲租借的周期 毫秒
+     */
+    private static final long TICK_MILLI_SECOND = 1000;
+    /**
+     * 每次借出的数量期望覆盖的请求时长 毫秒
+     */
+    private static final long LEASE_COVER_MILLI_SECOND = 200;
+
+    /**
+     * 获取结果 信号量不存在
+     */
+    public static final long NOT_EXIST = -1;
+    /**
+     * 获取结果 数量不足
+     */
+    public static final long NOT_ENOUGH = -2;
+
+    private final int minChunkSize;
+    private final int maxChunkSize;
+    private final long idleReturnMilliSecond;
+    private final Map<String, Lease> leaseMap = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private RTopic epochTopic;
+    private int listenerId;
+
+    /**
+     * @param minChunkSize 每次最少借出的数量
+     * @param maxChunkSize 每次最多借出的数量
+     * @param idleReturnMilliSecond 超过该时长没有请求，归还本地剩余的permit
+     */
+    public PermitLeaser(int minChunkSize, int maxChunkSize, long idleReturnMilliSecond){
+        if(minChunkSize <= 0 || maxChunkSize < minChunkSize || idleReturnMilliSecond <= 0){
+            throw new ResourceRunException("本地租借配置错误,minChunkSize:" + minChunkSize + " maxChunkSize:" + maxChunkSize
+                    + " idleReturnMilliSecond:" + idleReturnMilliSecond);
+        }
+        this.minChunkSize = minChunkSize;
+        this.maxChunkSize = maxChunkSize;
+        this.idleReturnMilliSecond = idleReturnMilliSecond;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "resource-permit-leaser");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::tick, TICK_MILLI_SECOND, TICK_MILLI_SECOND, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 订阅信号量代数变化的通知
+     * @param redissonClient
+     */
+    public void subscribe(RedissonClient redissonClient){
+        epochTopic = redissonClient.getTopic(MySemaphore.EPOCH_CHANNEL, StringCodec.INSTANCE);
+        listenerId = epochTopic.addListener(String.class, (channel, message) -> onEpochChanged(message));
+    }
+
+    /**
+     * 从本地租借中获取permit
+     * 本地不足时同步从redis补充
+     * 返回NOT_EXIST表示信号量不存在，NOT_ENOUGH表示数量不足，否则获取成功，返回租借的代数
+     * @param resourceId
+     * @param permits
+     * @return
+     */
+    public long tryAcquire(String resourceId, int permits){
+        Lease lease = leaseMap.computeIfAbsent(resourceId, id -> new Lease(minChunkSize));
+        lease.lastAccessTime = System.currentTimeMillis();
+        lease.demand.addAndGet(permits);
+        long epoch = lease.tryTake(permits);
+        if(epoch != NOT_ENOUGH){
+            refillIfNeeded(resourceId, lease);
+            return epoch;
+        }
+        //本地不足 同步补充
+        List<Long> result = CacheAccessor.getResourceAvailableSemaphore(resourceId).tryAcquireUpTo(Math.max(lease.chunkSize, permits));
+        long taken = result.get(0);
+        if(taken < 0){
+            return NOT_EXIST;
+        }
+        fill(resourceId, lease, (int) taken, result.get(1));
+        epoch = lease.tryTake(permits);
+        if(leaseMap.get(resourceId) != lease){
+            //租借已经被回收 剩余的还回去
+            returnLease(resourceId, lease);
+        }
+        if(epoch != NOT_ENOUGH){
+            return epoch;
+        }
+        //redis中也不足 把本地剩余的还回去 避免囤积稀缺的资源
+        returnLease(resourceId, lease);
+        return NOT_ENOUGH;
+    }
+
+    /**
+     * 丢弃本地租借（不归还）
+     * 资源被重新初始化后，redis中的数量已经包含了借出的部分
+     * @param resourceId
+     */
+    public void discard(String resourceId){
+        Lease lease = leaseMap.remove(resourceId);
+        if(Objects.nonNull(lease)){
+            lease.drain();
+        }
+    }
+
+    /**
+     * 归还全部租借 并停止
+     */
+    public void shutdown(){
+        if(Objects.nonNull(epochTopic)){
+            epochTopic.removeListener(listenerId);
+            epochTopic = null;
+        }
+        scheduler.shutdown();
+        leaseMap.forEach(this::returnLease);
+        leaseMap.clear();
+    }
+
+    /**
+     * 本地剩余数量
+     * @param resourceId
+     * @return
+     */
+    public int localPermits(String resourceId){
+        Lease lease = leaseMap.get(resourceId);
+        return Objects.isNull(lease) ? 0 : lease.permits();
+    }
+
+    /**
+     * 信号量被重新设置 消息为 新代数,信号量key
+     * 丢弃该资源本地旧一代的permit（不归还），下一次获取时重新借出
+     */
+    private void onEpochChanged(String message){
+        try {
+            int index = message.indexOf(',');
+            long epoch = Long.parseLong(message.substring(0, index));
+            String semaphoreName = message.substring(index + 1);
+            String resourceId = KeyLayout.resourceIdOf(semaphoreName);
+            Lease lease = leaseMap.get(resourceId);
+            //预占信号量等其它信号量的通知忽略
+            if(Objects.isNull(lease) || !KeyLayout.key(CacheAccessor.RESOURCE_AVAILABLE_KEY_PREFIX, resourceId).equals(semaphoreName)){
+                return;
+            }
+            lease.discardBefore(epoch);
+        }catch (Exception e){
+            log.warn("处理信号量代数变化通知:{}失败:{}", message, e.getMessage());
+        }
+    }
+
+    private void refillIfNeeded(String resourceId, Lease lease){
+        if(lease.permits() >= lease.watermark() || !lease.refilling.compareAndSet(false, true)){
+            return;
+        }
+        try {
+            scheduler.execute(() -> {
+                try {
+                    List<Long> result = CacheAccessor.getResourceAvailableSemaphore(resourceId).tryAcquireUpTo(lease.chunkSize);
+                    long taken = result.get(0);
+                    if(taken >= 0){
+                        fill(resourceId, lease, (int) taken, result.get(1));
+                        if(leaseMap.get(resourceId) != lease){
+                            returnLease(resourceId, lease);
+                        }
+                    }
+                }catch (Exception e){
+                    log.warn("补充资源:{}本地租借失败:{}", resourceId, e.getMessage());
+                }finally {
+                    lease.refilling.set(false);
+                }
+            });
+        }catch (Exception e){
+            //已经关闭
+            lease.refilling.set(false);
+        }
+    }
+
+    /**
+     * 把借出的permit放入本地租借
+     * 借出时的代数比本地旧（补充期间其它节点重新初始化过）则不放入，按借出时的代数归还：
+     * 代数已变化时归还不会执行，重新初始化的数量中已经包含了这部分
+     */
+    private void fill(String resourceId, Lease lease, int taken, long takenEpoch){
+        if(lease.fill(taken, takenEpoch) || taken <= 0){
+            return;
+        }
+        try {
+            CacheAccessor.getResourceAvailableSemaphore(resourceId).addIfEpoch(taken, takenEpoch);
+        }catch (Exception e){
+            log.warn("归还资源:{}旧一代的租借:{}失败:{}", resourceId, taken, e.getMessage());
+        }
+    }
+
+    private void returnLease(String resourceId, Lease lease){
+        long[] remainAndEpoch = lease.drain();
+        int remain = (int) remainAndEpoch[0];
+        if(remain <= 0){
+            return;
+        }
+        try {
+            CacheAccessor.getResourceAvailableSemaphore(resourceId).addIfEpoch(remain, remainAndEpoch[1]);
+        }catch (Exception e){
+            log.warn("归还资源:{}本地租借:{}失败:{}", resourceId, remain, e.getMessage());
+        }
+    }
+
+    /**
+     * 周期任务
+     * 根据请求速率调整租借数量 归还空闲的租借
+     */
+    private void tick(){
+        long now = System.currentTimeMillis();
+        leaseMap.forEach((resourceId, lease) -> {
+            try {
+                long demand = lease.demand.getAndSet(0);
+                long target = demand * LEASE_COVER_MILLI_SECOND / TICK_MILLI_SECOND;
+                lease.chunkSize = (int) Math.max(minChunkSize, Math.min(maxChunkSize, target));
+                if(now - lease.lastAccessTime > idleReturnMilliSecond){
+                    leaseMap.remove(resourceId, lease);
+                    returnLease(resourceId, lease);
+                }
+            }catch (Exception e){
+                log.warn("调整资源:{}本地租借失败:{}", resourceId, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * 本地剩余数量和代数打包在一个AtomicLong中（高32位为代数+1，低32位为剩余数量），CAS同时修改，
+     * 扣减时返回的代数就是扣减的permit所属的代数；热点资源的扣减不加锁
+     * 代数为redis中自增的计数，不会超过高32位的范围
+     */
+    private static final class Lease {
+        private static final long PERMITS_MASK = 0xFFFFFFFFL;
+
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicBoolean refilling = new AtomicBoolean();
+        /**
+         * 本地剩余数量及其借出时的代数
+         */
+        private final AtomicLong state = new AtomicLong(pack(0, NOT_EXIST));
+        private volatile int chunkSize;
+        private volatile long lastAccessTime;
+
+        private Lease(int chunkSize){
+            this.chunkSize = chunkSize;
+        }
+
+        /**
+         * 补充借出的permit 代数变大时丢弃旧一代的剩余
+         * 返回false表示借出时的代数比本地旧，没有放入
+         * @param taken
+         * @param takenEpoch
+         * @return
+         */
+        private boolean fill(int taken, long takenEpoch){
+            while (true){
+                long current = state.get();
+                long epoch = epochOf(current);
+                if(takenEpoch < epoch){
+                    return false;
+                }
+                long next = takenEpoch > epoch ? pack(taken, takenEpoch) : pack(permitsOf(current) + taken, epoch);
+                if(state.compareAndSet(current, next)){
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * 丢弃代数小于newEpoch的剩余permit
+         * 代数只增不减（删除信号量不删除代数key）
+         * @param newEpoch
+         */
+        private void discardBefore(long newEpoch){
+            while (true){
+                long current = state.get();
+                if(epochOf(current) >= newEpoch || state.compareAndSet(current, pack(0, newEpoch))){
+                    return;
+                }
+            }
+        }
+
+        /**
+         * 扣减本地permit
+         * 返回扣减的permit所属的代数，NOT_ENOUGH表示本地不足
+         * @param num
+         * @return
+         */
+        private long tryTake(int num){
+            while (true){
+                long current = state.get();
+                int permits = permitsOf(current);
+                if(permits < num){
+                    return NOT_ENOUGH;
+                }
+                long epoch = epochOf(current);
+                if(state.compareAndSet(current, pack(permits - num, epoch))){
+                    return epoch;
+                }
+            }
+        }
+
+        /**
+         * 取出全部剩余 返回 剩余数量,代数
+         * @return
+         */
+        private long[] drain(){
+            while (true){
+                long current = state.get();
+                int permits = permitsOf(current);
+                long epoch = epochOf(current);
+                if(permits == 0 || state.compareAndSet(current, pack(0, epoch))){
+                    return new long[]{permits, epoch};
+                }
+            }
+        }
+
+        private int permits(){
+            return permitsOf(state.get());
+        }
+
+        private int watermark(){
+            return Math.max(1, chunkSize / 4);
+        }
+
+        private static long pack(int permits, long epoch){
+            return ((epoch + 1) << 32) | (permits & PERMITS_MASK);
+        }
+
+        private static int permitsOf(long state){
+            return (int) state;
+        }
+
+        private static long epochOf(long state){
+            return (state >>> 32) - 1;
+        }
+    }
+}
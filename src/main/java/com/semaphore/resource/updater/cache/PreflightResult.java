@@ -0,0 +1,68 @@
+package com.semaphore.resource.updater.cache;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 预检结果
+ * 一次往返得到的可用/预占信号量的初始化及一致性状态
+ *
+ * @date 2022/3/3 2:40 PM
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class PreflightResult {
+    /**
+     * 可用资源信号量不存在的resourceId
+     */
+    @Builder.Default
+    private List<String> availableNotExistList = new ArrayList<>();
+    /**
+     * 可用资源标记为不一致的resourceId
+     */
+    @Builder.Default
+    private List<String> availableNotConsistenceList = new ArrayList<>();
+    /**
+     * 预占资源信号量不存在的resourceId
+     */
+    @Builder.Default
+    private List<String> preLockedNotExistList = new ArrayList<>();
+    /**
+     * 预占资源标记为不一致的resourceId
+     */
+    @Builder.Default
+    private List<String> preLockedNotConsistenceList = new ArrayList<>();
+
+    /**
+     * 需要初始化的可用资源（不存在或者不一致）
+     * @return
+     */
+    public List<String> getAvailableNeedInitList(){
+        return merge(availableNotExistList, availableNotConsistenceList);
+    }
+
+    /**
+     * 需要初始化的预占资源（不存在或者不一致）
+     * @return
+     */
+    public List<String> getPreLockedNeedInitList(){
+        return merge(preLockedNotExistList, preLockedNotConsistenceList);
+    }
+
+    private static List<String> merge(List<String> notExistList, List<String> notConsistenceList){
+        List<String> needInitList = new ArrayList<>(notExistList);
+        for(String resourceId : notConsistenceList){
+            if(!needInitList.contains(resourceId)){
+                needInitList.add(resourceId);
+            }
+        }
+        return needInitList;
+    }
+}
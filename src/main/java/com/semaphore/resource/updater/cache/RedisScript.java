@@ -0,0 +1,135 @@
+package com.semaphore.resource.updater.cache;
+
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.RedisException;
+import org.redisson.client.codec.Codec;
+import org.redisson.client.codec.LongCodec;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * lua脚本
+ * 首次使用时通过SCRIPT LOAD加载，之后通过EVALSHA执行
+ * redis重启或者脚本被清除（NOSCRIPT）时重新加载
+ * 参数和返回值默认按LongCodec编解码
+ *
+ * @date 2022/3/2 10:15 AM
+ */
+public class RedisScript {
+    private static final String NO_SCRIPT = "NOSCRIPT";
+
+    private final String script;
+    private final Codec codec;
+    private volatile String sha;
+
+    public RedisScript(String script){
+        this(script, LongCodec.INSTANCE);
+    }
+
+    /**
+     * @param script
+     * @param codec 参数和返回值的编解码 例如返回字符串时使用StringCodec
+     */
+    public RedisScript(String script, Codec codec){
+        this.script = script;
+        this.codec = codec;
+    }
+
+    /**
+     * 执行脚本
+     * @param redissonClient
+     * @param mode
+     * @param returnType
+     * @param keys
+     * @param values
+     * @param <R>
+     * @return
+     */
+    public <R> R eval(RedissonClient redissonClient, RScript.Mode mode, RScript.ReturnType returnType, List<Object> keys, Object... values){
+        RScript rScript = redissonClient.getScript(codec);
+        String currentSha = sha;
+        if(Objects.isNull(currentSha)){
+            currentSha = load(rScript);
+        }
+        try {
+            return rScript.evalSha(routingKey(keys), mode, currentSha, returnType, keys, values);
+        }catch (RedisException e){
+            if(Objects.isNull(e.getMessage()) || !e.getMessage().contains(NO_SCRIPT)){
+                throw e;
+            }
+            //脚本不存在 重新加载
+            currentSha = load(rScript);
+            return rScript.evalSha(routingKey(keys), mode, currentSha, returnType, keys, values);
+        }
+    }
+
+    /**
+     * 异步执行脚本
+     * @param redissonClient
+     * @param mode
+     * @param returnType
+     * @param keys
+     * @param values
+     * @param <R>
+     * @return
+     */
+    public <R> CompletionStage<R> evalAsync(RedissonClient redissonClient, RScript.Mode mode, RScript.ReturnType returnType, List<Object> keys, Object... values){
+        RScript rScript = redissonClient.getScript(codec);
+        CompletionStage<String> shaStage = Objects.nonNull(sha)
+                ? CompletableFuture.completedFuture(sha)
+                : loadAsync(rScript);
+        //按key路由的重载使用rScript的codec（不带key的重载使用的是全局codec 参数会被序列化成非数字）
+        return shaStage.thenCompose(currentSha -> {
+            CompletableFuture<R> result = new CompletableFuture<>();
+            rScript.<R>evalShaAsync(routingKey(keys), mode, currentSha, returnType, keys, values).whenComplete((value, e) -> {
+                if(Objects.isNull(e)){
+                    result.complete(value);
+                    return;
+                }
+                if(Objects.isNull(e.getMessage()) || !e.getMessage().contains(NO_SCRIPT)){
+                    result.completeExceptionally(e);
+                    return;
+                }
+                //脚本不存在 重新加载
+                loadAsync(rScript)
+                        .thenCompose(loadedSha -> rScript.<R>evalShaAsync(routingKey(keys), mode, loadedSha, returnType, keys, values))
+                        .whenComplete((retryValue, retryException) -> {
+                            if(Objects.isNull(retryException)){
+                                result.complete(retryValue);
+                            }else {
+                                result.completeExceptionally(retryException);
+                            }
+                        });
+            });
+            return result;
+        });
+    }
+
+    /**
+     * 按第一个key路由 同一次执行的key都在同一个slot
+     */
+    private static String routingKey(List<Object> keys){
+        return keys.isEmpty() ? null : String.valueOf(keys.get(0));
+    }
+
+    public String getScript(){
+        return script;
+    }
+
+    private CompletionStage<String> loadAsync(RScript rScript){
+        return rScript.scriptLoadAsync(script).thenApply(loadedSha -> {
+            sha = loadedSha;
+            return loadedSha;
+        });
+    }
+
+    private String load(RScript rScript){
+        String loadedSha = rScript.scriptLoad(script);
+        sha = loadedSha;
+        return loadedSha;
+    }
+}
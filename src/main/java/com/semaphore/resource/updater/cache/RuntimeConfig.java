@@ -0,0 +1,268 @@
+package com.semaphore.resource.updater.cache;
+
+import com.semaphore.resource.updater.exceptions.ResourceRunException;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RMap;
+import org.redisson.api.RScript;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.api.listener.BaseStatusListener;
+import org.redisson.client.codec.LongCodec;
+import org.redisson.client.codec.StringCodec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 运行时配置（自动调节概率、锁等待/释放时间等）
+ * 配置保存在redis hash中，所有节点一致；本节点缓存全部配置，热路径上读取配置不访问redis
+ * 修改配置时版本号加1并publish，各节点收到通知后异步重新加载；
+ * 另外定期检查版本号，防止断线期间丢失通知
+ *
+ * 支持按资源覆盖：hash field为 配置名:resourceId，不存在时使用全局配置（hash field为配置名），都不存在时使用默认值
+ *
+ * @date 2022/4/12 10:40 AM
+ */
+@Slf4j
+public class RuntimeConfig {
+    /**
+     * 检查版本号的周期 毫秒
+     */
+    private static final long VERSION_CHECK_MILLI_SECOND = 5000;
+    private static final String VERSION_FIELD = "version";
+    private static final String RESOURCE_SEPARATOR = ":";
+
+    /**
+     * 批量设置/删除配置，版本号加1并publish新的版本号
+     * KEYS[1] 配置hash
+     * ARGV[1] channel 之后依次为 field、value，value为空字符串时删除该field
+     * 返回新的版本号
+     */
+    private static final RedisScript UPDATE_SCRIPT = new RedisScript(
+            "for i = 2, #ARGV, 2 do " +
+                    "if (ARGV[i + 1] == '') then " +
+                    "redis.call('hdel', KEYS[1], ARGV[i]); " +
+                    "else " +
+                    "redis.call('hset', KEYS[1], ARGV[i], ARGV[i + 1]); " +
+                    "end; " +
+                    "end; " +
+                    "local version = redis.call('hincrby', KEYS[1], '" + VERSION_FIELD + "', 1); " +
+                    "redis.call('publish', ARGV[1], version); " +
+                    "return version;");
+
+    private final String configName;
+    private final String channelName;
+    /**
+     * 本节点缓存的配置 整体替换
+     */
+    private volatile Map<String, Long> valueMap = Collections.emptyMap();
+    /**
+     * 本节点缓存的配置版本号 未加载时为-1
+     */
+    private volatile long version = -1;
+    /**
+     * 替换缓存时的锁 与start/close分开，避免redisson回调线程等待start中的同步加载
+     */
+    private final Object applyLock = new Object();
+
+    private volatile RedissonClient redissonClient;
+    private RTopic topic;
+    private final List<Integer> listenerIdList = new ArrayList<>();
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param configName 保存配置的redis hash
+     * @param channelName 配置变更通知的channel
+     */
+    public RuntimeConfig(String configName, String channelName){
+        this.configName = configName;
+        this.channelName = channelName;
+    }
+
+    /**
+     * 订阅变更通知 加载配置 并开始定期检查版本号
+     * 重复调用时（同一个redissonClient）不做任何事
+     * 加载失败时使用默认值，由定期检查重试
+     * @param redissonClient
+     */
+    public synchronized void start(RedissonClient redissonClient){
+        if(this.redissonClient == redissonClient){
+            return;
+        }
+        close();
+        this.redissonClient = redissonClient;
+        topic = redissonClient.getTopic(channelName, LongCodec.INSTANCE);
+        listenerIdList.add(topic.addListener(Long.class, (channel, newVersion) -> {
+            if(newVersion > version){
+                reloadAsync();
+            }
+        }));
+        //重新订阅（断线重连）时重新加载 期间的通知可能已经丢失
+        listenerIdList.add(topic.addListener(new BaseStatusListener(){
+            @Override
+            public void onSubscribe(String channel) {
+                reloadAsync();
+            }
+        }));
+        try {
+            apply(getConfigMap().readAllMap());
+        }catch (Exception e){
+            log.warn("加载运行时配置失败，使用默认值:{}", e.getMessage());
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "resource-runtime-config");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::checkVersion, VERSION_CHECK_MILLI_SECOND, VERSION_CHECK_MILLI_SECOND, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 取消订阅 停止定期检查
+     */
+    public synchronized void close(){
+        if(Objects.nonNull(topic)){
+            listenerIdList.forEach(topic::removeListener);
+            listenerIdList.clear();
+            topic = null;
+        }
+        if(Objects.nonNull(scheduler)){
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        redissonClient = null;
+    }
+
+    /**
+     * 读取本节点缓存的配置
+     * 先取资源的覆盖配置，再取全局配置，都没有时返回默认值
+     * @param name 配置名
+     * @param resourceId 为null时只取全局配置
+     * @param defaultValue
+     * @return
+     */
+    public long get(String name, String resourceId, long defaultValue){
+        Map<String, Long> currentValueMap = valueMap;
+        if(Objects.nonNull(resourceId)){
+            Long value = currentValueMap.get(fieldOf(name, resourceId));
+            if(Objects.nonNull(value)){
+                return value;
+            }
+        }
+        Long value = currentValueMap.get(name);
+        return Objects.isNull(value) ? defaultValue : value;
+    }
+
+    /**
+     * 设置配置 所有节点生效
+     * @param name 配置名
+     * @param resourceId 为null时设置全局配置
+     * @param value
+     */
+    public void set(String name, String resourceId, long value){
+        update(Collections.singletonMap(fieldOf(name, resourceId), String.valueOf(value)));
+    }
+
+    /**
+     * 删除配置 删除资源的覆盖配置后该资源使用全局配置
+     * @param nameList 配置名
+     * @param resourceId 为null时删除全局配置
+     */
+    public void remove(List<String> nameList, String resourceId){
+        Map<String, String> fieldValueMap = new HashMap<>(nameList.size() * 2);
+        nameList.forEach(name -> fieldValueMap.put(fieldOf(name, resourceId), ""));
+        update(fieldValueMap);
+    }
+
+    /**
+     * 本节点缓存的配置版本号
+     * @return
+     */
+    public long getVersion(){
+        return version;
+    }
+
+    private void update(Map<String, String> fieldValueMap){
+        List<Object> args = new ArrayList<>(fieldValueMap.size() * 2 + 1);
+        args.add(channelName);
+        fieldValueMap.forEach((field, value) -> {
+            args.add(field);
+            args.add(value);
+        });
+        UPDATE_SCRIPT.eval(requireClient(), RScript.Mode.READ_WRITE, RScript.ReturnType.INTEGER,
+                Collections.singletonList(configName), args.toArray());
+        //本节点立即生效 不依赖通知
+        apply(getConfigMap().readAllMap());
+    }
+
+    private void checkVersion(){
+        try {
+            String remoteVersion = getConfigMap().get(VERSION_FIELD);
+            if(Objects.nonNull(remoteVersion) && Long.parseLong(remoteVersion) != version){
+                apply(getConfigMap().readAllMap());
+            }
+        }catch (Exception e){
+            log.warn("检查运行时配置版本失败:{}", e.getMessage());
+        }
+    }
+
+    private void reloadAsync(){
+        getConfigMap().readAllMapAsync().whenComplete((configMap, e) -> {
+            if(Objects.nonNull(e)){
+                log.warn("重新加载运行时配置失败:{}", e.getMessage());
+                return;
+            }
+            apply(configMap);
+        });
+    }
+
+    /**
+     * 替换本节点缓存 旧版本不覆盖新版本
+     * @param configMap
+     */
+    private void apply(Map<String, String> configMap){
+        synchronized (applyLock) {
+            String versionValue = configMap.get(VERSION_FIELD);
+            long newVersion = Objects.isNull(versionValue) ? 0 : Long.parseLong(versionValue);
+            if(newVersion < version){
+                return;
+            }
+            Map<String, Long> newValueMap = new HashMap<>(configMap.size() * 2);
+            configMap.forEach((field, value) -> {
+                if(VERSION_FIELD.equals(field)){
+                    return;
+                }
+                try {
+                    newValueMap.put(field, Long.parseLong(value));
+                }catch (NumberFormatException e){
+                    log.warn("运行时配置:{}的值:{}不是整数，忽略", field, value);
+                }
+            });
+            valueMap = newValueMap;
+            version = newVersion;
+        }
+    }
+
+    private RMap<String, String> getConfigMap(){
+        return requireClient().getMap(configName, StringCodec.INSTANCE);
+    }
+
+    private RedissonClient requireClient(){
+        RedissonClient client = redissonClient;
+        if(Objects.isNull(client)){
+            throw new ResourceRunException("运行时配置未启动");
+        }
+        return client;
+    }
+
+    private static String fieldOf(String name, String resourceId){
+        return Objects.isNull(resourceId) ? name : name + RESOURCE_SEPARATOR + resourceId;
+    }
+}
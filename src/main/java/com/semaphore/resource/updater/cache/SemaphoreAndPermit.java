@@ -16,4 +16,12 @@ import lombok.NoArgsConstructor;
 public class SemaphoreAndPermit {
     private int permit;
     private MySemaphore rSemaphore;
+    /**
+     * 获取（减掉）或者释放（增加）时信号量的代数
+     */
+    private long epoch;
+    /**
+     * 提交栅栏的登记序号 0表示没有登记
+     */
+    private long fence;
 }
@@ -0,0 +1,130 @@
+package com.semaphore.resource.updater.cache;
+
+import org.redisson.Redisson;
+import org.redisson.api.RedissonClient;
+import org.redisson.command.CommandAsyncExecutor;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按resourceId缓存某类资源的信号量对象（以及条带化时各条带的信号量对象）
+ * 信号量对象无状态（只有key和commandExecutor），可以在线程之间共享；缓存之后每次操作不再拼接key、创建对象
+ * 容量有界，超出时淘汰一部分；redissonClient或者key布局（hash tag）变化时整体失效
+ *
+ * @date 2022/4/21 10:05 AM
+ */
+public class SemaphoreHandles {
+    private final String semaphoreKeyPrefix;
+    private final int maximumSize;
+    private volatile Generation generation;
+
+    public SemaphoreHandles(String semaphoreKeyPrefix, int maximumSize){
+        this.semaphoreKeyPrefix = semaphoreKeyPrefix;
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * 获取资源的信号量对象
+     * @param redissonClient
+     * @param resourceId
+     * @return
+     */
+    public MySemaphore get(RedissonClient redissonClient, String resourceId){
+        Generation current = currentGeneration(redissonClient);
+        MySemaphore semaphore = current.handleMap.get(resourceId);
+        if(semaphore != null){
+            return semaphore;
+        }
+        if(current.handleMap.size() >= maximumSize){
+            evict(current.handleMap);
+        }
+        semaphore = new MySemaphore(current.commandExecutor, KeyLayout.key(semaphoreKeyPrefix, resourceId));
+        MySemaphore existing = current.handleMap.putIfAbsent(resourceId, semaphore);
+        return existing == null ? semaphore : existing;
+    }
+
+    /**
+     * 获取资源某个条带的信号量对象
+     * 同一资源的各条带放在一个数组里，条带数增加时扩容，已有的对象继续使用（条带key只和序号有关）
+     * @param redissonClient
+     * @param stripes
+     * @param resourceId
+     * @param stripe
+     * @return
+     */
+    public MySemaphore getStripe(RedissonClient redissonClient, SemaphoreStripes stripes, String resourceId, int stripe){
+        Generation current = currentGeneration(redissonClient);
+        MySemaphore[] stripeHandles = current.stripeHandleMap.get(resourceId);
+        if(stripeHandles != null && stripe < stripeHandles.length){
+            MySemaphore semaphore = stripeHandles[stripe];
+            if(semaphore != null){
+                return semaphore;
+            }
+        }
+        if(stripeHandles == null && current.stripeHandleMap.size() >= maximumSize){
+            evict(current.stripeHandleMap);
+        }
+        MySemaphore semaphore = new MySemaphore(current.commandExecutor, stripes.getStripeKey(resourceId, stripe));
+        //数组只增不减 并发扩容时以后写入的为准，丢掉的对象下次重新创建
+        MySemaphore[] grown = stripeHandles == null
+                ? new MySemaphore[Math.max(stripe + 1, stripes.getStripeCount(resourceId))]
+                : Arrays.copyOf(stripeHandles, Math.max(stripe + 1, stripeHandles.length));
+        grown[stripe] = semaphore;
+        current.stripeHandleMap.put(resourceId, grown);
+        return semaphore;
+    }
+
+    public int size(){
+        Generation current = generation;
+        return current == null ? 0 : current.handleMap.size() + current.stripeHandleMap.size();
+    }
+
+    public void clear(){
+        generation = null;
+    }
+
+    /**
+     * 只比较redissonClient引用及key布局 commandExecutor在切换时取一次
+     */
+    private Generation currentGeneration(RedissonClient redissonClient){
+        boolean hashTagEnabled = KeyLayout.isHashTagEnabled();
+        Generation current = generation;
+        if(current == null || current.redissonClient != redissonClient || current.hashTagEnabled != hashTagEnabled){
+            //并发切换时多建一个map无妨 旧的对象仍然可用
+            CommandAsyncExecutor commandExecutor = ((Redisson) redissonClient).getConnectionManager().getCommandExecutor();
+            current = new Generation(redissonClient, commandExecutor, hashTagEnabled, Math.min(maximumSize, 1024));
+            generation = current;
+        }
+        return current;
+    }
+
+    /**
+     * 超出容量时 淘汰一部分（不保证最久未使用，热点资源淘汰后下次重新创建）
+     */
+    private static void evict(Map<String, ?> handleMap){
+        Iterator<String> iterator = handleMap.keySet().iterator();
+        for (int i = 0; i < 16 && iterator.hasNext(); i++) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static final class Generation {
+        private final RedissonClient redissonClient;
+        private final CommandAsyncExecutor commandExecutor;
+        private final boolean hashTagEnabled;
+        private final Map<String, MySemaphore> handleMap;
+        private final Map<String, MySemaphore[]> stripeHandleMap;
+
+        private Generation(RedissonClient redissonClient, CommandAsyncExecutor commandExecutor, boolean hashTagEnabled, int initialCapacity){
+            this.redissonClient = redissonClient;
+            this.commandExecutor = commandExecutor;
+            this.hashTagEnabled = hashTagEnabled;
+            this.handleMap = new ConcurrentHashMap<>(initialCapacity);
+            this.stripeHandleMap = new ConcurrentHashMap<>();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.semaphore.resource.updater.cache;
+
+import org.redisson.api.RMap;
+import org.redisson.api.RedissonClient;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 信号量条带化配置
+ * 热点资源的permit拆分到N个子信号量（条带）中，条带key互不相同，在集群中分散到不同的slot
+ * 条带化的资源不存在原始的信号量key
+ *
+ * 条带数保存在redis hash中，所有节点一致；本节点只缓存条带化的资源，在初始化信号量时刷新
+ * 本节点缓存过期时，按旧的布局访问会发现信号量不存在，从而触发初始化并刷新
+ *
+ * @date 2022/4/6 2:10 PM
+ */
+public class SemaphoreStripes {
+    /**
+     * 最大条带数
+     */
+    public static final int MAX_STRIPES = 64;
+
+    private final String configName;
+    private final String stripeKeyPrefix;
+    /**
+     * 本节点缓存的条带数 只包含条带化的资源
+     */
+    private final Map<String, Integer> stripeCountMap = new ConcurrentHashMap<>();
+
+    /**
+     * @param configName 保存条带数的redis hash
+     * @param stripeKeyPrefix 条带key前缀
+     */
+    public SemaphoreStripes(String configName, String stripeKeyPrefix){
+        this.configName = configName;
+        this.stripeKeyPrefix = stripeKeyPrefix;
+    }
+
+    /**
+     * 本节点缓存的条带数
+     * @param resourceId
+     * @return 未条带化时返回1
+     */
+    public int getStripeCount(String resourceId){
+        Integer stripeCount = stripeCountMap.get(resourceId);
+        return Objects.isNull(stripeCount) ? 1 : stripeCount;
+    }
+
+    /**
+     * 从redis读取条带数并刷新本节点缓存
+     * @param redissonClient
+     * @param resourceId
+     * @return 配置的条带数 没有配置时返回null（从未条带化过）
+     */
+    public Integer refresh(RedissonClient redissonClient, String resourceId){
+        Integer stripeCount = getConfigMap(redissonClient).get(resourceId);
+        if(Objects.isNull(stripeCount) || stripeCount <= 1){
+            stripeCountMap.remove(resourceId);
+        }else {
+            stripeCountMap.put(resourceId, stripeCount);
+        }
+        return stripeCount;
+    }
+
+    /**
+     * 从redis读取所有配置过条带数的资源（包括取消中的）
+     * @param redissonClient
+     * @return
+     */
+    public Set<String> readConfiguredResourceIds(RedissonClient redissonClient){
+        return getConfigMap(redissonClient).readAllKeySet();
+    }
+
+    /**
+     * 设置条带数
+     * 取消条带化时设置为1，由初始化删除遗留的条带之后再移除配置
+     * @param redissonClient
+     * @param resourceId
+     * @param stripeCount
+     */
+    public void setStripeCount(RedissonClient redissonClient, String resourceId, int stripeCount){
+        getConfigMap(redissonClient).fastPut(resourceId, stripeCount);
+    }
+
+    /**
+     * 移除条带配置
+     * @param redissonClient
+     * @param resourceId
+     */
+    public void removeStripeCount(RedissonClient redissonClient, String resourceId){
+        getConfigMap(redissonClient).fastRemove(resourceId);
+        stripeCountMap.remove(resourceId);
+    }
+
+    /**
+     * 条带key
+     * resourceId放在最后，与原始信号量key一样可以通过MySemaphore#getResourceId解析
+     * @param resourceId
+     * @param stripe
+     * @return
+     */
+    public String getStripeKey(String resourceId, int stripe){
+        return stripeKeyPrefix + stripe + ":" + resourceId;
+    }
+
+    /**
+     * 随机选择起始条带 不足时依次尝试相邻的条带
+     * @param stripeCount
+     * @return
+     */
+    public static int nextStripe(int stripeCount){
+        return ThreadLocalRandom.current().nextInt(stripeCount);
+    }
+
+    /**
+     * 总数平均拆分到各条带 余数分给前面的条带
+     * @param total
+     * @param stripeCount
+     * @param stripe
+     * @return
+     */
+    public static int split(int total, int stripeCount, int stripe){
+        return total / stripeCount + (stripe < total % stripeCount ? 1 : 0);
+    }
+
+    private RMap<String, Integer> getConfigMap(RedissonClient redissonClient){
+        return redissonClient.getMap(configName);
+    }
+}
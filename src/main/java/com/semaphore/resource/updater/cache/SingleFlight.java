@@ -0,0 +1,97 @@
+package com.semaphore.resource.updater.cache;
+
+import com.semaphore.resource.updater.exceptions.LockWaitException;
+import com.semaphore.resource.updater.exceptions.ResourceRunException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.ToLongFunction;
+
+/**
+ * 本节点内按资源合并信号量初始化（single-flight）
+ * 同一资源同时只有一个线程（leader）加写锁、查询数据库并初始化，其它线程等待leader的结果，不再竞争写锁
+ * 批量初始化时，本线程先初始化自己负责的资源，再等待其它线程负责的资源，不会互相等待
+ * 不同节点之间仍然由写锁互斥
+ *
+ * @date 2022/4/16 3:40 PM
+ */
+public class SingleFlight {
+    /**
+     * 正在初始化的资源
+     */
+    private final Map<String, CompletableFuture<Void>> flightMap = new ConcurrentHashMap<>();
+
+    public interface Initializer {
+        /**
+         * 初始化本线程负责的资源
+         * @param resourceIdList
+         */
+        void init(List<String> resourceIdList) throws LockWaitException, InterruptedException;
+    }
+
+    /**
+     * 初始化资源 正在被其它线程初始化的资源等待其结果
+     * @param resourceIdList
+     * @param initializer 初始化本线程负责的资源
+     * @param waitMilliSecond 等待其它线程初始化单个资源的最长时间
+     * @throws LockWaitException 等待超时或者其它线程初始化失败
+     * @throws InterruptedException
+     */
+    public void execute(List<String> resourceIdList, Initializer initializer, ToLongFunction<String> waitMilliSecond)
+            throws LockWaitException, InterruptedException {
+        Map<String, CompletableFuture<Void>> leadMap = new LinkedHashMap<>();
+        Map<String, CompletableFuture<Void>> followMap = new LinkedHashMap<>();
+        for(String resourceId : resourceIdList){
+            if(leadMap.containsKey(resourceId) || followMap.containsKey(resourceId)){
+                continue;
+            }
+            CompletableFuture<Void> flight = new CompletableFuture<>();
+            CompletableFuture<Void> running = flightMap.putIfAbsent(resourceId, flight);
+            if(running == null){
+                leadMap.put(resourceId, flight);
+            }else {
+                followMap.put(resourceId, running);
+            }
+        }
+        if(!leadMap.isEmpty()){
+            lead(leadMap, initializer);
+        }
+        for(Map.Entry<String, CompletableFuture<Void>> entry : followMap.entrySet()){
+            follow(entry.getKey(), entry.getValue(), waitMilliSecond.applyAsLong(entry.getKey()));
+        }
+    }
+
+    private void lead(Map<String, CompletableFuture<Void>> leadMap, Initializer initializer) throws LockWaitException, InterruptedException {
+        try {
+            initializer.init(new ArrayList<>(leadMap.keySet()));
+            leadMap.values().forEach(flight -> flight.complete(null));
+        }catch (Exception e){
+            leadMap.values().forEach(flight -> flight.completeExceptionally(e));
+            throw e;
+        }finally {
+            //先完成再移除 移除之前到达的线程直接得到结果
+            leadMap.forEach(flightMap::remove);
+        }
+    }
+
+    private void follow(String resourceId, CompletableFuture<Void> flight, long waitMilliSecond) throws LockWaitException, InterruptedException {
+        try {
+            flight.get(waitMilliSecond, TimeUnit.MILLISECONDS);
+        }catch (TimeoutException e){
+            throw new LockWaitException("资源:" + resourceId + "等待其它线程初始化超时");
+        }catch (ExecutionException e){
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException){
+                throw new ResourceRunException("资源:" + resourceId + "初始化失败:" + cause.getMessage());
+            }
+            throw new LockWaitException("资源:" + resourceId + "初始化失败:" + cause.getMessage());
+        }
+    }
+}
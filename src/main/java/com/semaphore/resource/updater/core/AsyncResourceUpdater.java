@@ -0,0 +1,384 @@
+package com.semaphore.resource.updater.core;
+
+import com.semaphore.resource.updater.cache.CacheAccessor;
+import com.semaphore.resource.updater.cache.PreflightResult;
+import com.semaphore.resource.updater.cache.SemaphoreAndPermit;
+import com.semaphore.resource.updater.db.WriteBehindFlusher;
+import com.semaphore.resource.updater.exceptions.*;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * 异步资源更新
+ * 基于redisson的异步调用，缓存阶段不占用调用线程；数据库阶段提交到有界的JDBC线程池执行
+ * 返回的CompletionStage在redisson回调线程或者JDBC线程中完成，不要在回调中执行阻塞操作
+ *
+ * 与同步接口的区别：
+ * 1. 数据库阶段在独立的事务中执行，不参与调用方的事务，失败时由本类归还已获取的信号量
+ * 2. 成功之后把期间被重新初始化的信号量补上本次的增减，与同步接口的事务提交钩子一致
+ * 3. 资源不足时立即失败，不等待
+ * 4. 不使用本地租借
+ * 参数错误同样通过返回失败的CompletionStage通知，不在调用线程中抛出
+ *
+ * @date 2022/3/25 2:40 PM
+ */
+@Slf4j
+public class AsyncResourceUpdater {
+    private final ResourceUpdater resourceUpdater;
+    private final ThreadPoolExecutor jdbcExecutor;
+
+    /**
+     * @param resourceUpdater 同步资源更新 支持预占的操作需要HighResourceUpdater
+     * @param jdbcThreads 数据库阶段的线程数 建议不超过连接池大小
+     * @param jdbcQueueCapacity 数据库阶段的排队数 队列满时以ResourceRunException失败
+     */
+    public AsyncResourceUpdater(ResourceUpdater resourceUpdater, int jdbcThreads, int jdbcQueueCapacity){
+        if(Objects.isNull(resourceUpdater)){
+            throw new ResourceRunException("resourceUpdater不能为空");
+        }
+        if(jdbcThreads <= 0 || jdbcQueueCapacity <= 0){
+            throw new ResourceRunException("jdbcThreads和jdbcQueueCapacity必须大于0");
+        }
+        this.resourceUpdater = resourceUpdater;
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.jdbcExecutor = new ThreadPoolExecutor(jdbcThreads, jdbcThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(jdbcQueueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "resource-async-jdbc-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * 查询可用资源数量
+     * @param queryResourceParam
+     * @return
+     */
+    public CompletionStage<QueryResourceResult> queryAvailable(QueryResourceParam queryResourceParam){
+        List<UpdateResourceParam> updateResourceParamList = toUpdateResourceParamList(Collections.singletonList(queryResourceParam));
+        return preflightAndInit(updateResourceParamList, true, false)
+                .thenCompose(v -> CacheAccessor.queryAvailableAsync(queryResourceParam));
+    }
+
+    /**
+     * 查询可用资源数量 允许读取本地近端缓存
+     * @see ResourceUpdater#queryAvailable(QueryResourceParam, long)
+     * @param queryResourceParam
+     * @param maxStaleMilliSecond 可接受的最大过期时间 毫秒
+     * @return
+     */
+    public CompletionStage<QueryResourceResult> queryAvailable(QueryResourceParam queryResourceParam, long maxStaleMilliSecond){
+        QueryResourceResult queryResourceResult = CacheAccessor.queryAvailableFromNearCache(queryResourceParam, maxStaleMilliSecond);
+        if(Objects.nonNull(queryResourceResult)){
+            return CompletableFuture.completedFuture(queryResourceResult);
+        }
+        return queryAvailable(queryResourceParam);
+    }
+
+    /**
+     * 批量查询可用资源数量
+     * @param queryResourceParamList
+     * @return
+     */
+    public CompletionStage<List<QueryResourceResult>> queryAvailable(List<QueryResourceParam> queryResourceParamList){
+        return preflightAndInit(toUpdateResourceParamList(queryResourceParamList), true, false)
+                .thenCompose(v -> queryAll(queryResourceParamList, CacheAccessor::queryAvailableAsync));
+    }
+
+    /**
+     * 查询预占资源数量
+     * @param queryResourceParam
+     * @return
+     */
+    public CompletionStage<QueryResourceResult> queryPreLocked(QueryResourceParam queryResourceParam){
+        if(!isPreLockSupported()){
+            return failed(new ResourceRunException("预占操作需要HighResourceUpdater"));
+        }
+        List<UpdateResourceParam> updateResourceParamList = toUpdateResourceParamList(Collections.singletonList(queryResourceParam));
+        return preflightAndInit(updateResourceParamList, false, true)
+                .thenCompose(v -> CacheAccessor.queryPreLockedAsync(queryResourceParam));
+    }
+
+    /**
+     * 批量查询预占资源数量
+     * @param queryResourceParamList
+     * @return
+     */
+    public CompletionStage<List<QueryResourceResult>> queryPreLocked(List<QueryResourceParam> queryResourceParamList){
+        if(!isPreLockSupported()){
+            return failed(new ResourceRunException("预占操作需要HighResourceUpdater"));
+        }
+        return preflightAndInit(toUpdateResourceParamList(queryResourceParamList), false, true)
+                .thenCompose(v -> queryAll(queryResourceParamList, CacheAccessor::queryPreLockedAsync));
+    }
+
+    /**
+     * 尝试扣减资源 直接扣减可用资源
+     * 以ResourceUpdateException、DataUnConsistentException、LockWaitException或者ResourceRunException（参数错误、队列已满）失败
+     * @param updateResourceParamSet
+     * @return
+     */
+    public CompletionStage<Void> trySubtractAvailable(Set<UpdateResourceParam> updateResourceParamSet){
+        if(Objects.isNull(updateResourceParamSet) || updateResourceParamSet.size() == 0){
+            return failed(new ResourceRunException("trySubtractResource参数为空"));
+        }
+        List<UpdateResourceParam> updateResourceParamList = sortedList(updateResourceParamSet);
+        return update(updateResourceParamList, false, () -> {
+            WriteBehindFlusher flusher = resourceUpdater.writeBehindFlusher;
+            if(Objects.nonNull(flusher)){
+                flusher.append(updateResourceParamList);
+            }else {
+                resourceUpdater.dbAccessor.subtractAvailableResource(updateResourceParamList);
+            }
+        });
+    }
+
+    /**
+     * 尝试扣减单个资源 直接扣减可用资源
+     * @param updateResourceParam
+     * @return
+     */
+    public CompletionStage<Void> trySubtractOneAvailable(UpdateResourceParam updateResourceParam){
+        if(Objects.isNull(updateResourceParam)){
+            return failed(new ResourceRunException("trySubtractOneResource参数为空"));
+        }
+        return trySubtractAvailable(Collections.singleton(updateResourceParam));
+    }
+
+    /**
+     * 扣减可用 增加预占
+     * @param updateResourceParamSet
+     * @return
+     */
+    public CompletionStage<Void> trySubtractAvailableAddPreLock(Set<UpdateResourceParam> updateResourceParamSet){
+        if(!isPreLockSupported()){
+            return failed(new ResourceRunException("预占操作需要HighResourceUpdater"));
+        }
+        if(Objects.isNull(updateResourceParamSet) || updateResourceParamSet.size() == 0){
+            return failed(new ResourceRunException("trySubtractAvailableAddPreLock参数为空"));
+        }
+        List<UpdateResourceParam> updateResourceParamList = sortedList(updateResourceParamSet);
+        return update(updateResourceParamList, true,
+                () -> resourceUpdater.dbAccessor.subtractAvailableAndAddPreLockResource(updateResourceParamList));
+    }
+
+    /**
+     * 数据库阶段排队中的任务数
+     * @return
+     */
+    public int getJdbcQueueSize(){
+        return jdbcExecutor.getQueue().size();
+    }
+
+    /**
+     * 停止 并等待已提交的数据库任务完成
+     */
+    public void shutdown(){
+        jdbcExecutor.shutdown();
+        try {
+            jdbcExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 预检 需要初始化时在JDBC线程中进行初始化
+     * @param updateResourceParamList
+     * @param checkAvailable
+     * @param checkPreLocked
+     * @return
+     */
+    private CompletionStage<Void> preflightAndInit(List<UpdateResourceParam> updateResourceParamList, boolean checkAvailable, boolean checkPreLocked){
+        return CacheAccessor.preflightAsync(updateResourceParamList, checkAvailable, checkPreLocked).thenCompose(preflightResult -> {
+            if(preflightResult.getAvailableNeedInitList().isEmpty() && preflightResult.getPreLockedNeedInitList().isEmpty()){
+                return CompletableFuture.completedFuture(null);
+            }
+            return runOnJdbcExecutor(() -> initByPreflightResult(preflightResult));
+        });
+    }
+
+    @SneakyThrows
+    private void initByPreflightResult(PreflightResult preflightResult){
+        resourceUpdater.initByPreflightResult(preflightResult);
+    }
+
+    /**
+     * 预检、扣减缓存、更新数据库
+     * 缓存扣减之后的任一阶段失败，归还已获取的信号量；成功之后把期间被重新初始化的信号量补上本次的增减
+     * @param updateResourceParamList 已排序
+     * @param addPreLock 是否增加预占
+     * @param dbUpdate 数据库阶段
+     * @return
+     */
+    private CompletionStage<Void> update(List<UpdateResourceParam> updateResourceParamList, boolean addPreLock, Runnable dbUpdate){
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        preflightAndInit(updateResourceParamList, true, addPreLock)
+                .thenCompose(v -> updateCacheAndDb(updateResourceParamList, addPreLock, dbUpdate))
+                .whenComplete((v, e) -> {
+                    if(Objects.isNull(e)){
+                        result.complete(null);
+                    }else {
+                        result.completeExceptionally(translate(e));
+                    }
+                });
+        return result;
+    }
+
+    private CompletionStage<Void> updateCacheAndDb(List<UpdateResourceParam> updateResourceParamList, boolean addPreLock, Runnable dbUpdate){
+        return CacheAccessor.tryAcquireAvailableSemaphoreAsync(updateResourceParamList).thenCompose(holdList -> {
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            CompletionStage<List<SemaphoreAndPermit>> preLockStage = addPreLock
+                    ? CacheAccessor.releasePreLockedSemaphoreAsync(updateResourceParamList)
+                    : CompletableFuture.completedFuture(Collections.emptyList());
+            preLockStage.whenComplete((leasedList, preLockException) -> {
+                if(Objects.nonNull(preLockException)){
+                    //预占信号量可能部分增加 标记不一致等待重新初始化
+                    compensate(updateResourceParamList, holdList, Collections.emptyList(), true).whenComplete((c, ce) -> result.completeExceptionally(preLockException));
+                    return;
+                }
+                //登记提交栅栏之后再更新数据库 登记失败时不更新
+                enterCommitFence(holdList, leasedList).thenCompose(v -> runOnJdbcExecutor(dbUpdate)).whenComplete((dbResult, dbException) -> {
+                    if(Objects.isNull(dbException)){
+                        CacheAccessor.reapplyIfEpochChanged(holdList, true, CacheAccessor.RESOURCE_AVAILABLE_NOT_CONSISTENCE_SET);
+                        CacheAccessor.reapplyIfEpochChanged(leasedList, false, CacheAccessor.RESOURCE_PRE_LOCK_NOT_CONSISTENCE_SET);
+                        result.complete(null);
+                        return;
+                    }
+                    compensate(updateResourceParamList, holdList, leasedList, false).whenComplete((c, ce) -> result.completeExceptionally(dbException));
+                });
+            });
+            return result;
+        });
+    }
+
+    /**
+     * 更新数据库之前登记提交栅栏 补扣或者归还时注销
+     * @see CacheAccessor#enterCommitFence
+     */
+    private static CompletionStage<Void> enterCommitFence(List<SemaphoreAndPermit> holdList, List<SemaphoreAndPermit> leasedList){
+        List<SemaphoreAndPermit> semaphoreAndPermitList = new ArrayList<>(holdList);
+        semaphoreAndPermitList.addAll(leasedList);
+        return CacheAccessor.enterCommitFenceAsync(semaphoreAndPermitList);
+    }
+
+    /**
+     * 归还已获取的可用信号量，撤销已增加的预占信号量（代数未变化时）
+     * 归还失败时标记不一致
+     * @param updateResourceParamList
+     * @param holdList 已获取的可用信号量
+     * @param leasedList 已增加的预占信号量
+     * @param markPreLockedNotConsistence 是否标记预占资源不一致
+     * @return
+     */
+    private CompletionStage<Void> compensate(List<UpdateResourceParam> updateResourceParamList, List<SemaphoreAndPermit> holdList,
+                                             List<SemaphoreAndPermit> leasedList, boolean markPreLockedNotConsistence){
+        CompletionStage<Void> availableStage = CacheAccessor.releaseHoldSemaphoreAsync(holdList)
+                .exceptionally(e -> {
+                    log.error("归还可用资源信号量失败:{}，标记为不一致", e.getMessage());
+                    markNotConsistence(updateResourceParamList, CacheAccessor::setAvailableResourceNotConsistence);
+                    return null;
+                });
+        if(markPreLockedNotConsistence){
+            markNotConsistence(updateResourceParamList, CacheAccessor::setPreLockedResourceNotConsistence);
+            return availableStage;
+        }
+        if(leasedList.isEmpty()){
+            return availableStage;
+        }
+        CompletionStage<Void> preLockedStage = CacheAccessor.reducePreLockedSemaphoreAsync(leasedList)
+                .exceptionally(e -> {
+                    log.error("撤销预占资源信号量失败:{}，标记为不一致", e.getMessage());
+                    markNotConsistence(updateResourceParamList, CacheAccessor::setPreLockedResourceNotConsistence);
+                    return null;
+                });
+        return availableStage.thenCombine(preLockedStage, (a, p) -> null);
+    }
+
+    /**
+     * 标记不一致在JDBC线程中执行 避免阻塞redisson回调线程
+     */
+    private void markNotConsistence(List<UpdateResourceParam> updateResourceParamList, Consumer<String> marker){
+        runOnJdbcExecutor(() -> updateResourceParamList.forEach(updateResourceParam -> marker.accept(updateResourceParam.getResourceId())))
+                .whenComplete((v, e) -> {
+                    if(Objects.nonNull(e)){
+                        log.error("标记资源不一致失败:{}", e.getMessage());
+                    }
+                });
+    }
+
+    private CompletableFuture<Void> runOnJdbcExecutor(Runnable task){
+        try {
+            return CompletableFuture.runAsync(task, jdbcExecutor);
+        }catch (RejectedExecutionException e){
+            CompletableFuture<Void> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new ResourceRunException("数据库执行队列已满"));
+            return rejected;
+        }
+    }
+
+    private static CompletionStage<List<QueryResourceResult>> queryAll(List<QueryResourceParam> queryResourceParamList,
+                                                                       Function<QueryResourceParam, CompletionStage<QueryResourceResult>> query){
+        List<CompletableFuture<QueryResourceResult>> futureList = queryResourceParamList
+                .stream()
+                .map(queryResourceParam -> query.apply(queryResourceParam).toCompletableFuture())
+                .collect(Collectors.toList());
+        return CompletableFuture.allOf(futureList.toArray(new CompletableFuture[0]))
+                .thenApply(v -> futureList.stream().map(CompletableFuture::join).collect(Collectors.toList()));
+    }
+
+    /**
+     * 与同步接口一致的异常
+     * 加锁失败保持LockWaitException，队列已满保持ResourceRunException，数据库更新失败转换为DataUnConsistentException，其余转换为ResourceUpdateException
+     * @param e
+     * @return
+     */
+    private static Throwable translate(Throwable e){
+        Throwable cause = e;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && Objects.nonNull(cause.getCause())){
+            cause = cause.getCause();
+        }
+        if(cause instanceof UndeclaredThrowableException){
+            return new DataUnConsistentException("更新资源数量失败,errMsg:" + ((UndeclaredThrowableException) cause).getUndeclaredThrowable().getMessage());
+        }
+        if(cause instanceof DataUnConsistentException || cause instanceof ResourceUpdateException
+                || cause instanceof LockWaitException || cause instanceof ResourceRunException){
+            return cause;
+        }
+        return new ResourceUpdateException("更新资源数量失败,errMsg:" + cause.getMessage());
+    }
+
+    private boolean isPreLockSupported(){
+        return resourceUpdater instanceof HighResourceUpdater;
+    }
+
+    private static <T> CompletionStage<T> failed(Throwable e){
+        CompletableFuture<T> result = new CompletableFuture<>();
+        result.completeExceptionally(e);
+        return result;
+    }
+
+    private static List<UpdateResourceParam> sortedList(Set<UpdateResourceParam> updateResourceParamSet){
+        List<UpdateResourceParam> updateResourceParamList = new ArrayList<>(updateResourceParamSet);
+        //防止死锁，resourceId排序
+        updateResourceParamList.sort(Comparator.comparing(UpdateResourceParam::getResourceId));
+        return updateResourceParamList;
+    }
+
+    private static List<UpdateResourceParam> toUpdateResourceParamList(List<QueryResourceParam> queryResourceParamList){
+        return queryResourceParamList
+                .stream()
+                .map(queryResourceParam -> UpdateResourceParam.builder().resourceId(queryResourceParam.getResourceId()).build())
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,418 @@
+package com.semaphore.resource.updater.core;
+
+import com.semaphore.resource.updater.cache.CacheAccessor;
+import com.semaphore.resource.updater.cache.MySemaphore;
+import com.semaphore.resource.updater.exceptions.*;
+import com.semaphore.resource.updater.metrics.Operation;
+import com.semaphore.resource.updater.metrics.Stage;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 合并执行单个资源的扣减（例如秒杀时大量线程同时扣减少数几个资源）
+ * 调用线程把请求放入队列，合并线程在时间窗口内（或者达到批次上限时）取出一批，
+ * 一次往返逐个扣减缓存信号量、一个事务更新数据库，再把每个请求各自的结果交给调用线程
+ *
+ * 与同步接口的区别：
+ * 1. 数据库更新在合并线程的独立事务中执行，不参与调用方的事务
+ * 2. 同一批中资源不足的请求单独失败，不影响其它请求
+ * 3. 批次在提交之前失败时，该批的请求逐个按同步接口重新执行，各自成功或者失败；
+ *    提交失败（结果未知，例如提交时连接断开）时不重新执行，该批的请求以DataUnConsistentException失败并标记资源不一致
+ * 4. 不使用本地租借
+ *
+ * @date 2022/4/18 10:30 AM
+ */
+@Slf4j
+public class CombiningResourceUpdater {
+    /**
+     * 同步接口等待结果的默认超时时间 毫秒
+     */
+    public static final long DEFAULT_WAIT_TIMEOUT_MILLI_SECOND = 30000;
+
+    private final ResourceUpdater resourceUpdater;
+    private final TransactionTemplate transactionTemplate;
+    private final int maxBatchSize;
+    private final long windowNanoSecond;
+    private final long waitTimeoutMilliSecond;
+    private final BlockingQueue<CombinedRequest> requestQueue;
+    private final List<Thread> combinerList;
+    private volatile boolean running = true;
+
+    /**
+     * @param resourceUpdater 同步资源更新
+     * @param combinerThreads 合并线程数 每个线程同时执行一批
+     * @param maxBatchSize 每批最多的请求数
+     * @param windowMicroSecond 取到第一个请求之后等待更多请求的时间 微秒 为0时只取已经在队列中的请求
+     * @param queueCapacity 排队的请求数 队列满时以ResourceRunException失败
+     */
+    public CombiningResourceUpdater(ResourceUpdater resourceUpdater, int combinerThreads, int maxBatchSize, long windowMicroSecond, int queueCapacity){
+        this(resourceUpdater, combinerThreads, maxBatchSize, windowMicroSecond, queueCapacity, DEFAULT_WAIT_TIMEOUT_MILLI_SECOND);
+    }
+
+    /**
+     * @param resourceUpdater 同步资源更新
+     * @param combinerThreads 合并线程数 每个线程同时执行一批
+     * @param maxBatchSize 每批最多的请求数
+     * @param windowMicroSecond 取到第一个请求之后等待更多请求的时间 微秒 为0时只取已经在队列中的请求
+     * @param queueCapacity 排队的请求数 队列满时以ResourceRunException失败
+     * @param waitTimeoutMilliSecond 同步接口等待结果的超时时间 毫秒
+     */
+    public CombiningResourceUpdater(ResourceUpdater resourceUpdater, int combinerThreads, int maxBatchSize, long windowMicroSecond, int queueCapacity,
+                                    long waitTimeoutMilliSecond){
+        if(Objects.isNull(resourceUpdater)){
+            throw new ResourceRunException("resourceUpdater不能为空");
+        }
+        if(combinerThreads <= 0 || maxBatchSize <= 0 || queueCapacity <= 0){
+            throw new ResourceRunException("combinerThreads、maxBatchSize和queueCapacity必须大于0");
+        }
+        if(windowMicroSecond < 0){
+            throw new ResourceRunException("windowMicroSecond不能小于0");
+        }
+        if(waitTimeoutMilliSecond <= 0){
+            throw new ResourceRunException("waitTimeoutMilliSecond必须大于0");
+        }
+        this.resourceUpdater = resourceUpdater;
+        this.transactionTemplate = resourceUpdater.dbAccessor.getTransactionTemplate();
+        this.maxBatchSize = maxBatchSize;
+        this.windowNanoSecond = TimeUnit.MICROSECONDS.toNanos(windowMicroSecond);
+        this.waitTimeoutMilliSecond = waitTimeoutMilliSecond;
+        this.requestQueue = new ArrayBlockingQueue<>(queueCapacity);
+        this.combinerList = new ArrayList<>(combinerThreads);
+        for (int i = 0; i < combinerThreads; i++) {
+            Thread thread = new Thread(this::combine, "resource-combiner-" + (i + 1));
+            thread.setDaemon(true);
+            combinerList.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * 尝试扣减单个资源 与同一时间的其它请求合并执行
+     * 等待结果期间不响应中断（请求可能已经执行），等待结束之后恢复中断标记
+     * 等待超过waitTimeoutMilliSecond时抛出ResourceRunException：请求还在排队时不再执行；已经在执行时结果未知
+     * @param updateResourceParam
+     * @throws ResourceUpdateException
+     * @throws LockWaitException
+     * @throws DataUnConsistentException
+     */
+    public void trySubtractOneAvailable(UpdateResourceParam updateResourceParam)
+            throws ResourceUpdateException, LockWaitException, DataUnConsistentException {
+        if(Objects.isNull(updateResourceParam)){
+            throw new ResourceRunException("trySubtractOneResource参数为空");
+        }
+        CombinedRequest request = new CombinedRequest(updateResourceParam);
+        try {
+            await(enqueue(request));
+        }catch (ExecutionException e){
+            Throwable cause = e.getCause();
+            if(cause instanceof ResourceUpdateException){
+                throw (ResourceUpdateException) cause;
+            }
+            if(cause instanceof LockWaitException){
+                throw (LockWaitException) cause;
+            }
+            if(cause instanceof DataUnConsistentException){
+                throw (DataUnConsistentException) cause;
+            }
+            if(cause instanceof Error){
+                throw (Error) cause;
+            }
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new ResourceRunException(cause.getMessage(), cause);
+        }catch (TimeoutException e){
+            if(requestQueue.remove(request)){
+                throw new ResourceRunException("合并执行等待超时:" + waitTimeoutMilliSecond + "ms，请求未执行");
+            }
+            throw new ResourceRunException("合并执行等待超时:" + waitTimeoutMilliSecond + "ms，请求已经在执行，结果未知");
+        }
+    }
+
+    /**
+     * 异步尝试扣减单个资源 与同一时间的其它请求合并执行
+     * 返回的CompletionStage在合并线程中完成，不要在回调中执行阻塞操作
+     * 参数为空、已停止、队列已满时返回以ResourceRunException失败的CompletionStage
+     * @param updateResourceParam
+     * @return
+     */
+    public CompletionStage<Void> trySubtractOneAvailableAsync(UpdateResourceParam updateResourceParam){
+        if(Objects.isNull(updateResourceParam)){
+            return failed(new ResourceRunException("trySubtractOneResource参数为空"));
+        }
+        return enqueue(new CombinedRequest(updateResourceParam));
+    }
+
+    /**
+     * 请求放入队列
+     * 放入之后再检查一次是否已停止：停止时排队的请求已经被取出并失败，之后放入的请求由这里取回并失败
+     * @param request
+     * @return
+     */
+    private CompletableFuture<Void> enqueue(CombinedRequest request){
+        if(!running){
+            request.future.completeExceptionally(new ResourceRunException("合并执行已停止"));
+            return request.future;
+        }
+        if(!requestQueue.offer(request)){
+            request.future.completeExceptionally(new ResourceRunException("合并执行队列已满"));
+            return request.future;
+        }
+        if(!running && requestQueue.remove(request)){
+            request.future.completeExceptionally(new ResourceRunException("合并执行已停止"));
+        }
+        return request.future;
+    }
+
+    /**
+     * 等待结果 不响应中断，等待结束之后恢复中断标记
+     * @param future
+     * @throws ExecutionException
+     * @throws TimeoutException
+     */
+    private void await(CompletableFuture<Void> future) throws ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTimeoutMilliSecond);
+        boolean interrupted = false;
+        try {
+            while (true){
+                try {
+                    future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }finally {
+            if(interrupted){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 排队中的请求数
+     * @return
+     */
+    public int getQueueSize(){
+        return requestQueue.size();
+    }
+
+    /**
+     * 停止 等待正在执行的批次完成，排队中的请求以ResourceRunException失败
+     */
+    public void shutdown(){
+        running = false;
+        combinerList.forEach(Thread::interrupt);
+        for(Thread thread : combinerList){
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        List<CombinedRequest> remainList = new ArrayList<>();
+        requestQueue.drainTo(remainList);
+        remainList.forEach(request -> request.future.completeExceptionally(new ResourceRunException("合并执行已停止")));
+    }
+
+    private void combine(){
+        List<CombinedRequest> batch = new ArrayList<>(maxBatchSize);
+        while (running){
+            try {
+                collect(batch);
+            } catch (InterruptedException e) {
+                if(batch.isEmpty()){
+                    continue;
+                }
+            }
+            try {
+                execute(batch);
+            }catch (Throwable e){
+                log.error("合并执行失败:{}", e.getMessage());
+                batch.forEach(request -> request.future.completeExceptionally(e));
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * 取出一批请求 阻塞等待第一个请求，之后在时间窗口内继续收集，直到达到批次上限
+     * @param batch
+     * @throws InterruptedException
+     */
+    private void collect(List<CombinedRequest> batch) throws InterruptedException {
+        batch.add(requestQueue.take());
+        requestQueue.drainTo(batch, maxBatchSize - batch.size());
+        long deadline = System.nanoTime() + windowNanoSecond;
+        while (batch.size() < maxBatchSize){
+            long remain = deadline - System.nanoTime();
+            if(remain <= 0){
+                return;
+            }
+            CombinedRequest request = requestQueue.poll(remain, TimeUnit.NANOSECONDS);
+            if(Objects.isNull(request)){
+                return;
+            }
+            batch.add(request);
+            requestQueue.drainTo(batch, maxBatchSize - batch.size());
+        }
+    }
+
+    /**
+     * 执行一批请求 成功时每个请求得到自己的结果；提交之前失败时逐个重新执行
+     * @param batch
+     */
+    private void execute(List<CombinedRequest> batch){
+        List<UpdateResourceParam> updateResourceParamList = new ArrayList<>(batch.size());
+        batch.forEach(request -> updateResourceParamList.add(request.updateResourceParam));
+        long[] statusArr;
+        try {
+            statusArr = executeBatch(updateResourceParamList);
+        }catch (CommitUnknownException e){
+            //可能已经提交 重新执行会重复扣减
+            log.error("合并执行{}个请求提交失败，结果未知:{}", batch.size(), e.getCause().getMessage());
+            Set<String> resourceIdSet = new TreeSet<>();
+            updateResourceParamList.forEach(updateResourceParam -> resourceIdSet.add(updateResourceParam.getResourceId()));
+            resourceIdSet.forEach(CacheAccessor::setAvailableResourceNotConsistence);
+            batch.forEach(request -> request.future.completeExceptionally(new DataUnConsistentException("更新可用资源数量失败,errMsg:提交结果未知:"
+                    + e.getCause().getMessage())));
+            return;
+        }catch (Throwable e){
+            log.warn("合并执行{}个请求失败:{}，逐个重新执行", batch.size(), e.getMessage());
+            batch.forEach(this::executeOne);
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            CombinedRequest request = batch.get(i);
+            long status = statusArr[i];
+            if(status == MySemaphore.BATCH_ACQUIRE_SUCCESS){
+                request.future.complete(null);
+            }else if(status == MySemaphore.BATCH_ACQUIRE_NOT_ENOUGH){
+                request.future.completeExceptionally(new ResourceUpdateException("更新可用资源数量失败,errMsg:获取:"
+                        + request.updateResourceParam.getResourceId() + "可用资源信号量失败,资源不足,requireNum:" + request.updateResourceParam.getNum()));
+            }else {
+                request.future.completeExceptionally(new ResourceUpdateException("更新可用资源数量失败,errMsg:获取:"
+                        + request.updateResourceParam.getResourceId() + "可用资源信号量失败，等待初始化"));
+            }
+        }
+    }
+
+    /**
+     * 一个事务中执行一批请求
+     * 一次往返逐个扣减缓存信号量，合计每个资源扣减成功的数量后更新数据库；失败时事务回滚，钩子归还已扣减的信号量
+     * 事务内执行成功之后的异常（提交失败）包装为CommitUnknownException
+     * @param updateResourceParamList
+     * @return 与入参顺序一致的状态码
+     */
+    private long[] executeBatch(List<UpdateResourceParam> updateResourceParamList) throws Throwable {
+        Throwable[] failure = new Throwable[1];
+        boolean[] executed = new boolean[1];
+        long[] statusArr;
+        try {
+            statusArr = transactionTemplate.execute(status -> {
+                UpdateContext context = resourceUpdater.acquireWithRollBackHock(Operation.COMBINED_SUBTRACT_ONE_AVAILABLE);
+                try {
+                    Map<String, Integer> subtractMap = new TreeMap<>();
+                    updateResourceParamList.forEach(updateResourceParam -> subtractMap.putIfAbsent(updateResourceParam.getResourceId(), 0));
+                    List<UpdateResourceParam> resourceList = new ArrayList<>(subtractMap.size());
+                    subtractMap.keySet().forEach(resourceId -> resourceList.add(UpdateResourceParam.builder().resourceId(resourceId).build()));
+                    //预检 可用资源信号量未初始化或者不一致的进行初始化
+                    resourceUpdater.preflightAndInit(context, resourceList, true, false);
+
+                    long start = System.nanoTime();
+                    long[] acquireStatusArr = CacheAccessor.tryAcquireAvailableEach(context, updateResourceParamList, resourceUpdater.dbAccessor);
+                    start = resourceUpdater.recordStage(context, Stage.CACHE, start);
+                    for (int i = 0; i < updateResourceParamList.size(); i++) {
+                        if(acquireStatusArr[i] == MySemaphore.BATCH_ACQUIRE_SUCCESS){
+                            UpdateResourceParam updateResourceParam = updateResourceParamList.get(i);
+                            subtractMap.merge(updateResourceParam.getResourceId(), updateResourceParam.getNum(), Integer::sum);
+                        }
+                    }
+                    //按resourceId排序 防止死锁
+                    List<UpdateResourceParam> subtractList = new ArrayList<>(subtractMap.size());
+                    subtractMap.forEach((resourceId, num) -> {
+                        if(num > 0){
+                            subtractList.add(UpdateResourceParam.builder().resourceId(resourceId).num(num).build());
+                        }
+                    });
+                    if(subtractList.size() > 0){
+                        resourceUpdater.subtractAvailableResourceInDb(subtractList);
+                    }
+                    resourceUpdater.recordStage(context, Stage.DB, start);
+                    executed[0] = true;
+                    return acquireStatusArr;
+                }catch (Throwable e){
+                    resourceUpdater.recordFailure(context, e);
+                    failure[0] = e;
+                    status.setRollbackOnly();
+                    return null;
+                }
+            });
+        }catch (Throwable e){
+            if(executed[0]){
+                throw new CommitUnknownException(e);
+            }
+            throw e;
+        }
+        if(Objects.nonNull(failure[0])){
+            throw failure[0];
+        }
+        return statusArr;
+    }
+
+    /**
+     * 按同步接口单独执行一个请求
+     * @param request
+     */
+    private void executeOne(CombinedRequest request){
+        Throwable[] failure = new Throwable[1];
+        try {
+            transactionTemplate.execute(status -> {
+                try {
+                    resourceUpdater.trySubtractOneAvailable(request.updateResourceParam);
+                }catch (Throwable e){
+                    failure[0] = e;
+                    status.setRollbackOnly();
+                }
+                return null;
+            });
+        }catch (Throwable e){
+            failure[0] = e;
+        }
+        if(Objects.isNull(failure[0])){
+            request.future.complete(null);
+        }else if(failure[0] instanceof UndeclaredThrowableException){
+            request.future.completeExceptionally(new DataUnConsistentException("更新可用资源数量失败,errMsg:"
+                    + ((UndeclaredThrowableException) failure[0]).getUndeclaredThrowable().getMessage()));
+        }else {
+            request.future.completeExceptionally(failure[0]);
+        }
+    }
+
+    private static <T> CompletionStage<T> failed(Throwable e){
+        CompletableFuture<T> result = new CompletableFuture<>();
+        result.completeExceptionally(e);
+        return result;
+    }
+
+    /**
+     * 事务内的更新已经执行完成 提交时失败，数据库可能已经提交
+     */
+    private static class CommitUnknownException extends Exception {
+        private CommitUnknownException(Throwable cause){
+            super(cause);
+        }
+    }
+
+    private static class CombinedRequest {
+        private final UpdateResourceParam updateResourceParam;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private CombinedRequest(UpdateResourceParam updateResourceParam){
+            this.updateResourceParam = updateResourceParam;
+        }
+    }
+}
@@ -1,18 +1,24 @@
 package com.semaphore.resource.updater.core;
 
 /**
- *
+ * 本节点的默认值
+ * 写锁等待、锁释放时间可以通过运行时配置（ResourceUpdater#setWriteLockWaitTimeMilliSecond等）在所有节点统一设置，
+ * 运行时配置中没有设置时使用这里的值
  * @date 2021/10/14 2:58 下午
  */
 public class Const {
     /**
      * 信号量等待超时时间 毫秒
+     * @deprecated 资源不足时立即失败，不再等待
      */
+    @Deprecated
     public static long semaphoreWaitTimeMilliSecond = 300;
 
     /**
      * 读锁等待超时时间 毫秒
+     * @deprecated 更新操作不再加读锁，由信号量代数保证与重新初始化并发时的正确性
      */
+    @Deprecated
     public static long semaphoreReadLockWaitTimeMilliSecond = 300;
 
     /**
@@ -24,4 +30,10 @@ public class Const {
      * 锁默认释放时间 毫秒
      */
     public static long semaphoreLockLeaseTimeMilliSecond = 60000;
+
+    /**
+     * 提交栅栏登记的过期时间 毫秒
+     * 登记之后进程崩溃没有注销时，重新初始化最多等到过期，之后不再等待
+     */
+    public static long commitFenceMilliSecond = 30000;
 }
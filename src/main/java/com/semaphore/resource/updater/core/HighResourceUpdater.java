@@ -5,6 +5,10 @@ import com.semaphore.resource.updater.exceptions.LockWaitException;
 import com.semaphore.resource.updater.exceptions.ResourceRunException;
 import com.semaphore.resource.updater.exceptions.ResourceUpdateException;
 import com.semaphore.resource.updater.cache.CacheAccessor;
+import com.semaphore.resource.updater.db.DbAccessor;
+import com.semaphore.resource.updater.metrics.Operation;
+import com.semaphore.resource.updater.metrics.Stage;
+import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RedissonClient;
 import org.springframework.transaction.support.TransactionSynchronization;
 import org.springframework.transaction.support.TransactionSynchronizationAdapter;
@@ -21,7 +25,13 @@ import java.util.stream.Collectors;
  *
  * @date 2022/1/21 2:11 PM
  */
+@Slf4j
 public class HighResourceUpdater extends ResourceUpdater{
+    /**
+     * 到期预留的清理 未开启时为null
+     */
+    private ReservationSweeper reservationSweeper;
+
     /**
      * 构造
      *
@@ -43,6 +53,25 @@ public class HighResourceUpdater extends ResourceUpdater{
         super(dataSource, transactionTemplate, redissonClient, dbResourceTableName, dbResourceKeyColumnName, dbResourceAvailablePermitColumnName, dbResourcePreLockPermitColumnName);
     }
 
+    /**
+     * 预热时同时预热预占资源信号量
+     * @return
+     */
+    @Override
+    protected boolean preloadPreLocked() {
+        return true;
+    }
+
+    /**
+     * 可用与预占之间的转移（trySubtractAvailableAddPreLock、trySubtractPreLockAddAvailable）是否一次往返原子地完成
+     * 需要同一资源的可用、预占信号量在同一个slot：非cluster模式，或者开启了hash tag
+     * @see CacheAccessor#setAtomicTransfer(boolean)
+     * @param enabled
+     */
+    public void setAtomicTransfer(boolean enabled){
+        CacheAccessor.setAtomicTransfer(enabled);
+    }
+
     /**
      * 查询预占资源数量
      * @param queryResourceParam
@@ -52,12 +81,36 @@ public class HighResourceUpdater extends ResourceUpdater{
             throws LockWaitException, InterruptedException {
         List<UpdateResourceParam> updateResourceParamList = new ArrayList<>(1);
         updateResourceParamList.add(UpdateResourceParam.builder().resourceId(queryResourceParam.getResourceId()).build());
-        //检查预占资源信号量是否初始化 否则进行初始化
-        CacheAccessor.checkPreLockedSemaphoreInitializedOrInit(updateResourceParamList,dbAccessor);
-        //检查是否存在不一致地预占资源Key
-        checkNotConsistencePreLockedResourceAndInit(updateResourceParamList);
+        UpdateContext context = UpdateContext.acquire(Operation.QUERY_PRE_LOCKED);
+        try {
+            //预检 预占资源信号量未初始化或者不一致的进行初始化
+            preflightAndInit(context, updateResourceParamList,false,true);
 
-        return CacheAccessor.queryPreLocked(queryResourceParam);
+            long start = System.nanoTime();
+            QueryResourceResult queryResourceResult = CacheAccessor.queryPreLocked(queryResourceParam);
+            recordStage(context, Stage.CACHE, start);
+            return queryResourceResult;
+        }finally {
+            recordContext(context);
+            context.release();
+        }
+    }
+
+    /**
+     * 查询预占资源数量 允许读取本地近端缓存
+     * 近端缓存中存在且不超过maxStaleMilliSecond时直接返回，不访问redis
+     * @see ResourceUpdater#enableNearCache(int)
+     * @param queryResourceParam
+     * @param maxStaleMilliSecond 可接受的最大过期时间 毫秒
+     * @return
+     */
+    public QueryResourceResult queryPreLocked(QueryResourceParam queryResourceParam, long maxStaleMilliSecond)
+            throws LockWaitException, InterruptedException {
+        QueryResourceResult queryResourceResult = CacheAccessor.queryPreLockedFromNearCache(queryResourceParam, maxStaleMilliSecond);
+        if(Objects.nonNull(queryResourceResult)){
+            return queryResourceResult;
+        }
+        return queryPreLocked(queryResourceParam);
     }
 
     /**
@@ -71,17 +124,23 @@ public class HighResourceUpdater extends ResourceUpdater{
                 .stream()
                 .map(queryResourceParam -> UpdateResourceParam.builder().resourceId(queryResourceParam.getResourceId()).build())
                 .collect(Collectors.toList());
-        //检查预占资源信号量是否初始化 否则进行初始化
-        CacheAccessor.checkPreLockedSemaphoreInitializedOrInit(updateResourceParamList,dbAccessor);
-        //检查是否存在不一致地预占资源Key
-        checkNotConsistencePreLockedResourceAndInit(updateResourceParamList);
-
-        List<QueryResourceResult> resultList = new ArrayList<>();
-        for(QueryResourceParam queryResourceParam : queryResourceParamList){
-            QueryResourceResult queryResourceResult = queryPreLocked(queryResourceParam);
-            resultList.add(queryResourceResult);
+        UpdateContext context = UpdateContext.acquire(Operation.QUERY_PRE_LOCKED);
+        try {
+            //预检 预占资源信号量未初始化或者不一致的进行初始化
+            preflightAndInit(context, updateResourceParamList,false,true);
+
+            long start = System.nanoTime();
+            List<QueryResourceResult> resultList = new ArrayList<>();
+            for(QueryResourceParam queryResourceParam : queryResourceParamList){
+                QueryResourceResult queryResourceResult = CacheAccessor.queryPreLocked(queryResourceParam);
+                resultList.add(queryResourceResult);
+            }
+            recordStage(context, Stage.CACHE, start);
+            return resultList;
+        }finally {
+            recordContext(context);
+            context.release();
         }
-        return resultList;
     }
 
     /**
@@ -100,31 +159,48 @@ public class HighResourceUpdater extends ResourceUpdater{
         List<UpdateResourceParam> updateResourceParamList = new ArrayList<>(updateResourceParamSet);
         //防止死锁，resourceId排序
         updateResourceParamList.sort(Comparator.comparing(UpdateResourceParam::getResourceId));
-        //检查可用资源信号量是否初始化 否则进行初始化
-        CacheAccessor.checkAvailableSemaphoreInitializedOrInit(updateResourceParamList,dbAccessor);
-        //检查预占资源信号量是否初始化 否则进行初始化
-        CacheAccessor.checkPreLockedSemaphoreInitializedOrInit(updateResourceParamList,dbAccessor);
-        //检查是否存在不一致地可用资源Key
-        checkNotConsistenceAvailableResourceAndInit(updateResourceParamList);
-        //检查是否存在不一致地预占资源Key
-        checkNotConsistencePreLockedResourceAndInit(updateResourceParamList);
+        doTrySubtractAvailableAddPreLock(updateResourceParamList);
+    }
 
-        //注册事务回滚之后钩子
-        registerDbTransactionRollBackHock();
+    /**
+     * 扣减可用 增加预占（购物车）
+     * @see ResourceCart
+     * @param resourceCart 执行时原地排序并合并相同resourceId
+     * @throws ResourceUpdateException
+     * @throws LockWaitException
+     * @throws InterruptedException
+     * @throws DataUnConsistentException
+     */
+    public void trySubtractAvailableAddPreLock(ResourceCart resourceCart)
+            throws ResourceUpdateException, LockWaitException, InterruptedException, DataUnConsistentException {
+        if(Objects.isNull(resourceCart) || resourceCart.isEmpty()){
+            throw new ResourceRunException("trySubtractAvailableAddPreLock参数为空");
+        }
+        doTrySubtractAvailableAddPreLock(resourceCart.prepare());
+    }
 
-        List<String> resourceIdList = updateResourceParamList.stream().map(param -> param.getResourceId()).collect(Collectors.toList());
-        //加读锁
-        ReadWriteLock.availableTryLockRead(resourceIdList);
-        ReadWriteLock.preLockedTryLockRead(resourceIdList);
+    /**
+     * @param updateResourceParamList 已按resourceId排序
+     */
+    private void doTrySubtractAvailableAddPreLock(List<UpdateResourceParam> updateResourceParamList)
+            throws ResourceUpdateException, LockWaitException, InterruptedException, DataUnConsistentException {
+        //注册事务回滚之后钩子
+        UpdateContext context = acquireWithRollBackHock(Operation.SUBTRACT_AVAILABLE_ADD_PRE_LOCK);
+        //预检 可用及预占资源信号量未初始化或者不一致的进行初始化
+        preflightAndInit(context, updateResourceParamList,true,true);
 
         //更新
         try {
-            CacheAccessor.tryAcquireAvailableSemaphore(updateResourceParamList,dbAccessor);
-            CacheAccessor.tryLeasePreLockedSemaphore(updateResourceParamList,dbAccessor);
+            long start = System.nanoTime();
+            CacheAccessor.transferAvailableToPreLocked(context, updateResourceParamList,dbAccessor);
+            start = recordStage(context, Stage.CACHE, start);
             dbAccessor.subtractAvailableAndAddPreLockResource(updateResourceParamList);
+            recordStage(context, Stage.DB, start);
         }catch (UndeclaredThrowableException e){
+            recordFailure(context, e);
             throw new DataUnConsistentException("更新资源数量失败,errMsg:" + e.getUndeclaredThrowable().getMessage());
         }catch (Throwable e){
+            recordFailure(context, e);
             throw new ResourceUpdateException("更新资源数量失败,errMsg:" + e.getMessage());
         }
     }
@@ -146,32 +222,49 @@ public class HighResourceUpdater extends ResourceUpdater{
         List<UpdateResourceParam> updateResourceParamList = new ArrayList<>(updateResourceParamSet);
         //防止死锁，resourceId排序
         updateResourceParamList.sort(Comparator.comparing(UpdateResourceParam::getResourceId));
-        //检查可用资源信号量是否初始化 否则进行初始化
-        CacheAccessor.checkAvailableSemaphoreInitializedOrInit(updateResourceParamList,dbAccessor);
-        //检查预占资源信号量是否初始化 否则进行初始化
-        CacheAccessor.checkPreLockedSemaphoreInitializedOrInit(updateResourceParamList,dbAccessor);
-        //检查是否存在不一致地可用资源Key
-        checkNotConsistenceAvailableResourceAndInit(updateResourceParamList);
-        //检查是否存在不一致地预占资源Key
-        checkNotConsistencePreLockedResourceAndInit(updateResourceParamList);
+        doTrySubtractPreLockAddAvailable(updateResourceParamList);
+    }
 
-        //注册事务回滚之后钩子
-        registerDbTransactionRollBackHock();
+    /**
+     * 释放(扣减)预占 增加可用（购物车）
+     * @see ResourceCart
+     * @param resourceCart 执行时原地排序并合并相同resourceId
+     * @throws ResourceUpdateException
+     * @throws LockWaitException
+     * @throws InterruptedException
+     * @throws DataUnConsistentException
+     */
+    public void trySubtractPreLockAddAvailable(ResourceCart resourceCart)
+            throws ResourceUpdateException, LockWaitException, InterruptedException, DataUnConsistentException {
+        if(Objects.isNull(resourceCart) || resourceCart.isEmpty()){
+            throw new ResourceRunException("trySubtractPreLockAddAvailable参数为空");
+        }
+        doTrySubtractPreLockAddAvailable(resourceCart.prepare());
+    }
 
-        List<String> resourceIdList = updateResourceParamList.stream().map(param -> param.getResourceId()).collect(Collectors.toList());
-        //加读锁
-        ReadWriteLock.availableTryLockRead(resourceIdList);
-        ReadWriteLock.preLockedTryLockRead(resourceIdList);
+    /**
+     * @param updateResourceParamList 已按resourceId排序
+     */
+    private void doTrySubtractPreLockAddAvailable(List<UpdateResourceParam> updateResourceParamList)
+            throws ResourceUpdateException, LockWaitException, InterruptedException, DataUnConsistentException {
+        //注册事务回滚之后钩子
+        UpdateContext context = acquireWithRollBackHock(Operation.SUBTRACT_PRE_LOCK_ADD_AVAILABLE);
+        //预检 可用及预占资源信号量未初始化或者不一致的进行初始化
+        preflightAndInit(context, updateResourceParamList,true,true);
 
         //更新
         try {
+            long start = System.nanoTime();
             //因为如果先操作缓存信号量会导致可用数量缓存判断满足条件，但是数据库判断不满足的情况，且该操作低频，固先操作数据库
             dbAccessor.subtractPreLockedAndAddAvailableResource(updateResourceParamList);
-            CacheAccessor.tryAcquirePreLockedSemaphore(updateResourceParamList,dbAccessor);
-            CacheAccessor.tryLeaseAvailableSemaphore(updateResourceParamList,dbAccessor);
+            start = recordStage(context, Stage.DB, start);
+            CacheAccessor.transferPreLockedToAvailable(context, updateResourceParamList,dbAccessor);
+            recordStage(context, Stage.CACHE, start);
         }catch (UndeclaredThrowableException e){
+            recordFailure(context, e);
             throw new DataUnConsistentException("更新资源数量失败,errMsg:" + e.getUndeclaredThrowable().getMessage());
         }catch (Throwable e){
+            recordFailure(context, e);
             throw new ResourceUpdateException("更新资源数量失败,errMsg:" + e.getMessage());
         }
     }
@@ -185,22 +278,47 @@ public class HighResourceUpdater extends ResourceUpdater{
         List<UpdateResourceParam> updateResourceParamList = new ArrayList<>(updateResourceParamSet);
         //防止死锁，resourceId排序
         updateResourceParamList.sort(Comparator.comparing(UpdateResourceParam::getResourceId));
-        //检查预占资源信号量是否初始化 否则进行初始化
-        CacheAccessor.checkPreLockedSemaphoreInitializedOrInit(updateResourceParamList,dbAccessor);
-        //检查是否存在不一致地预占资源Key
-        checkNotConsistencePreLockedResourceAndInit(updateResourceParamList);
+        doTrySubtractPreLock(updateResourceParamList);
+    }
+
+    /**
+     * 扣减预占（购物车）
+     * @see ResourceCart
+     * @param resourceCart 执行时原地排序并合并相同resourceId
+     * @throws ResourceUpdateException
+     * @throws LockWaitException
+     * @throws InterruptedException
+     * @throws DataUnConsistentException
+     */
+    public void trySubtractPreLock(ResourceCart resourceCart)
+            throws ResourceUpdateException, LockWaitException, InterruptedException, DataUnConsistentException {
+        if(Objects.isNull(resourceCart) || resourceCart.isEmpty()){
+            throw new ResourceRunException("trySubtractPreLock参数为空");
+        }
+        doTrySubtractPreLock(resourceCart.prepare());
+    }
+
+    /**
+     * @param updateResourceParamList 已按resourceId排序
+     */
+    private void doTrySubtractPreLock(List<UpdateResourceParam> updateResourceParamList)
+            throws ResourceUpdateException, LockWaitException, InterruptedException, DataUnConsistentException {
         //注册事务回滚之后钩子
-        registerDbTransactionRollBackHock();
-        //加读锁
-        List<String> resourceIdList = updateResourceParamList.stream().map(param -> param.getResourceId()).collect(Collectors.toList());
-        ReadWriteLock.preLockedTryLockRead(resourceIdList);
+        UpdateContext context = acquireWithRollBackHock(Operation.SUBTRACT_PRE_LOCK);
+        //预检 预占资源信号量未初始化或者不一致的进行初始化
+        preflightAndInit(context, updateResourceParamList,false,true);
         //更新
         try {
-            CacheAccessor.tryAcquirePreLockedSemaphore(updateResourceParamList,dbAccessor);
+            long start = System.nanoTime();
+            CacheAccessor.tryAcquirePreLockedSemaphore(context, updateResourceParamList,dbAccessor);
+            start = recordStage(context, Stage.CACHE, start);
             dbAccessor.subtractPreLockedResource(updateResourceParamList);
+            recordStage(context, Stage.DB, start);
         }catch (UndeclaredThrowableException e){
+            recordFailure(context, e);
             throw new DataUnConsistentException("更新资源数量失败,errMsg:" + e.getUndeclaredThrowable().getMessage());
         }catch (Throwable e){
+            recordFailure(context, e);
             throw new ResourceUpdateException("更新资源数量失败,errMsg:" + e.getMessage());
         }
     }
@@ -222,49 +340,211 @@ public class HighResourceUpdater extends ResourceUpdater{
         //防止死锁，resourceId排序
         updateResourceParamList.sort(Comparator.comparing(UpdateResourceParam::getResourceId));
         //注册事务回滚之后钩子
-        registerDbTransactionRollBackHock();
-        //检查预占资源信号量是否初始化 否则进行初始化
-        CacheAccessor.checkPreLockedSemaphoreInitializedOrInit(updateResourceParamList,dbAccessor);
-        //加读锁
-        List<String> resourceIdList = updateResourceParamList.stream().map(param -> param.getResourceId()).collect(Collectors.toList());
-        ReadWriteLock.preLockedTryLockRead(resourceIdList);
+        UpdateContext context = acquireWithRollBackHock(Operation.ADD_PRE_LOCK);
+        //预检 预占资源信号量未初始化或者不一致的进行初始化
+        preflightAndInit(context, updateResourceParamList,false,true);
         //增加
         try {
+            long start = System.nanoTime();
             dbAccessor.addPreLockResource(updateResourceParamList);
-            CacheAccessor.tryLeasePreLockedSemaphore(updateResourceParamList,dbAccessor);
+            start = recordStage(context, Stage.DB, start);
+            CacheAccessor.tryLeasePreLockedSemaphore(context, updateResourceParamList,dbAccessor);
+            recordStage(context, Stage.CACHE, start);
         }catch (UndeclaredThrowableException e){
+            recordFailure(context, e);
             throw new DataUnConsistentException("增加预占资源数量失败,errMsg:" + e.getUndeclaredThrowable().getMessage());
         }catch (Throwable e){
+            recordFailure(context, e);
             throw new ResourceUpdateException("增加预占资源数量失败,errMsg:" + e.getMessage());
         }
     }
 
+    /**
+     * 预留资源：扣减可用 增加预占，并记录到期时间
+     * 需要在事务中调用，预留状态（数据库）与资源一起提交，事务提交之后才把预留保存到redis；到期未确认或取消的预留由清理任务释放（预占转回可用）
+     * 保存预留失败时只打日志，此时预占不会自动释放（宁可少卖，不会超卖）
+     * @see HighResourceUpdater#enableReservationSweeper(int, long)
+     * @param updateResourceParamSet
+     * @param ttlMilliSecond 预留的有效时间 毫秒
+     * @return 预留id 用于确认或者取消
+     * @throws ResourceUpdateException
+     * @throws LockWaitException
+     * @throws InterruptedException
+     * @throws DataUnConsistentException
+     */
+    public String reserve(Set<UpdateResourceParam> updateResourceParamSet, long ttlMilliSecond)
+            throws ResourceUpdateException, LockWaitException, InterruptedException, DataUnConsistentException {
+        if(ttlMilliSecond <= 0){
+            throw new ResourceRunException("预留有效时间配置错误,ttlMilliSecond:" + ttlMilliSecond);
+        }
+        if(!TransactionSynchronizationManager.isSynchronizationActive()){
+            throw new ResourceRunException("预留需要在事务中执行");
+        }
+        trySubtractAvailableAddPreLock(updateResourceParamSet);
+        Reservation reservation = Reservation.builder()
+                .reservationId(UUID.randomUUID().toString())
+                .updateResourceParamList(new ArrayList<>(updateResourceParamSet))
+                .deadlineMilliSecond(System.currentTimeMillis() + ttlMilliSecond)
+                .build();
+        dbAccessor.insertReservation(reservation.getReservationId());
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                try {
+                    CacheAccessor.saveReservation(reservation);
+                }catch (Exception e){
+                    log.error("保存预留:{}失败:{}，预占需要人工释放", reservation.getReservationId(), e.getMessage());
+                }
+            }
+        });
+        return reservation.getReservationId();
+    }
+
+    /**
+     * 确认预留：扣减预留的预占
+     * 需要在事务中调用，事务回滚时预留放回
+     * @param reservationId
+     * @return 预留不存在（已确认、已取消或者已到期释放）时返回false
+     * @throws ResourceUpdateException
+     * @throws LockWaitException
+     * @throws InterruptedException
+     * @throws DataUnConsistentException
+     */
+    public boolean commitReservation(String reservationId)
+            throws ResourceUpdateException, LockWaitException, InterruptedException, DataUnConsistentException {
+        Reservation reservation = claimReservation(reservationId);
+        if(Objects.isNull(reservation) || !dbAccessor.finishReservation(reservationId, DbAccessor.RESERVATION_STATUS_COMMITTED)){
+            return false;
+        }
+        trySubtractPreLock(new HashSet<>(reservation.getUpdateResourceParamList()));
+        return true;
+    }
+
+    /**
+     * 取消预留：预留的预占转回可用
+     * 需要在事务中调用，事务回滚时预留放回
+     * @param reservationId
+     * @return 预留不存在（已确认、已取消或者已到期释放）时返回false
+     * @throws ResourceUpdateException
+     * @throws LockWaitException
+     * @throws InterruptedException
+     * @throws DataUnConsistentException
+     */
+    public boolean cancelReservation(String reservationId)
+            throws ResourceUpdateException, LockWaitException, InterruptedException, DataUnConsistentException {
+        Reservation reservation = claimReservation(reservationId);
+        if(Objects.isNull(reservation) || !dbAccessor.finishReservation(reservationId, DbAccessor.RESERVATION_STATUS_CANCELLED)){
+            return false;
+        }
+        trySubtractPreLockAddAvailable(new HashSet<>(reservation.getUpdateResourceParamList()));
+        return true;
+    }
+
+    /**
+     * 设置预留状态表名 默认为resource_reservation
+     * @param reservationTableName
+     */
+    public void setReservationTableName(String reservationTableName){
+        dbAccessor.setReservationTableName(reservationTableName);
+    }
+
+    /**
+     * 开启到期预留的清理 多个节点可以同时开启
+     * @param batchSize 每个周期最多释放的预留数
+     * @param intervalMilliSecond 检查的周期 毫秒
+     */
+    public synchronized void enableReservationSweeper(int batchSize, long intervalMilliSecond){
+        if(batchSize <= 0 || intervalMilliSecond <= 0){
+            throw new ResourceRunException("预留清理配置错误,batchSize:" + batchSize + " intervalMilliSecond:" + intervalMilliSecond);
+        }
+        disableReservationSweeper();
+        reservationSweeper = new ReservationSweeper(this, batchSize, intervalMilliSecond);
+    }
+
+    /**
+     * 关闭到期预留的清理
+     */
+    public synchronized void disableReservationSweeper(){
+        if(Objects.nonNull(reservationSweeper)){
+            reservationSweeper.shutdown();
+            reservationSweeper = null;
+        }
+    }
+
+    /**
+     * 已到期未释放的预留数
+     * @return
+     */
+    public int getExpiredReservationCount(){
+        return CacheAccessor.getExpiredReservationCount(System.currentTimeMillis());
+    }
+
+    /**
+     * 取出预留 并在事务回滚时放回
+     */
+    private Reservation claimReservation(String reservationId){
+        if(!TransactionSynchronizationManager.isSynchronizationActive()){
+            throw new ResourceRunException("预留:" + reservationId + "需要在事务中确认或取消");
+        }
+        Reservation reservation = CacheAccessor.claimReservation(reservationId);
+        if(Objects.isNull(reservation)){
+            return null;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                if(TransactionSynchronization.STATUS_COMMITTED != status){
+                    CacheAccessor.saveReservation(reservation);
+                }
+            }
+        });
+        return reservation;
+    }
+
     /**
      * 删除预占资源信号量缓存
      * @param resourceKey
      */
     public void deletePreLockCache(String resourceKey) throws LockWaitException, InterruptedException {
-        CacheAccessor.deletePreLockedResourceSemaphore(resourceKey);
+        UpdateContext context = UpdateContext.acquire();
+        try {
+            CacheAccessor.deletePreLockedResourceSemaphore(context, resourceKey);
+        }finally {
+            context.release();
+        }
     }
 
     @Override
-    protected void registerDbTransactionRollBackHock() {
+    protected void registerDbTransactionRollBackHock(UpdateContext context) {
         TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void beforeCommit(boolean readOnly) {
+                //登记提交栅栏 提交之后到补扣完成之前重新初始化不会读取数据库
+                CacheAccessor.enterCommitFence(context);
+            }
+
             @Override
             public void afterCompletion(int status) {
+                long start = System.nanoTime();
                 if(TransactionSynchronization.STATUS_ROLLED_BACK == status){
                     //数据库回滚了 将缓存中的信号量也回滚
-                    CacheAccessor.leaseAcquiredAvailableSemaphore();
-                    CacheAccessor.acquireLeasedAvailableSemaphore();
-                    CacheAccessor.leaseAcquiredPreLockedSemaphore();
-                    CacheAccessor.acquireLeasedPreLockedSemaphore();
+                    CacheAccessor.leaseAcquiredAvailableSemaphore(context);
+                    CacheAccessor.acquireLeasedAvailableSemaphore(context);
+                    CacheAccessor.leaseAcquiredPreLockedSemaphore(context);
+                    CacheAccessor.acquireLeasedPreLockedSemaphore(context);
+                }else if(TransactionSynchronization.STATUS_COMMITTED == status){
+                    //期间信号量被重新初始化过 异步补上本次的增减
+                    CacheAccessor.reapplyIfEpochChanged(context);
+                }else {
+                    //状态未知 不补扣也不归还 注销提交栅栏
+                    CacheAccessor.exitCommitFence(context);
                 }
-                ReadWriteLock.leaseHoldAvailableReadLock();
-                ReadWriteLock.leaseHoldAvailableWriteLock();
-                ReadWriteLock.leaseHoldPreLockedReadLock();
-                ReadWriteLock.leaseHoldPreLockedWriteLock();
-                //清除所有ThreadLocal
-                clearAllThreadLocal();
+                ReadWriteLock.leaseHoldAvailableWriteLock(context);
+                ReadWriteLock.leaseHoldPreLockedWriteLock(context);
+                recordStage(context, Stage.ROLLBACK_HOOK, start);
+                recordContext(context);
+                //归还上下文
+                context.release();
             }
         });
     }
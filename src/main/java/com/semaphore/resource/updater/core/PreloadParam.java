@@ -0,0 +1,36 @@
+package com.semaphore.resource.updater.core;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.function.Consumer;
+
+/**
+ * 预热参数
+ * 不设置（0或者null）时使用默认值
+ *
+ * @date 2022/4/15 10:20 AM
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class PreloadParam {
+    public static final int DEFAULT_CHUNK_SIZE = 500;
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    /**
+     * 每批的资源数（一次数据库查询/游标读取，一批redis脚本）
+     */
+    private int chunkSize;
+    /**
+     * 同时写入redis的批次数
+     */
+    private int parallelism;
+    /**
+     * 进度回调 每批完成后调用，在预热线程中执行
+     */
+    private Consumer<PreloadProgress> progressListener;
+}
@@ -0,0 +1,48 @@
+package com.semaphore.resource.updater.core;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 预热进度 预热结束时作为结果返回
+ *
+ * @date 2022/4/15 10:20 AM
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class PreloadProgress {
+    /**
+     * 已读取的资源数
+     */
+    private long scanned;
+    /**
+     * 设置的可用资源信号量数
+     */
+    private long availableLoaded;
+    /**
+     * 设置的预占资源信号量数
+     */
+    private long preLockLoaded;
+    /**
+     * 跳过的资源数（条带化、不满足过滤条件、数据库中不存在）
+     */
+    private long skipped;
+    /**
+     * 写入失败的资源数 由第一次请求初始化
+     */
+    private long failed;
+    private long elapsedMilliSecond;
+    private boolean finished;
+
+    /**
+     * 每秒读取的资源数
+     * @return
+     */
+    public long getScannedPerSecond(){
+        return elapsedMilliSecond <= 0 ? scanned : scanned * 1000 / elapsedMilliSecond;
+    }
+}
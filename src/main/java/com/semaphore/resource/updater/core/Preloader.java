@@ -0,0 +1,211 @@
+package com.semaphore.resource.updater.core;
+
+import com.semaphore.resource.updater.cache.CacheAccessor;
+import com.semaphore.resource.updater.db.DbAccessor;
+import com.semaphore.resource.updater.exceptions.ResourceRunException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * 信号量预热（例如活动开始之前）
+ * 按批从数据库读取资源，多个线程并行写入redis，每批按slot分组一次往返
+ * 只设置不存在的信号量，已经存在的（已被请求初始化过）保持不变，可以在有流量时执行
+ *
+ * 每个实例只执行一次预热
+ *
+ * @date 2022/4/15 10:20 AM
+ */
+@Slf4j
+public class Preloader {
+    private final DbAccessor dbAccessor;
+    private final boolean preLocked;
+    private final int chunkSize;
+    private final int maxInFlight;
+    private final Consumer<PreloadProgress> progressListener;
+    private final ExecutorService executor;
+    /**
+     * 已提交未完成的批次 读取快于写入时阻塞读取
+     */
+    private final Semaphore inFlight;
+    private Set<String> stripedResourceIdSet;
+    private long startMilliSecond;
+
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong availableLoaded = new AtomicLong();
+    private final AtomicLong preLockLoaded = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param dbAccessor
+     * @param preLocked 是否同时预热预占资源信号量
+     * @param preloadParam
+     */
+    public Preloader(DbAccessor dbAccessor, boolean preLocked, PreloadParam preloadParam){
+        this.dbAccessor = dbAccessor;
+        this.preLocked = preLocked;
+        this.chunkSize = preloadParam.getChunkSize() > 0 ? preloadParam.getChunkSize() : PreloadParam.DEFAULT_CHUNK_SIZE;
+        int parallelism = preloadParam.getParallelism() > 0 ? preloadParam.getParallelism() : PreloadParam.DEFAULT_PARALLELISM;
+        this.maxInFlight = parallelism * 2;
+        this.progressListener = preloadParam.getProgressListener();
+        this.inFlight = new Semaphore(maxInFlight);
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "resource-preloader-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 预热给定的资源 每批一次数据库查询，并行执行
+     * @param resourceIdList
+     * @return
+     */
+    public PreloadProgress preload(List<String> resourceIdList){
+        start();
+        try {
+            for (int from = 0; from < resourceIdList.size(); from += chunkSize) {
+                List<String> chunk = new ArrayList<>(resourceIdList.subList(from, Math.min(from + chunkSize, resourceIdList.size())));
+                submit(chunk.size(), () -> {
+                    List<ResourcePermit> resourcePermitList = dbAccessor.queryResource(chunk);
+                    scanned.addAndGet(chunk.size());
+                    skipped.addAndGet(chunk.size() - resourcePermitList.size());
+                    load(resourcePermitList);
+                });
+            }
+            return finish();
+        }finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 流式读取全表预热
+     * @param filter 为null时预热全部资源
+     * @return
+     */
+    public PreloadProgress preload(Predicate<ResourcePermit> filter){
+        start();
+        try {
+            List<List<ResourcePermit>> buffer = new ArrayList<>(1);
+            buffer.add(new ArrayList<>(chunkSize));
+            dbAccessor.streamResource(chunkSize, resourcePermit -> {
+                scanned.incrementAndGet();
+                if(Objects.nonNull(filter) && !filter.test(resourcePermit)){
+                    skipped.incrementAndGet();
+                    return;
+                }
+                List<ResourcePermit> chunk = buffer.get(0);
+                chunk.add(resourcePermit);
+                if(chunk.size() >= chunkSize){
+                    submit(chunk.size(), () -> load(chunk));
+                    buffer.set(0, new ArrayList<>(chunkSize));
+                }
+            });
+            List<ResourcePermit> chunk = buffer.get(0);
+            if(!chunk.isEmpty()){
+                submit(chunk.size(), () -> load(chunk));
+            }
+            return finish();
+        }finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void start(){
+        startMilliSecond = System.currentTimeMillis();
+        //条带化的资源需要按条带初始化 不预热
+        stripedResourceIdSet = CacheAccessor.getAvailableStripedResourceIds();
+    }
+
+    private void load(List<ResourcePermit> resourcePermitList){
+        List<ResourcePermit> loadList = new ArrayList<>(resourcePermitList.size());
+        for(ResourcePermit resourcePermit : resourcePermitList){
+            if(stripedResourceIdSet.contains(resourcePermit.getResourceId())){
+                skipped.incrementAndGet();
+            }else {
+                loadList.add(resourcePermit);
+            }
+        }
+        if(loadList.isEmpty()){
+            return;
+        }
+        int[] loaded = CacheAccessor.preloadSemaphorePermit(loadList, preLocked);
+        availableLoaded.addAndGet(loaded[0]);
+        preLockLoaded.addAndGet(loaded[1]);
+    }
+
+    /**
+     * 提交一批 正在执行的批次已满时等待
+     * 失败的批次只记录，其中的资源由第一次请求初始化
+     * @param size 批次中的资源数
+     * @param task
+     */
+    private void submit(int size, Runnable task){
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResourceRunException("预热被中断");
+        }
+        executor.execute(() -> {
+            try {
+                task.run();
+            }catch (Exception e){
+                failed.addAndGet(size);
+                log.warn("预热失败{}个资源:{}", size, e.getMessage());
+            }finally {
+                report(snapshot(false));
+                inFlight.release();
+            }
+        });
+    }
+
+    private PreloadProgress finish(){
+        //等待所有批次完成
+        inFlight.acquireUninterruptibly(maxInFlight);
+        inFlight.release(maxInFlight);
+        PreloadProgress progress = snapshot(true);
+        log.info("预热完成 读取:{} 可用:{} 预占:{} 跳过:{} 失败:{} 耗时:{}ms 每秒:{}", progress.getScanned(), progress.getAvailableLoaded(),
+                progress.getPreLockLoaded(), progress.getSkipped(), progress.getFailed(), progress.getElapsedMilliSecond(), progress.getScannedPerSecond());
+        report(progress);
+        return progress;
+    }
+
+    private PreloadProgress snapshot(boolean finished){
+        return PreloadProgress.builder()
+                .scanned(scanned.get())
+                .availableLoaded(availableLoaded.get())
+                .preLockLoaded(preLockLoaded.get())
+                .skipped(skipped.get())
+                .failed(failed.get())
+                .elapsedMilliSecond(System.currentTimeMillis() - startMilliSecond)
+                .finished(finished)
+                .build();
+    }
+
+    private void report(PreloadProgress progress){
+        if(Objects.isNull(progressListener)){
+            return;
+        }
+        try {
+            synchronized (this){
+                progressListener.accept(progress);
+            }
+        }catch (Exception e){
+            log.warn("预热进度回调失败:{}", e.getMessage());
+        }
+    }
+}
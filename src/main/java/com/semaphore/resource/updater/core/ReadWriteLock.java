@@ -1,145 +1,84 @@
 package com.semaphore.resource.updater.core;
 
 import com.semaphore.resource.updater.exceptions.LockWaitException;
+import com.semaphore.resource.updater.exceptions.ResourceRunException;
 import com.semaphore.resource.updater.cache.CacheAccessor;
+import com.semaphore.resource.updater.cache.KeyLayout;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RFuture;
 import org.redisson.api.RLock;
 import org.redisson.api.RReadWriteLock;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
 /**
+ * 信号量初始化、删除时使用的写锁 只在初始化者之间互斥
+ * 更新操作不加锁，与重新初始化并发时由信号量的代数保证回滚、补扣的正确性
  *
  * @date 2021/10/18 8:30 下午
  */
+@Slf4j
 public class ReadWriteLock {
     public static final String AVAILABLE_SEMAPHORE_LOCK_PREFIX = "available_semaphore_lock_prefix:";
     public static final String PRE_LOCKED_SEMAPHORE_LOCK_PREFIX = "pre_locked_semaphore_lock_prefix:";
 
-    private static final ThreadLocal<List<RLock>> HOLD_AVAILABLE_READ_LOCK = new ThreadLocal<>();
-    private static final ThreadLocal<List<RLock>> HOLD_PRE_LOCKED_READ_LOCK = new ThreadLocal<>();
-
-    private static final ThreadLocal<List<RLock>> HOLD_AVAILABLE_WRITE_LOCK = new ThreadLocal<>();
-    private static final ThreadLocal<List<RLock>> HOLD_PRE_LOCKED_WRITE_LOCK = new ThreadLocal<>();
-
-    public static void availableTryLockWrite(String resourceId) throws LockWaitException, InterruptedException {
-        RReadWriteLock rReadWriteLock = CacheAccessor.redissonClient.getReadWriteLock(AVAILABLE_SEMAPHORE_LOCK_PREFIX + resourceId);
+    public static void availableTryLockWrite(UpdateContext context, String resourceId) throws LockWaitException, InterruptedException {
+        RReadWriteLock rReadWriteLock = CacheAccessor.redissonClient.getReadWriteLock(KeyLayout.key(AVAILABLE_SEMAPHORE_LOCK_PREFIX, resourceId));
         RLock writeLock = rReadWriteLock.writeLock();
         try {
-            boolean locked = writeLock.tryLock(Const.semaphoreWriteLockWaitTimeMilliSecond, Const.semaphoreLockLeaseTimeMilliSecond, TimeUnit.MILLISECONDS);
+            boolean locked = tryLock(context, writeLock, resourceId);
             if(locked){
                 //记录持有的写锁
-                addHoldAvailableWriteLock(writeLock);
+                addHoldAvailableWriteLock(context, writeLock);
                 return;
             }else {
                 throw new LockWaitException("资源:" + resourceId + "可用数量信号量写锁等待超时");
             }
         } catch (Exception e) {
             //释放掉持有的写锁
-            leaseHoldAvailableWriteLock();
+            leaseHoldAvailableWriteLock(context);
             throw e;
         }
     }
 
-    public static void availableTryLockWrite(List<String> resourceIdList) throws LockWaitException, InterruptedException {
+    public static void availableTryLockWrite(UpdateContext context, List<String> resourceIdList) throws LockWaitException, InterruptedException {
         try {
             for(String resourceId : resourceIdList){
-                availableTryLockWrite(resourceId);
+                availableTryLockWrite(context, resourceId);
             }
         }catch (Exception e){
-            leaseHoldAvailableWriteLock();
+            leaseHoldAvailableWriteLock(context);
             throw e;
         }
     }
 
-    public static void preLockedTryLockWrite(String resourceId) throws LockWaitException, InterruptedException {
-        RReadWriteLock rReadWriteLock = CacheAccessor.redissonClient.getReadWriteLock(PRE_LOCKED_SEMAPHORE_LOCK_PREFIX + resourceId);
+    public static void preLockedTryLockWrite(UpdateContext context, String resourceId) throws LockWaitException, InterruptedException {
+        RReadWriteLock rReadWriteLock = CacheAccessor.redissonClient.getReadWriteLock(KeyLayout.key(PRE_LOCKED_SEMAPHORE_LOCK_PREFIX, resourceId));
         RLock writeLock = rReadWriteLock.writeLock();
         try {
-            boolean locked = writeLock.tryLock(Const.semaphoreWriteLockWaitTimeMilliSecond, Const.semaphoreLockLeaseTimeMilliSecond, TimeUnit.MILLISECONDS);
+            boolean locked = tryLock(context, writeLock, resourceId);
             if(locked){
                 //记录持有的写锁
-                addHoldPreLockedWriteLock(writeLock);
+                addHoldPreLockedWriteLock(context, writeLock);
                 return;
             }else {
                 throw new LockWaitException("资源:" + resourceId + "预占数量信号量写锁等待超时");
             }
         } catch (Exception e) {
             //释放掉持有的写锁
-            leaseHoldPreLockedWriteLock();
+            leaseHoldPreLockedWriteLock(context);
             throw e;
         }
     }
 
-    public static void preLockedTryLockWrite(List<String> resourceIdList) throws LockWaitException, InterruptedException {
+    public static void preLockedTryLockWrite(UpdateContext context, List<String> resourceIdList) throws LockWaitException, InterruptedException {
         try {
             for(String resourceId : resourceIdList){
-                preLockedTryLockWrite(resourceId);
+                preLockedTryLockWrite(context, resourceId);
             }
         }catch (Exception e){
-            leaseHoldPreLockedWriteLock();
-            throw e;
-        }
-    }
-
-    public static void availableTryLockRead(String resourceId) throws LockWaitException, InterruptedException {
-        RReadWriteLock rReadWriteLock = CacheAccessor.redissonClient.getReadWriteLock(AVAILABLE_SEMAPHORE_LOCK_PREFIX + resourceId);
-        RLock readLock = rReadWriteLock.readLock();
-        try {
-            boolean locked = readLock.tryLock(Const.semaphoreReadLockWaitTimeMilliSecond, Const.semaphoreLockLeaseTimeMilliSecond, TimeUnit.MILLISECONDS);
-            if(locked){
-                //记录持有的读锁
-                addHoldAvailableReadLock(readLock);
-                return;
-            }else {
-                throw new LockWaitException("资源:" + resourceId + "可用数量信号量读锁等待超时");
-            }
-        } catch (Exception e) {
-            //释放掉持有的写锁
-            leaseHoldAvailableReadLock();
-            throw e;
-        }
-    }
-
-    public static void availableTryLockRead(List<String> resourceIdList) throws LockWaitException, InterruptedException {
-        try {
-            for(String resourceId : resourceIdList){
-                availableTryLockRead(resourceId);
-            }
-        }catch (Exception e){
-            leaseHoldAvailableReadLock();
-            throw e;
-        }
-    }
-
-    public static void preLockedTryLockRead(String resourceId) throws LockWaitException, InterruptedException {
-        RReadWriteLock rReadWriteLock = CacheAccessor.redissonClient.getReadWriteLock(PRE_LOCKED_SEMAPHORE_LOCK_PREFIX + resourceId);
-        RLock readLock = rReadWriteLock.readLock();
-        try {
-            boolean locked = readLock.tryLock(Const.semaphoreReadLockWaitTimeMilliSecond, Const.semaphoreLockLeaseTimeMilliSecond, TimeUnit.MILLISECONDS);
-            if(locked){
-                //记录持有的读锁
-                addHoldPreLockedReadLock(readLock);
-                return;
-            }else {
-                throw new LockWaitException("资源:" + resourceId + "预占数量信号量读锁等待超时");
-            }
-        } catch (Exception e) {
-            //释放掉持有的写锁
-            leaseHoldPreLockedReadLock();
-            throw e;
-        }
-    }
-
-    public static void preLockedTryLockRead(List<String> resourceIdList) throws LockWaitException, InterruptedException {
-        try {
-            for(String resourceId : resourceIdList){
-                preLockedTryLockRead(resourceId);
-            }
-        }catch (Exception e){
-            leaseHoldPreLockedReadLock();
+            leaseHoldPreLockedWriteLock(context);
             throw e;
         }
     }
@@ -148,82 +87,50 @@ public class ReadWriteLock {
     //======
     //======
 
-    private static void addHoldAvailableWriteLock(RLock writeLock){
-        List<RLock> holdWriteLock = HOLD_AVAILABLE_WRITE_LOCK.get();
-        if(Objects.isNull(holdWriteLock)){
-            holdWriteLock = new ArrayList<>();
-            HOLD_AVAILABLE_WRITE_LOCK.set(holdWriteLock);
+    /**
+     * 以上下文的lockOwnerId作为持有者加锁（可中断）
+     * 等待时间、释放时间取本节点缓存的运行时配置
+     * @param context
+     * @param lock
+     * @param resourceId
+     * @return
+     * @throws InterruptedException
+     */
+    private static boolean tryLock(UpdateContext context, RLock lock, String resourceId) throws InterruptedException {
+        context.addRedisRoundTrips(1);
+        RFuture<Boolean> future = lock.tryLockAsync(CacheAccessor.getWriteLockWaitTimeMilliSecond(resourceId),
+                CacheAccessor.getLockLeaseTimeMilliSecond(resourceId), TimeUnit.MILLISECONDS, context.getLockOwnerId());
+        future.await();
+        if(!future.isSuccess()){
+            throw future.cause() instanceof RuntimeException
+                    ? (RuntimeException) future.cause()
+                    : new ResourceRunException("资源锁:" + lock.getName() + "加锁失败:" + future.cause().getMessage());
         }
-        holdWriteLock.add(writeLock);
+        return future.getNow();
     }
 
-    public static void leaseHoldAvailableWriteLock(){
-        List<RLock> holdWriteLock = HOLD_AVAILABLE_WRITE_LOCK.get();
-        if(Objects.isNull(holdWriteLock)){
-            return;
-        }
-        holdWriteLock.forEach(writeLock -> writeLock.unlock());
-        HOLD_AVAILABLE_WRITE_LOCK.remove();
+    private static void unlock(UpdateContext context, RLock lock){
+        context.addRedisRoundTrips(1);
+        lock.unlockAsync(context.getLockOwnerId()).syncUninterruptibly();
     }
 
-    private static void addHoldPreLockedWriteLock(RLock writeLock){
-        List<RLock> holdWriteLock = HOLD_PRE_LOCKED_WRITE_LOCK.get();
-        if(Objects.isNull(holdWriteLock)){
-            holdWriteLock = new ArrayList<>();
-            HOLD_PRE_LOCKED_WRITE_LOCK.set(holdWriteLock);
-        }
-        holdWriteLock.add(writeLock);
+    private static void addHoldAvailableWriteLock(UpdateContext context, RLock writeLock){
+        context.getHoldAvailableWriteLock().add(writeLock);
     }
 
-    public static void leaseHoldPreLockedWriteLock(){
-        List<RLock> holdWriteLock = HOLD_PRE_LOCKED_WRITE_LOCK.get();
-        if(Objects.isNull(holdWriteLock)){
-            return;
-        }
-        holdWriteLock.forEach(writeLock -> writeLock.unlock());
-        HOLD_PRE_LOCKED_WRITE_LOCK.remove();
+    public static void leaseHoldAvailableWriteLock(UpdateContext context){
+        List<RLock> holdLock = context.getHoldAvailableWriteLock();
+        holdLock.forEach(lock -> unlock(context, lock));
+        holdLock.clear();
     }
 
-    private static void addHoldAvailableReadLock(RLock readLock){
-        List<RLock> holdReadLock = HOLD_AVAILABLE_READ_LOCK.get();
-        if(Objects.isNull(holdReadLock)){
-            holdReadLock = new ArrayList<>();
-            HOLD_AVAILABLE_READ_LOCK.set(holdReadLock);
-        }
-        holdReadLock.add(readLock);
-    }
-
-    public static void leaseHoldAvailableReadLock(){
-        List<RLock> holdReadLock = HOLD_AVAILABLE_READ_LOCK.get();
-        if(Objects.isNull(holdReadLock)){
-            return;
-        }
-        holdReadLock.forEach(readLock -> readLock.unlock());
-        HOLD_AVAILABLE_READ_LOCK.remove();
-    }
-
-    private static void addHoldPreLockedReadLock(RLock readLock){
-        List<RLock> holdReadLock = HOLD_PRE_LOCKED_READ_LOCK.get();
-        if(Objects.isNull(holdReadLock)){
-            holdReadLock = new ArrayList<>();
-            HOLD_PRE_LOCKED_READ_LOCK.set(holdReadLock);
-        }
-        holdReadLock.add(readLock);
-    }
-
-    public static void leaseHoldPreLockedReadLock(){
-        List<RLock> holdReadLock = HOLD_PRE_LOCKED_READ_LOCK.get();
-        if(Objects.isNull(holdReadLock)){
-            return;
-        }
-        holdReadLock.forEach(readLock -> readLock.unlock());
-        HOLD_PRE_LOCKED_READ_LOCK.remove();
+    private static void addHoldPreLockedWriteLock(UpdateContext context, RLock writeLock){
+        context.getHoldPreLockedWriteLock().add(writeLock);
     }
 
-    public static void clearThreadLocal() {
-        HOLD_AVAILABLE_READ_LOCK.remove();
-        HOLD_PRE_LOCKED_READ_LOCK.remove();
-        HOLD_AVAILABLE_WRITE_LOCK.remove();
-        HOLD_PRE_LOCKED_WRITE_LOCK.remove();
+    public static void leaseHoldPreLockedWriteLock(UpdateContext context){
+        List<RLock> holdLock = context.getHoldPreLockedWriteLock();
+        holdLock.forEach(lock -> unlock(context, lock));
+        holdLock.clear();
     }
 }
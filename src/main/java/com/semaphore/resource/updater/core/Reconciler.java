@@ -0,0 +1,201 @@
+package com.semaphore.resource.updater.core;
+
+import com.semaphore.resource.updater.cache.CacheAccessor;
+import com.semaphore.resource.updater.db.DbAccessor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 不一致资源的后台修复
+ * 标记不一致时资源同时加入修复队列（redis set），后台线程从队列中批量取出，批量查询数据库后在写锁下重新初始化
+ * 请求不再同步重新初始化不一致的资源
+ *
+ * 多个节点可以同时开启，每个资源只会被一个节点取出；修复失败时放回队列
+ * 每秒修复的资源数与同时修复的批次数都有上限，避免大量资源同时不一致时压垮数据库
+ *
+ * @date 2022/4/14 2:30 PM
+ */
+@Slf4j
+public class Reconciler {
+    /**
+     * 检查队列的周期 毫秒
+     */
+    private static final long POLL_INTERVAL_MILLI_SECOND = 100;
+
+    private final DbAccessor dbAccessor;
+    private final int batchSize;
+    private final int maxPerSecond;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService workerExecutor;
+    /**
+     * 同时修复的批次数
+     */
+    private final Semaphore workerSlots;
+    /**
+     * 本秒剩余可以修复的资源数
+     */
+    private int budget;
+    private long budgetSecond;
+    private final AtomicLong reconciledCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * @param dbAccessor
+     * @param batchSize 每批最多修复的资源数（一次数据库查询）
+     * @param concurrency 同时修复的批次数
+     * @param maxPerSecond 每秒最多修复的资源数
+     */
+    public Reconciler(DbAccessor dbAccessor, int batchSize, int concurrency, int maxPerSecond){
+        this.dbAccessor = dbAccessor;
+        this.batchSize = batchSize;
+        this.maxPerSecond = maxPerSecond;
+        this.workerSlots = new Semaphore(concurrency);
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.workerExecutor = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "resource-reconciler-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "resource-reconciler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::poll, POLL_INTERVAL_MILLI_SECOND, POLL_INTERVAL_MILLI_SECOND, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 已修复的资源数
+     * @return
+     */
+    public long getReconciledCount(){
+        return reconciledCount.get();
+    }
+
+    /**
+     * 修复失败（已放回队列）的资源数
+     * @return
+     */
+    public long getFailedCount(){
+        return failedCount.get();
+    }
+
+    /**
+     * 停止 并等待正在修复的批次完成
+     * 队列中剩余的资源由其它节点或者下次开启时修复
+     */
+    public void shutdown(){
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+            workerExecutor.shutdown();
+            workerExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void poll(){
+        try {
+            pollQueue(CacheAccessor.RESOURCE_AVAILABLE_RECONCILE_QUEUE, true);
+            pollQueue(CacheAccessor.RESOURCE_PRE_LOCK_RECONCILE_QUEUE, false);
+        }catch (Exception e){
+            log.warn("读取修复队列失败:{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 在速率与并发的限制内 从队列中取出资源并提交修复
+     * @param reconcileQueue
+     * @param available true表示可用资源 false表示预占资源
+     */
+    private void pollQueue(String reconcileQueue, boolean available){
+        while (true){
+            int count = Math.min(batchSize, takeBudget());
+            if(count <= 0){
+                return;
+            }
+            if(!workerSlots.tryAcquire()){
+                returnBudget(count);
+                return;
+            }
+            List<String> resourceIdList;
+            try {
+                resourceIdList = CacheAccessor.pollReconcileQueue(reconcileQueue, count);
+            }catch (RuntimeException e){
+                workerSlots.release();
+                returnBudget(count);
+                throw e;
+            }
+            returnBudget(count - resourceIdList.size());
+            if(resourceIdList.isEmpty()){
+                workerSlots.release();
+                return;
+            }
+            //与其它初始化者按相同的顺序加写锁
+            Collections.sort(resourceIdList);
+            workerExecutor.execute(() -> {
+                try {
+                    reconcile(reconcileQueue, resourceIdList, available);
+                }finally {
+                    workerSlots.release();
+                }
+            });
+        }
+    }
+
+    private void reconcile(String reconcileQueue, List<String> resourceIdList, boolean available){
+        UpdateContext context = UpdateContext.acquire();
+        try {
+            //只重新初始化仍然标记为不一致的资源 已被请求或者其它节点初始化过的跳过
+            if(available){
+                CacheAccessor.initAvailableSemaphorePermit(context, resourceIdList, dbAccessor);
+            }else {
+                CacheAccessor.initPreLockedSemaphorePermit(context, resourceIdList, dbAccessor);
+            }
+            reconciledCount.addAndGet(context.getReinitialized());
+            if(context.getReinitialized() > 0){
+                log.info("后台修复不一致资源:{}", String.join(",", resourceIdList));
+            }
+        }catch (Exception e){
+            failedCount.addAndGet(resourceIdList.size());
+            log.warn("后台修复资源:{}失败:{}，放回修复队列", String.join(",", resourceIdList), e.getMessage());
+            try {
+                CacheAccessor.offerReconcileQueue(reconcileQueue, resourceIdList);
+            }catch (Exception offerException){
+                log.error("资源:{}放回修复队列失败:{}，等待再次标记或请求预检", String.join(",", resourceIdList), offerException.getMessage());
+            }
+        }finally {
+            context.release();
+        }
+    }
+
+    /**
+     * 取出本秒剩余的修复数量
+     * 只在调度线程中调用
+     * @return
+     */
+    private int takeBudget(){
+        long second = System.currentTimeMillis() / 1000;
+        if(second != budgetSecond){
+            budgetSecond = second;
+            budget = maxPerSecond;
+        }
+        int taken = budget;
+        budget = 0;
+        return taken;
+    }
+
+    private void returnBudget(int count){
+        budget += count;
+    }
+}
@@ -0,0 +1,30 @@
+package com.semaphore.resource.updater.core;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 预留 扣减可用、增加预占之后记录，到期未确认或者取消时由清理线程把预占转回可用
+ *
+ * @date 2022/4/19 2:15 PM
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class Reservation {
+    private String reservationId;
+    private List<UpdateResourceParam> updateResourceParamList;
+    /**
+     * 到期时间 毫秒时间戳
+     */
+    private long deadlineMilliSecond;
+    /**
+     * 清理时取出的租期到期时间 毫秒时间戳 不是由清理取出时为0
+     */
+    private long leaseDeadlineMilliSecond;
+}
@@ -0,0 +1,151 @@
+package com.semaphore.resource.updater.core;
+
+import com.semaphore.resource.updater.cache.CacheAccessor;
+import com.semaphore.resource.updater.db.DbAccessor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 到期预留的清理
+ * 周期性地从到期时间sorted set中以租期批量取出到期的预留，每个预留在独立的事务中把预占转回可用（数据库和缓存）
+ * 取出只是移到清理中，释放的事务提交之后才删除；释放失败时按原到期时间放回，下个周期重试；
+ * 节点在释放过程中宕机时，租期到期后由任意节点放回重新释放
+ * 多个节点可以同时开启，租期内每个预留只会被一个节点取出
+ * 释放时在同一个事务中把数据库中的预留状态从已预留改为到期释放，更新行数为0（已经被确认、取消或者释放过）时跳过，
+ * 因此租期失效、提交之后删除之前宕机等情况下重新取出的预留不会重复释放
+ *
+ * @date 2022/4/19 2:15 PM
+ */
+@Slf4j
+public class ReservationSweeper {
+    /**
+     * 取出的租期 毫秒 需要远大于释放一个预留的事务耗时
+     */
+    private static final long CLAIM_LEASE_MILLI_SECOND = 60000;
+
+    private final HighResourceUpdater resourceUpdater;
+    private final DbAccessor dbAccessor;
+    private final TransactionTemplate transactionTemplate;
+    private final int batchSize;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicLong releasedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+
+    /**
+     * @param resourceUpdater
+     * @param batchSize 每个周期最多释放的预留数
+     * @param intervalMilliSecond 检查的周期 毫秒
+     */
+    public ReservationSweeper(HighResourceUpdater resourceUpdater, int batchSize, long intervalMilliSecond){
+        this.resourceUpdater = resourceUpdater;
+        this.dbAccessor = resourceUpdater.dbAccessor;
+        this.transactionTemplate = dbAccessor.getTransactionTemplate();
+        this.batchSize = batchSize;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "resource-reservation-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::sweep, intervalMilliSecond, intervalMilliSecond, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 已释放的预留数
+     * @return
+     */
+    public long getReleasedCount(){
+        return releasedCount.get();
+    }
+
+    /**
+     * 释放失败（已放回）的次数
+     * @return
+     */
+    public long getFailedCount(){
+        return failedCount.get();
+    }
+
+    /**
+     * 已经结束（确认、取消或者释放过）而跳过的预留数
+     * @return
+     */
+    public long getSkippedCount(){
+        return skippedCount.get();
+    }
+
+    /**
+     * 停止 并等待正在执行的清理完成
+     */
+    public void shutdown(){
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sweep(){
+        List<Reservation> reservationList;
+        try {
+            reservationList = CacheAccessor.claimExpiredReservations(System.currentTimeMillis(), batchSize, CLAIM_LEASE_MILLI_SECOND);
+        }catch (Exception e){
+            log.warn("读取到期预留失败:{}", e.getMessage());
+            return;
+        }
+        for(Reservation reservation : reservationList){
+            release(reservation);
+        }
+    }
+
+    private void release(Reservation reservation){
+        try {
+            Boolean released = transactionTemplate.execute(status -> {
+                boolean finished = dbAccessor.finishReservation(reservation.getReservationId(), DbAccessor.RESERVATION_STATUS_EXPIRED);
+                if(finished){
+                    try {
+                        resourceUpdater.trySubtractPreLockAddAvailable(new HashSet<>(reservation.getUpdateResourceParamList()));
+                    }catch (Exception e){
+                        throw new IllegalStateException(e.getMessage(), e);
+                    }
+                }
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                    @Override
+                    public void afterCommit() {
+                        try {
+                            CacheAccessor.finishReservation(reservation);
+                        }catch (Exception e){
+                            log.error("删除已结束的预留:{}失败:{}，租期到期后会再次取出并跳过", reservation.getReservationId(), e.getMessage());
+                        }
+                    }
+                });
+                return finished;
+            });
+            if(Boolean.TRUE.equals(released)){
+                releasedCount.incrementAndGet();
+                log.info("释放到期预留:{}", reservation.getReservationId());
+            }else {
+                skippedCount.incrementAndGet();
+                log.info("到期预留:{}已经结束，跳过", reservation.getReservationId());
+            }
+        }catch (Exception e){
+            failedCount.incrementAndGet();
+            log.warn("释放到期预留:{}失败:{}，放回等待重试", reservation.getReservationId(), e.getMessage());
+            try {
+                CacheAccessor.returnReservation(reservation);
+            }catch (Exception returnException){
+                log.warn("预留:{}放回失败:{}，租期到期后重新释放", reservation.getReservationId(), returnException.getMessage());
+            }
+        }
+    }
+}
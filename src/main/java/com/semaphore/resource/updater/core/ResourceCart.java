@@ -0,0 +1,184 @@
+package com.semaphore.resource.updater.core;
+
+import com.semaphore.resource.updater.exceptions.ResourceRunException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * 可复用的批量资源参数（购物车）
+ * 以并行数组保存resourceId及数量，执行时原地排序、合并相同resourceId（数量相加），
+ * 复用内部的参数对象及列表，不再需要每次构造Set、复制到列表并排序
+ * 非线程安全，同一时间只能用于一次调用；调用所在的事务完成之后可以clear后复用
+ *
+ * @date 2022/4/22 4:30 PM
+ */
+public class ResourceCart {
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private String[] resourceIds;
+    private int[] nums;
+    private int size;
+    private UpdateResourceParam[] params;
+    private final ArrayList<UpdateResourceParam> paramList;
+
+    public ResourceCart(){
+        this(16);
+    }
+
+    public ResourceCart(int initialCapacity){
+        int capacity = Math.max(initialCapacity, 1);
+        this.resourceIds = new String[capacity];
+        this.nums = new int[capacity];
+        this.params = new UpdateResourceParam[capacity];
+        this.paramList = new ArrayList<>(capacity);
+    }
+
+    /**
+     * 添加资源 相同resourceId执行时数量相加
+     * @param resourceId
+     * @param num
+     * @return
+     */
+    public ResourceCart add(String resourceId, int num){
+        if(Objects.isNull(resourceId)){
+            throw new ResourceRunException("resourceId不能为空");
+        }
+        ensureCapacity(size + 1);
+        resourceIds[size] = resourceId;
+        nums[size] = num;
+        size++;
+        return this;
+    }
+
+    /**
+     * 批量添加资源
+     * @param resourceIds
+     * @param nums 与resourceIds一一对应
+     * @return
+     */
+    public ResourceCart addAll(String[] resourceIds, int[] nums){
+        if(resourceIds.length != nums.length){
+            throw new ResourceRunException("resourceIds与nums长度不一致");
+        }
+        ensureCapacity(size + resourceIds.length);
+        for (int i = 0; i < resourceIds.length; i++) {
+            add(resourceIds[i], nums[i]);
+        }
+        return this;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public boolean isEmpty(){
+        return size == 0;
+    }
+
+    /**
+     * 清空 保留已分配的数组及参数对象
+     */
+    public void clear(){
+        Arrays.fill(resourceIds, 0, size, null);
+        size = 0;
+        paramList.clear();
+    }
+
+    /**
+     * 按resourceId原地排序并合并相同resourceId，返回复用的参数列表
+     * 返回的列表及其中的参数对象在下一次prepare/clear之前有效
+     * @return
+     */
+    List<UpdateResourceParam> prepare(){
+        sort(0, size - 1);
+        int merged = 0;
+        for (int i = 0; i < size; i++) {
+            if(merged > 0 && resourceIds[merged - 1].equals(resourceIds[i])){
+                nums[merged - 1] += nums[i];
+                continue;
+            }
+            resourceIds[merged] = resourceIds[i];
+            nums[merged] = nums[i];
+            merged++;
+        }
+        Arrays.fill(resourceIds, merged, size, null);
+        size = merged;
+        paramList.clear();
+        for (int i = 0; i < size; i++) {
+            UpdateResourceParam param = params[i];
+            if(Objects.isNull(param)){
+                param = new UpdateResourceParam();
+                params[i] = param;
+            }
+            param.setResourceId(resourceIds[i]);
+            param.setNum(nums[i]);
+            paramList.add(param);
+        }
+        return paramList;
+    }
+
+    private void ensureCapacity(int capacity){
+        if(capacity <= resourceIds.length){
+            return;
+        }
+        int newCapacity = Math.max(capacity, resourceIds.length << 1);
+        resourceIds = Arrays.copyOf(resourceIds, newCapacity);
+        nums = Arrays.copyOf(nums, newCapacity);
+        params = Arrays.copyOf(params, newCapacity);
+        paramList.ensureCapacity(newCapacity);
+    }
+
+    /**
+     * 并行数组原地排序 小区间插入排序 其余快速排序
+     */
+    private void sort(int low, int high){
+        while(high - low >= INSERTION_SORT_THRESHOLD){
+            String pivot = resourceIds[(low + high) >>> 1];
+            int i = low;
+            int j = high;
+            while(i <= j){
+                while(resourceIds[i].compareTo(pivot) < 0){
+                    i++;
+                }
+                while(resourceIds[j].compareTo(pivot) > 0){
+                    j--;
+                }
+                if(i <= j){
+                    swap(i++, j--);
+                }
+            }
+            //先递归较小的一侧 限制递归深度
+            if(j - low < high - i){
+                sort(low, j);
+                low = i;
+            }else {
+                sort(i, high);
+                high = j;
+            }
+        }
+        for (int i = low + 1; i <= high; i++) {
+            String resourceId = resourceIds[i];
+            int num = nums[i];
+            int j = i - 1;
+            while(j >= low && resourceIds[j].compareTo(resourceId) > 0){
+                resourceIds[j + 1] = resourceIds[j];
+                nums[j + 1] = nums[j];
+                j--;
+            }
+            resourceIds[j + 1] = resourceId;
+            nums[j + 1] = num;
+        }
+    }
+
+    private void swap(int i, int j){
+        String resourceId = resourceIds[i];
+        resourceIds[i] = resourceIds[j];
+        resourceIds[j] = resourceId;
+        int num = nums[i];
+        nums[i] = nums[j];
+        nums[j] = num;
+    }
+}
@@ -1,8 +1,15 @@
 package com.semaphore.resource.updater.core;
 
 import com.semaphore.resource.updater.db.DbAccessor;
+import com.semaphore.resource.updater.db.DbUpdateStrategy;
+import com.semaphore.resource.updater.db.WriteBehindFlusher;
 import com.semaphore.resource.updater.exceptions.*;
 import com.semaphore.resource.updater.cache.CacheAccessor;
+import com.semaphore.resource.updater.cache.KeyLayout;
+import com.semaphore.resource.updater.cache.PreflightResult;
+import com.semaphore.resource.updater.metrics.Operation;
+import com.semaphore.resource.updater.metrics.ResourceMetrics;
+import com.semaphore.resource.updater.metrics.Stage;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RedissonClient;
 import org.springframework.transaction.support.TransactionSynchronization;
@@ -13,6 +20,7 @@ import org.springframework.transaction.support.TransactionTemplate;
 import javax.sql.DataSource;
 import java.lang.reflect.UndeclaredThrowableException;
 import java.util.*;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 /**
@@ -26,6 +34,20 @@ public class ResourceUpdater {
      * 数据库操作
      */
     protected DbAccessor dbAccessor;
+    /**
+     * 可用资源扣减异步落库
+     * 为null时表示未开启，同步落库
+     */
+    protected volatile WriteBehindFlusher writeBehindFlusher;
+    /**
+     * 不一致资源的后台修复
+     * 为null时表示未开启，请求同步重新初始化
+     */
+    protected volatile Reconciler reconciler;
+    /**
+     * 指标 默认不记录
+     */
+    protected volatile ResourceMetrics metrics = ResourceMetrics.NOOP;
 
     /**
      * 构造
@@ -66,13 +88,328 @@ public class ResourceUpdater {
             throw new ResourceRunException("dbResourcePreLockPermitColumnName不能为空");
         }
         CacheAccessor.redissonClient = redissonClient;
+        KeyLayout.setClusterMode(redissonClient.getConfig().isClusterConfig());
+        CacheAccessor.startRuntimeConfig();
+        CacheAccessor.migrateLegacyNotConsistence();
         dbAccessor = new DbAccessor(dataSource,transactionTemplate,dbResourceTableName,dbResourceKeyColumnName,dbResourceAvailablePermitColumnName,dbResourcePreLockPermitColumnName);
     }
 
+    /**
+     * 设置自动调节概率 所有节点生效
+     * 0-10 之间的整数 设置为0 表示永远不调节；设置为10 表示一定调节
+     * @param rate
+     */
     public void setAutoAdjustRate(int rate){
         CacheAccessor.setAutoAdjustRate(rate);
     }
 
+    /**
+     * 设置资源的自动调节概率 覆盖全局配置
+     * @param resourceId
+     * @param rate
+     */
+    public void setAutoAdjustRate(String resourceId, int rate){
+        CacheAccessor.setAutoAdjustRate(resourceId, rate);
+    }
+
+    /**
+     * 设置写锁等待超时时间 所有节点生效
+     * @param resourceId 为null时设置全局配置
+     * @param waitTimeMilliSecond
+     */
+    public void setWriteLockWaitTimeMilliSecond(String resourceId, long waitTimeMilliSecond){
+        CacheAccessor.setRuntimeConfig(CacheAccessor.WRITE_LOCK_WAIT_TIME, resourceId, waitTimeMilliSecond);
+    }
+
+    /**
+     * 设置锁默认释放时间 所有节点生效
+     * @param resourceId 为null时设置全局配置
+     * @param leaseTimeMilliSecond
+     */
+    public void setLockLeaseTimeMilliSecond(String resourceId, long leaseTimeMilliSecond){
+        CacheAccessor.setRuntimeConfig(CacheAccessor.LOCK_LEASE_TIME, resourceId, leaseTimeMilliSecond);
+    }
+
+    /**
+     * 删除资源的运行时配置覆盖 之后使用全局配置
+     * @param resourceId
+     */
+    public void removeRuntimeConfig(String resourceId){
+        CacheAccessor.removeRuntimeConfig(resourceId);
+    }
+
+    /**
+     * 设置批量更新数据库的方式
+     * @see DbUpdateStrategy
+     * @param dbUpdateStrategy
+     */
+    public void setDbUpdateStrategy(DbUpdateStrategy dbUpdateStrategy){
+        dbAccessor.setUpdateStrategy(dbUpdateStrategy);
+    }
+
+    /**
+     * 设置批量查询数据库时每条sql的最大资源数 超过时拆分成多批
+     * @param queryChunkSize
+     */
+    public void setDbQueryChunkSize(int queryChunkSize){
+        dbAccessor.setQueryChunkSize(queryChunkSize);
+    }
+
+    /**
+     * 批量查询数据库拆分成多批时并行执行（批量初始化、预热大量资源）
+     * @param threads 线程数 建议不超过连接池大小
+     */
+    public void enableParallelDbQuery(int threads){
+        dbAccessor.enableParallelQuery(threads);
+    }
+
+    /**
+     * 关闭并行查询
+     */
+    public void disableParallelDbQuery(){
+        dbAccessor.disableParallelQuery();
+    }
+
+    /**
+     * 开启redis cluster的hash tag key布局（key为 前缀{resourceId}）
+     * 同一资源的信号量、不一致标记、读写锁落在同一个slot，批量的预检与扣减按slot分组，每个slot一个脚本并行执行
+     * 需要在第一次使用之前设置，并且所有节点保持一致；切换后原有的key不再使用，由预检按数据库重新初始化
+     * redisson配置为cluster模式时自动开启，不能关闭（抛出ResourceRunException）
+     * @param enabled
+     */
+    public void setClusterHashTagEnabled(boolean enabled){
+        KeyLayout.setHashTagEnabled(enabled);
+    }
+
+    /**
+     * 设置指标
+     * 记录每次操作各阶段（预检、初始化、加锁、缓存、数据库、事务钩子）的耗时以及redis往返、等待超时、不一致、重新初始化的次数
+     * @see com.semaphore.resource.updater.metrics.HistogramResourceMetrics
+     * @param metrics
+     */
+    public void setMetrics(ResourceMetrics metrics){
+        if(Objects.isNull(metrics)){
+            throw new ResourceRunException("metrics不能为空");
+        }
+        this.metrics = metrics;
+    }
+
+    /**
+     * 开启本地近端缓存
+     * 适用于可以接受短暂过期数量的查询（例如商品详情页、购物车页）
+     * 其它节点扣减、释放、转移、重新初始化时通过信号量channel通知本节点失效；通知丢失时由查询时的maxStaleMilliSecond兜底
+     * 开启之后本节点的扣减、释放等脚本才会publish数量变化（cluster中广播到所有节点），需要在所有节点上一致地开启；
+     * 未开启的节点做的变化不通知，其它节点近端缓存中的数量最多过期maxStaleMilliSecond
+     * @param maximumSize 每类资源最多缓存的资源个数
+     */
+    public void enableNearCache(int maximumSize){
+        CacheAccessor.enableNearCache(maximumSize);
+    }
+
+    /**
+     * 关闭本地近端缓存
+     */
+    public void disableNearCache(){
+        CacheAccessor.disableNearCache();
+    }
+
+    /**
+     * 开启可用资源信号量的本地租借
+     * 单个扣减（trySubtractOneAvailable）时优先从本JVM预先借出的permit中扣减，减少对同一个redis key的访问
+     * 开启后queryAvailable查询到的数量不包含各节点借出未使用的部分
+     * @param minChunkSize 每次最少借出的数量
+     * @param maxChunkSize 每次最多借出的数量
+     * @param idleReturnMilliSecond 超过该时长没有请求，归还本地剩余的permit
+     */
+    public void enablePermitLeasing(int minChunkSize, int maxChunkSize, long idleReturnMilliSecond){
+        CacheAccessor.enablePermitLeasing(minChunkSize, maxChunkSize, idleReturnMilliSecond);
+    }
+
+    /**
+     * 关闭本地租借 归还本地剩余的permit
+     */
+    public void disablePermitLeasing(){
+        CacheAccessor.disablePermitLeasing();
+    }
+
+    /**
+     * 热点资源的可用资源信号量条带化
+     * 数量拆分到stripeCount个条带中，扣减时随机选择一个条带，不足时依次尝试相邻的条带，查询时对各条带求和
+     * 配置保存在redis中，所有节点共享；下一次请求时在写锁下按数据库数量重新初始化
+     * 条带化的资源不使用本地租借
+     * @param resourceId
+     * @param stripeCount 2-64
+     */
+    public void enableAvailableStriping(String resourceId, int stripeCount){
+        if(stripeCount < 2){
+            throw new ResourceRunException("条带数不能小于2");
+        }
+        CacheAccessor.setAvailableStripeCount(resourceId, stripeCount);
+    }
+
+    /**
+     * 取消条带化 下一次请求时合并回单个信号量
+     * @param resourceId
+     */
+    public void disableAvailableStriping(String resourceId){
+        CacheAccessor.setAvailableStripeCount(resourceId, 1);
+    }
+
+    /**
+     * 开启可用资源扣减的异步落库
+     * 开启后trySubtractAvailable/trySubtractOneAvailable在缓存扣减成功、事务提交之前把扣减量写入redis stream，由后台线程合并落库
+     * 数据库不再处于扣减的同步路径上；重新初始化可用资源时减掉未落库的扣减量
+     * @param consumerName 消费者名称 每个节点唯一且重启后保持不变
+     * @param batchSize 每次最多读取的消息数
+     * @param flushIntervalMilliSecond 落库周期 毫秒
+     */
+    public synchronized void enableWriteBehind(String consumerName, int batchSize, long flushIntervalMilliSecond){
+        enableWriteBehind(consumerName, batchSize, flushIntervalMilliSecond, WriteBehindFlusher.DEFAULT_CLAIM_IDLE_MILLI_SECOND);
+    }
+
+    /**
+     * 开启可用资源扣减的异步落库
+     * @see ResourceUpdater#enableWriteBehind(String, int, long)
+     * @param consumerName 消费者名称 每个节点唯一且重启后保持不变
+     * @param batchSize 每次最多读取的消息数
+     * @param flushIntervalMilliSecond 落库周期 毫秒
+     * @param claimIdleMilliSecond 其它节点未ack的消息空闲多久之后由本节点接管 毫秒
+     */
+    public synchronized void enableWriteBehind(String consumerName, int batchSize, long flushIntervalMilliSecond, long claimIdleMilliSecond){
+        enableWriteBehind(consumerName, batchSize, flushIntervalMilliSecond, claimIdleMilliSecond, WriteBehindFlusher.DEFAULT_MAX_DELIVERIES);
+    }
+
+    /**
+     * 开启可用资源扣减的异步落库
+     * @see ResourceUpdater#enableWriteBehind(String, int, long)
+     * @param consumerName 消费者名称 每个节点唯一且重启后保持不变
+     * @param batchSize 每次最多读取的消息数
+     * @param flushIntervalMilliSecond 落库周期 毫秒
+     * @param claimIdleMilliSecond 其它节点未ack的消息空闲多久之后由本节点接管 毫秒
+     * @param maxDeliveries 消息最多投递次数 数据库暂时不可用时消息留在待处理列表重试，超过之后转入死信
+     */
+    public synchronized void enableWriteBehind(String consumerName, int batchSize, long flushIntervalMilliSecond,
+                                               long claimIdleMilliSecond, int maxDeliveries){
+        disableWriteBehind();
+        writeBehindFlusher = new WriteBehindFlusher(dbAccessor, consumerName, batchSize, flushIntervalMilliSecond, claimIdleMilliSecond, maxDeliveries);
+    }
+
+    /**
+     * 设置异步落库已落库消息表名 默认为resource_write_behind_applied
+     * @param writeBehindAppliedTableName
+     */
+    public void setWriteBehindAppliedTableName(String writeBehindAppliedTableName){
+        dbAccessor.setWriteBehindAppliedTableName(writeBehindAppliedTableName);
+    }
+
+    /**
+     * 关闭异步落库
+     * 已写入stream的扣减量会在下次开启时继续落库
+     */
+    public synchronized void disableWriteBehind(){
+        if(Objects.nonNull(writeBehindFlusher)){
+            writeBehindFlusher.shutdown();
+            writeBehindFlusher = null;
+        }
+    }
+
+    /**
+     * 异步落库的积压消息数
+     * 未开启时返回0
+     * @return
+     */
+    public long getWriteBehindLag(){
+        WriteBehindFlusher flusher = writeBehindFlusher;
+        return Objects.isNull(flusher) ? 0 : flusher.getLag();
+    }
+
+    /**
+     * 开启不一致资源的后台修复
+     * 开启后请求不再同步重新初始化被标记为不一致的资源，也不因为不一致标记而失败，继续使用现有的信号量，由后台批量修复
+     * 修复之前缓存数量可能偏多（数据库更新时校验，失败）或者偏少（暂时提示资源不足）
+     * 未初始化的信号量仍然同步初始化
+     * @param batchSize 每批最多修复的资源数（一次数据库查询）
+     * @param concurrency 同时修复的批次数
+     * @param maxPerSecond 每秒最多修复的资源数
+     */
+    public synchronized void enableBackgroundReconcile(int batchSize, int concurrency, int maxPerSecond){
+        if(batchSize <= 0 || concurrency <= 0 || maxPerSecond <= 0){
+            throw new ResourceRunException("后台修复配置错误,batchSize:" + batchSize + " concurrency:" + concurrency + " maxPerSecond:" + maxPerSecond);
+        }
+        disableBackgroundReconcile();
+        reconciler = new Reconciler(dbAccessor, batchSize, concurrency, maxPerSecond);
+        CacheAccessor.setBackgroundReconcile(true);
+    }
+
+    /**
+     * 关闭后台修复 之后请求同步重新初始化不一致的资源
+     */
+    public synchronized void disableBackgroundReconcile(){
+        CacheAccessor.setBackgroundReconcile(false);
+        if(Objects.nonNull(reconciler)){
+            reconciler.shutdown();
+            reconciler = null;
+        }
+    }
+
+    /**
+     * 等待后台修复的可用资源数
+     * @return
+     */
+    public int getAvailableReconcileBacklog(){
+        return CacheAccessor.getReconcileQueueSize(CacheAccessor.RESOURCE_AVAILABLE_RECONCILE_QUEUE);
+    }
+
+    /**
+     * 预热给定资源的信号量（例如活动开始之前），避免第一次请求时集中在写锁上初始化
+     * 只设置不存在的信号量，可以在有流量时执行；同步执行，返回时预热已完成
+     * @param resourceIdList
+     * @param preloadParam
+     * @return
+     */
+    public PreloadProgress preload(List<String> resourceIdList, PreloadParam preloadParam){
+        if(Objects.isNull(resourceIdList)){
+            throw new ResourceRunException("预热的资源列表不能为空");
+        }
+        return newPreloader(preloadParam).preload(resourceIdList);
+    }
+
+    /**
+     * 流式读取全表 预热满足条件的资源的信号量
+     * @see ResourceUpdater#preload(List, PreloadParam)
+     * @param filter 过滤条件
+     * @param preloadParam
+     * @return
+     */
+    public PreloadProgress preload(Predicate<ResourcePermit> filter, PreloadParam preloadParam){
+        if(Objects.isNull(filter)){
+            throw new ResourceRunException("预热的过滤条件不能为空");
+        }
+        return newPreloader(preloadParam).preload(filter);
+    }
+
+    /**
+     * 流式读取全表 预热所有资源的信号量
+     * @see ResourceUpdater#preload(List, PreloadParam)
+     * @param preloadParam
+     * @return
+     */
+    public PreloadProgress preloadAll(PreloadParam preloadParam){
+        return newPreloader(preloadParam).preload((Predicate<ResourcePermit>) null);
+    }
+
+    /**
+     * 预热时是否同时预热预占资源信号量
+     * @return
+     */
+    protected boolean preloadPreLocked(){
+        return false;
+    }
+
+    private Preloader newPreloader(PreloadParam preloadParam){
+        return new Preloader(dbAccessor, preloadPreLocked(), Objects.isNull(preloadParam) ? new PreloadParam() : preloadParam);
+    }
+
     /**
      * 查询可用资源数量
      * @param queryResourceParam
@@ -82,12 +419,36 @@ public class ResourceUpdater {
             throws LockWaitException, InterruptedException {
         List<UpdateResourceParam> updateResourceParamList = new ArrayList<>(1);
         updateResourceParamList.add(UpdateResourceParam.builder().resourceId(queryResourceParam.getResourceId()).build());
-        //检查可用资源信号量是否初始化 否则进行初始化
-        CacheAccessor.checkAvailableSemaphoreInitializedOrInit(updateResourceParamList,dbAccessor);
-        //检查是否存在不一致地可用资源Key
-        checkNotConsistenceAvailableResourceAndInit(updateResourceParamList);
+        UpdateContext context = UpdateContext.acquire(Operation.QUERY_AVAILABLE);
+        try {
+            //预检 可用资源信号量未初始化或者不一致的进行初始化
+            preflightAndInit(context, updateResourceParamList,true,false);
+
+            long start = System.nanoTime();
+            QueryResourceResult queryResourceResult = CacheAccessor.queryAvailable(queryResourceParam);
+            recordStage(context, Stage.CACHE, start);
+            return queryResourceResult;
+        }finally {
+            recordContext(context);
+            context.release();
+        }
+    }
 
-        return CacheAccessor.queryAvailable(queryResourceParam);
+    /**
+     * 查询可用资源数量 允许读取本地近端缓存
+     * 近端缓存中存在且不超过maxStaleMilliSecond时直接返回，不访问redis
+     * @see ResourceUpdater#enableNearCache(int)
+     * @param queryResourceParam
+     * @param maxStaleMilliSecond 可接受的最大过期时间 毫秒
+     * @return
+     */
+    public QueryResourceResult queryAvailable(QueryResourceParam queryResourceParam, long maxStaleMilliSecond)
+            throws LockWaitException, InterruptedException {
+        QueryResourceResult queryResourceResult = CacheAccessor.queryAvailableFromNearCache(queryResourceParam, maxStaleMilliSecond);
+        if(Objects.nonNull(queryResourceResult)){
+            return queryResourceResult;
+        }
+        return queryAvailable(queryResourceParam);
     }
 
     /**
@@ -101,17 +462,23 @@ public class ResourceUpdater {
                 .stream()
                 .map(queryResourceParam -> UpdateResourceParam.builder().resourceId(queryResourceParam.getResourceId()).build())
                 .collect(Collectors.toList());
-        //检查可用资源信号量是否初始化 否则进行初始化
-        CacheAccessor.checkAvailableSemaphoreInitializedOrInit(updateResourceParamList,dbAccessor);
-        //检查是否存在不一致地可用资源Key
-        checkNotConsistenceAvailableResourceAndInit(updateResourceParamList);
+        UpdateContext context = UpdateContext.acquire(Operation.QUERY_AVAILABLE);
+        try {
+            //预检 可用资源信号量未初始化或者不一致的进行初始化
+            preflightAndInit(context, updateResourceParamList,true,false);
 
-        List<QueryResourceResult> resultList = new ArrayList<>();
-        for(QueryResourceParam queryResourceParam : queryResourceParamList){
-            QueryResourceResult queryResourceResult = CacheAccessor.queryAvailable(queryResourceParam);
-            resultList.add(queryResourceResult);
+            long start = System.nanoTime();
+            List<QueryResourceResult> resultList = new ArrayList<>();
+            for(QueryResourceParam queryResourceParam : queryResourceParamList){
+                QueryResourceResult queryResourceResult = CacheAccessor.queryAvailable(queryResourceParam);
+                resultList.add(queryResourceResult);
+            }
+            recordStage(context, Stage.CACHE, start);
+            return resultList;
+        }finally {
+            recordContext(context);
+            context.release();
         }
-        return resultList;
     }
 
     /**
@@ -128,25 +495,48 @@ public class ResourceUpdater {
         List<UpdateResourceParam> updateResourceParamList = new ArrayList<>(updateResourceParamSet);
         //防止死锁，resourceId排序
         updateResourceParamList.sort(Comparator.comparing(UpdateResourceParam::getResourceId));
-        //检查可用资源信号量是否初始化 否则进行初始化
-        CacheAccessor.checkAvailableSemaphoreInitializedOrInit(updateResourceParamList,dbAccessor);
-        //检查是否存在不一致地可用资源Key
-        checkNotConsistenceAvailableResourceAndInit(updateResourceParamList);
+        doTrySubtractAvailable(updateResourceParamList);
+    }
 
-        //注册事务回滚之后钩子
-        registerDbTransactionRollBackHock();
+    /**
+     * 尝试扣减资源（购物车） 直接扣减可用资源 不支持预占
+     * @see ResourceCart
+     * @param resourceCart 执行时原地排序并合并相同resourceId
+     * @throws ResourceUpdateException
+     * @throws LockWaitException
+     * @throws InterruptedException
+     * @throws DataUnConsistentException
+     */
+    public void trySubtractAvailable(ResourceCart resourceCart)
+            throws ResourceUpdateException, LockWaitException, InterruptedException, DataUnConsistentException {
+        if(Objects.isNull(resourceCart) || resourceCart.isEmpty()){
+            throw new ResourceRunException("trySubtractAvailable参数为空");
+        }
+        doTrySubtractAvailable(resourceCart.prepare());
+    }
 
-        List<String> resourceIdList = updateResourceParamList.stream().map(param -> param.getResourceId()).collect(Collectors.toList());
-        //加读锁
-        ReadWriteLock.availableTryLockRead(resourceIdList);
+    /**
+     * @param updateResourceParamList 已按resourceId排序
+     */
+    private void doTrySubtractAvailable(List<UpdateResourceParam> updateResourceParamList)
+            throws ResourceUpdateException, LockWaitException, InterruptedException, DataUnConsistentException {
+        //注册事务回滚之后钩子
+        UpdateContext context = acquireWithRollBackHock(Operation.SUBTRACT_AVAILABLE);
+        //预检 可用资源信号量未初始化或者不一致的进行初始化
+        preflightAndInit(context, updateResourceParamList,true,false);
 
         //更新
         try {
-            CacheAccessor.tryAcquireAvailableSemaphore(updateResourceParamList,dbAccessor);
-            dbAccessor.subtractAvailableResource(updateResourceParamList);
+            long start = System.nanoTime();
+            CacheAccessor.tryAcquireAvailableSemaphore(context, updateResourceParamList,dbAccessor);
+            start = recordStage(context, Stage.CACHE, start);
+            subtractAvailableResourceInDb(updateResourceParamList);
+            recordStage(context, Stage.DB, start);
         }catch (UndeclaredThrowableException e){
+            recordFailure(context, e);
             throw new DataUnConsistentException("更新资源数量失败,errMsg:" + e.getUndeclaredThrowable().getMessage());
         }catch (Throwable e){
+            recordFailure(context, e);
             throw new ResourceUpdateException("更新资源数量失败,errMsg:" + e.getMessage());
         }
     }
@@ -165,25 +555,28 @@ public class ResourceUpdater {
 
         List<UpdateResourceParam> updateResourceParamList = new ArrayList<>();
         updateResourceParamList.add(updateResourceParam);
-        //检查可用资源信号量是否初始化 否则进行初始化
-        CacheAccessor.checkAvailableSemaphoreInitializedOrInit(updateResourceParamList,dbAccessor);
-        //检查是否存在不一致地可用资源Key
-        checkNotConsistenceAvailableResourceAndInit(updateResourceParamList);
-
         //注册事务回滚之后钩子
-        registerDbTransactionRollBackHock();
-
-        //加读锁
-        String resourceId = updateResourceParam.getResourceId();
-        ReadWriteLock.availableTryLockRead(resourceId);
+        UpdateContext context = acquireWithRollBackHock(Operation.SUBTRACT_ONE_AVAILABLE);
+        //预检 可用资源信号量未初始化或者不一致的进行初始化
+        preflightAndInit(context, updateResourceParamList,true,false);
 
         //更新
         try {
-            CacheAccessor.tryAcquireAvailableSemaphore(updateResourceParam,dbAccessor);
-            dbAccessor.subtractOneAvailableResource(updateResourceParam);
+            long start = System.nanoTime();
+            CacheAccessor.tryAcquireAvailableSemaphore(context, updateResourceParam,dbAccessor);
+            start = recordStage(context, Stage.CACHE, start);
+            WriteBehindFlusher flusher = writeBehindFlusher;
+            if(Objects.nonNull(flusher)){
+                flusher.appendBeforeCommit(updateResourceParamList);
+            }else {
+                dbAccessor.subtractOneAvailableResource(updateResourceParam);
+            }
+            recordStage(context, Stage.DB, start);
         }catch (UndeclaredThrowableException e){
+            recordFailure(context, e);
             throw new DataUnConsistentException("更新可用资源数量失败,errMsg:" + e.getUndeclaredThrowable().getMessage());
         }catch (Throwable e){
+            recordFailure(context, e);
             throw new ResourceUpdateException("更新可用资源数量失败,errMsg:" + e.getMessage());
         }
     }
@@ -200,20 +593,47 @@ public class ResourceUpdater {
         List<UpdateResourceParam> updateResourceParamList = new ArrayList<>(updateResourceParamSet);
         //防止死锁，resourceId排序
         updateResourceParamList.sort(Comparator.comparing(UpdateResourceParam::getResourceId));
-        //检查可用资源信号量是否初始化 否则进行初始化
-        CacheAccessor.checkAvailableSemaphoreInitializedOrInit(updateResourceParamList,dbAccessor);
+        doAddAvailable(updateResourceParamList);
+    }
+
+    /**
+     * 批量增加可用资源信号量（购物车）
+     * @see ResourceCart
+     * @param resourceCart 执行时原地排序并合并相同resourceId
+     * @throws ResourceUpdateException
+     * @throws LockWaitException
+     * @throws InterruptedException
+     * @throws DataUnConsistentException
+     */
+    public void addAvailable(ResourceCart resourceCart)
+            throws LockWaitException, InterruptedException, DataUnConsistentException, ResourceUpdateException {
+        if(Objects.isNull(resourceCart) || resourceCart.isEmpty()){
+            return;
+        }
+        doAddAvailable(resourceCart.prepare());
+    }
+
+    /**
+     * @param updateResourceParamList 已按resourceId排序
+     */
+    private void doAddAvailable(List<UpdateResourceParam> updateResourceParamList)
+            throws LockWaitException, InterruptedException, DataUnConsistentException, ResourceUpdateException {
         //注册事务回滚之后钩子
-        registerDbTransactionRollBackHock();
-        //加读锁
-        List<String> resourceIdList = updateResourceParamList.stream().map(param -> param.getResourceId()).collect(Collectors.toList());
-        ReadWriteLock.availableTryLockRead(resourceIdList);
+        UpdateContext context = acquireWithRollBackHock(Operation.ADD_AVAILABLE);
+        //预检 可用资源信号量未初始化或者不一致的进行初始化
+        preflightAndInit(context, updateResourceParamList,true,false);
         //增加
         try {
+            long start = System.nanoTime();
             dbAccessor.addAvailableResource(updateResourceParamList);
-            CacheAccessor.tryLeaseAvailableSemaphore(updateResourceParamList,dbAccessor);
+            start = recordStage(context, Stage.DB, start);
+            CacheAccessor.tryLeaseAvailableSemaphore(context, updateResourceParamList,dbAccessor);
+            recordStage(context, Stage.CACHE, start);
         }catch (UndeclaredThrowableException e){
+            recordFailure(context, e);
             throw new DataUnConsistentException("增加可用资源数量失败,errMsg:" + e.getUndeclaredThrowable().getMessage());
         }catch (Throwable e){
+            recordFailure(context, e);
             throw new ResourceUpdateException("增加可用资源数量失败,errMsg:" + e.getMessage());
         }
     }
@@ -228,22 +648,24 @@ public class ResourceUpdater {
      */
     public void addOneAvailable(UpdateResourceParam updateResourceParam)
             throws LockWaitException, InterruptedException, DataUnConsistentException, ResourceUpdateException {
-        String resourceId = updateResourceParam.getResourceId();
         //注册事务回滚之后钩子
-        registerDbTransactionRollBackHock();
+        UpdateContext context = acquireWithRollBackHock(Operation.ADD_ONE_AVAILABLE);
         List<UpdateResourceParam> updateResourceParamList = new ArrayList<>();
         updateResourceParamList.add(updateResourceParam);
-        //检查可用资源信号量是否初始化 否则进行初始化
-        CacheAccessor.checkAvailableSemaphoreInitializedOrInit(updateResourceParamList,dbAccessor);
-        //加读锁
-        ReadWriteLock.availableTryLockRead(resourceId);
+        //预检 可用资源信号量未初始化或者不一致的进行初始化
+        preflightAndInit(context, updateResourceParamList,true,false);
         //增加
         try {
+            long start = System.nanoTime();
             dbAccessor.addAvailableResource(updateResourceParamList);
-            CacheAccessor.tryLeaseAvailableSemaphore(updateResourceParamList,dbAccessor);
+            start = recordStage(context, Stage.DB, start);
+            CacheAccessor.tryLeaseAvailableSemaphore(context, updateResourceParamList,dbAccessor);
+            recordStage(context, Stage.CACHE, start);
         }catch (UndeclaredThrowableException e){
+            recordFailure(context, e);
             throw new DataUnConsistentException("增加可用资源数量失败,errMsg:" + e.getUndeclaredThrowable().getMessage());
         }catch (Throwable e){
+            recordFailure(context, e);
             throw new ResourceUpdateException("增加可用资源数量失败,errMsg:" + e.getMessage());
         }
     }
@@ -253,7 +675,12 @@ public class ResourceUpdater {
      * @param resourceKey
      */
     public void deleteAvailableCache(String resourceKey) throws LockWaitException, InterruptedException {
-        CacheAccessor.deleteAvailableResourceSemaphore(resourceKey);
+        UpdateContext context = UpdateContext.acquire();
+        try {
+            CacheAccessor.deleteAvailableResourceSemaphore(context, resourceKey);
+        }finally {
+            context.release();
+        }
     }
 
     //=============
@@ -274,26 +701,189 @@ public class ResourceUpdater {
         return dbAccessor.queryOneResource(resourceId);
     }
 
-    protected void registerDbTransactionRollBackHock() {
+    /**
+     * 数据库扣减可用资源
+     * 开启异步落库时 事务提交之前写入stream
+     * @param updateResourceParamList
+     */
+    protected void subtractAvailableResourceInDb(List<UpdateResourceParam> updateResourceParamList){
+        WriteBehindFlusher flusher = writeBehindFlusher;
+        if(Objects.nonNull(flusher)){
+            flusher.appendBeforeCommit(updateResourceParamList);
+        }else {
+            dbAccessor.subtractAvailableResource(updateResourceParamList);
+        }
+    }
+
+    /**
+     * 获取上下文并注册事务回滚之后钩子（由钩子归还上下文）
+     * 注册失败（例如不在事务中）时归还上下文
+     * @param operation
+     * @return
+     */
+    protected UpdateContext acquireWithRollBackHock(Operation operation){
+        UpdateContext context = UpdateContext.acquire(operation);
+        try {
+            registerDbTransactionRollBackHock(context);
+        }catch (RuntimeException e){
+            context.release();
+            throw e;
+        }
+        return context;
+    }
+
+    protected void registerDbTransactionRollBackHock(UpdateContext context) {
         TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void beforeCommit(boolean readOnly) {
+                //登记提交栅栏 提交之后到补扣完成之前重新初始化不会读取数据库
+                CacheAccessor.enterCommitFence(context);
+            }
+
             @Override
             public void afterCompletion(int status) {
+                long start = System.nanoTime();
                 if(TransactionSynchronization.STATUS_ROLLED_BACK == status){
                     //数据库回滚了 将缓存中的信号量也回滚
-                    CacheAccessor.leaseAcquiredAvailableSemaphore();
-                    CacheAccessor.acquireLeasedAvailableSemaphore();
+                    CacheAccessor.leaseAcquiredAvailableSemaphore(context);
+                    CacheAccessor.acquireLeasedAvailableSemaphore(context);
+                }else if(TransactionSynchronization.STATUS_COMMITTED == status){
+                    //期间信号量被重新初始化过 异步补上本次的增减
+                    CacheAccessor.reapplyIfEpochChanged(context);
+                }else {
+                    //状态未知 不补扣也不归还 注销提交栅栏
+                    CacheAccessor.exitCommitFence(context);
                 }
-                ReadWriteLock.leaseHoldAvailableReadLock();
-                ReadWriteLock.leaseHoldAvailableWriteLock();
-                //清除所有ThreadLocal
-                clearAllThreadLocal();
+                ReadWriteLock.leaseHoldAvailableWriteLock(context);
+                recordStage(context, Stage.ROLLBACK_HOOK, start);
+                recordContext(context);
+                //归还上下文
+                context.release();
             }
         });
     }
 
-    protected void clearAllThreadLocal(){
-        CacheAccessor.clearThreadLocal();
-        ReadWriteLock.clearThreadLocal();
+    /**
+     * 预检并初始化
+     * 一次往返查出未初始化以及不一致的信号量，只对需要的资源进行初始化
+     * @param context 操作的上下文 用于记录指标
+     * @param updateResourceParamList
+     * @param checkAvailable 是否检查可用资源
+     * @param checkPreLocked 是否检查预占资源
+     * @throws LockWaitException
+     * @throws InterruptedException
+     */
+    protected void preflightAndInit(UpdateContext context, List<UpdateResourceParam> updateResourceParamList, boolean checkAvailable, boolean checkPreLocked)
+            throws LockWaitException, InterruptedException {
+        long start = System.nanoTime();
+        context.addRedisRoundTrips(1);
+        PreflightResult preflightResult = CacheAccessor.preflight(updateResourceParamList, checkAvailable, checkPreLocked);
+        start = recordStage(context, Stage.PREFLIGHT, start);
+        try {
+            if(initByPreflightResult(context, preflightResult)){
+                recordStage(context, Stage.INIT, start);
+            }
+        }catch (LockWaitException e){
+            recordFailure(context, e);
+            throw e;
+        }
+    }
+
+    /**
+     * 根据预检结果 对未初始化以及不一致的信号量进行初始化
+     * @param preflightResult
+     * @throws LockWaitException
+     * @throws InterruptedException
+     */
+    protected void initByPreflightResult(PreflightResult preflightResult)
+            throws LockWaitException, InterruptedException {
+        initByPreflightResult(null, preflightResult);
+    }
+
+    /**
+     * 根据预检结果 对未初始化以及不一致的信号量进行初始化
+     * @param operationContext 操作的上下文 初始化过程中的redis往返、重新初始化次数累计到其中 可以为null
+     * @param preflightResult
+     * @return 是否进行了初始化
+     * @throws LockWaitException
+     * @throws InterruptedException
+     */
+    protected boolean initByPreflightResult(UpdateContext operationContext, PreflightResult preflightResult)
+            throws LockWaitException, InterruptedException {
+        List<String> availableNeedInitList = preflightResult.getAvailableNeedInitList();
+        List<String> preLockedNeedInitList = preflightResult.getPreLockedNeedInitList();
+        if(availableNeedInitList.isEmpty() && preLockedNeedInitList.isEmpty()){
+            return false;
+        }
+        //初始化使用的写锁在方法内释放 单独的上下文
+        UpdateContext context = UpdateContext.acquire();
+        try {
+            if(availableNeedInitList.size() > 0){
+                CacheAccessor.initAvailableSemaphorePermit(context, availableNeedInitList,dbAccessor);
+                if(preflightResult.getAvailableNotConsistenceList().size() > 0){
+                    log.info("可用资源缓存与数据库存在不一致:" + String.join(",", preflightResult.getAvailableNotConsistenceList()) + " 已进行重新初始化");
+                }
+            }
+            if(preLockedNeedInitList.size() > 0){
+                CacheAccessor.initPreLockedSemaphorePermit(context, preLockedNeedInitList,dbAccessor);
+                if(preflightResult.getPreLockedNotConsistenceList().size() > 0){
+                    log.info("预占资源缓存与数据库存在不一致:" + String.join(",", preflightResult.getPreLockedNotConsistenceList()) + " 已进行重新初始化");
+                }
+            }
+        }finally {
+            if(Objects.nonNull(operationContext)){
+                operationContext.addRedisRoundTrips(context.getRedisRoundTrips());
+                operationContext.addReinitialized(context.getReinitialized());
+            }
+            context.release();
+        }
+        return true;
+    }
+
+    /**
+     * 记录某个阶段的耗时
+     * @param context
+     * @param stage
+     * @param startNanos 阶段开始时间
+     * @return 阶段结束时间 作为下一个阶段的开始时间
+     */
+    protected long recordStage(UpdateContext context, Stage stage, long startNanos){
+        long now = System.nanoTime();
+        metrics.recordStage(context.getOperation(), stage, now - startNanos);
+        return now;
+    }
+
+    /**
+     * 记录失败 等待超时，或者数据库发现的不一致（数据库更新在事务模板中抛出时包装为UndeclaredThrowableException）
+     * @param context
+     * @param e
+     */
+    protected void recordFailure(UpdateContext context, Throwable e){
+        if(e instanceof UndeclaredThrowableException){
+            e = ((UndeclaredThrowableException) e).getUndeclaredThrowable();
+        }
+        if(e instanceof DataUnConsistentException){
+            metrics.recordNotConsistenceRaised(context.getOperation(), 1);
+        }else if(e instanceof LockWaitException){
+            metrics.recordLockWaitTimeout(context.getOperation());
+        }else if(e instanceof ResourceWaitException){
+            metrics.recordResourceWaitTimeout(context.getOperation());
+        }
+    }
+
+    /**
+     * 操作结束 记录上下文中累计的次数
+     * @param context
+     */
+    protected void recordContext(UpdateContext context){
+        Operation operation = context.getOperation();
+        metrics.recordRedisRoundTrips(operation, context.getRedisRoundTrips());
+        if(context.getNotConsistenceRaised() > 0){
+            metrics.recordNotConsistenceRaised(operation, context.getNotConsistenceRaised());
+        }
+        if(context.getReinitialized() > 0){
+            metrics.recordReinitialized(operation, context.getReinitialized());
+        }
     }
 
     /**
@@ -308,8 +898,13 @@ public class ResourceUpdater {
         if(Objects.nonNull(notConsistenceKeys)){
             //存在缓存数据库不一致的key
             //尝试加写锁进行初始化
-            CacheAccessor.initAvailableSemaphorePermit(notConsistenceKeys,dbAccessor);
-            ReadWriteLock.leaseHoldAvailableWriteLock();
+            UpdateContext context = UpdateContext.acquire();
+            try {
+                CacheAccessor.initAvailableSemaphorePermit(context, notConsistenceKeys,dbAccessor);
+                ReadWriteLock.leaseHoldAvailableWriteLock(context);
+            }finally {
+                context.release();
+            }
             StringBuilder sb = new StringBuilder();
             notConsistenceKeys.forEach(key -> sb.append(key + ","));
             log.info("可用资源缓存与数据库存在不一致:" + sb + " 已进行重新初始化");
@@ -328,8 +923,13 @@ public class ResourceUpdater {
         if(Objects.nonNull(notConsistenceKeys)){
             //存在不一致的key
             //尝试加写锁进行初始化
-            CacheAccessor.initPreLockedSemaphorePermit(notConsistenceKeys,dbAccessor);
-            ReadWriteLock.leaseHoldPreLockedWriteLock();
+            UpdateContext context = UpdateContext.acquire();
+            try {
+                CacheAccessor.initPreLockedSemaphorePermit(context, notConsistenceKeys,dbAccessor);
+                ReadWriteLock.leaseHoldPreLockedWriteLock(context);
+            }finally {
+                context.release();
+            }
             StringBuilder sb = new StringBuilder();
             notConsistenceKeys.forEach(key -> sb.append(key + ","));
             log.info("预占资源缓存与数据库存在不一致:" + sb + " 已进行重新初始化");
@@ -0,0 +1,138 @@
+package com.semaphore.resource.updater.core;
+
+import com.semaphore.resource.updater.cache.SemaphoreAndPermit;
+import com.semaphore.resource.updater.metrics.Operation;
+import lombok.Getter;
+import org.redisson.api.RLock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一次资源更新操作的上下文
+ * 记录该操作持有（减掉）、释放（增加）的信号量及其代数以及初始化时持有的写锁，用于整体失败时回滚、提交后补扣、事务结束时释放锁
+ * 不绑定线程，可以在不同线程之间传递，同一时刻只能被一个操作使用
+ *
+ * 通过acquire从池中获取，操作结束后通过release清空并归还，列表对象复用
+ * 同时累计该操作的redis往返、标记不一致以及重新初始化的次数，操作结束时记录到指标中
+ *
+ * @date 2022/3/28 10:20 AM
+ */
+@Getter
+public final class UpdateContext {
+    /**
+     * 池容量 超出的上下文直接丢弃
+     */
+    private static final int POOL_CAPACITY = 1024;
+    private static final ArrayBlockingQueue<UpdateContext> POOL = new ArrayBlockingQueue<>(POOL_CAPACITY);
+    /**
+     * 锁持有者序号
+     * 取负数，避免与真实线程id冲突
+     */
+    private static final AtomicLong LOCK_OWNER_SEQUENCE = new AtomicLong();
+
+    /**
+     * 写锁的持有者
+     * 每次acquire重新分配，加锁与解锁可以在不同线程中完成
+     */
+    private long lockOwnerId;
+    /**
+     * 操作类型 用于指标打标
+     * 可能为null（不属于某个更新操作，例如删除缓存）
+     */
+    private Operation operation;
+
+    private int redisRoundTrips;
+    private int notConsistenceRaised;
+    private int reinitialized;
+
+    /**
+     * 持有(减掉)的可用资源信号量
+     * 如果整体失败 需要添加回去
+     */
+    private final List<SemaphoreAndPermit> holdAvailableSemaphore = new ArrayList<>();
+    /**
+     * 持有（减掉）的预占资源信号量
+     * 如果整体失败 需要添加回去
+     */
+    private final List<SemaphoreAndPermit> holdPreLockSemaphore = new ArrayList<>();
+    /**
+     * 增加的可用资源信号量
+     * 如果整体失败 需要减掉
+     */
+    private final List<SemaphoreAndPermit> leasedAvailableSemaphore = new ArrayList<>();
+    /**
+     * 增加的预占资源信号量
+     * 如果整体失败 需要减掉
+     */
+    private final List<SemaphoreAndPermit> leasedPreLockSemaphore = new ArrayList<>();
+
+    private final List<RLock> holdAvailableWriteLock = new ArrayList<>();
+    private final List<RLock> holdPreLockedWriteLock = new ArrayList<>();
+
+    private UpdateContext(){
+    }
+
+    /**
+     * 从池中获取一个空的上下文
+     * @return
+     */
+    public static UpdateContext acquire(){
+        return acquire(null);
+    }
+
+    /**
+     * 从池中获取一个空的上下文
+     * @param operation 操作类型
+     * @return
+     */
+    public static UpdateContext acquire(Operation operation){
+        UpdateContext context = POOL.poll();
+        if(context == null){
+            context = new UpdateContext();
+        }
+        context.lockOwnerId = nextLockOwnerId();
+        context.operation = operation;
+        return context;
+    }
+
+    /**
+     * 分配一个新的锁持有者
+     * @return
+     */
+    private static long nextLockOwnerId(){
+        return -LOCK_OWNER_SEQUENCE.incrementAndGet();
+    }
+
+    public void addRedisRoundTrips(int count){
+        redisRoundTrips += count;
+    }
+
+    public void addNotConsistenceRaised(int count){
+        notConsistenceRaised += count;
+    }
+
+    public void addReinitialized(int count){
+        reinitialized += count;
+    }
+
+    /**
+     * 清空并归还到池中
+     * 归还之后不能再使用
+     */
+    public void release(){
+        holdAvailableSemaphore.clear();
+        holdPreLockSemaphore.clear();
+        leasedAvailableSemaphore.clear();
+        leasedPreLockSemaphore.clear();
+        holdAvailableWriteLock.clear();
+        holdPreLockedWriteLock.clear();
+        operation = null;
+        redisRoundTrips = 0;
+        notConsistenceRaised = 0;
+        reinitialized = 0;
+        POOL.offer(this);
+    }
+}
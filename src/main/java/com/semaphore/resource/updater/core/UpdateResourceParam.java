@@ -27,6 +27,14 @@ public class UpdateResourceParam {
         if(!(obj instanceof UpdateResourceParam)){
             return false;
         }
-        return ((UpdateResourceParam)obj).getResourceId().equals(this.getResourceId());
+        return Objects.equals(((UpdateResourceParam)obj).getResourceId(), this.getResourceId());
+    }
+
+    /**
+     * 与equals一致 只按resourceId
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(resourceId);
     }
 }
@@ -17,7 +17,18 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  *
@@ -26,6 +37,31 @@ import java.util.*;
 @Slf4j
 public class DbAccessor {
     private static final String COMMA = ",";
+    public static final int DEFAULT_QUERY_CHUNK_SIZE = 200;
+    /**
+     * 预留状态表的默认表名
+     */
+    public static final String DEFAULT_RESERVATION_TABLE_NAME = "resource_reservation";
+    /**
+     * 预留状态 已预留（未确认、取消或释放）
+     */
+    public static final String RESERVATION_STATUS_RESERVED = "RESERVED";
+    /**
+     * 预留状态 已确认
+     */
+    public static final String RESERVATION_STATUS_COMMITTED = "COMMITTED";
+    /**
+     * 预留状态 已取消
+     */
+    public static final String RESERVATION_STATUS_CANCELLED = "CANCELLED";
+    /**
+     * 预留状态 到期释放
+     */
+    public static final String RESERVATION_STATUS_EXPIRED = "EXPIRED";
+    /**
+     * 异步落库已落库消息表的默认表名
+     */
+    public static final String DEFAULT_WRITE_BEHIND_APPLIED_TABLE_NAME = "resource_write_behind_applied";
 
     private DataSource dataSource;
     private TransactionTemplate transactionTemplate;
@@ -47,6 +83,54 @@ public class DbAccessor {
      */
     private String dbResourcePreLockPermitColumnName;
 
+    /**
+     * 按实例预先格式化好的sql
+     */
+    private final String queryOneResourceSql;
+    private final String queryBatchResourceSql;
+    private final String queryAllResourceSql;
+    private final String subtractOneAvailableResourceSql;
+    private final String subtractOnePreLockResourceSql;
+    private final String addOneAvailableResourceSql;
+    private final String addOnePreLockResourceSql;
+    private final String subtractAvailableAddPreLockSql;
+    private final String subtractPreLockAddAvailableSql;
+    /**
+     * 预留状态表的sql 随表名一起设置
+     */
+    private volatile String insertReservationSql;
+    private volatile String finishReservationSql;
+    /**
+     * 异步落库已落库消息表的sql 随表名一起设置
+     */
+    private volatile String writeBehindAppliedTableName;
+    private volatile String insertWriteBehindAppliedSql;
+    private volatile String purgeWriteBehindAppliedSql;
+    /**
+     * 多行更新sql 按 列+行数 缓存
+     */
+    private final Map<String, String> multiRowSqlCache = new ConcurrentHashMap<>();
+    /**
+     * 锁定并读取待扣减行的sql 按 列+行数 缓存
+     */
+    private final Map<String, String> lockRowSqlCache = new ConcurrentHashMap<>();
+    /**
+     * 批量查询sql 按占位符个数缓存
+     */
+    private final Map<Integer, String> queryBatchSqlCache = new ConcurrentHashMap<>();
+    /**
+     * 批量更新的方式
+     */
+    private volatile DbUpdateStrategy updateStrategy = DbUpdateStrategy.BATCH;
+    /**
+     * 批量查询时每条sql的最大资源数 超过时拆分成多批
+     */
+    private volatile int queryChunkSize = DEFAULT_QUERY_CHUNK_SIZE;
+    /**
+     * 多批查询并行执行的线程池 为null时在当前线程依次执行
+     */
+    private volatile ExecutorService queryExecutor;
+
     public DbAccessor(DataSource dataSource,
                       TransactionTemplate transactionTemplate,
                       String dbResourceTableName,
@@ -59,6 +143,22 @@ public class DbAccessor {
         this.dbResourceKeyColumnName = dbResourceKeyColumnName;
         this.dbResourceAvailablePermitColumnName = dbResourceAvailablePermitColumnName;
         this.dbResourcePreLockPermitColumnName = dbResourcePreLockPermitColumnName;
+
+        this.queryOneResourceSql = String.format(QUERY_ONE_RESOURCE, dbResourceKeyColumnName, dbResourceAvailablePermitColumnName, dbResourcePreLockPermitColumnName, dbResourceTableName, dbResourceKeyColumnName);
+        this.queryBatchResourceSql = String.format(QUERY_BATCH_RESOURCE, dbResourceKeyColumnName, dbResourceAvailablePermitColumnName, dbResourcePreLockPermitColumnName, dbResourceTableName, dbResourceKeyColumnName);
+        this.queryAllResourceSql = String.format(QUERY_ALL_RESOURCE, dbResourceKeyColumnName, dbResourceAvailablePermitColumnName, dbResourcePreLockPermitColumnName, dbResourceTableName);
+        this.subtractOneAvailableResourceSql = String.format(SUBTRACT_ONE_AVAILABLE_RESOURCE, dbResourceTableName, dbResourceAvailablePermitColumnName, dbResourceAvailablePermitColumnName, dbResourceKeyColumnName, dbResourceAvailablePermitColumnName);
+        this.subtractOnePreLockResourceSql = String.format(SUBTRACT_ONE_PRE_LOCK_RESOURCE, dbResourceTableName, dbResourcePreLockPermitColumnName, dbResourcePreLockPermitColumnName, dbResourceKeyColumnName, dbResourcePreLockPermitColumnName);
+        this.addOneAvailableResourceSql = String.format(ADD_ONE_AVAILABLE_RESOURCE, dbResourceTableName, dbResourceAvailablePermitColumnName, dbResourceAvailablePermitColumnName, dbResourceKeyColumnName);
+        this.addOnePreLockResourceSql = String.format(ADD_ONE_PRE_LOCK_RESOURCE, dbResourceTableName, dbResourcePreLockPermitColumnName, dbResourcePreLockPermitColumnName, dbResourceKeyColumnName);
+        this.subtractAvailableAddPreLockSql = String.format(SUBTRACT_AVAILABLE_ADD_PRE_LOCK, dbResourceTableName, dbResourceAvailablePermitColumnName, dbResourceAvailablePermitColumnName,
+                dbResourcePreLockPermitColumnName, dbResourcePreLockPermitColumnName,
+                dbResourceKeyColumnName, dbResourceAvailablePermitColumnName);
+        this.subtractPreLockAddAvailableSql = String.format(SUBTRACT_PRE_LOCK_ADD_AVAILABLE, dbResourceTableName, dbResourcePreLockPermitColumnName, dbResourcePreLockPermitColumnName,
+                dbResourceAvailablePermitColumnName, dbResourceAvailablePermitColumnName,
+                dbResourceKeyColumnName, dbResourcePreLockPermitColumnName);
+        setReservationTableName(DEFAULT_RESERVATION_TABLE_NAME);
+        setWriteBehindAppliedTableName(DEFAULT_WRITE_BEHIND_APPLIED_TABLE_NAME);
     }
 
     /**
@@ -79,6 +179,14 @@ public class DbAccessor {
             + "%s"
             + " WHERE %s IN (?)";
 
+    /**
+     * QUERY ALL
+     */
+    private static final String QUERY_ALL_RESOURCE = "SELECT "
+            + "%s,%s,%s"
+            + " FROM "
+            + "%s";
+
     /**
      * UPDATE : SUBTRACT AVAILABLE
      */
@@ -137,12 +245,216 @@ public class DbAccessor {
             + "%s = (%s - ?), %s = (%s + ?)"
             + " WHERE " + " %s = ? AND (%s - ?) >= 0";
 
+    /**
+     * 插入预留状态
+     */
+    private static final String INSERT_RESERVATION = "INSERT INTO "
+            + "%s"
+            + " (reservation_id, status) VALUES (?, '" + RESERVATION_STATUS_RESERVED + "')";
+
+    /**
+     * 结束预留 只有仍为已预留状态的可以结束
+     */
+    private static final String FINISH_RESERVATION = "UPDATE "
+            + "%s"
+            + " SET status = ?"
+            + " WHERE reservation_id = ? AND status = '" + RESERVATION_STATUS_RESERVED + "'";
+
+    /**
+     * 设置预留状态表名 表结构见README
+     * @param reservationTableName
+     */
+    public void setReservationTableName(String reservationTableName){
+        if(Objects.isNull(reservationTableName)){
+            throw new ResourceRunException("reservationTableName不能为空");
+        }
+        this.insertReservationSql = String.format(INSERT_RESERVATION, reservationTableName);
+        this.finishReservationSql = String.format(FINISH_RESERVATION, reservationTableName);
+    }
+
+    /**
+     * 在当前事务中记录预留 与扣减可用、增加预占一起提交
+     * @param reservationId
+     */
+    public void insertReservation(String reservationId){
+        Connection connection = DataSourceUtils.getConnection(dataSource);
+        try(PreparedStatement ps = connection.prepareStatement(insertReservationSql)) {
+            ps.setString(1, reservationId);
+            ps.executeUpdate();
+        }catch (SQLException e){
+            throw new ResourceRunException("记录预留:" + reservationId + "失败，原因:" + e.getMessage());
+        }
+    }
+
+    /**
+     * 在当前事务中结束预留（确认、取消或者到期释放）
+     * 行锁保证并发的结束只有一个成功，其它的在前一个提交之后得到false；前一个回滚时后一个成功
+     * @param reservationId
+     * @param status 结束后的状态
+     * @return 预留已经结束（或者不存在）时返回false，此时不能再移动预占
+     */
+    public boolean finishReservation(String reservationId, String status){
+        Connection connection = DataSourceUtils.getConnection(dataSource);
+        try(PreparedStatement ps = connection.prepareStatement(finishReservationSql)) {
+            ps.setString(1, status);
+            ps.setString(2, reservationId);
+            return ps.executeUpdate() == 1;
+        }catch (SQLException e){
+            throw new ResourceRunException("结束预留:" + reservationId + "失败，原因:" + e.getMessage());
+        }
+    }
+
+    /**
+     * 记录已落库的异步落库消息
+     */
+    private static final String INSERT_WRITE_BEHIND_APPLIED = "INSERT INTO "
+            + "%s"
+            + " (message_id, message_time) VALUES (?, ?)";
+
+    /**
+     * 清理已落库的异步落库消息 按消息id的时间部分
+     */
+    private static final String PURGE_WRITE_BEHIND_APPLIED = "DELETE FROM "
+            + "%s"
+            + " WHERE message_time < ?";
+
+    /**
+     * 设置异步落库已落库消息表名 表结构见README
+     * @param writeBehindAppliedTableName
+     */
+    public void setWriteBehindAppliedTableName(String writeBehindAppliedTableName){
+        if(Objects.isNull(writeBehindAppliedTableName)){
+            throw new ResourceRunException("writeBehindAppliedTableName不能为空");
+        }
+        this.writeBehindAppliedTableName = writeBehindAppliedTableName;
+        this.insertWriteBehindAppliedSql = String.format(INSERT_WRITE_BEHIND_APPLIED, writeBehindAppliedTableName);
+        this.purgeWriteBehindAppliedSql = String.format(PURGE_WRITE_BEHIND_APPLIED, writeBehindAppliedTableName);
+    }
+
+    /**
+     * 在当前事务中查询已经落库的异步落库消息
+     * @param messageIdList
+     * @return 其中已经落库的消息id
+     */
+    public Set<String> queryWriteBehindApplied(List<String> messageIdList){
+        Set<String> appliedSet = new HashSet<>();
+        if(messageIdList.isEmpty()){
+            return appliedSet;
+        }
+        String sqlStr = "SELECT message_id FROM " + writeBehindAppliedTableName
+                + " WHERE message_id IN (" + String.join(COMMA, Collections.nCopies(messageIdList.size(), "?")) + ")";
+        Connection connection = DataSourceUtils.getConnection(dataSource);
+        try(PreparedStatement ps = connection.prepareStatement(sqlStr)) {
+            for (int i = 0; i < messageIdList.size(); i++) {
+                ps.setString(i + 1, messageIdList.get(i));
+            }
+            try(ResultSet resultSet = ps.executeQuery()) {
+                while (resultSet.next()){
+                    appliedSet.add(resultSet.getString(1));
+                }
+            }
+            return appliedSet;
+        }catch (SQLException e){
+            throw new ResourceRunException("查询已落库消息失败，原因:" + e.getMessage());
+        }
+    }
+
+    /**
+     * 在当前事务中记录已落库的异步落库消息 与扣减量一起提交
+     * 主键冲突（其它消费者并发落库了同一条消息）时抛出异常，事务回滚
+     * @param messageTimeById 消息id -> 消息id的时间部分
+     */
+    public void insertWriteBehindApplied(Map<String, Long> messageTimeById){
+        if(messageTimeById.isEmpty()){
+            return;
+        }
+        Connection connection = DataSourceUtils.getConnection(dataSource);
+        try(PreparedStatement ps = connection.prepareStatement(insertWriteBehindAppliedSql)) {
+            for(Map.Entry<String, Long> entry : messageTimeById.entrySet()){
+                ps.setString(1, entry.getKey());
+                ps.setLong(2, entry.getValue());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }catch (SQLException e){
+            throw new ResourceRunException("记录已落库消息失败，原因:" + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 删除消息id时间部分早于messageTime的已落库记录
+     * @param messageTime
+     * @return 删除的行数
+     */
+    public int purgeWriteBehindApplied(long messageTime){
+        try(Connection connection = dataSource.getConnection()) {
+            try(PreparedStatement ps = connection.prepareStatement(purgeWriteBehindAppliedSql)) {
+                ps.setLong(1, messageTime);
+                return ps.executeUpdate();
+            }
+        }catch (SQLException e){
+            throw new ResourceRunException("清理已落库消息失败，原因:" + e.getMessage());
+        }
+    }
+
+    public void setUpdateStrategy(DbUpdateStrategy updateStrategy){
+        if(Objects.isNull(updateStrategy)){
+            throw new ResourceRunException("updateStrategy不能为空");
+        }
+        this.updateStrategy = updateStrategy;
+    }
+
+    public DbUpdateStrategy getUpdateStrategy(){
+        return updateStrategy;
+    }
+
+    public TransactionTemplate getTransactionTemplate(){
+        return transactionTemplate;
+    }
+
+    /**
+     * 设置批量查询时每条sql的最大资源数
+     * @param queryChunkSize
+     */
+    public void setQueryChunkSize(int queryChunkSize){
+        if(queryChunkSize <= 0){
+            throw new ResourceRunException("queryChunkSize必须大于0");
+        }
+        this.queryChunkSize = queryChunkSize;
+    }
+
+    /**
+     * 多批查询时并行执行 每批使用连接池中的一个连接
+     * @param threads 线程数 建议不超过连接池大小
+     */
+    public synchronized void enableParallelQuery(int threads){
+        if(threads <= 0){
+            throw new ResourceRunException("threads必须大于0");
+        }
+        disableParallelQuery();
+        AtomicInteger threadIndex = new AtomicInteger();
+        queryExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "resource-db-query-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 关闭并行查询 之后多批查询在当前线程依次执行
+     */
+    public synchronized void disableParallelQuery(){
+        if(Objects.nonNull(queryExecutor)){
+            queryExecutor.shutdown();
+            queryExecutor = null;
+        }
+    }
+
     public ResourcePermit queryOneResource(String resourceId){
         log.info("db查询资源:" + resourceId);
-        String sqlStr = String.format(QUERY_ONE_RESOURCE, dbResourceKeyColumnName, dbResourceAvailablePermitColumnName, dbResourcePreLockPermitColumnName, dbResourceTableName, dbResourceKeyColumnName);
         ResourcePermit permit = null;
         try(Connection connection = dataSource.getConnection()) {
-            try(PreparedStatement ps = connection.prepareStatement(sqlStr)) {
+            try(PreparedStatement ps = connection.prepareStatement(queryOneResourceSql)) {
                 ps.setString(1,resourceId);
                 ResultSet resultSet = ps.executeQuery();
                 if(resultSet.next()){
@@ -158,20 +470,69 @@ public class DbAccessor {
     }
 
     public List<ResourcePermit> queryResource(List<String> resourceIdList){
-        if(Objects.isNull(resourceIdList)){
-            return null;
+        return queryResourceStream(resourceIdList).collect(Collectors.toList());
+    }
+
+    /**
+     * 批量查询资源 返回流
+     * 超过queryChunkSize时拆分成多批，开启并行查询时多批并行执行，按批的顺序返回
+     * 每批的占位符个数取不小于资源数的2的幂（不超过queryChunkSize），不足的重复最后一个资源，同样长度的sql可以复用预编译语句
+     * 查询失败时在读取流的时候抛出ResourceRunException
+     * @param resourceIdList
+     * @return
+     */
+    public Stream<ResourcePermit> queryResourceStream(List<String> resourceIdList){
+        if(resourceIdList.isEmpty()){
+            return Stream.empty();
+        }
+        int chunkSize = queryChunkSize;
+        List<List<String>> chunkList = new ArrayList<>(resourceIdList.size() / chunkSize + 1);
+        for (int from = 0; from < resourceIdList.size(); from += chunkSize) {
+            chunkList.add(resourceIdList.subList(from, Math.min(from + chunkSize, resourceIdList.size())));
+        }
+        if(chunkList.size() == 1){
+            log.info("db查询资源:" + String.join(COMMA, resourceIdList));
+        }else {
+            log.info("db分{}批查询资源:{}个", chunkList.size(), resourceIdList.size());
+        }
+        ExecutorService executor = queryExecutor;
+        if(chunkList.size() == 1 || Objects.isNull(executor)){
+            return chunkList.stream().flatMap(chunk -> queryChunk(chunk, chunkSize).stream());
+        }
+        List<CompletableFuture<List<ResourcePermit>>> futureList = new ArrayList<>(chunkList.size());
+        try {
+            for(List<String> chunk : chunkList){
+                futureList.add(CompletableFuture.supplyAsync(() -> queryChunk(chunk, chunkSize), executor));
+            }
+        }catch (RejectedExecutionException e){
+            //并行查询已关闭 剩余的批次在当前线程执行
+            for (int i = futureList.size(); i < chunkList.size(); i++) {
+                futureList.add(CompletableFuture.completedFuture(queryChunk(chunkList.get(i), chunkSize)));
+            }
+        }
+        return futureList.stream().flatMap(future -> {
+            try {
+                return future.join().stream();
+            }catch (CompletionException e){
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        });
+    }
+
+    private List<ResourcePermit> queryChunk(List<String> resourceIdList, int chunkSize){
+        int placeholders = 1;
+        while (placeholders < resourceIdList.size()){
+            placeholders <<= 1;
         }
-        log.info("db查询资源:" + String.join(",",resourceIdList));
-        String sqlStr = String.format(QUERY_BATCH_RESOURCE, dbResourceKeyColumnName, dbResourceAvailablePermitColumnName, dbResourcePreLockPermitColumnName, dbResourceTableName, dbResourceKeyColumnName);
-        final StringBuilder sb = new StringBuilder(
-                String.join(", ", Collections.nCopies(resourceIdList.size(), "?")));
-        sqlStr = sqlStr.replace("?",sb);
+        placeholders = Math.min(placeholders, chunkSize);
+        String sqlStr = queryBatchSqlCache.computeIfAbsent(placeholders,
+                size -> queryBatchResourceSql.replace("?", String.join(", ", Collections.nCopies(size, "?"))));
 
-        List<ResourcePermit> resourcePermitList = new ArrayList<>();
+        List<ResourcePermit> resourcePermitList = new ArrayList<>(resourceIdList.size());
         try(Connection connection = dataSource.getConnection()) {
             try(PreparedStatement ps = connection.prepareStatement(sqlStr)) {
-                for(int i=0 ; i<resourceIdList.size() ; i++){
-                    ps.setString(i+1,resourceIdList.get(i));
+                for(int i=0 ; i<placeholders ; i++){
+                    ps.setString(i+1,resourceIdList.get(Math.min(i, resourceIdList.size() - 1)));
                 }
                 ResultSet resultSet = ps.executeQuery();
                 while (resultSet.next()){
@@ -185,6 +546,35 @@ public class DbAccessor {
         return resourcePermitList;
     }
 
+    /**
+     * 流式读取全部资源 每行回调一次
+     * 通过fetchSize使用服务端游标，不把整张表读到内存；MySQL需要在jdbc url上开启useCursorFetch=true
+     * 回调在当前线程中执行，回调阻塞时游标保持打开
+     * @param fetchSize 每次从数据库读取的行数
+     * @param consumer
+     */
+    public void streamResource(int fetchSize, Consumer<ResourcePermit> consumer){
+        log.info("db流式读取全部资源");
+        try(Connection connection = dataSource.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            //部分驱动（例如postgresql）只在事务中使用游标
+            connection.setAutoCommit(false);
+            try(PreparedStatement ps = connection.prepareStatement(queryAllResourceSql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                ps.setFetchSize(fetchSize);
+                try(ResultSet resultSet = ps.executeQuery()) {
+                    while (resultSet.next()){
+                        consumer.accept(extractResourcePermit(resultSet));
+                    }
+                }
+            }finally {
+                connection.rollback();
+                connection.setAutoCommit(autoCommit);
+            }
+        }catch (SQLException e){
+            throw new ResourceRunException("流式读取资源失败，原因:" + e.getMessage());
+        }
+    }
+
     /**
      * 单个扣减可用资源
      * @param updateResourceParam
@@ -206,24 +596,9 @@ public class DbAccessor {
      */
     private void doSubtractOneAvailableResource(UpdateResourceParam updateResourceParam)
             throws DataUnConsistentException {
-        String resourceId = updateResourceParam.getResourceId();
-        Connection connection = DataSourceUtils.getConnection(dataSource);
-        String sqlStr = String.format(SUBTRACT_ONE_AVAILABLE_RESOURCE, dbResourceTableName, dbResourceAvailablePermitColumnName, dbResourceAvailablePermitColumnName, dbResourceKeyColumnName, dbResourceAvailablePermitColumnName);
-        int updateNum = 0;
-        try(PreparedStatement ps = connection.prepareStatement(sqlStr)) {
-            ps.setInt(1,updateResourceParam.getNum());
-            ps.setString(2,resourceId);
-            ps.setInt(3,updateResourceParam.getNum());
-            updateNum = ps.executeUpdate();
-        }catch (Exception e){
-            throw new ResourceRunException("db扣减可用资源失败，原因:" + e.getMessage());
-        }
-        if(updateNum <= 0){
-            //db和cache不一致了
-            CacheAccessor.setAvailableResourceNotConsistence(resourceId);
-            log.error("可用资源:{},cache和db出现不一致，将尝试限制业务请求并进行校准",resourceId);
-            throw new DataUnConsistentException("db扣减可用资源:" + resourceId + "失败，cache和db出现不一致，将尝试限制业务请求并进行校准");
-        }
+        doGuardedUpdate(subtractOneAvailableResourceSql, Collections.singletonList(updateResourceParam), DbAccessor::bindSubtract,
+                dbResourceAvailablePermitColumnName, null,
+                CacheAccessor::setAvailableResourceNotConsistence, "db扣减可用资源", "可用资源");
     }
 
     /**
@@ -235,9 +610,9 @@ public class DbAccessor {
             @SneakyThrows
             @Override
             protected void doInTransactionWithoutResult(TransactionStatus status) {
-                for(UpdateResourceParam updateResourceParam : updateResourceParamList){
-                    doSubtractOneAvailableResource(updateResourceParam);
-                }
+                doGuardedUpdate(subtractOneAvailableResourceSql, updateResourceParamList, DbAccessor::bindSubtract,
+                        dbResourceAvailablePermitColumnName, null,
+                        CacheAccessor::setAvailableResourceNotConsistence, "db扣减可用资源", "可用资源");
             }
         });
     }
@@ -263,42 +638,13 @@ public class DbAccessor {
             @SneakyThrows
             @Override
             protected void doInTransactionWithoutResult(TransactionStatus status) {
-                for(UpdateResourceParam updateResourceParam : updateResourceParamList){
-                    doSubtractAvailableAndAddOnePreLockResource(updateResourceParam);
-                }
+                doGuardedUpdate(subtractAvailableAddPreLockSql, updateResourceParamList, DbAccessor::bindTransfer,
+                        dbResourceAvailablePermitColumnName, dbResourcePreLockPermitColumnName,
+                        CacheAccessor::setAvailableResourceNotConsistence, "db扣减可用资源", "可用资源");
             }
         });
     }
 
-    /**
-     * 单个扣减可用资源 并 增加预占资源
-     * @param updateResourceParam
-     * @throws DataUnConsistentException
-     */
-    private void doSubtractAvailableAndAddOnePreLockResource(UpdateResourceParam updateResourceParam) throws DataUnConsistentException {
-        String resourceId = updateResourceParam.getResourceId();
-        Connection connection = DataSourceUtils.getConnection(dataSource);
-        String sqlStr = String.format(SUBTRACT_AVAILABLE_ADD_PRE_LOCK, dbResourceTableName, dbResourceAvailablePermitColumnName, dbResourceAvailablePermitColumnName,
-                dbResourcePreLockPermitColumnName, dbResourcePreLockPermitColumnName,
-                dbResourceKeyColumnName, dbResourceAvailablePermitColumnName);
-        int updateNum = 0;
-        try(PreparedStatement ps = connection.prepareStatement(sqlStr)) {
-            ps.setInt(1,updateResourceParam.getNum());
-            ps.setInt(2,updateResourceParam.getNum());
-            ps.setString(3,resourceId);
-            ps.setInt(4,updateResourceParam.getNum());
-            updateNum = ps.executeUpdate();
-        }catch (Exception e){
-            throw new ResourceRunException("db扣减可用资源失败，原因:" + e.getMessage());
-        }
-        if(updateNum <= 0){
-            //db和cache不一致了
-            CacheAccessor.setAvailableResourceNotConsistence(resourceId);
-            log.error("可用资源:{},cache和db出现不一致，将尝试限制业务请求并进行校准",resourceId);
-            throw new DataUnConsistentException("db扣减可用资源:" + resourceId + "失败，cache和db出现不一致，将尝试限制业务请求并进行校准");
-        }
-    }
-
     /**
      * 批量扣减预占资源 并 添加可用资源
      * @see DbAccessor#subtractAvailableAndAddPreLockResource 的逆向
@@ -309,42 +655,13 @@ public class DbAccessor {
             @SneakyThrows
             @Override
             protected void doInTransactionWithoutResult(TransactionStatus status) {
-                for(UpdateResourceParam updateResourceParam : updateResourceParamList){
-                    doSubtractPreLockedAndAddAvailableResource(updateResourceParam);
-                }
+                doGuardedUpdate(subtractPreLockAddAvailableSql, updateResourceParamList, DbAccessor::bindTransfer,
+                        dbResourcePreLockPermitColumnName, dbResourceAvailablePermitColumnName,
+                        CacheAccessor::setPreLockedResourceNotConsistence, "db扣减预占资源", "预占资源");
             }
         });
     }
 
-    /**
-     * 单个扣减预占资源 并 添加可用资源
-     * @param updateResourceParam
-     * @throws DataUnConsistentException
-     */
-    private void doSubtractPreLockedAndAddAvailableResource(UpdateResourceParam updateResourceParam) throws DataUnConsistentException {
-        String resourceId = updateResourceParam.getResourceId();
-        Connection connection = DataSourceUtils.getConnection(dataSource);
-        String sqlStr = String.format(SUBTRACT_PRE_LOCK_ADD_AVAILABLE,dbResourceTableName, dbResourcePreLockPermitColumnName, dbResourcePreLockPermitColumnName,
-                dbResourceAvailablePermitColumnName, dbResourceAvailablePermitColumnName,
-                dbResourceKeyColumnName, dbResourcePreLockPermitColumnName);
-        int updateNum = 0;
-        try(PreparedStatement ps = connection.prepareStatement(sqlStr)) {
-            ps.setInt(1,updateResourceParam.getNum());
-            ps.setInt(2,updateResourceParam.getNum());
-            ps.setString(3,resourceId);
-            ps.setInt(4,updateResourceParam.getNum());
-            updateNum = ps.executeUpdate();
-        }catch (Exception e){
-            throw new ResourceRunException("db扣减预占资源失败，原因:" + e.getMessage());
-        }
-        if(updateNum <= 0){
-            //db和cache不一致了
-            CacheAccessor.setPreLockedResourceNotConsistence(resourceId);
-            log.error("预占资源:{},cache和db出现不一致，将尝试限制业务请求并进行校准",resourceId);
-            throw new DataUnConsistentException("db扣减预占资源:" + resourceId + "失败，cache和db出现不一致，将尝试限制业务请求并进行校准");
-        }
-    }
-
     /**
      * 批量增加可用资源数量
      * @param updateResourceParamList
@@ -354,103 +671,297 @@ public class DbAccessor {
             @SneakyThrows
             @Override
             protected void doInTransactionWithoutResult(TransactionStatus status) {
-                for(UpdateResourceParam updateResourceParam : updateResourceParamList){
-                    doAddAvailableResource(updateResourceParam);
-                }
+                doBatchUpdate(addOneAvailableResourceSql, updateResourceParamList, DbAccessor::bindAdd, "db添加可用资源");
             }
         });
     }
 
     /**
-     * 单个增加可用资源数量
-     * @param updateResourceParam
+     * 扣减预占资源
+     * @param updateResourceParamList
      */
-    private void doAddAvailableResource(UpdateResourceParam updateResourceParam) {
-        String resourceId = updateResourceParam.getResourceId();
-        Connection connection = DataSourceUtils.getConnection(dataSource);
-        String sqlStr = String.format(ADD_ONE_AVAILABLE_RESOURCE, dbResourceTableName, dbResourceAvailablePermitColumnName, dbResourceAvailablePermitColumnName, dbResourceKeyColumnName);
-        try(PreparedStatement ps = connection.prepareStatement(sqlStr)) {
-            ps.setInt(1,updateResourceParam.getNum());
-            ps.setString(2,resourceId);
-            ps.executeUpdate();
-        }catch (Exception e){
-            throw new ResourceRunException("db添加可用资源失败，原因:" + e.getMessage());
-        }
+    public void subtractPreLockedResource(List<UpdateResourceParam> updateResourceParamList) {
+        transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+            @SneakyThrows
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                doGuardedUpdate(subtractOnePreLockResourceSql, updateResourceParamList, DbAccessor::bindSubtract,
+                        dbResourcePreLockPermitColumnName, null,
+                        CacheAccessor::setPreLockedResourceNotConsistence, "db扣减预占资源", "预占资源");
+            }
+        });
     }
 
     /**
-     * 扣减预占资源
+     * 增加预占资源数量
      * @param updateResourceParamList
      */
-    public void subtractPreLockedResource(List<UpdateResourceParam> updateResourceParamList) {
+    public void addPreLockResource(List<UpdateResourceParam> updateResourceParamList) {
         transactionTemplate.execute(new TransactionCallbackWithoutResult() {
             @SneakyThrows
             @Override
             protected void doInTransactionWithoutResult(TransactionStatus status) {
-                for(UpdateResourceParam updateResourceParam : updateResourceParamList){
-                    doSubtractOnePreLockResource(updateResourceParam);
-                }
+                doBatchUpdate(addOnePreLockResourceSql, updateResourceParamList, DbAccessor::bindAdd, "db添加预占资源");
             }
         });
     }
 
     /**
-     * 单个扣减预占资源
-     * @param updateResourceParam
+     * 带数量校验的批量更新
+     * 每一行都要得到确定的校验结果，不使用驱动可能改写（不返回逐行更新行数）的jdbc batch执行带校验的语句：
+     * 单行直接执行；MULTI_ROW一条语句更新整个列表；BATCH先锁定并校验全部行，再通过jdbc batch执行更新
+     * @param batchSqlStr 单行sql
+     * @param updateResourceParamList
+     * @param paramBinder 单行sql的参数绑定
+     * @param subtractColumnName 扣减并校验的列
+     * @param addColumnName 同时增加的列 可以为null
+     * @param notConsistenceMarker 标记不一致
+     * @param operation 操作描述
+     * @param resourceType 资源类型描述
      * @throws DataUnConsistentException
      */
-    private void doSubtractOnePreLockResource(UpdateResourceParam updateResourceParam)
+    private void doGuardedUpdate(String batchSqlStr, List<UpdateResourceParam> updateResourceParamList, ParamBinder paramBinder,
+                                 String subtractColumnName, String addColumnName,
+                                 Consumer<String> notConsistenceMarker, String operation, String resourceType)
             throws DataUnConsistentException {
-        String resourceId = updateResourceParam.getResourceId();
+        if(Objects.isNull(updateResourceParamList) || updateResourceParamList.isEmpty()){
+            return;
+        }
         Connection connection = DataSourceUtils.getConnection(dataSource);
-        String sqlStr = String.format(SUBTRACT_ONE_PRE_LOCK_RESOURCE, dbResourceTableName, dbResourcePreLockPermitColumnName, dbResourcePreLockPermitColumnName, dbResourceKeyColumnName, dbResourcePreLockPermitColumnName);
-        int updateNum = 0;
-        try(PreparedStatement ps = connection.prepareStatement(sqlStr)) {
-            ps.setInt(1,updateResourceParam.getNum());
-            ps.setString(2,resourceId);
-            ps.setInt(3,updateResourceParam.getNum());
-            updateNum = ps.executeUpdate();
-        }catch (Exception e){
-            throw new ResourceRunException("db扣减预占资源失败，原因:" + e.getMessage());
+        List<String> notConsistenceResourceIdList;
+        try {
+            if(updateResourceParamList.size() == 1){
+                notConsistenceResourceIdList = notUpdated(updateResourceParamList, executeEach(connection, batchSqlStr, updateResourceParamList, paramBinder));
+            }else if(updateStrategy == DbUpdateStrategy.MULTI_ROW){
+                if(doMultiRowUpdate(connection, updateResourceParamList, subtractColumnName, addColumnName)){
+                    return;
+                }
+                notConsistenceResourceIdList = notUpdated(updateResourceParamList, executeEach(connection, batchSqlStr, updateResourceParamList, paramBinder));
+            }else {
+                notConsistenceResourceIdList = lockAndCheck(connection, updateResourceParamList, subtractColumnName);
+                if(notConsistenceResourceIdList.isEmpty()){
+                    //已经在行锁下校验过数量 驱动返回SUCCESS_NO_INFO时同样视为成功
+                    notConsistenceResourceIdList = notUpdated(updateResourceParamList, executeBatch(connection, batchSqlStr, updateResourceParamList, paramBinder));
+                }
+            }
+        }catch (SQLException e){
+            throw new ResourceRunException(operation + "失败，原因:" + e.getMessage(), e);
         }
-        if(updateNum <= 0){
-            //db和cache不一致了
-            CacheAccessor.setPreLockedResourceNotConsistence(resourceId);
-            log.error("预占资源:{},cache和db出现不一致，将尝试限制业务请求并进行校准",resourceId);
-            throw new DataUnConsistentException("db扣减预占资源:" + resourceId + "失败，cache和db出现不一致，将尝试限制业务请求并进行校准");
+        if(notConsistenceResourceIdList.isEmpty()){
+            return;
         }
+        //db和cache不一致了
+        notConsistenceResourceIdList.forEach(notConsistenceMarker);
+        String resourceIds = String.join(COMMA, notConsistenceResourceIdList);
+        log.error(resourceType + ":{},cache和db出现不一致，将尝试限制业务请求并进行校准", resourceIds);
+        throw new DataUnConsistentException(operation + ":" + resourceIds + "失败，cache和db出现不一致，将尝试限制业务请求并进行校准");
     }
 
     /**
-     * 增加预占资源数量
+     * 一次往返锁定（SELECT ... FOR UPDATE）待扣减的行并校验数量
+     * 同一资源出现多次时按合计数量校验；返回不存在或者数量不足的资源
+     * 行锁持有到事务结束，之后的更新不会因为数量不足而失败
+     * @param connection
      * @param updateResourceParamList
+     * @param subtractColumnName
+     * @return
+     * @throws SQLException
      */
-    public void addPreLockResource(List<UpdateResourceParam> updateResourceParamList) {
-        transactionTemplate.execute(new TransactionCallbackWithoutResult() {
-            @SneakyThrows
-            @Override
-            protected void doInTransactionWithoutResult(TransactionStatus status) {
-                for(UpdateResourceParam updateResourceParam : updateResourceParamList){
-                    doAddPreLockResource(updateResourceParam);
+    private List<String> lockAndCheck(Connection connection, List<UpdateResourceParam> updateResourceParamList, String subtractColumnName)
+            throws SQLException {
+        Map<String, Integer> numMap = new LinkedHashMap<>();
+        for(UpdateResourceParam updateResourceParam : updateResourceParamList){
+            numMap.merge(updateResourceParam.getResourceId(), updateResourceParam.getNum(), Integer::sum);
+        }
+        int size = numMap.size();
+        String sqlStr = lockRowSqlCache.computeIfAbsent(subtractColumnName + COMMA + size,
+                key -> "SELECT " + dbResourceKeyColumnName + COMMA + subtractColumnName + " FROM " + dbResourceTableName
+                        + " WHERE " + dbResourceKeyColumnName + " IN (" + String.join(", ", Collections.nCopies(size, "?")) + ") FOR UPDATE");
+        Map<String, Integer> permitMap = new HashMap<>(size * 2);
+        try(PreparedStatement ps = connection.prepareStatement(sqlStr)) {
+            int index = 1;
+            for(String resourceId : numMap.keySet()){
+                ps.setString(index++, resourceId);
+            }
+            try(ResultSet resultSet = ps.executeQuery()) {
+                while (resultSet.next()){
+                    permitMap.put(resultSet.getString(1), resultSet.getInt(2));
                 }
             }
+        }
+        List<String> notConsistenceResourceIdList = new ArrayList<>();
+        numMap.forEach((resourceId, num) -> {
+            Integer permit = permitMap.get(resourceId);
+            if(Objects.isNull(permit) || permit < num){
+                notConsistenceResourceIdList.add(resourceId);
+            }
         });
+        return notConsistenceResourceIdList;
     }
 
     /**
-     * 单个增加预占资源数量
-     * @param updateResourceParam
+     * 更新行数为0的资源 SUCCESS_NO_INFO视为已更新（只用于已经校验过数量的更新）
      */
-    private void doAddPreLockResource(UpdateResourceParam updateResourceParam) {
-        String resourceId = updateResourceParam.getResourceId();
+    private static List<String> notUpdated(List<UpdateResourceParam> updateResourceParamList, int[] updateNums){
+        List<String> notUpdatedList = new ArrayList<>();
+        for (int i = 0; i < updateNums.length; i++) {
+            if(updateNums[i] == 0){
+                notUpdatedList.add(updateResourceParamList.get(i).getResourceId());
+            }
+        }
+        return notUpdatedList;
+    }
+
+    /**
+     * 一条语句更新整个列表
+     * 更新行数与请求行数一致时返回true
+     * 否则回滚到执行前的保存点并返回false，由调用方逐行更新以找出不一致的行
+     * @param connection
+     * @param updateResourceParamList
+     * @param subtractColumnName
+     * @param addColumnName
+     * @return
+     * @throws SQLException
+     */
+    private boolean doMultiRowUpdate(Connection connection, List<UpdateResourceParam> updateResourceParamList, String subtractColumnName, String addColumnName)
+            throws SQLException {
+        //合并相同的resourceId
+        Map<String, Integer> numMap = new LinkedHashMap<>();
+        for(UpdateResourceParam updateResourceParam : updateResourceParamList){
+            numMap.merge(updateResourceParam.getResourceId(), updateResourceParam.getNum(), Integer::sum);
+        }
+        int size = numMap.size();
+        String sqlStr = multiRowSqlCache.computeIfAbsent(subtractColumnName + COMMA + addColumnName + COMMA + size,
+                key -> buildMultiRowSql(subtractColumnName, addColumnName, size));
+        Savepoint savepoint = connection.setSavepoint();
+        int updateNum;
+        try(PreparedStatement ps = connection.prepareStatement(sqlStr)) {
+            int index = 1;
+            int caseCount = Objects.isNull(addColumnName) ? 1 : 2;
+            for (int c = 0; c < caseCount; c++) {
+                index = bindCase(ps, index, numMap);
+            }
+            for(String resourceId : numMap.keySet()){
+                ps.setString(index++, resourceId);
+            }
+            bindCase(ps, index, numMap);
+            updateNum = ps.executeUpdate();
+        }
+        if(updateNum == size){
+            connection.releaseSavepoint(savepoint);
+            return true;
+        }
+        connection.rollback(savepoint);
+        return false;
+    }
+
+    /**
+     * UPDATE table SET sub = sub - (CASE key WHEN ? THEN ? ... END)[, add = add + (CASE key WHEN ? THEN ? ... END)]
+     * WHERE key IN (?, ...) AND sub >= (CASE key WHEN ? THEN ? ... END)
+     */
+    private String buildMultiRowSql(String subtractColumnName, String addColumnName, int size){
+        StringBuilder caseSb = new StringBuilder("(CASE ").append(dbResourceKeyColumnName);
+        for (int i = 0; i < size; i++) {
+            caseSb.append(" WHEN ? THEN ?");
+        }
+        caseSb.append(" END)");
+        String caseStr = caseSb.toString();
+        StringBuilder sb = new StringBuilder("UPDATE ").append(dbResourceTableName)
+                .append(" SET ").append(subtractColumnName).append(" = ").append(subtractColumnName).append(" - ").append(caseStr);
+        if(Objects.nonNull(addColumnName)){
+            sb.append(", ").append(addColumnName).append(" = ").append(addColumnName).append(" + ").append(caseStr);
+        }
+        sb.append(" WHERE ").append(dbResourceKeyColumnName).append(" IN (")
+                .append(String.join(", ", Collections.nCopies(size, "?")))
+                .append(") AND ").append(subtractColumnName).append(" >= ").append(caseStr);
+        return sb.toString();
+    }
+
+    private static int bindCase(PreparedStatement ps, int index, Map<String, Integer> numMap) throws SQLException {
+        for(Map.Entry<String, Integer> entry : numMap.entrySet()){
+            ps.setString(index++, entry.getKey());
+            ps.setInt(index++, entry.getValue());
+        }
+        return index;
+    }
+
+    /**
+     * 在当前事务的连接上 一次批量执行同一条不校验数量的更新语句
+     * @param sqlStr 预先格式化好的sql
+     * @param updateResourceParamList
+     * @param paramBinder 参数绑定
+     * @param operation 操作描述
+     */
+    private void doBatchUpdate(String sqlStr, List<UpdateResourceParam> updateResourceParamList, ParamBinder paramBinder, String operation){
+        if(Objects.isNull(updateResourceParamList) || updateResourceParamList.isEmpty()){
+            return;
+        }
         Connection connection = DataSourceUtils.getConnection(dataSource);
-        String sqlStr = String.format(ADD_ONE_PRE_LOCK_RESOURCE, dbResourceTableName, dbResourcePreLockPermitColumnName, dbResourcePreLockPermitColumnName, dbResourceKeyColumnName);
+        try {
+            executeBatch(connection, sqlStr, updateResourceParamList, paramBinder);
+        }catch (SQLException e){
+            throw new ResourceRunException(operation + "失败，原因:" + e.getMessage(), e);
+        }
+    }
+
+    private static int[] executeBatch(Connection connection, String sqlStr, List<UpdateResourceParam> updateResourceParamList, ParamBinder paramBinder)
+            throws SQLException {
         try(PreparedStatement ps = connection.prepareStatement(sqlStr)) {
-            ps.setInt(1,updateResourceParam.getNum());
-            ps.setString(2,resourceId);
-            ps.executeUpdate();
-        }catch (Exception e){
-            throw new ResourceRunException("db添加预占资源失败，原因:" + e.getMessage());
+            for(UpdateResourceParam updateResourceParam : updateResourceParamList){
+                paramBinder.bind(ps, updateResourceParam);
+                ps.addBatch();
+            }
+            return ps.executeBatch();
+        }
+    }
+
+    /**
+     * 逐行执行 每行都能得到更新行数
+     */
+    private static int[] executeEach(Connection connection, String sqlStr, List<UpdateResourceParam> updateResourceParamList, ParamBinder paramBinder)
+            throws SQLException {
+        int[] updateNums = new int[updateResourceParamList.size()];
+        try(PreparedStatement ps = connection.prepareStatement(sqlStr)) {
+            for (int i = 0; i < updateNums.length; i++) {
+                paramBinder.bind(ps, updateResourceParamList.get(i));
+                updateNums[i] = ps.executeUpdate();
+            }
         }
+        return updateNums;
+    }
+
+    /**
+     * 扣减 (num, resourceId, num)
+     */
+    private static void bindSubtract(PreparedStatement ps, UpdateResourceParam updateResourceParam) throws SQLException {
+        ps.setInt(1,updateResourceParam.getNum());
+        ps.setString(2,updateResourceParam.getResourceId());
+        ps.setInt(3,updateResourceParam.getNum());
+    }
+
+    /**
+     * 增加 (num, resourceId)
+     */
+    private static void bindAdd(PreparedStatement ps, UpdateResourceParam updateResourceParam) throws SQLException {
+        ps.setInt(1,updateResourceParam.getNum());
+        ps.setString(2,updateResourceParam.getResourceId());
+    }
+
+    /**
+     * 转移 (num, num, resourceId, num)
+     */
+    private static void bindTransfer(PreparedStatement ps, UpdateResourceParam updateResourceParam) throws SQLException {
+        ps.setInt(1,updateResourceParam.getNum());
+        ps.setInt(2,updateResourceParam.getNum());
+        ps.setString(3,updateResourceParam.getResourceId());
+        ps.setInt(4,updateResourceParam.getNum());
+    }
+
+    /**
+     * 参数绑定
+     */
+    @FunctionalInterface
+    private interface ParamBinder {
+        void bind(PreparedStatement ps, UpdateResourceParam updateResourceParam) throws SQLException;
     }
 }
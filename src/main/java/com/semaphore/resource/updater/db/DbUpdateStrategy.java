@@ -0,0 +1,19 @@
+package com.semaphore.resource.updater.db;
+
+/**
+ * 批量更新数据库的方式
+ *
+ * @date 2022/3/24 10:40 AM
+ */
+public enum DbUpdateStrategy {
+    /**
+     * 每行一条语句 通过jdbc batch一次发送（MySQL需要jdbc url中rewriteBatchedStatements=true）
+     * 带数量校验的更新先用一条SELECT ... FOR UPDATE锁定并校验全部行，不依赖驱动返回的逐行更新行数
+     */
+    BATCH,
+    /**
+     * 整个列表一条语句 UPDATE ... SET col = col - CASE key WHEN ? THEN ? ... END WHERE key IN (...)
+     * 行数与请求数不一致时回滚到保存点，逐行执行找出不一致的行
+     */
+    MULTI_ROW
+}
@@ -0,0 +1,585 @@
+package com.semaphore.resource.updater.db;
+
+import com.semaphore.resource.updater.cache.CacheAccessor;
+import com.semaphore.resource.updater.cache.RedisScript;
+import com.semaphore.resource.updater.core.UpdateResourceParam;
+import com.semaphore.resource.updater.exceptions.DataUnConsistentException;
+import com.semaphore.resource.updater.exceptions.ResourceRunException;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.PendingEntry;
+import org.redisson.api.PendingResult;
+import org.redisson.api.RScript;
+import org.redisson.api.RStream;
+import org.redisson.api.StreamGroup;
+import org.redisson.api.StreamMessageId;
+import org.redisson.client.RedisException;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.core.Ordered;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 可用资源扣减的异步落库（write-behind）
+ * 缓存信号量扣减成功之后，在业务事务提交之前把扣减量写入redis stream（持久化队列），
+ * 同一个脚本中累加到未落库量hash（resourceId -> 未落库的扣减量）；事务回滚时写入一条相反的扣减量抵消
+ * 后台线程按resourceId合并扣减量，批量事务更新数据库，同一个事务中记录已落库的消息id（表结构见README），
+ * 提交之后在一个脚本中ack、删除消息并减掉未落库量；已落库的消息再次被处理时跳过，只ack
+ * 重新初始化可用资源时用数据库数量减掉未落库量（见CacheAccessor），积压未落库时不会多卖
+ *
+ * 宕机时：
+ * 写入stream之后、业务事务提交之前宕机，扣减量仍会落库（少卖，不会多卖）
+ * 数据库提交之后、ack之前宕机（或者ack失败），消息会被再次处理，已落库的消息id被跳过，不会重复扣减
+ * 落库失败时：数量不足、违反约束等重试也不会成功的消息转入死信；数据库不可用等暂时性失败的消息不ack，留在待处理列表中重试，
+ * 投递次数超过maxDeliveries之后转入死信
+ * 宕机后不再重启的消费者，其未ack的消息空闲超过claimIdleMilliSecond之后由其它节点接管（XCLAIM）
+ * 死信中的扣减量仍计入未落库量，人工处理之后需要从WRITE_BEHIND_PENDING_KEY中减掉
+ * 已落库消息id在消息不再可能被重新处理（早于待处理列表中最早的消息）之后定期清理
+ *
+ * @date 2022/3/18 3:05 PM
+ */
+@Slf4j
+public class WriteBehindFlusher {
+    public static final String WRITE_BEHIND_STREAM_KEY = "resource_write_behind_stream";
+    public static final String WRITE_BEHIND_DEAD_STREAM_KEY = "resource_write_behind_dead_stream";
+    /**
+     * 未落库量hash 与stream在同一个slot
+     */
+    public static final String WRITE_BEHIND_PENDING_KEY = "{" + WRITE_BEHIND_STREAM_KEY + "}:pending";
+    private static final String WRITE_BEHIND_GROUP = "resource_write_behind_group";
+    /**
+     * 创建消费组时写入的占位消息字段
+     */
+    private static final String INIT_FIELD = "__init__";
+    /**
+     * 每多少个周期重新处理一次本消费者未ack的消息 并接管其它消费者空闲的消息
+     */
+    private static final int PENDING_RETRY_TICKS = 50;
+    /**
+     * 其它消费者的消息空闲多久之后接管 毫秒
+     */
+    public static final long DEFAULT_CLAIM_IDLE_MILLI_SECOND = 60000;
+    /**
+     * 消息最多投递次数 暂时性失败重试超过之后转入死信
+     */
+    public static final int DEFAULT_MAX_DELIVERIES = 100;
+    /**
+     * 违反完整性约束的SQLState前缀
+     */
+    private static final String INTEGRITY_CONSTRAINT_SQL_STATE = "23";
+
+    /**
+     * 写入扣减量并累加未落库量
+     * KEYS[1] stream KEYS[2] 未落库量hash
+     * ARGV 依次为 resourceId、扣减量
+     * 按命令复制 xadd自动生成的id在从节点上保持一致
+     * 返回消息id
+     */
+    private static final RedisScript APPEND_SCRIPT = new RedisScript(
+            "redis.replicate_commands(); " +
+                    "for i = 1, #ARGV, 2 do " +
+                    "redis.call('hincrby', KEYS[2], ARGV[i], ARGV[i + 1]); " +
+                    "end; " +
+                    "return redis.call('xadd', KEYS[1], '*', unpack(ARGV));", StringCodec.INSTANCE);
+
+    /**
+     * 落库之后ack、删除消息并减掉未落库量
+     * 已经被ack的消息（例如被其它消费者接管并处理过）不再减
+     * KEYS[1] stream KEYS[2] 未落库量hash
+     * ARGV[1] 消费组 之后每条消息依次为 消息id、字段个数k、k组resourceId和扣减量（转入死信的消息k为0）
+     * 返回ack的消息数
+     */
+    private static final RedisScript COMPLETE_SCRIPT = new RedisScript(
+            "local acked = 0; " +
+                    "local i = 2; " +
+                    "while i <= #ARGV do " +
+                    "local k = tonumber(ARGV[i + 1]); " +
+                    "if (redis.call('xack', KEYS[1], ARGV[1], ARGV[i]) == 1) then " +
+                    "acked = acked + 1; " +
+                    "for j = 1, k do " +
+                    "redis.call('hincrby', KEYS[2], ARGV[i + 2 * j], -tonumber(ARGV[i + 2 * j + 1])); " +
+                    "end; " +
+                    "end; " +
+                    "redis.call('xdel', KEYS[1], ARGV[i]); " +
+                    "i = i + 2 + 2 * k; " +
+                    "end; " +
+                    "return acked;", StringCodec.INSTANCE);
+
+    private final DbAccessor dbAccessor;
+    private final String consumerName;
+    private final int batchSize;
+    private final long claimIdleMilliSecond;
+    private final int maxDeliveries;
+    private final RStream<String, String> stream;
+    private final RStream<String, String> deadStream;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicLong flushedCount = new AtomicLong();
+    private volatile long lastFlushTime;
+    private int tick;
+
+    /**
+     * @param dbAccessor
+     * @param consumerName 消费者名称 每个节点唯一且重启后保持不变，用于宕机后继续处理未ack的消息
+     * @param batchSize 每次最多读取的消息数
+     * @param flushIntervalMilliSecond 落库周期 毫秒
+     */
+    public WriteBehindFlusher(DbAccessor dbAccessor, String consumerName, int batchSize, long flushIntervalMilliSecond){
+        this(dbAccessor, consumerName, batchSize, flushIntervalMilliSecond, DEFAULT_CLAIM_IDLE_MILLI_SECOND);
+    }
+
+    /**
+     * @param dbAccessor
+     * @param consumerName 消费者名称 每个节点唯一且重启后保持不变，用于宕机后继续处理未ack的消息
+     * @param batchSize 每次最多读取的消息数
+     * @param flushIntervalMilliSecond 落库周期 毫秒
+     * @param claimIdleMilliSecond 其它消费者未ack的消息空闲多久之后接管 需要远大于一次落库的耗时
+     */
+    public WriteBehindFlusher(DbAccessor dbAccessor, String consumerName, int batchSize, long flushIntervalMilliSecond, long claimIdleMilliSecond){
+        this(dbAccessor, consumerName, batchSize, flushIntervalMilliSecond, claimIdleMilliSecond, DEFAULT_MAX_DELIVERIES);
+    }
+
+    /**
+     * @param dbAccessor
+     * @param consumerName 消费者名称 每个节点唯一且重启后保持不变，用于宕机后继续处理未ack的消息
+     * @param batchSize 每次最多读取的消息数
+     * @param flushIntervalMilliSecond 落库周期 毫秒
+     * @param claimIdleMilliSecond 其它消费者未ack的消息空闲多久之后接管 需要远大于一次落库的耗时
+     * @param maxDeliveries 消息最多投递次数 暂时性失败重试超过之后转入死信，需要覆盖可容忍的数据库不可用时长（每PENDING_RETRY_TICKS个周期重试一次）
+     */
+    public WriteBehindFlusher(DbAccessor dbAccessor, String consumerName, int batchSize, long flushIntervalMilliSecond,
+                              long claimIdleMilliSecond, int maxDeliveries){
+        if(Objects.isNull(consumerName)){
+            throw new ResourceRunException("consumerName不能为空");
+        }
+        if(claimIdleMilliSecond <= 0){
+            throw new ResourceRunException("异步落库配置错误,claimIdleMilliSecond:" + claimIdleMilliSecond);
+        }
+        if(maxDeliveries <= 0){
+            throw new ResourceRunException("异步落库配置错误,maxDeliveries:" + maxDeliveries);
+        }
+        this.dbAccessor = dbAccessor;
+        this.consumerName = consumerName;
+        this.batchSize = batchSize;
+        this.claimIdleMilliSecond = claimIdleMilliSecond;
+        this.maxDeliveries = maxDeliveries;
+        this.stream = CacheAccessor.redissonClient.getStream(WRITE_BEHIND_STREAM_KEY, StringCodec.INSTANCE);
+        this.deadStream = CacheAccessor.redissonClient.getStream(WRITE_BEHIND_DEAD_STREAM_KEY, StringCodec.INSTANCE);
+        createGroupIfAbsent();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "resource-write-behind-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        //启动时先处理宕机前未ack的消息
+        this.tick = PENDING_RETRY_TICKS;
+        this.scheduler.scheduleWithFixedDelay(this::flush, flushIntervalMilliSecond, flushIntervalMilliSecond, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 在当前事务提交之前记录扣减量
+     * 事务回滚时写入相反的扣减量抵消，先于归还信号量、注销提交栅栏执行
+     * 写入失败时抛出异常，事务回滚
+     * @param updateResourceParamList
+     */
+    public void appendBeforeCommit(List<UpdateResourceParam> updateResourceParamList){
+        Map<String, Integer> deltaMap = toDeltaMap(updateResourceParamList);
+        AtomicBoolean appended = new AtomicBoolean();
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void beforeCommit(boolean readOnly) {
+                append(deltaMap, 1);
+                appended.set(true);
+            }
+        });
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public int getOrder() {
+                return Ordered.HIGHEST_PRECEDENCE;
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if(STATUS_ROLLED_BACK != status || !appended.get()){
+                    return;
+                }
+                try {
+                    append(deltaMap, -1);
+                }catch (Exception e){
+                    //未落库量偏多 重新初始化时少卖
+                    log.error("抵消异步落库扣减量失败:{}，资源:{}在落库之前少卖", e.getMessage(), deltaMap);
+                }
+            }
+        });
+    }
+
+    /**
+     * 立即记录扣减量
+     * 用于不在spring事务中的调用方（例如异步扣减，数据库阶段没有业务事务）
+     * @param updateResourceParamList
+     */
+    public void append(List<UpdateResourceParam> updateResourceParamList){
+        append(toDeltaMap(updateResourceParamList), 1);
+    }
+
+    /**
+     * 未落库的消息数
+     * @return
+     */
+    public long getLag(){
+        return stream.size();
+    }
+
+    /**
+     * 已落库的消息数
+     * @return
+     */
+    public long getFlushedCount(){
+        return flushedCount.get();
+    }
+
+    /**
+     * 最近一次落库时间
+     * @return
+     */
+    public long getLastFlushTime(){
+        return lastFlushTime;
+    }
+
+    /**
+     * 停止 并把已读取的消息处理完
+     */
+    public void shutdown(){
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flush(){
+        try {
+            if(++tick >= PENDING_RETRY_TICKS){
+                tick = 0;
+                if(!retryPending()){
+                    return;
+                }
+                claimIdle();
+                purgeApplied();
+            }
+            Map<StreamMessageId, Map<String, String>> messageMap;
+            do {
+                messageMap = stream.readGroup(WRITE_BEHIND_GROUP, consumerName, batchSize, StreamMessageId.NEVER_DELIVERED);
+                if(!process(messageMap)){
+                    //暂时性失败 等待下次重试待处理列表
+                    return;
+                }
+            }while (Objects.nonNull(messageMap) && messageMap.size() >= batchSize);
+        }catch (Exception e){
+            log.error("异步落库失败:{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 分批重新处理本消费者未ack的消息
+     * @return 全部处理完成（落库或者转入死信）时返回true
+     */
+    private boolean retryPending(){
+        StreamMessageId lastId = StreamMessageId.ALL;
+        Map<StreamMessageId, Map<String, String>> messageMap;
+        do {
+            messageMap = stream.readGroup(WRITE_BEHIND_GROUP, consumerName, batchSize, lastId);
+            if(Objects.isNull(messageMap) || messageMap.isEmpty()){
+                return true;
+            }
+            if(!process(messageMap)){
+                return false;
+            }
+            for(StreamMessageId id : messageMap.keySet()){
+                lastId = id;
+            }
+        }while (messageMap.size() >= batchSize);
+        return true;
+    }
+
+    /**
+     * 接管其它消费者空闲超过claimIdleMilliSecond的消息（例如宕机后不再重启的节点）
+     */
+    private void claimIdle(){
+        List<PendingEntry> pendingEntryList = stream.listPending(WRITE_BEHIND_GROUP, StreamMessageId.MIN, StreamMessageId.MAX, batchSize);
+        List<StreamMessageId> idList = new ArrayList<>();
+        for(PendingEntry pendingEntry : pendingEntryList){
+            if(!consumerName.equals(pendingEntry.getConsumerName()) && pendingEntry.getIdleTime() >= claimIdleMilliSecond){
+                idList.add(pendingEntry.getId());
+            }
+        }
+        if(idList.isEmpty()){
+            return;
+        }
+        Map<StreamMessageId, Map<String, String>> messageMap = stream.claim(WRITE_BEHIND_GROUP, consumerName,
+                claimIdleMilliSecond, TimeUnit.MILLISECONDS, idList.toArray(new StreamMessageId[0]));
+        log.warn("接管其它消费者空闲的异步落库消息:{}条", messageMap.size());
+        process(messageMap);
+    }
+
+    /**
+     * 清理不会再被重新处理的已落库消息id
+     * 先取最后投递的消息id，之后投递的消息id都不小于它；再取待处理列表中最早的消息id，两者中较小的之前的都可以清理
+     */
+    private void purgeApplied(){
+        StreamMessageId boundId = null;
+        for(StreamGroup group : stream.listGroups()){
+            if(WRITE_BEHIND_GROUP.equals(group.getName())){
+                boundId = group.getLastDeliveredId();
+            }
+        }
+        if(Objects.isNull(boundId)){
+            return;
+        }
+        PendingResult pendingResult = stream.getPendingInfo(WRITE_BEHIND_GROUP);
+        if(pendingResult.getTotal() > 0 && Objects.nonNull(pendingResult.getLowestId())
+                && pendingResult.getLowestId().getId0() < boundId.getId0()){
+            boundId = pendingResult.getLowestId();
+        }
+        int purged = dbAccessor.purgeWriteBehindApplied(boundId.getId0());
+        if(purged > 0){
+            log.info("清理已落库消息id:{}条", purged);
+        }
+    }
+
+    /**
+     * 合并同一resourceId的扣减量 一个事务落库
+     * 失败时逐条消息落库：重试也不会成功（数量不足、违反约束）或者投递次数超过maxDeliveries的消息转入死信stream；
+     * 暂时性失败的消息不ack，留在待处理列表中重试，其后的消息同样留下
+     * 落库之后再ack；ack失败时消息留在待处理列表，重新处理时已落库的消息被跳过
+     * @param messageMap
+     * @return 全部处理完成（落库或者转入死信）时返回true，有消息留在待处理列表时返回false
+     */
+    boolean process(Map<StreamMessageId, Map<String, String>> messageMap){
+        if(Objects.isNull(messageMap) || messageMap.isEmpty()){
+            return true;
+        }
+        Map<StreamMessageId, Map<String, Integer>> deltaMapById = new LinkedHashMap<>();
+        messageMap.forEach((id, fieldMap) -> deltaMapById.put(id, toDeltaMap(fieldMap)));
+        Map<StreamMessageId, Map<String, Integer>> completeMap = deltaMapById;
+        boolean completed = true;
+        try {
+            applyDeltas(deltaMapById);
+        }catch (Exception e){
+            log.warn("合并落库失败:{}，将逐条落库", e.getMessage());
+            completeMap = new LinkedHashMap<>();
+            for(Map.Entry<StreamMessageId, Map<String, Integer>> entry : deltaMapById.entrySet()){
+                StreamMessageId id = entry.getKey();
+                Map<String, Integer> deltaMap = entry.getValue();
+                try {
+                    applyDeltas(Collections.singletonMap(id, deltaMap));
+                }catch (Exception ex){
+                    if(isConstraintViolation(ex) && isApplied(id)){
+                        //其它消费者并发落库了同一条消息
+                        completeMap.put(id, deltaMap);
+                        continue;
+                    }
+                    if(!shouldDeadLetter(id, ex)){
+                        //数据库不可用时其后的消息同样会失败
+                        log.warn("异步落库消息:{}失败:{}，留在待处理列表稍后重试", id, ex.getMessage());
+                        completed = false;
+                        break;
+                    }
+                    log.error("异步落库消息:{}失败:{}，转入死信", id, ex.getMessage());
+                    deadStream.addAll(messageMap.get(id));
+                    //死信中的扣减量仍计入未落库量
+                    deltaMap = Collections.emptyMap();
+                }
+                completeMap.put(id, deltaMap);
+            }
+        }
+        if(!completeMap.isEmpty()){
+            complete(completeMap);
+        }
+        return completed;
+    }
+
+    /**
+     * 落库失败的消息是否转入死信
+     * 数量不足（cache和db不一致）、违反约束时重试也不会成功；其它失败按暂时性处理，投递次数超过maxDeliveries之后不再重试
+     * @param id
+     * @param e
+     * @return
+     */
+    private boolean shouldDeadLetter(StreamMessageId id, Exception e){
+        if(Objects.nonNull(causedBy(e, DataUnConsistentException.class)) || isConstraintViolation(e)){
+            return true;
+        }
+        List<PendingEntry> pendingEntryList = stream.listPending(WRITE_BEHIND_GROUP, id, id, 1);
+        return !pendingEntryList.isEmpty() && pendingEntryList.get(0).getLastTimeDelivered() >= maxDeliveries;
+    }
+
+    private boolean isApplied(StreamMessageId id){
+        return !dbAccessor.queryWriteBehindApplied(Collections.singletonList(id.toString())).isEmpty();
+    }
+
+    private static boolean isConstraintViolation(Exception e){
+        SQLException sqlException = causedBy(e, SQLException.class);
+        return Objects.nonNull(sqlException) && Objects.nonNull(sqlException.getSQLState())
+                && sqlException.getSQLState().startsWith(INTEGRITY_CONSTRAINT_SQL_STATE);
+    }
+
+    private static <T extends Throwable> T causedBy(Throwable e, Class<T> type){
+        for(Throwable cause = e; Objects.nonNull(cause); cause = cause.getCause() == cause ? null : cause.getCause()){
+            if(type.isInstance(cause)){
+                return type.cast(cause);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 一个事务更新数据库 正数扣减，负数（回滚抵消）增加
+     * 同一个事务中记录消息id，已经落库的消息跳过；其它消费者并发落库同一条消息时主键冲突，事务回滚
+     * @param deltaMapById 每条消息的扣减量
+     */
+    void applyDeltas(Map<StreamMessageId, Map<String, Integer>> deltaMapById){
+        List<String> messageIdList = new ArrayList<>(deltaMapById.size());
+        deltaMapById.forEach((id, deltaMap) -> {
+            if(!deltaMap.isEmpty()){
+                messageIdList.add(id.toString());
+            }
+        });
+        if(messageIdList.isEmpty()){
+            return;
+        }
+        dbAccessor.getTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                Set<String> appliedSet = dbAccessor.queryWriteBehindApplied(messageIdList);
+                Map<String, Long> messageTimeById = new LinkedHashMap<>();
+                Map<String, Integer> coalescedMap = new TreeMap<>();
+                deltaMapById.forEach((id, deltaMap) -> {
+                    if(deltaMap.isEmpty()){
+                        return;
+                    }
+                    if(appliedSet.contains(id.toString())){
+                        log.warn("异步落库消息:{}已经落库，跳过", id);
+                        return;
+                    }
+                    messageTimeById.put(id.toString(), id.getId0());
+                    deltaMap.forEach((resourceId, num) -> coalescedMap.merge(resourceId, num, Integer::sum));
+                });
+                if(messageTimeById.isEmpty()){
+                    return;
+                }
+                dbAccessor.insertWriteBehindApplied(messageTimeById);
+                List<UpdateResourceParam> subtractList = new ArrayList<>(coalescedMap.size());
+                List<UpdateResourceParam> addList = new ArrayList<>();
+                coalescedMap.forEach((resourceId, num) -> {
+                    if(num > 0){
+                        subtractList.add(UpdateResourceParam.builder().resourceId(resourceId).num(num).build());
+                    }else if(num < 0){
+                        addList.add(UpdateResourceParam.builder().resourceId(resourceId).num(-num).build());
+                    }
+                });
+                if(!subtractList.isEmpty()){
+                    dbAccessor.subtractAvailableResource(subtractList);
+                }
+                if(!addList.isEmpty()){
+                    dbAccessor.addAvailableResource(addList);
+                }
+            }
+        });
+    }
+
+    /**
+     * 落库之后ack、删除消息并减掉未落库量（一个脚本）
+     * @param deltaMapById 每条消息已落库的扣减量
+     */
+    private void complete(Map<StreamMessageId, Map<String, Integer>> deltaMapById){
+        List<Object> args = new ArrayList<>();
+        args.add(WRITE_BEHIND_GROUP);
+        deltaMapById.forEach((id, deltaMap) -> {
+            args.add(id.toString());
+            args.add(String.valueOf(deltaMap.size()));
+            deltaMap.forEach((resourceId, num) -> {
+                args.add(resourceId);
+                args.add(String.valueOf(num));
+            });
+        });
+        COMPLETE_SCRIPT.eval(CacheAccessor.redissonClient, RScript.Mode.READ_WRITE, RScript.ReturnType.INTEGER,
+                Arrays.<Object>asList(WRITE_BEHIND_STREAM_KEY, WRITE_BEHIND_PENDING_KEY), args.toArray());
+        flushedCount.addAndGet(deltaMapById.size());
+        lastFlushTime = System.currentTimeMillis();
+    }
+
+    /**
+     * 写入stream并累加未落库量（一个脚本）
+     * @param deltaMap
+     * @param sign 1记录扣减 -1抵消
+     */
+    private void append(Map<String, Integer> deltaMap, int sign){
+        Object[] args = new Object[deltaMap.size() * 2];
+        int index = 0;
+        for(Map.Entry<String, Integer> entry : deltaMap.entrySet()){
+            args[index++] = entry.getKey();
+            args[index++] = String.valueOf(sign * entry.getValue());
+        }
+        APPEND_SCRIPT.eval(CacheAccessor.redissonClient, RScript.Mode.READ_WRITE, RScript.ReturnType.VALUE,
+                Arrays.<Object>asList(WRITE_BEHIND_STREAM_KEY, WRITE_BEHIND_PENDING_KEY), args);
+    }
+
+    private static Map<String, Integer> toDeltaMap(List<UpdateResourceParam> updateResourceParamList){
+        Map<String, Integer> deltaMap = new TreeMap<>();
+        for(UpdateResourceParam updateResourceParam : updateResourceParamList){
+            deltaMap.merge(updateResourceParam.getResourceId(), updateResourceParam.getNum(), Integer::sum);
+        }
+        return deltaMap;
+    }
+
+    /**
+     * 消息字段转为扣减量 忽略占位字段；已被删除的消息（被接管时）字段为null
+     */
+    private static Map<String, Integer> toDeltaMap(Map<String, String> fieldMap){
+        Map<String, Integer> deltaMap = new TreeMap<>();
+        if(Objects.isNull(fieldMap)){
+            return deltaMap;
+        }
+        fieldMap.forEach((resourceId, num) -> {
+            if(!INIT_FIELD.equals(resourceId)){
+                deltaMap.put(resourceId, Integer.parseInt(num));
+            }
+        });
+        return deltaMap;
+    }
+
+    private void createGroupIfAbsent(){
+        try {
+            if(!stream.isExists()){
+                //stream不存在时无法创建消费组 先写入占位消息
+                StreamMessageId initId = stream.add(INIT_FIELD, "0");
+                createGroup();
+                stream.remove(initId);
+                return;
+            }
+            createGroup();
+        }catch (RedisException e){
+            log.warn("创建异步落库消费组失败:{}", e.getMessage());
+        }
+    }
+
+    private void createGroup(){
+        try {
+            stream.createGroup(WRITE_BEHIND_GROUP, StreamMessageId.ALL);
+        }catch (RedisException e){
+            if(Objects.isNull(e.getMessage()) || !e.getMessage().contains("BUSYGROUP")){
+                throw e;
+            }
+        }
+    }
+}
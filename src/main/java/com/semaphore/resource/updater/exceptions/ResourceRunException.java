@@ -9,4 +9,8 @@ public class ResourceRunException extends RuntimeException{
     public ResourceRunException(String msg){
         super(msg);
     }
+
+    public ResourceRunException(String msg, Throwable cause){
+        super(msg, cause);
+    }
 }
@@ -0,0 +1,123 @@
+package com.semaphore.resource.updater.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 基于进程内直方图的资源更新指标
+ * 按操作类型和阶段分别记录耗时直方图，按操作类型分别计数；所有直方图和计数器在构造时创建，记录时不分配对象
+ *
+ * 由使用方定期读取并上报（或者打印）
+ *
+ * @date 2022/4/2 11:00 AM
+ */
+public class HistogramResourceMetrics implements ResourceMetrics {
+    private static final int OPERATION_COUNT = Operation.values().length;
+    private static final int STAGE_COUNT = Stage.values().length;
+
+    private final LatencyHistogram[] stageHistograms = new LatencyHistogram[OPERATION_COUNT * STAGE_COUNT];
+    private final LatencyHistogram[] redisRoundTrips = new LatencyHistogram[OPERATION_COUNT];
+    private final LongAdder[] lockWaitTimeouts = newCounters();
+    private final LongAdder[] resourceWaitTimeouts = newCounters();
+    private final LongAdder[] notConsistenceRaised = newCounters();
+    private final LongAdder[] reinitialized = newCounters();
+
+    public HistogramResourceMetrics(){
+        for (int i = 0; i < stageHistograms.length; i++) {
+            stageHistograms[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < redisRoundTrips.length; i++) {
+            redisRoundTrips[i] = new LatencyHistogram();
+        }
+    }
+
+    @Override
+    public void recordStage(Operation operation, Stage stage, long nanos) {
+        getStageHistogram(operation, stage).record(nanos);
+    }
+
+    @Override
+    public void recordRedisRoundTrips(Operation operation, int count) {
+        redisRoundTrips[operation.ordinal()].record(count);
+    }
+
+    @Override
+    public void recordLockWaitTimeout(Operation operation) {
+        lockWaitTimeouts[operation.ordinal()].increment();
+    }
+
+    @Override
+    public void recordResourceWaitTimeout(Operation operation) {
+        resourceWaitTimeouts[operation.ordinal()].increment();
+    }
+
+    @Override
+    public void recordNotConsistenceRaised(Operation operation, int count) {
+        notConsistenceRaised[operation.ordinal()].add(count);
+    }
+
+    @Override
+    public void recordReinitialized(Operation operation, int count) {
+        reinitialized[operation.ordinal()].add(count);
+    }
+
+    /**
+     * 某个操作某个阶段的耗时直方图 纳秒
+     * @param operation
+     * @param stage
+     * @return
+     */
+    public LatencyHistogram getStageHistogram(Operation operation, Stage stage){
+        return stageHistograms[operation.ordinal() * STAGE_COUNT + stage.ordinal()];
+    }
+
+    /**
+     * 某个操作每次的redis往返次数分布
+     * @param operation
+     * @return
+     */
+    public LatencyHistogram getRedisRoundTrips(Operation operation){
+        return redisRoundTrips[operation.ordinal()];
+    }
+
+    public long getLockWaitTimeouts(Operation operation){
+        return lockWaitTimeouts[operation.ordinal()].sum();
+    }
+
+    public long getResourceWaitTimeouts(Operation operation){
+        return resourceWaitTimeouts[operation.ordinal()].sum();
+    }
+
+    public long getNotConsistenceRaised(Operation operation){
+        return notConsistenceRaised[operation.ordinal()].sum();
+    }
+
+    public long getReinitialized(Operation operation){
+        return reinitialized[operation.ordinal()].sum();
+    }
+
+    /**
+     * 清空全部指标
+     */
+    public void reset(){
+        for(LatencyHistogram histogram : stageHistograms){
+            histogram.reset();
+        }
+        for(LatencyHistogram histogram : redisRoundTrips){
+            histogram.reset();
+        }
+        for (int i = 0; i < OPERATION_COUNT; i++) {
+            lockWaitTimeouts[i].reset();
+            resourceWaitTimeouts[i].reset();
+            notConsistenceRaised[i].reset();
+            reinitialized[i].reset();
+        }
+    }
+
+    private static LongAdder[] newCounters(){
+        LongAdder[] counters = new LongAdder[OPERATION_COUNT];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+}
@@ -0,0 +1,117 @@
+package com.semaphore.resource.updater.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 直方图（HDR风格的对数线性分桶） 用于记录耗时（纳秒）以及次数的分布
+ * 每个2的幂区间再线性分为16个桶，相对误差不超过1/16；超过MAX_VALUE的按MAX_VALUE记录
+ * 记录时只做计数器自增，不分配对象，可被多线程并发记录
+ *
+ * @date 2022/4/2 10:30 AM
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_HALF_COUNT = 1 << (SUB_BUCKET_BITS - 1);
+    private static final int MAX_VALUE_BITS = 40;
+    /**
+     * 可记录的最大值（按纳秒约18分钟）
+     */
+    public static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+    private static final int BUCKET_COUNT = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 2) * SUB_BUCKET_HALF_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalValue = new LongAdder();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * 记录一个值
+     * @param value 小于0的按0记录
+     */
+    public void record(long value){
+        if(value < 0){
+            value = 0;
+        }else if(value > MAX_VALUE){
+            value = MAX_VALUE;
+        }
+        counts.incrementAndGet(bucketIndex(value));
+        totalCount.increment();
+        totalValue.add(value);
+        long current;
+        while (value > (current = maxValue.get()) && !maxValue.compareAndSet(current, value)){
+            //重试
+        }
+    }
+
+    public long getCount(){
+        return totalCount.sum();
+    }
+
+    public long getMax(){
+        return maxValue.get();
+    }
+
+    public double getMean(){
+        long count = totalCount.sum();
+        return count == 0 ? 0 : (double) totalValue.sum() / count;
+    }
+
+    /**
+     * 查询分位数
+     * 返回所在桶的上界，不超过记录到的最大值
+     * @param percentile 0-100 例如99表示p99
+     * @return 没有记录时返回0
+     */
+    public long getValueAtPercentile(double percentile){
+        long[] snapshot = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if(count == 0){
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * count));
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulative += snapshot[i];
+            if(cumulative >= target){
+                return Math.min(bucketUpperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * 清空
+     * 与并发的record之间不保证原子
+     */
+    public void reset(){
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.reset();
+        totalValue.reset();
+        maxValue.set(0);
+    }
+
+    private static int bucketIndex(long value){
+        int highestBit = 63 - Long.numberOfLeadingZeros(value | 1);
+        int shift = Math.max(0, highestBit - (SUB_BUCKET_BITS - 1));
+        return shift * SUB_BUCKET_HALF_COUNT + (int) (value >>> shift);
+    }
+
+    /**
+     * 桶内的最大值
+     * @param index
+     * @return
+     */
+    private static long bucketUpperBound(int index){
+        int shift = Math.max(0, index / SUB_BUCKET_HALF_COUNT - 1);
+        long subBucket = index - (long) shift * SUB_BUCKET_HALF_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,21 @@
+package com.semaphore.resource.updater.metrics;
+
+/**
+ * 资源更新操作类型
+ * 用于给指标打标
+ *
+ * @date 2022/4/2 10:10 AM
+ */
+public enum Operation {
+    QUERY_AVAILABLE,
+    QUERY_PRE_LOCKED,
+    SUBTRACT_AVAILABLE,
+    SUBTRACT_ONE_AVAILABLE,
+    ADD_AVAILABLE,
+    ADD_ONE_AVAILABLE,
+    SUBTRACT_AVAILABLE_ADD_PRE_LOCK,
+    SUBTRACT_PRE_LOCK_ADD_AVAILABLE,
+    SUBTRACT_PRE_LOCK,
+    ADD_PRE_LOCK,
+    COMBINED_SUBTRACT_ONE_AVAILABLE
+}
@@ -0,0 +1,67 @@
+package com.semaphore.resource.updater.metrics;
+
+/**
+ * 资源更新指标
+ * 记录每次操作各阶段的耗时、redis往返次数、等待超时、标记的不一致以及重新初始化的次数
+ *
+ * 在更新的同步路径上调用，实现不能阻塞，也不应该分配对象
+ * 所有方法默认不做任何事，按需覆盖
+ *
+ * @see HistogramResourceMetrics
+ * @date 2022/4/2 10:20 AM
+ */
+public interface ResourceMetrics {
+    /**
+     * 不记录任何指标
+     */
+    ResourceMetrics NOOP = new ResourceMetrics() {
+    };
+
+    /**
+     * 记录某个阶段的耗时
+     * @param operation
+     * @param stage
+     * @param nanos 纳秒
+     */
+    default void recordStage(Operation operation, Stage stage, long nanos){
+    }
+
+    /**
+     * 记录一次操作的redis往返次数
+     * 包括预检、初始化加锁、加锁解锁、信号量获取释放以及回滚，不包括查询数量时的读取
+     * @param operation
+     * @param count
+     */
+    default void recordRedisRoundTrips(Operation operation, int count){
+    }
+
+    /**
+     * 记录一次读写锁等待超时（LockWaitException）
+     * @param operation
+     */
+    default void recordLockWaitTimeout(Operation operation){
+    }
+
+    /**
+     * 记录一次资源信号量等待失败（ResourceWaitException） 包括资源不足以及等待初始化
+     * @param operation
+     */
+    default void recordResourceWaitTimeout(Operation operation){
+    }
+
+    /**
+     * 记录标记缓存与数据库不一致的资源个数
+     * @param operation
+     * @param count
+     */
+    default void recordNotConsistenceRaised(Operation operation, int count){
+    }
+
+    /**
+     * 记录重新初始化缓存信号量的资源个数
+     * @param operation
+     * @param count
+     */
+    default void recordReinitialized(Operation operation, int count){
+    }
+}
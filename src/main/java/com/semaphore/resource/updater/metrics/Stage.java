@@ -0,0 +1,29 @@
+package com.semaphore.resource.updater.metrics;
+
+/**
+ * 资源更新操作的阶段
+ *
+ * @date 2022/4/2 10:12 AM
+ */
+public enum Stage {
+    /**
+     * 预检 一次往返查出未初始化以及不一致的信号量
+     */
+    PREFLIGHT,
+    /**
+     * 预检之后对未初始化以及不一致的信号量进行初始化
+     */
+    INIT,
+    /**
+     * 获取（减掉）、释放（增加）缓存信号量 以及查询缓存数量
+     */
+    CACHE,
+    /**
+     * 数据库更新（开启异步落库时为写入stream）
+     */
+    DB,
+    /**
+     * 事务结束之后的钩子 回滚或补扣缓存信号量并释放初始化的写锁
+     */
+    ROLLBACK_HOOK
+}
@@ -2,9 +2,12 @@ package com.semaphore.resource.updater;
 
 import com.google.common.collect.Lists;
 import com.semaphore.resource.updater.base.BaseSpringTest;
+import com.semaphore.resource.updater.core.HighResourceUpdater;
 import com.semaphore.resource.updater.core.UpdateResourceParam;
 import com.semaphore.resource.updater.bizService.MockBizService;
+import org.junit.Assert;
 import org.junit.Test;
+import org.springframework.transaction.support.TransactionTemplate;
 import javax.annotation.Resource;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -41,6 +44,10 @@ public class TestHighResourceUpdater extends BaseSpringTest {
 
     @Resource
     private MockBizService mockBizService;
+    @Resource
+    private HighResourceUpdater highResourceUpdater;
+    @Resource
+    private TransactionTemplate transactionTemplate;
 
     static {
         for (String resKey : ProductList){
@@ -400,4 +407,53 @@ public class TestHighResourceUpdater extends BaseSpringTest {
             System.out.println("失败原因:" + e.getMessage());
         }
     }
+
+    /**
+     * 测试 事务进行中可用、预占信号量都被重新初始化，提交之后补上
+     * 可用信号量补扣、预占信号量补加在每个slot一个脚本中完成，并注销提交栅栏
+     */
+    @Test
+    public void testReapplyAfterReinitDuringTransaction() throws InterruptedException {
+        Set<UpdateResourceParam> updateResourceParamSet = new HashSet<>();
+        updateResourceParamSet.add(UpdateResourceParam.builder().resourceId("res1").num(2).build());
+        updateResourceParamSet.add(UpdateResourceParam.builder().resourceId("res2").num(1).build());
+        updateResourceParamSet.forEach(param -> reinit(param.getResourceId(), true));
+        transactionTemplate.execute(status -> {
+            trySubtractAvailableAddPreLock(updateResourceParamSet);
+            updateResourceParamSet.forEach(param -> reinit(param.getResourceId(), true));
+            return null;
+        });
+        for(UpdateResourceParam param : updateResourceParamSet){
+            assertCacheEqualsDb(param.getResourceId(), true);
+        }
+    }
+
+    /**
+     * 测试 事务进行中可用、预占信号量都被重新初始化，之后回滚
+     * 代数已变化，可用不归还、预占不撤销，缓存保持重新初始化时的数量
+     */
+    @Test
+    public void testRollbackAfterReinitDuringTransaction() throws InterruptedException {
+        Set<UpdateResourceParam> updateResourceParamSet = new HashSet<>();
+        updateResourceParamSet.add(UpdateResourceParam.builder().resourceId("res3").num(2).build());
+        updateResourceParamSet.add(UpdateResourceParam.builder().resourceId("res4").num(1).build());
+        updateResourceParamSet.forEach(param -> reinit(param.getResourceId(), true));
+        transactionTemplate.execute(status -> {
+            trySubtractAvailableAddPreLock(updateResourceParamSet);
+            updateResourceParamSet.forEach(param -> reinit(param.getResourceId(), true));
+            status.setRollbackOnly();
+            return null;
+        });
+        for(UpdateResourceParam param : updateResourceParamSet){
+            assertCacheEqualsDb(param.getResourceId(), true);
+        }
+    }
+
+    private void trySubtractAvailableAddPreLock(Set<UpdateResourceParam> updateResourceParamSet){
+        try {
+            highResourceUpdater.trySubtractAvailableAddPreLock(updateResourceParamSet);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
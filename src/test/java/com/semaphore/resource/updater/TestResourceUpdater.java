@@ -4,8 +4,10 @@ import com.google.common.collect.Lists;
 import com.semaphore.resource.updater.base.BaseSpringTest;
 import com.semaphore.resource.updater.core.*;
 import com.semaphore.resource.updater.bizService.MockBizService;
+import org.junit.Assert;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.annotation.Resource;
 import java.util.*;
@@ -39,6 +41,8 @@ public class TestResourceUpdater extends BaseSpringTest {
     private ResourceUpdater resourceUpdater;
     @Resource
     private HighResourceUpdater highResourceUpdater;
+    @Resource
+    private TransactionTemplate transactionTemplate;
 
     @Test
     public void testSetAutoAdjustRate(){
@@ -258,4 +262,72 @@ public class TestResourceUpdater extends BaseSpringTest {
             System.out.println("失败原因:" + e.getMessage());
         }
     }
+
+    /**
+     * 测试 事务进行中信号量被重新初始化（代数变化），提交之后补扣
+     * 批量扣减（BATCH_ACQUIRE）之后模拟其它请求按数据库重新初始化，此时数据库中还没有本次扣减；
+     * 提交之后按slot批量注销提交栅栏并补扣，缓存与数据库一致，栅栏清空
+     */
+    @Test
+    public void testReapplyAfterReinitDuringTransaction() throws InterruptedException {
+        Set<UpdateResourceParam> updateResourceParamSet = new HashSet<>();
+        updateResourceParamSet.add(UpdateResourceParam.builder().resourceId("res1").num(2).build());
+        updateResourceParamSet.add(UpdateResourceParam.builder().resourceId("res2").num(3).build());
+        updateResourceParamSet.forEach(param -> reinit(param.getResourceId(), false));
+        transactionTemplate.execute(status -> {
+            trySubtractAvailable(updateResourceParamSet);
+            updateResourceParamSet.forEach(param -> reinit(param.getResourceId(), false));
+            return null;
+        });
+        for(UpdateResourceParam param : updateResourceParamSet){
+            assertCacheEqualsDb(param.getResourceId(), false);
+        }
+    }
+
+    /**
+     * 测试 事务进行中信号量被重新初始化，之后回滚
+     * 回滚时代数已变化（ADD_IF_EPOCH不执行），不把旧一代扣减的数量归还到新一代信号量上，同时注销提交栅栏
+     */
+    @Test
+    public void testRollbackAfterReinitDuringTransaction() throws InterruptedException {
+        Set<UpdateResourceParam> updateResourceParamSet = new HashSet<>();
+        updateResourceParamSet.add(UpdateResourceParam.builder().resourceId("res1").num(2).build());
+        updateResourceParamSet.add(UpdateResourceParam.builder().resourceId("res3").num(1).build());
+        updateResourceParamSet.forEach(param -> reinit(param.getResourceId(), false));
+        transactionTemplate.execute(status -> {
+            trySubtractAvailable(updateResourceParamSet);
+            updateResourceParamSet.forEach(param -> reinit(param.getResourceId(), false));
+            status.setRollbackOnly();
+            return null;
+        });
+        for(UpdateResourceParam param : updateResourceParamSet){
+            assertCacheEqualsDb(param.getResourceId(), false);
+        }
+    }
+
+    /**
+     * 测试 没有重新初始化时提交 只注销提交栅栏不补扣
+     */
+    @Test
+    public void testCommitWithoutReinit() throws InterruptedException {
+        Set<UpdateResourceParam> updateResourceParamSet = new HashSet<>();
+        updateResourceParamSet.add(UpdateResourceParam.builder().resourceId("res4").num(1).build());
+        updateResourceParamSet.add(UpdateResourceParam.builder().resourceId("res5").num(2).build());
+        updateResourceParamSet.forEach(param -> reinit(param.getResourceId(), false));
+        transactionTemplate.execute(status -> {
+            trySubtractAvailable(updateResourceParamSet);
+            return null;
+        });
+        for(UpdateResourceParam param : updateResourceParamSet){
+            assertCacheEqualsDb(param.getResourceId(), false);
+        }
+    }
+
+    private void trySubtractAvailable(Set<UpdateResourceParam> updateResourceParamSet){
+        try {
+            resourceUpdater.trySubtractAvailable(updateResourceParamSet);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
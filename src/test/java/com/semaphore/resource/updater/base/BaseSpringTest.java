@@ -1,15 +1,74 @@
 package com.semaphore.resource.updater.base;
 
 import com.semaphore.resource.updater.SpringMainForTest;
+import com.semaphore.resource.updater.cache.CacheAccessor;
+import com.semaphore.resource.updater.cache.KeyLayout;
+import com.semaphore.resource.updater.cache.MySemaphore;
+import com.semaphore.resource.updater.core.ResourcePermit;
+import com.semaphore.resource.updater.db.DbAccessor;
+import org.junit.Assert;
 import org.junit.runner.RunWith;
+import org.redisson.Redisson;
+import org.redisson.api.RedissonClient;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.junit4.SpringRunner;
 
+import javax.annotation.Resource;
+
 /**
  *
  * @date 2022/1/25 2:12 PM
  */
 @SpringBootTest(classes = SpringMainForTest.class)
 @RunWith(SpringRunner.class)
-public class BaseSpringTest {
+public abstract class BaseSpringTest {
+    @Resource
+    protected DbAccessor dbAccessor;
+    @Resource
+    protected RedissonClient redissonClient;
+
+    /**
+     * 模拟其它请求完成的重新初始化：按数据库中已提交的数量强制设置信号量，代数加一
+     * @param resourceId
+     * @param preLocked 是否同时设置预占信号量
+     */
+    protected void reinit(String resourceId, boolean preLocked){
+        ResourcePermit resourcePermit = dbAccessor.queryOneResource(resourceId);
+        semaphore(CacheAccessor.RESOURCE_AVAILABLE_KEY_PREFIX, resourceId).trySetPermitsForce(resourcePermit.getAvailableCount());
+        if(preLocked){
+            semaphore(CacheAccessor.RESOURCE_PRE_LOCK_KEY_PREFIX, resourceId).trySetPermitsForce(resourcePermit.getPreLockCount());
+        }
+    }
+
+    protected MySemaphore semaphore(String prefix, String resourceId){
+        return new MySemaphore(((Redisson) redissonClient).getConnectionManager().getCommandExecutor(), KeyLayout.key(prefix, resourceId));
+    }
+
+    /**
+     * 提交之后的补扣、注销是异步的 等待缓存与数据库一致并且提交栅栏清空
+     * @param resourceId
+     * @param preLocked 是否同时检查预占信号量
+     */
+    protected void assertCacheEqualsDb(String resourceId, boolean preLocked) throws InterruptedException {
+        MySemaphore available = semaphore(CacheAccessor.RESOURCE_AVAILABLE_KEY_PREFIX, resourceId);
+        MySemaphore preLock = semaphore(CacheAccessor.RESOURCE_PRE_LOCK_KEY_PREFIX, resourceId);
+        ResourcePermit resourcePermit = dbAccessor.queryOneResource(resourceId);
+        for (int i = 0; i < 100; i++) {
+            if(matches(available, resourcePermit.getAvailableCount())
+                    && (!preLocked || matches(preLock, resourcePermit.getPreLockCount()))){
+                break;
+            }
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(resourcePermit.getAvailableCount(), available.availablePermits());
+        Assert.assertEquals(0, redissonClient.getScoredSortedSet(available.getCommitFenceName()).size());
+        if(preLocked){
+            Assert.assertEquals(resourcePermit.getPreLockCount(), preLock.availablePermits());
+            Assert.assertEquals(0, redissonClient.getScoredSortedSet(preLock.getCommitFenceName()).size());
+        }
+    }
+
+    private boolean matches(MySemaphore semaphore, int dbCount){
+        return semaphore.availablePermits() == dbCount && redissonClient.getScoredSortedSet(semaphore.getCommitFenceName()).size() == 0;
+    }
 }
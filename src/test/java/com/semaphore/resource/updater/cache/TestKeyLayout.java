@@ -0,0 +1,119 @@
+package com.semaphore.resource.updater.cache;
+
+import com.semaphore.resource.updater.exceptions.ResourceRunException;
+import org.junit.After;
+import org.junit.Test;
+import org.redisson.connection.CRC16;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 测试key布局及slot共享key
+ *
+ * @date 2022/4/25 11:05 AM
+ */
+public class TestKeyLayout {
+    private static final String NAME = "resource_available_not_consistence_set";
+
+    @After
+    public void tearDown(){
+        KeyLayout.setClusterMode(false);
+        KeyLayout.setHashTagEnabled(false);
+    }
+
+    @Test
+    public void testKeyWithoutHashTag(){
+        KeyLayout.setHashTagEnabled(false);
+        assertEquals("prefix:res1", KeyLayout.key("prefix:", "res1"));
+        assertEquals(NAME, KeyLayout.slotKey(NAME, "res1"));
+        assertEquals("res1", KeyLayout.resourceIdOf(KeyLayout.key("prefix:", "res1")));
+    }
+
+    @Test
+    public void testKeyWithHashTag(){
+        KeyLayout.setHashTagEnabled(true);
+        assertEquals("prefix:{res1}", KeyLayout.key("prefix:", "res1"));
+        assertEquals("res1", KeyLayout.resourceIdOf(KeyLayout.key("prefix:", "res1")));
+    }
+
+    @Test
+    public void testClusterModeForcesHashTag(){
+        KeyLayout.setHashTagEnabled(false);
+        KeyLayout.setClusterMode(true);
+        assertTrue(KeyLayout.isHashTagEnabled());
+        assertEquals("prefix:{res1}", KeyLayout.key("prefix:", "res1"));
+        try {
+            KeyLayout.setHashTagEnabled(false);
+            fail();
+        }catch (ResourceRunException e){
+            assertTrue(KeyLayout.isHashTagEnabled());
+        }
+    }
+
+    @Test
+    public void testClusterModeSlotKeyPerSlot(){
+        KeyLayout.setClusterMode(true);
+        //不一致标记set与资源信号量在同一个slot
+        for (int i = 0; i < 1000; i++) {
+            String resourceId = "res" + i;
+            String slotKey = KeyLayout.slotKey(NAME, resourceId);
+            assertTrue(slotKey, !NAME.equals(slotKey));
+            assertEquals(slotKey, hashSlot(KeyLayout.key("prefix:", resourceId)), hashSlot(slotKey));
+        }
+    }
+
+    @Test
+    public void testSlotKeySameSlotAsResource(){
+        KeyLayout.setHashTagEnabled(true);
+        for (int i = 0; i < 5000; i++) {
+            String resourceId = "res" + i;
+            String slotKey = KeyLayout.slotKey(NAME, resourceId);
+            assertTrue(slotKey, slotKey.startsWith(NAME + ":{") && slotKey.endsWith("}"));
+            assertEquals(slotKey, hashSlot(KeyLayout.key("prefix:", resourceId)), hashSlot(slotKey));
+        }
+    }
+
+    @Test
+    public void testSlotKeySharedWithinSlot(){
+        KeyLayout.setHashTagEnabled(true);
+        //同一slot的资源共享一个key 不同slot的key不同
+        Set<Integer> slotSet = new HashSet<>();
+        Set<String> slotKeySet = new HashSet<>();
+        for (int i = 0; i < 50000; i++) {
+            String resourceId = "res" + i;
+            slotSet.add(hashSlot(resourceId));
+            slotKeySet.add(KeyLayout.slotKey(NAME, resourceId));
+        }
+        assertEquals(slotSet.size(), slotKeySet.size());
+    }
+
+    @Test
+    public void testSlotTagIsShortest(){
+        KeyLayout.setHashTagEnabled(true);
+        //hash tag为落在该slot上的第一个36进制数 不会比所需的更长
+        for (int i = 0; i < 36 * 36; i++) {
+            String tag = Integer.toString(i, Character.MAX_RADIX);
+            String slotKey = KeyLayout.slotKey(NAME, tag);
+            String slotTag = slotKey.substring(NAME.length() + 2, slotKey.length() - 1);
+            assertTrue(slotKey, slotTag.length() <= tag.length());
+            assertEquals(slotKey, hashSlot(tag), hashSlot(slotTag));
+        }
+    }
+
+    private static int hashSlot(String key){
+        int start = key.indexOf('{');
+        if(start >= 0){
+            int end = key.indexOf('}', start + 1);
+            if(end > start + 1){
+                key = key.substring(start + 1, end);
+            }
+        }
+        return CRC16.crc16(key.getBytes(StandardCharsets.UTF_8)) % 16384;
+    }
+}
@@ -0,0 +1,73 @@
+package com.semaphore.resource.updater.cache;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 测试条带的拆分及key
+ *
+ * @date 2022/4/25 11:50 AM
+ */
+public class TestSemaphoreStripes {
+
+    @Test
+    public void testSplitRemainderToFirstStripes(){
+        assertSplit(10, 4, 3, 3, 2, 2);
+        assertSplit(8, 4, 2, 2, 2, 2);
+        assertSplit(3, 4, 1, 1, 1, 0);
+        assertSplit(0, 4, 0, 0, 0, 0);
+        assertSplit(7, 1, 7);
+    }
+
+    @Test
+    public void testSplitSumAndBalance(){
+        for (int total = 0; total <= 500; total += 7) {
+            for (int stripeCount = 1; stripeCount <= SemaphoreStripes.MAX_STRIPES; stripeCount++) {
+                int sum = 0;
+                int min = Integer.MAX_VALUE;
+                int max = Integer.MIN_VALUE;
+                for (int stripe = 0; stripe < stripeCount; stripe++) {
+                    int permits = SemaphoreStripes.split(total, stripeCount, stripe);
+                    sum += permits;
+                    min = Math.min(min, permits);
+                    max = Math.max(max, permits);
+                }
+                assertEquals("total:" + total + " stripeCount:" + stripeCount, total, sum);
+                assertTrue("total:" + total + " stripeCount:" + stripeCount, max - min <= 1);
+            }
+        }
+    }
+
+    @Test
+    public void testNextStripeInRange(){
+        for (int i = 0; i < 1000; i++) {
+            int stripe = SemaphoreStripes.nextStripe(5);
+            assertTrue(stripe >= 0 && stripe < 5);
+        }
+    }
+
+    @Test
+    public void testStripeKey(){
+        SemaphoreStripes stripes = new SemaphoreStripes("config", "stripe:");
+        Set<String> keySet = new HashSet<>();
+        for (int stripe = 0; stripe < 4; stripe++) {
+            String key = stripes.getStripeKey("res1", stripe);
+            assertEquals("res1", KeyLayout.resourceIdOf(key));
+            keySet.add(key);
+        }
+        assertEquals(4, keySet.size());
+        //未条带化时为1
+        assertEquals(1, stripes.getStripeCount("res1"));
+    }
+
+    private static void assertSplit(int total, int stripeCount, int... expected){
+        for (int stripe = 0; stripe < stripeCount; stripe++) {
+            assertEquals("stripe:" + stripe, expected[stripe], SemaphoreStripes.split(total, stripeCount, stripe));
+        }
+    }
+}
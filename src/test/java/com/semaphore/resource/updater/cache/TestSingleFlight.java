@@ -0,0 +1,157 @@
+package com.semaphore.resource.updater.cache;
+
+import com.semaphore.resource.updater.exceptions.LockWaitException;
+import com.semaphore.resource.updater.exceptions.ResourceRunException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 测试按资源合并初始化
+ *
+ * @date 2022/4/25 11:30 AM
+ */
+public class TestSingleFlight {
+    private static final long WAIT_MILLI_SECOND = 5000;
+
+    @Test
+    public void testLeadDistinctResources() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        List<List<String>> initList = Collections.synchronizedList(new ArrayList<>());
+        singleFlight.execute(Arrays.asList("res1", "res2", "res1"), initList::add, resourceId -> WAIT_MILLI_SECOND);
+        assertEquals(Collections.singletonList(Arrays.asList("res1", "res2")), initList);
+        //完成后移除 再次执行时重新初始化
+        singleFlight.execute(Collections.singletonList("res1"), initList::add, resourceId -> WAIT_MILLI_SECOND);
+        assertEquals(2, initList.size());
+    }
+
+    @Test
+    public void testFollowRunningFlight() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        CountDownLatch leading = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        AtomicInteger res1InitCount = new AtomicInteger();
+        List<String> followerInitList = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> leader = executor.submit(() -> {
+                singleFlight.execute(Collections.singletonList("res1"), resourceIdList -> {
+                    res1InitCount.incrementAndGet();
+                    leading.countDown();
+                    finish.await();
+                }, resourceId -> WAIT_MILLI_SECOND);
+                return null;
+            });
+            assertTrue(leading.await(WAIT_MILLI_SECOND, TimeUnit.MILLISECONDS));
+            Future<?> follower = executor.submit(() -> {
+                //res2由本线程初始化 res1等待leader
+                singleFlight.execute(Arrays.asList("res1", "res2"), followerInitList::addAll, resourceId -> WAIT_MILLI_SECOND);
+                return null;
+            });
+            //follower先初始化自己负责的资源 再等待
+            long deadline = System.currentTimeMillis() + WAIT_MILLI_SECOND;
+            while (followerInitList.isEmpty() && System.currentTimeMillis() < deadline){
+                Thread.sleep(10);
+            }
+            assertEquals(Collections.singletonList("res2"), followerInitList);
+            assertTrue(!follower.isDone());
+            finish.countDown();
+            leader.get(WAIT_MILLI_SECOND, TimeUnit.MILLISECONDS);
+            follower.get(WAIT_MILLI_SECOND, TimeUnit.MILLISECONDS);
+            assertEquals(1, res1InitCount.get());
+        }finally {
+            finish.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFollowTimeout() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        CountDownLatch leading = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> {
+                singleFlight.execute(Collections.singletonList("res1"), resourceIdList -> {
+                    leading.countDown();
+                    finish.await();
+                }, resourceId -> WAIT_MILLI_SECOND);
+                return null;
+            });
+            assertTrue(leading.await(WAIT_MILLI_SECOND, TimeUnit.MILLISECONDS));
+            try {
+                singleFlight.execute(Collections.singletonList("res1"), resourceIdList -> fail("不应重复初始化"), resourceId -> 50);
+                fail("应该等待超时");
+            }catch (LockWaitException e){
+                assertTrue(e.getMessage().contains("res1"));
+            }
+        }finally {
+            finish.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLeaderFailure() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        CountDownLatch leading = new CountDownLatch(1);
+        CountDownLatch failing = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> leader = executor.submit(() -> {
+                singleFlight.execute(Collections.singletonList("res1"), resourceIdList -> {
+                    leading.countDown();
+                    failing.await();
+                    throw new IllegalStateException("db down");
+                }, resourceId -> WAIT_MILLI_SECOND);
+                return null;
+            });
+            assertTrue(leading.await(WAIT_MILLI_SECOND, TimeUnit.MILLISECONDS));
+            //follower开始等待之后leader再失败
+            Thread failer = new Thread(() -> {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                failing.countDown();
+            });
+            failer.start();
+            //follower得到leader的失败 运行时异常转为ResourceRunException
+            try {
+                singleFlight.execute(Collections.singletonList("res1"), resourceIdList -> fail("不应重复初始化"), resourceId -> WAIT_MILLI_SECOND);
+                fail("follower应该得到leader的失败");
+            }catch (ResourceRunException e){
+                assertTrue(e.getMessage().contains("db down"));
+            }
+            try {
+                leader.get(WAIT_MILLI_SECOND, TimeUnit.MILLISECONDS);
+                fail("leader应该抛出异常");
+            }catch (ExecutionException e){
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            //失败后移除 下一次重新初始化
+            AtomicInteger initCount = new AtomicInteger();
+            singleFlight.execute(Collections.singletonList("res1"), resourceIdList -> initCount.incrementAndGet(), resourceId -> WAIT_MILLI_SECOND);
+            assertEquals(1, initCount.get());
+        }finally {
+            failing.countDown();
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.semaphore.resource.updater.core;
+
+import com.semaphore.resource.updater.exceptions.ResourceRunException;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 测试购物车的排序、合并及复用 不依赖redis和数据库
+ *
+ * @date 2022/4/25 10:20 AM
+ */
+public class TestResourceCart {
+
+    @Test
+    public void testSortAndMergeDuplicates(){
+        ResourceCart cart = new ResourceCart(2);
+        cart.add("res3", 1).add("res1", 2).add("res3", 4).add("res2", 1).add("res1", 3);
+        List<UpdateResourceParam> paramList = cart.prepare();
+        assertParams(paramList, "res1", 5, "res2", 1, "res3", 5);
+        assertEquals(3, cart.size());
+    }
+
+    @Test
+    public void testAroundInsertionSortThreshold(){
+        //插入排序的阈值为16 覆盖阈值以下、等于阈值以及需要快速排序的大小
+        for(int size : new int[]{1, 2, 15, 16, 17, 40, 200}){
+            assertPrepared(size, new Random(size));
+        }
+    }
+
+    @Test
+    public void testAllSameResourceId(){
+        ResourceCart cart = new ResourceCart();
+        for (int i = 0; i < 40; i++) {
+            cart.add("res1", 1);
+        }
+        assertParams(cart.prepare(), "res1", 40);
+    }
+
+    @Test
+    public void testReuseAfterClear(){
+        ResourceCart cart = new ResourceCart(4);
+        cart.addAll(new String[]{"res2", "res1", "res2"}, new int[]{1, 1, 1});
+        List<UpdateResourceParam> first = cart.prepare();
+        UpdateResourceParam firstParam = first.get(0);
+        assertParams(first, "res1", 1, "res2", 2);
+
+        cart.clear();
+        assertTrue(cart.isEmpty());
+        cart.add("res9", 3).add("res5", 2);
+        List<UpdateResourceParam> second = cart.prepare();
+        //复用列表及参数对象 不残留上一次的数据
+        assertSame(first, second);
+        assertSame(firstParam, second.get(0));
+        assertParams(second, "res5", 2, "res9", 3);
+
+        //超出初始容量后仍可复用
+        cart.clear();
+        assertPrepared(cart, 40, new Random(40));
+    }
+
+    @Test(expected = ResourceRunException.class)
+    public void testNullResourceId(){
+        new ResourceCart().add(null, 1);
+    }
+
+    @Test(expected = ResourceRunException.class)
+    public void testAddAllLengthMismatch(){
+        new ResourceCart().addAll(new String[]{"res1"}, new int[]{1, 2});
+    }
+
+    private static void assertPrepared(int size, Random random){
+        assertPrepared(new ResourceCart(), size, random);
+    }
+
+    /**
+     * 随机添加size个资源（有重复） 与TreeMap合并的结果比较
+     */
+    private static void assertPrepared(ResourceCart cart, int size, Random random){
+        Map<String, Integer> expected = new TreeMap<>();
+        for (int i = 0; i < size; i++) {
+            String resourceId = "res" + random.nextInt(Math.max(1, size / 2));
+            int num = random.nextInt(5) + 1;
+            cart.add(resourceId, num);
+            expected.merge(resourceId, num, Integer::sum);
+        }
+        List<UpdateResourceParam> paramList = cart.prepare();
+        assertEquals("size:" + size, expected.size(), paramList.size());
+        int i = 0;
+        for(Map.Entry<String, Integer> entry : expected.entrySet()){
+            assertEquals("size:" + size, entry.getKey(), paramList.get(i).getResourceId());
+            assertEquals("size:" + size, entry.getValue().intValue(), paramList.get(i).getNum());
+            i++;
+        }
+    }
+
+    private static void assertParams(List<UpdateResourceParam> paramList, Object... expected){
+        assertEquals(expected.length / 2, paramList.size());
+        for (int i = 0; i < paramList.size(); i++) {
+            assertEquals(expected[i * 2], paramList.get(i).getResourceId());
+            assertEquals(expected[i * 2 + 1], paramList.get(i).getNum());
+        }
+    }
+}
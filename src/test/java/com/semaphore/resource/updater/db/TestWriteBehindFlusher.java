@@ -0,0 +1,144 @@
+package com.semaphore.resource.updater.db;
+
+import com.semaphore.resource.updater.base.BaseSpringTest;
+import com.semaphore.resource.updater.core.ResourceUpdater;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.redisson.api.RStream;
+import org.redisson.api.StreamMessageId;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Qualifier;
+
+import javax.annotation.Resource;
+import java.util.*;
+
+/**
+ * 测试异步落库的重复处理
+ * 数据库提交之后ack失败、ack之前宕机、被其它消费者接管时，同一条消息会被再次处理，不能重复扣减
+ *
+ * 运行之前 需要初始化表resource_write_behind_applied（见README） 并在表中初始化库存 "res1"
+ *
+ * @date 2022/4/28 4:10 PM
+ */
+public class TestWriteBehindFlusher extends BaseSpringTest {
+    private static final String RESOURCE_ID = "res1";
+    /**
+     * 不启动定时落库 由测试直接驱动
+     */
+    private static final long FLUSH_INTERVAL = 3600 * 1000;
+
+    /**
+     * 初始化redis客户端
+     */
+    @Resource
+    @Qualifier("commonResourceUpdater")
+    private ResourceUpdater resourceUpdater;
+
+    private WriteBehindFlusher flusher;
+    private WriteBehindFlusher otherFlusher;
+    private long messageTime;
+    private long sequence;
+
+    @Before
+    public void setUp(){
+        flusher = new WriteBehindFlusher(dbAccessor, "test-consumer-a", 100, FLUSH_INTERVAL);
+        otherFlusher = new WriteBehindFlusher(dbAccessor, "test-consumer-b", 100, FLUSH_INTERVAL);
+        messageTime = System.currentTimeMillis();
+        sequence = 1000000;
+    }
+
+    @After
+    public void tearDown(){
+        flusher.shutdown();
+        otherFlusher.shutdown();
+    }
+
+    /**
+     * 落库提交之后ack失败（或者ack之前宕机），重新处理时不再扣减
+     */
+    @Test
+    public void testReplayAfterCommit(){
+        Map<StreamMessageId, Map<String, Integer>> batch = new LinkedHashMap<>();
+        batch.put(nextId(), Collections.singletonMap(RESOURCE_ID, 1));
+        batch.put(nextId(), Collections.singletonMap(RESOURCE_ID, 2));
+        int before = available();
+        flusher.applyDeltas(batch);
+        Assert.assertEquals(before - 3, available());
+        flusher.applyDeltas(batch);
+        Assert.assertEquals(before - 3, available());
+    }
+
+    /**
+     * 宕机的消费者未ack的消息被其它消费者接管
+     */
+    @Test
+    public void testReplayAfterTakeover(){
+        Map<StreamMessageId, Map<String, Integer>> batch = Collections.singletonMap(nextId(), Collections.singletonMap(RESOURCE_ID, 2));
+        int before = available();
+        flusher.applyDeltas(batch);
+        otherFlusher.applyDeltas(batch);
+        Assert.assertEquals(before - 2, available());
+    }
+
+    /**
+     * 一批中部分消息已经落库 只落库其余的消息
+     */
+    @Test
+    public void testPartialReplay(){
+        StreamMessageId appliedId = nextId();
+        int before = available();
+        flusher.applyDeltas(Collections.singletonMap(appliedId, Collections.singletonMap(RESOURCE_ID, 1)));
+        Map<StreamMessageId, Map<String, Integer>> batch = new LinkedHashMap<>();
+        batch.put(appliedId, Collections.singletonMap(RESOURCE_ID, 1));
+        batch.put(nextId(), Collections.singletonMap(RESOURCE_ID, 4));
+        //回滚抵消的消息
+        batch.put(nextId(), Collections.singletonMap(RESOURCE_ID, -1));
+        otherFlusher.applyDeltas(batch);
+        Assert.assertEquals(before - 4, available());
+        otherFlusher.applyDeltas(batch);
+        Assert.assertEquals(before - 4, available());
+    }
+
+    /**
+     * 完整的处理流程 已经落库的消息只ack
+     */
+    @Test
+    public void testProcessSkipsApplied(){
+        StreamMessageId id = nextId();
+        Map<StreamMessageId, Map<String, String>> messageMap = Collections.singletonMap(id, Collections.singletonMap(RESOURCE_ID, "3"));
+        int before = available();
+        flusher.process(messageMap);
+        Assert.assertEquals(before - 3, available());
+        long flushed = otherFlusher.getFlushedCount();
+        otherFlusher.process(messageMap);
+        Assert.assertEquals(before - 3, available());
+        Assert.assertEquals(flushed + 1, otherFlusher.getFlushedCount());
+    }
+
+    /**
+     * 数量不足的消息重试也不会成功 转入死信并ack，不扣减
+     */
+    @Test
+    public void testProcessDeadLettersInsufficient(){
+        Map<StreamMessageId, Map<String, String>> messageMap = Collections.singletonMap(nextId(), Collections.singletonMap(RESOURCE_ID, String.valueOf(Integer.MAX_VALUE)));
+        int before = available();
+        long deadCount = deadStream().size();
+        Assert.assertTrue(flusher.process(messageMap));
+        Assert.assertEquals(before, available());
+        Assert.assertEquals(deadCount + 1, deadStream().size());
+    }
+
+    private RStream<String, String> deadStream(){
+        return redissonClient.getStream(WriteBehindFlusher.WRITE_BEHIND_DEAD_STREAM_KEY, StringCodec.INSTANCE);
+    }
+
+    private StreamMessageId nextId(){
+        return new StreamMessageId(messageTime, sequence++);
+    }
+
+    private int available(){
+        return dbAccessor.queryOneResource(RESOURCE_ID).getAvailableCount();
+    }
+}
@@ -0,0 +1,91 @@
+package com.semaphore.resource.updater.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 测试直方图的分桶及分位数
+ *
+ * @date 2022/4/25 10:40 AM
+ */
+public class TestLatencyHistogram {
+
+    @Test
+    public void testEmpty(){
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean(), 0);
+    }
+
+    @Test
+    public void testExactBelowLinearRange(){
+        //小于32的值每个值一个桶 分位数精确
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 32; i++) {
+            histogram.record(i);
+        }
+        for (int i = 1; i <= 32; i++) {
+            assertEquals(i - 1, histogram.getValueAtPercentile((i - 0.5) * 100 / 32));
+        }
+    }
+
+    @Test
+    public void testBucketEdges(){
+        //32、33在同一个桶（上界33），34、35在下一个桶
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(32);
+        histogram.record(34);
+        assertEquals(33, histogram.getValueAtPercentile(50));
+        assertEquals(34, histogram.getValueAtPercentile(100));
+
+        //64-67在同一个桶（上界67）
+        histogram.reset();
+        histogram.record(64);
+        histogram.record(68);
+        assertEquals(67, histogram.getValueAtPercentile(50));
+        assertEquals(68, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testPercentileTarget(){
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        //第50个值为50 所在桶[50,51]
+        assertEquals(51, histogram.getValueAtPercentile(50));
+        //第1个值
+        assertEquals(1, histogram.getValueAtPercentile(0));
+        //不超过记录到的最大值
+        assertEquals(100, histogram.getValueAtPercentile(100));
+        assertEquals(100, histogram.getValueAtPercentile(150));
+        assertEquals(100, histogram.getCount());
+        assertEquals(50.5, histogram.getMean(), 0.0001);
+    }
+
+    @Test
+    public void testRelativeError(){
+        for (long value = 32; value < LatencyHistogram.MAX_VALUE; value = value * 3 / 2 + 1) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value);
+            histogram.record(LatencyHistogram.MAX_VALUE);
+            long upperBound = histogram.getValueAtPercentile(50);
+            assertTrue("value:" + value, upperBound >= value);
+            assertTrue("value:" + value, upperBound - value <= value / 16);
+        }
+    }
+
+    @Test
+    public void testClamp(){
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(0, histogram.getValueAtPercentile(100));
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(LatencyHistogram.MAX_VALUE, histogram.getMax());
+        assertEquals(LatencyHistogram.MAX_VALUE, histogram.getValueAtPercentile(100));
+        assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+}